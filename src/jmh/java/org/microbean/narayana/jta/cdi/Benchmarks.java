@@ -0,0 +1,85 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.File;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+/**
+ * Utility methods shared by the benchmarks in this package.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class Benchmarks {
+
+  private Benchmarks() {
+    super();
+  }
+
+  /**
+   * Starts and returns a new {@link SeContainer} after pointing
+   * Narayana's object store at a directory beneath the Maven build
+   * directory.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a new, initialized {@link SeContainer}; never {@code
+   * null}
+   */
+  static final SeContainer startContainer() {
+    return startContainer(new Class<?>[0]);
+  }
+
+  /**
+   * Starts and returns a new {@link SeContainer} after pointing
+   * Narayana's object store at a directory beneath the Maven build
+   * directory, adding the supplied bean classes, which are not
+   * otherwise discovered because the benchmark sources have no
+   * {@code beans.xml}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param beanClasses the bean classes to add; must not be {@code
+   * null}
+   *
+   * @return a new, initialized {@link SeContainer}; never {@code
+   * null}
+   */
+  static final SeContainer startContainer(final Class<?>... beanClasses) {
+    final String buildDirectory = System.getProperty("project.build.directory", "target");
+    System.setProperty("ObjectStoreEnvironmentBean.objectStoreDir",
+                       new File(buildDirectory, "ObjectStore").getAbsolutePath());
+    return SeContainerInitializer.newInstance().addBeanClasses(beanClasses).initialize();
+  }
+
+  /**
+   * Closes the supplied {@link SeContainer} if it is non-{@code null}
+   * and still running.
+   *
+   * @param container the {@link SeContainer} to close; may be {@code
+   * null}
+   */
+  static final void stopContainer(final SeContainer container) {
+    if (container != null && container.isRunning()) {
+      container.close();
+    }
+  }
+
+}
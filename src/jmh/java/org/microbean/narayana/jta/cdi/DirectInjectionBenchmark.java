@@ -0,0 +1,190 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import com.arjuna.ats.jta.common.JTAEnvironmentBean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark that compares the cost of the status queries that
+ * frameworks make most often when the {@link TransactionManager} and
+ * {@link TransactionSynchronizationRegistry} beans are injected
+ * through client proxies (the default) and when they are injected
+ * directly (with the {@code
+ * org.microbean.narayana.jta.cdi.directInjection.enabled} system
+ * property set to {@code true}).
+ *
+ * <p>The same queries made of the raw Narayana objects are included
+ * as a baseline.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class DirectInjectionBenchmark {
+
+  /**
+   * Creates a new {@link DirectInjectionBenchmark}.
+   */
+  public DirectInjectionBenchmark() {
+    super();
+  }
+
+  /**
+   * Benchmark-wide state holding a running CDI container and the
+   * objects under comparison.
+   */
+  @State(Scope.Benchmark)
+  public static class Beans {
+
+    /**
+     * Whether direct injection is enabled.
+     */
+    @Param({ "false", "true" })
+    public boolean directInjection;
+
+    private SeContainer container;
+
+    TransactionManager transactionManager;
+
+    TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    TransactionManager rawTransactionManager;
+
+    TransactionSynchronizationRegistry rawTransactionSynchronizationRegistry;
+
+    /**
+     * Creates a new {@link Beans}.
+     */
+    public Beans() {
+      super();
+    }
+
+    /**
+     * Starts the CDI container and acquires the objects under
+     * comparison.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      System.setProperty("org.microbean.narayana.jta.cdi.directInjection.enabled", String.valueOf(this.directInjection));
+      this.container = Benchmarks.startContainer();
+      this.transactionManager = this.container.select(TransactionManager.class).get();
+      this.transactionSynchronizationRegistry = this.container.select(TransactionSynchronizationRegistry.class).get();
+      final JTAEnvironmentBean jtaEnvironmentBean = this.container.select(JTAEnvironmentBean.class).get();
+      this.rawTransactionManager = jtaEnvironmentBean.getTransactionManager();
+      this.rawTransactionSynchronizationRegistry = jtaEnvironmentBean.getTransactionSynchronizationRegistry();
+    }
+
+    /**
+     * Stops the CDI container.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      Benchmarks.stopContainer(this.container);
+    }
+
+  }
+
+  /**
+   * Invokes {@link TransactionManager#getStatus()} on the injected
+   * {@link TransactionManager}.
+   *
+   * @param beans the {@link Beans} in effect; must not be {@code
+   * null}
+   *
+   * @return the status
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public int getStatus(final Beans beans) throws Exception {
+    return beans.transactionManager.getStatus();
+  }
+
+  /**
+   * Invokes {@link TransactionManager#getStatus()} on the raw
+   * Narayana {@link TransactionManager}.
+   *
+   * @param beans the {@link Beans} in effect; must not be {@code
+   * null}
+   *
+   * @return the status
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public int rawGetStatus(final Beans beans) throws Exception {
+    return beans.rawTransactionManager.getStatus();
+  }
+
+  /**
+   * Invokes {@link
+   * TransactionSynchronizationRegistry#getTransactionStatus()} on the
+   * injected {@link TransactionSynchronizationRegistry}.
+   *
+   * @param beans the {@link Beans} in effect; must not be {@code
+   * null}
+   *
+   * @return the status
+   */
+  @Benchmark
+  public int getTransactionStatus(final Beans beans) {
+    return beans.transactionSynchronizationRegistry.getTransactionStatus();
+  }
+
+  /**
+   * Invokes {@link
+   * TransactionSynchronizationRegistry#getTransactionStatus()} on the
+   * raw Narayana {@link TransactionSynchronizationRegistry}.
+   *
+   * @param beans the {@link Beans} in effect; must not be {@code
+   * null}
+   *
+   * @return the status
+   */
+  @Benchmark
+  public int rawGetTransactionStatus(final Beans beans) {
+    return beans.rawTransactionSynchronizationRegistry.getTransactionStatus();
+  }
+
+}
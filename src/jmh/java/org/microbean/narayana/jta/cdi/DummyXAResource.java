@@ -0,0 +1,117 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.Serializable;
+
+import java.util.concurrent.locks.LockSupport;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * A {@link Serializable} {@link XAResource} that does no work and
+ * always votes to commit.
+ *
+ * <p>Enlisting two of these in a transaction forces Narayana to
+ * perform a full two-phase commit, and hence to write to its object
+ * store, without the cost of a real resource manager.</p>
+ *
+ * <p>A latency may be supplied at construction time, in which case
+ * {@link #prepare(Xid)} and {@link #commit(Xid, boolean)} each park
+ * the calling thread for that long, as a resource manager reached
+ * over a network would.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class DummyXAResource implements Serializable, XAResource {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Xid[] NO_XIDS = new Xid[0];
+
+  private final long latencyNanos;
+
+  DummyXAResource() {
+    this(0L);
+  }
+
+  DummyXAResource(final long latencyNanos) {
+    super();
+    this.latencyNanos = latencyNanos;
+  }
+
+  @Override
+  public final void start(final Xid xid, final int flags) {
+
+  }
+
+  @Override
+  public final void end(final Xid xid, final int flags) {
+
+  }
+
+  @Override
+  public final int prepare(final Xid xid) {
+    this.simulateLatency();
+    return XA_OK;
+  }
+
+  @Override
+  public final void commit(final Xid xid, final boolean onePhase) {
+    this.simulateLatency();
+  }
+
+  @Override
+  public final void rollback(final Xid xid) {
+
+  }
+
+  @Override
+  public final void forget(final Xid xid) {
+
+  }
+
+  @Override
+  public final Xid[] recover(final int flag) {
+    return NO_XIDS;
+  }
+
+  @Override
+  public final boolean isSameRM(final XAResource xaResource) throws XAException {
+    return this == xaResource;
+  }
+
+  @Override
+  public final int getTransactionTimeout() {
+    return 0;
+  }
+
+  @Override
+  public final boolean setTransactionTimeout(final int seconds) {
+    return false;
+  }
+
+  private final void simulateLatency() {
+    if (this.latencyNanos > 0L) {
+      LockSupport.parkNanos(this.latencyNanos);
+    }
+  }
+
+}
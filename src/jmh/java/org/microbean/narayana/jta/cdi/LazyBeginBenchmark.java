@@ -0,0 +1,176 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark that compares the cost of demarcating transactions
+ * when each transaction is created by {@link
+ * TransactionManager#begin()} (the default) and when its creation is
+ * deferred until it is first needed (with the {@code
+ * org.microbean.narayana.jta.cdi.lazyBegin.enabled} system property
+ * set to {@code true}).
+ *
+ * <p>Transactions in which nothing happens are measured alongside
+ * transactions that register a {@link Synchronization}, which must
+ * be created in either mode.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class LazyBeginBenchmark {
+
+  /**
+   * Creates a new {@link LazyBeginBenchmark}.
+   */
+  public LazyBeginBenchmark() {
+    super();
+  }
+
+  /**
+   * Benchmark-wide state holding a running CDI container.
+   */
+  @State(Scope.Benchmark)
+  public static class Container {
+
+    /**
+     * Whether lazy begin is enabled.
+     */
+    @Param({ "false", "true" })
+    public boolean lazyBegin;
+
+    private SeContainer container;
+
+    TransactionManager transactionManager;
+
+    TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+    /**
+     * Creates a new {@link Container}.
+     */
+    public Container() {
+      super();
+    }
+
+    /**
+     * Starts the CDI container.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      System.setProperty("org.microbean.narayana.jta.cdi.lazyBegin.enabled", String.valueOf(this.lazyBegin));
+      this.container = Benchmarks.startContainer();
+      this.transactionManager = this.container.select(TransactionManager.class).get();
+      this.transactionSynchronizationRegistry = this.container.select(TransactionSynchronizationRegistry.class).get();
+    }
+
+    /**
+     * Stops the CDI container.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      Benchmarks.stopContainer(this.container);
+    }
+
+  }
+
+  /**
+   * Begins and commits a transaction in which nothing happens.
+   *
+   * @param container the {@link Container} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void beginAndCommitUntouched(final Container container) throws Exception {
+    final TransactionManager transactionManager = container.transactionManager;
+    transactionManager.begin();
+    transactionManager.commit();
+  }
+
+  /**
+   * Begins a transaction, registers an interposed {@link
+   * Synchronization} with it, and commits it.
+   *
+   * @param container the {@link Container} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void beginAndCommitWithSynchronization(final Container container) throws Exception {
+    final TransactionManager transactionManager = container.transactionManager;
+    transactionManager.begin();
+    container.transactionSynchronizationRegistry.registerInterposedSynchronization(NoOpSynchronization.INSTANCE);
+    transactionManager.commit();
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class NoOpSynchronization implements Synchronization {
+
+    private static final NoOpSynchronization INSTANCE = new NoOpSynchronization();
+
+    private NoOpSynchronization() {
+      super();
+    }
+
+    @Override
+    public final void beforeCompletion() {
+
+    }
+
+    @Override
+    public final void afterCompletion(final int status) {
+
+    }
+
+  }
+
+}
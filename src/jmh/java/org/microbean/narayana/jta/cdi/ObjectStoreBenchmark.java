@@ -0,0 +1,136 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark that reports the number of two-phase transactions
+ * per second that can be committed under each {@link
+ * ObjectStoreProfile}.
+ *
+ * <p>Each transaction enlists two {@link DummyXAResource}s so that
+ * Narayana writes a log record to its object store.  Because
+ * Narayana's configuration is fixed for the life of a virtual
+ * machine, each profile runs in its own fork.  Use JMH's {@code -t}
+ * argument (via {@code -Djmh.arguments}) to measure the effect of
+ * concurrency, which particularly benefits the {@link
+ * ObjectStoreProfile#JOURNAL} profile.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ObjectStoreProfile
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ObjectStoreBenchmark {
+
+  /**
+   * Creates a new {@link ObjectStoreBenchmark}.
+   */
+  public ObjectStoreBenchmark() {
+    super();
+  }
+
+  /**
+   * Benchmark-wide state holding a CDI container whose object store
+   * is configured with a particular {@link ObjectStoreProfile}.
+   */
+  @State(Scope.Benchmark)
+  public static class Store {
+
+    /**
+     * The name of the {@link ObjectStoreProfile} under test.
+     */
+    @Param({ "FILE", "JOURNAL", "MAPPED", "VOLATILE" })
+    public String profile;
+
+    private SeContainer container;
+
+    TransactionManager transactionManager;
+
+    /**
+     * Creates a new {@link Store}.
+     */
+    public Store() {
+      super();
+    }
+
+    /**
+     * Selects the {@link ObjectStoreProfile} under test and starts
+     * the CDI container.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      System.setProperty("org.microbean.narayana.jta.cdi.objectStore.profile", this.profile);
+      this.container = Benchmarks.startContainer();
+      this.transactionManager = this.container.select(TransactionManager.class).get();
+    }
+
+    /**
+     * Stops the CDI container.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      Benchmarks.stopContainer(this.container);
+    }
+
+  }
+
+  /**
+   * Begins a transaction, enlists two {@link DummyXAResource}s in
+   * it, and commits it.
+   *
+   * @param store the {@link Store} in effect; must not be {@code
+   * null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void twoPhaseCommit(final Store store) throws Exception {
+    final TransactionManager transactionManager = store.transactionManager;
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    transaction.enlistResource(new DummyXAResource());
+    transaction.enlistResource(new DummyXAResource());
+    transactionManager.commit();
+  }
+
+}
@@ -0,0 +1,157 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark that compares the time taken to commit a
+ * transaction spanning several slow {@link DummyXAResource}s when
+ * Narayana prepares and commits them one after another (the default)
+ * and when it does so in parallel (with the {@code
+ * org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncPrepare} and
+ * {@code org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncCommit}
+ * system properties set to {@code true}).
+ *
+ * <p>Sequentially, a transaction takes roughly twice the sum of its
+ * resources' latencies; in parallel, roughly twice the latency of
+ * the slowest.  Because Narayana's configuration is fixed for the
+ * life of a virtual machine, each combination of parameters runs in
+ * its own fork.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ParallelPrepareBenchmark {
+
+  /**
+   * Creates a new {@link ParallelPrepareBenchmark}.
+   */
+  public ParallelPrepareBenchmark() {
+    super();
+  }
+
+  /**
+   * Benchmark-wide state holding a CDI container whose coordinator
+   * prepares and commits participants either sequentially or in
+   * parallel.
+   */
+  @State(Scope.Benchmark)
+  public static class Coordinator {
+
+    /**
+     * Whether participants are prepared and committed in parallel.
+     */
+    @Param({ "false", "true" })
+    public boolean parallel;
+
+    /**
+     * The number of {@link DummyXAResource}s enlisted in each
+     * transaction.
+     */
+    @Param({ "2", "4", "8" })
+    public int resources;
+
+    /**
+     * The time, in milliseconds, that each {@link DummyXAResource}
+     * takes to prepare and to commit.
+     */
+    @Param({ "5" })
+    public long resourceLatencyMillis;
+
+    private SeContainer container;
+
+    TransactionManager transactionManager;
+
+    long resourceLatencyNanos;
+
+    /**
+     * Creates a new {@link Coordinator}.
+     */
+    public Coordinator() {
+      super();
+    }
+
+    /**
+     * Configures the coordinator and starts the CDI container.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      System.setProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncPrepare", String.valueOf(this.parallel));
+      System.setProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncCommit", String.valueOf(this.parallel));
+      this.container = Benchmarks.startContainer();
+      this.transactionManager = this.container.select(TransactionManager.class).get();
+      this.resourceLatencyNanos = TimeUnit.MILLISECONDS.toNanos(this.resourceLatencyMillis);
+    }
+
+    /**
+     * Stops the CDI container.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      Benchmarks.stopContainer(this.container);
+    }
+
+  }
+
+  /**
+   * Begins a transaction, enlists the configured number of slow
+   * {@link DummyXAResource}s in it, and commits it.
+   *
+   * @param coordinator the {@link Coordinator} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void twoPhaseCommit(final Coordinator coordinator) throws Exception {
+    final TransactionManager transactionManager = coordinator.transactionManager;
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    for (int i = 0; i < coordinator.resources; i++) {
+      transaction.enlistResource(new DummyXAResource(coordinator.resourceLatencyNanos));
+    }
+    transactionManager.commit();
+  }
+
+}
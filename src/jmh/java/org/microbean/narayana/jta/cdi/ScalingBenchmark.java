@@ -0,0 +1,217 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.Serializable;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionScoped;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark that drives the CDI-injected {@link
+ * TransactionManager} with complete transactions so that its
+ * throughput and latency can be compared as the number of threads
+ * grows.
+ *
+ * <p>Each transaction enlists one {@link DummyXAResource} (so that
+ * Narayana commits it in one phase) or two (so that it performs a
+ * full two-phase commit and writes to its object store), each of
+ * which takes {@link Configuration#resourceLatencyMicros} to prepare
+ * and to commit.  The object store may be {@linkplain
+ * ObjectStoreProfile#FILE file-based} or {@linkplain
+ * ObjectStoreProfile#VOLATILE volatile}, and each transaction may
+ * additionally use a {@linkplain TransactionScoped transaction-scoped}
+ * bean.</p>
+ *
+ * <p>Throughput is reported in transactions per second and latency
+ * as a distribution with percentiles.  A single run measures a
+ * single thread count; {@link ScalingSuite} runs this benchmark at
+ * every thread count from {@code 1} to the number of available
+ * processors and summarizes the results.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ScalingSuite
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ScalingBenchmark {
+
+  /**
+   * Creates a new {@link ScalingBenchmark}.
+   */
+  public ScalingBenchmark() {
+    super();
+  }
+
+  /**
+   * Benchmark-wide state holding a CDI container configured for a
+   * particular combination of commit protocol, object store and
+   * transaction-scoped bean usage.
+   */
+  @State(Scope.Benchmark)
+  public static class Configuration {
+
+    /**
+     * The number of {@link DummyXAResource}s enlisted in each
+     * transaction: {@code 1} for a one-phase commit, {@code 2} for a
+     * two-phase commit.
+     */
+    @Param({ "1", "2" })
+    public int resources;
+
+    /**
+     * The name of the {@link ObjectStoreProfile} in effect.
+     */
+    @Param({ "FILE", "VOLATILE" })
+    public String objectStore;
+
+    /**
+     * Whether each transaction uses a {@linkplain TransactionScoped
+     * transaction-scoped} bean.
+     */
+    @Param({ "false", "true" })
+    public boolean transactionScoped;
+
+    /**
+     * The time, in microseconds, that each {@link DummyXAResource}
+     * takes to prepare and to commit.
+     */
+    @Param({ "0", "100" })
+    public long resourceLatencyMicros;
+
+    private SeContainer container;
+
+    TransactionManager transactionManager;
+
+    TransactionScopedWork work;
+
+    long resourceLatencyNanos;
+
+    /**
+     * Creates a new {@link Configuration}.
+     */
+    public Configuration() {
+      super();
+    }
+
+    /**
+     * Selects the {@link ObjectStoreProfile} under test and starts
+     * the CDI container.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      System.setProperty("org.microbean.narayana.jta.cdi.objectStore.profile", this.objectStore);
+      this.container = Benchmarks.startContainer(TransactionScopedWork.class);
+      this.transactionManager = this.container.select(TransactionManager.class).get();
+      this.work = this.container.select(TransactionScopedWork.class).get();
+      this.resourceLatencyNanos = TimeUnit.MICROSECONDS.toNanos(this.resourceLatencyMicros);
+    }
+
+    /**
+     * Stops the CDI container.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      Benchmarks.stopContainer(this.container);
+    }
+
+  }
+
+  /**
+   * A {@linkplain TransactionScoped transaction-scoped} bean, an
+   * instance of which is created and destroyed with each transaction
+   * that uses it.
+   */
+  @TransactionScoped
+  public static class TransactionScopedWork implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int count;
+
+    /**
+     * Creates a new {@link TransactionScopedWork}.
+     */
+    public TransactionScopedWork() {
+      super();
+    }
+
+    /**
+     * Records a unit of work and returns the number recorded so far
+     * in the current transaction.
+     *
+     * @return the number of units of work recorded in the current
+     * transaction
+     */
+    public int perform() {
+      return ++this.count;
+    }
+
+  }
+
+  /**
+   * Begins a transaction, optionally uses a {@linkplain
+   * TransactionScoped transaction-scoped} bean, enlists the
+   * configured number of {@link DummyXAResource}s in it, and commits
+   * it.
+   *
+   * @param configuration the {@link Configuration} in effect; must
+   * not be {@code null}
+   *
+   * @return the number of units of work recorded by the
+   * transaction-scoped bean, or {@code 0}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public int transaction(final Configuration configuration) throws Exception {
+    final TransactionManager transactionManager = configuration.transactionManager;
+    transactionManager.begin();
+    final int returnValue = configuration.transactionScoped ? configuration.work.perform() : 0;
+    final Transaction transaction = transactionManager.getTransaction();
+    for (int i = 0; i < configuration.resources; i++) {
+      transaction.enlistResource(new DummyXAResource(configuration.resourceLatencyNanos));
+    }
+    transactionManager.commit();
+    return returnValue;
+  }
+
+}
@@ -0,0 +1,206 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.openjdk.jmh.annotations.Mode;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link ScalingBenchmark} once for each of a series of thread
+ * counts and prints, for every configuration, the throughput,
+ * scaling efficiency and latency percentiles observed at each thread
+ * count, so that the point at which adding cores stops adding
+ * throughput can be read off directly.
+ *
+ * <p>By default the thread counts are the powers of two less than
+ * the number of available processors, followed by the number of
+ * available processors itself.  The {@code scaling.threads} system
+ * property, if set, is a comma-separated list of thread counts to use
+ * instead.</p>
+ *
+ * <p>Any arguments are interpreted as JMH command-line arguments and
+ * apply to every run, except that the results of each run are written
+ * in JSON format to {@code jmh-scaling-}<em>threads</em>{@code
+ * .json} beneath the Maven build directory.  Run with the {@code
+ * benchmarks} Maven profile:</p>
+ *
+ * <blockquote><pre>mvn -Pbenchmarks verify -Djmh.main=org.microbean.narayana.jta.cdi.ScalingSuite -Djmh.includes=ScalingBenchmark</pre></blockquote>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ScalingBenchmark
+ */
+public final class ScalingSuite {
+
+  private ScalingSuite() {
+    super();
+  }
+
+  /**
+   * Runs {@link ScalingBenchmark} at each thread count and prints a
+   * summary of the results.
+   *
+   * @param args JMH command-line arguments; must not be {@code null}
+   *
+   * @exception CommandLineOptionException if {@code args} could not
+   * be parsed
+   *
+   * @exception IOException if help could not be printed
+   *
+   * @exception RunnerException if a benchmark could not be run
+   */
+  public static final void main(final String[] args) throws CommandLineOptionException, IOException, RunnerException {
+    final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    if (commandLineOptions.shouldHelp()) {
+      commandLineOptions.showHelp();
+      return;
+    }
+    final String buildDirectory = System.getProperty("project.build.directory", "target");
+    // Configuration -> thread count -> results
+    final Map<String, Map<Integer, Row>> rows = new TreeMap<>();
+    for (final int threads : threadCounts()) {
+      final ChainedOptionsBuilder builder = new OptionsBuilder()
+        .parent(commandLineOptions)
+        .threads(threads)
+        .result(new File(buildDirectory, "jmh-scaling-" + threads + ".json").getPath())
+        .resultFormat(ResultFormatType.JSON);
+      if (commandLineOptions.getIncludes().isEmpty()) {
+        builder.include(ScalingBenchmark.class.getSimpleName());
+      }
+      final Collection<RunResult> runResults = new Runner(builder.build()).run();
+      for (final RunResult runResult : runResults) {
+        final BenchmarkParams params = runResult.getParams();
+        final Row row = rows.computeIfAbsent(describe(params), k -> new TreeMap<>()).computeIfAbsent(threads, k -> new Row());
+        final Result<?> result = runResult.getPrimaryResult();
+        if (params.getMode() == Mode.Throughput) {
+          row.transactionsPerSecond = result.getScore();
+        } else if (params.getMode() == Mode.SampleTime) {
+          // Sample times are reported in seconds per operation.
+          row.p50Micros = result.getStatistics().getPercentile(50.0) * 1_000_000.0;
+          row.p99Micros = result.getStatistics().getPercentile(99.0) * 1_000_000.0;
+          row.p999Micros = result.getStatistics().getPercentile(99.9) * 1_000_000.0;
+        }
+      }
+    }
+    print(rows);
+  }
+
+  private static final Collection<Integer> threadCounts() {
+    final Collection<Integer> returnValue = new TreeSet<>();
+    final String threads = System.getProperty("scaling.threads");
+    if (threads == null || threads.trim().isEmpty()) {
+      final int processors = Runtime.getRuntime().availableProcessors();
+      for (int i = 1; i < processors; i *= 2) {
+        returnValue.add(Integer.valueOf(i));
+      }
+      returnValue.add(Integer.valueOf(processors));
+    } else {
+      for (final String count : threads.split(",")) {
+        final int i = Integer.parseInt(count.trim());
+        if (i <= 0) {
+          throw new IllegalArgumentException("scaling.threads: " + threads);
+        }
+        returnValue.add(Integer.valueOf(i));
+      }
+    }
+    return returnValue;
+  }
+
+  private static final String describe(final BenchmarkParams params) {
+    final List<String> parameters = new ArrayList<>();
+    for (final String key : params.getParamsKeys()) {
+      parameters.add(key + "=" + params.getParam(key));
+    }
+    return params.getBenchmark() + " " + String.join(" ", parameters);
+  }
+
+  private static final void print(final Map<String, Map<Integer, Row>> rows) {
+    for (final Map.Entry<String, Map<Integer, Row>> entry : rows.entrySet()) {
+      System.out.println();
+      System.out.println(entry.getKey());
+      System.out.println(String.format("%8s %14s %11s %12s %12s %12s",
+                                       "threads", "tx/s", "efficiency", "p50 (us)", "p99 (us)", "p99.9 (us)"));
+      double singleThreadedTransactionsPerSecond = Double.NaN;
+      for (final Map.Entry<Integer, Row> threadsEntry : entry.getValue().entrySet()) {
+        final int threads = threadsEntry.getKey().intValue();
+        final Row row = threadsEntry.getValue();
+        if (threads == 1) {
+          singleThreadedTransactionsPerSecond = row.transactionsPerSecond;
+        }
+        // The throughput achieved per thread as a fraction of that
+        // achieved by a single thread; 1.0 is perfect linear
+        // scaling.
+        final double efficiency = row.transactionsPerSecond / (threads * singleThreadedTransactionsPerSecond);
+        System.out.println(String.format("%8d %14.1f %11.2f %12.1f %12.1f %12.1f",
+                                         threads,
+                                         row.transactionsPerSecond,
+                                         efficiency,
+                                         row.p50Micros,
+                                         row.p99Micros,
+                                         row.p999Micros));
+      }
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class Row {
+
+    private double transactionsPerSecond = Double.NaN;
+
+    private double p50Micros = Double.NaN;
+
+    private double p99Micros = Double.NaN;
+
+    private double p999Micros = Double.NaN;
+
+    private Row() {
+      super();
+    }
+
+  }
+
+}
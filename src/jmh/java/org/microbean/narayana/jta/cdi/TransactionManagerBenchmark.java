@@ -0,0 +1,258 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.jta.common.JTAEnvironmentBean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark that compares the throughput of transaction
+ * demarcation performed through the CDI-injected {@link
+ * TransactionManager} (a client proxy in front of a {@link
+ * NarayanaTransactionManager}) with that performed through the raw
+ * Narayana {@link TransactionManager} returned by {@link
+ * JTAEnvironmentBean#getTransactionManager()}.
+ *
+ * <p>Run with the {@code benchmarks} Maven profile, which enables
+ * JMH's GC profiler so that allocations per transaction are
+ * reported alongside throughput.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaTransactionManager
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class TransactionManagerBenchmark {
+
+  /**
+   * Creates a new {@link TransactionManagerBenchmark}.
+   */
+  public TransactionManagerBenchmark() {
+    super();
+  }
+
+  /**
+   * Benchmark-wide state holding a running CDI container and the two
+   * {@link TransactionManager}s under comparison.
+   */
+  @State(Scope.Benchmark)
+  public static class Managers {
+
+    private SeContainer container;
+
+    TransactionManager cdi;
+
+    TransactionManager raw;
+
+    /**
+     * Creates a new {@link Managers}.
+     */
+    public Managers() {
+      super();
+    }
+
+    /**
+     * Starts the CDI container and acquires both {@link
+     * TransactionManager}s.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      this.container = Benchmarks.startContainer();
+      this.cdi = this.container.select(TransactionManager.class).get();
+      this.raw = this.container.select(JTAEnvironmentBean.class).get().getTransactionManager();
+    }
+
+    /**
+     * Stops the CDI container.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      Benchmarks.stopContainer(this.container);
+    }
+
+  }
+
+  /**
+   * Per-thread state that keeps a transaction open for the duration
+   * of an iteration so that suspension and resumption can be
+   * measured.
+   */
+  @State(Scope.Thread)
+  public static class OpenTransactions {
+
+    private Managers managers;
+
+    /**
+     * Creates a new {@link OpenTransactions}.
+     */
+    public OpenTransactions() {
+      super();
+    }
+
+    /**
+     * Begins a transaction on the current thread.
+     *
+     * @param managers the {@link Managers} in effect; must not be
+     * {@code null}
+     *
+     * @exception Exception if an error occurs
+     */
+    @Setup(Level.Iteration)
+    public void setUp(final Managers managers) throws Exception {
+      this.managers = managers;
+      managers.raw.begin();
+    }
+
+    /**
+     * Rolls back the transaction begun by {@link #setUp(Managers)}.
+     *
+     * @exception Exception if an error occurs
+     */
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+      this.managers.raw.rollback();
+    }
+
+  }
+
+  /**
+   * Begins and commits a transaction using the CDI-injected {@link
+   * TransactionManager}.
+   *
+   * @param managers the {@link Managers} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void cdiBeginCommit(final Managers managers) throws Exception {
+    managers.cdi.begin();
+    managers.cdi.commit();
+  }
+
+  /**
+   * Begins and commits a transaction using the raw Narayana {@link
+   * TransactionManager}.
+   *
+   * @param managers the {@link Managers} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void rawBeginCommit(final Managers managers) throws Exception {
+    managers.raw.begin();
+    managers.raw.commit();
+  }
+
+  /**
+   * Begins and rolls back a transaction using the CDI-injected
+   * {@link TransactionManager}.
+   *
+   * @param managers the {@link Managers} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void cdiBeginRollback(final Managers managers) throws Exception {
+    managers.cdi.begin();
+    managers.cdi.rollback();
+  }
+
+  /**
+   * Begins and rolls back a transaction using the raw Narayana
+   * {@link TransactionManager}.
+   *
+   * @param managers the {@link Managers} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void rawBeginRollback(final Managers managers) throws Exception {
+    managers.raw.begin();
+    managers.raw.rollback();
+  }
+
+  /**
+   * Suspends and resumes the current thread's transaction using the
+   * CDI-injected {@link TransactionManager}.
+   *
+   * @param managers the {@link Managers} in effect; must not be
+   * {@code null}
+   *
+   * @param openTransactions ensures that a transaction is associated
+   * with the current thread; must not be {@code null}
+   *
+   * @return the resumed {@link Transaction}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public Transaction cdiSuspendResume(final Managers managers, final OpenTransactions openTransactions) throws Exception {
+    final Transaction transaction = managers.cdi.suspend();
+    managers.cdi.resume(transaction);
+    return transaction;
+  }
+
+  /**
+   * Suspends and resumes the current thread's transaction using the
+   * raw Narayana {@link TransactionManager}.
+   *
+   * @param managers the {@link Managers} in effect; must not be
+   * {@code null}
+   *
+   * @param openTransactions ensures that a transaction is associated
+   * with the current thread; must not be {@code null}
+   *
+   * @return the resumed {@link Transaction}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public Transaction rawSuspendResume(final Managers managers, final OpenTransactions openTransactions) throws Exception {
+    final Transaction transaction = managers.raw.suspend();
+    managers.raw.resume(transaction);
+    return transaction;
+  }
+
+}
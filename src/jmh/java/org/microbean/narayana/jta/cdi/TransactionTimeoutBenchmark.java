@@ -0,0 +1,165 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A JMH benchmark that reports the number of short transactions per
+ * second that can be begun and committed while a large number of
+ * other, long-running transactions are pending, under each {@link
+ * TransactionTimeoutMode}.
+ *
+ * <p>Every transaction has a timeout, so each one is registered
+ * with, and removed from, either Narayana's transaction reaper or a
+ * {@link TimingWheelTimeoutService}.  The long-running transactions
+ * are begun and suspended before measurement starts and are rolled
+ * back afterwards.  Use JMH's {@code -t} argument (via {@code
+ * -Djmh.arguments}) to measure the effect of concurrency.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TimingWheelTimeoutService
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class TransactionTimeoutBenchmark {
+
+  /**
+   * Creates a new {@link TransactionTimeoutBenchmark}.
+   */
+  public TransactionTimeoutBenchmark() {
+    super();
+  }
+
+  /**
+   * Benchmark-wide state holding a CDI container that uses a
+   * particular {@link TransactionTimeoutMode} and the pending
+   * transactions.
+   */
+  @State(Scope.Benchmark)
+  public static class Timeouts {
+
+    /**
+     * The name of the {@link TransactionTimeoutMode} under test.
+     */
+    @Param({ "REAPER", "TIMING_WHEEL" })
+    public String mode;
+
+    /**
+     * The number of long-running transactions pending while the
+     * benchmark runs.
+     */
+    @Param({ "0", "100000" })
+    public int pending;
+
+    private SeContainer container;
+
+    private List<Transaction> pendingTransactions;
+
+    TransactionManager transactionManager;
+
+    /**
+     * Creates a new {@link Timeouts}.
+     */
+    public Timeouts() {
+      super();
+    }
+
+    /**
+     * Selects the {@link TransactionTimeoutMode} under test, starts
+     * the CDI container and begins the pending transactions.
+     *
+     * @exception Exception if an error occurs
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      System.setProperty("org.microbean.narayana.jta.cdi.transactionTimeouts", this.mode);
+      this.container = Benchmarks.startContainer();
+      final TransactionManager transactionManager = this.container.select(TransactionManager.class).get();
+      this.transactionManager = transactionManager;
+      transactionManager.setTransactionTimeout((int)TimeUnit.HOURS.toSeconds(1L));
+      this.pendingTransactions = new ArrayList<>(this.pending);
+      for (int i = 0; i < this.pending; i++) {
+        transactionManager.begin();
+        this.pendingTransactions.add(transactionManager.suspend());
+      }
+      transactionManager.setTransactionTimeout(0);
+    }
+
+    /**
+     * Rolls back the pending transactions and stops the CDI
+     * container.
+     *
+     * @exception Exception if an error occurs
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+      if (this.pendingTransactions != null) {
+        for (final Transaction transaction : this.pendingTransactions) {
+          this.transactionManager.resume(transaction);
+          this.transactionManager.rollback();
+        }
+        this.pendingTransactions = null;
+      }
+      Benchmarks.stopContainer(this.container);
+    }
+
+  }
+
+  /**
+   * Begins a transaction with the default timeout and commits it.
+   *
+   * @param timeouts the {@link Timeouts} in effect; must not be
+   * {@code null}
+   *
+   * @exception Exception if an error occurs
+   */
+  @Benchmark
+  public void beginCommit(final Timeouts timeouts) throws Exception {
+    final TransactionManager transactionManager = timeouts.transactionManager;
+    transactionManager.begin();
+    transactionManager.commit();
+  }
+
+}
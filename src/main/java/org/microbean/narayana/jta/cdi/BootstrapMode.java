@@ -0,0 +1,51 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+/**
+ * When the {@link NarayanaExtension} initializes Narayana, selected
+ * with the {@code org.microbean.narayana.jta.cdi.bootstrap} system
+ * property.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ */
+enum BootstrapMode {
+
+  /**
+   * Narayana's configuration is read, and its transaction manager,
+   * transaction synchronization registry and object store are
+   * created, only when they are first used.
+   *
+   * <p>This minimizes container startup time for applications that
+   * rarely demarcate transactions.</p>
+   */
+  LAZY,
+
+  /**
+   * Narayana's transaction manager, transaction synchronization
+   * registry and object store are created in parallel before the
+   * container finishes starting.
+   *
+   * <p>This removes their initialization cost from the first
+   * transaction.</p>
+   */
+  EAGER
+
+}
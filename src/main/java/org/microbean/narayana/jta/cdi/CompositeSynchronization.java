@@ -0,0 +1,189 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Arrays;
+
+import javax.transaction.Synchronization;
+
+/**
+ * A {@link Synchronization} that is registered once per transaction
+ * and that runs, in priority order, the {@link Synchronization}s
+ * added to it.
+ *
+ * <p>{@link Synchronization}s are held in compact parallel arrays
+ * rather than in one list entry apiece.  Both {@link
+ * #beforeCompletion()} and {@link #afterCompletion(int)} are invoked
+ * on them in ascending order of priority, and, within a priority,
+ * in the order in which they were added.  A {@link Synchronization}
+ * added while {@link #beforeCompletion()} is running is run before
+ * it returns.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see DelegatingTransactionSynchronizationRegistry#registerInterposedSynchronization(Synchronization,
+ * int)
+ */
+final class CompositeSynchronization implements Synchronization {
+
+  private static final int OPEN = 0;
+
+  private static final int BEFORE_COMPLETION_DONE = 1;
+
+  private Synchronization[] synchronizations; // guarded by this
+
+  private int[] priorities; // guarded by this
+
+  private int size; // guarded by this
+
+  private int state; // guarded by this
+
+  /**
+   * Creates a new {@link CompositeSynchronization}.
+   */
+  CompositeSynchronization() {
+    super();
+    this.synchronizations = new Synchronization[8];
+    this.priorities = new int[8];
+  }
+
+  /**
+   * Adds a {@link Synchronization} to this {@link
+   * CompositeSynchronization} unless its {@link #beforeCompletion()}
+   * method has already finished.
+   *
+   * @param synchronization the {@link Synchronization} to add; must
+   * not be {@code null}
+   *
+   * @param priority the priority of the {@link Synchronization};
+   * lower values run first
+   *
+   * @return {@code true} if the {@link Synchronization} was added;
+   * {@code false} if it is too late for this {@link
+   * CompositeSynchronization} to run it
+   *
+   * @exception NullPointerException if {@code synchronization} is
+   * {@code null}
+   */
+  final synchronized boolean add(final Synchronization synchronization, final int priority) {
+    if (synchronization == null) {
+      throw new NullPointerException("synchronization");
+    }
+    if (this.state != OPEN) {
+      return false;
+    }
+    final int size = this.size;
+    if (size == this.synchronizations.length) {
+      this.synchronizations = Arrays.copyOf(this.synchronizations, size * 2);
+      this.priorities = Arrays.copyOf(this.priorities, size * 2);
+    }
+    this.synchronizations[size] = synchronization;
+    this.priorities[size] = priority;
+    this.size = size + 1;
+    return true;
+  }
+
+  /**
+   * Invokes {@link Synchronization#beforeCompletion()} on every added
+   * {@link Synchronization} in priority order, including those added
+   * while this method is running.
+   *
+   * <p>If any of them throws an exception, the remaining ones are not
+   * invoked and the exception is rethrown so that the transaction
+   * will be rolled back.</p>
+   */
+  @Override
+  public final void beforeCompletion() {
+    int done = 0;
+    while (true) {
+      final Synchronization[] batch;
+      synchronized (this) {
+        if (done == this.size) {
+          this.state = BEFORE_COMPLETION_DONE;
+          return;
+        }
+        this.sort(done);
+        batch = Arrays.copyOfRange(this.synchronizations, done, this.size);
+        done = this.size;
+      }
+      for (final Synchronization synchronization : batch) {
+        synchronization.beforeCompletion();
+      }
+    }
+  }
+
+  /**
+   * Invokes {@link Synchronization#afterCompletion(int)} on every
+   * added {@link Synchronization} in priority order.
+   *
+   * <p>Every {@link Synchronization} is invoked even if an earlier
+   * one throws a {@link RuntimeException}; the first such exception,
+   * with any others {@linkplain Throwable#addSuppressed(Throwable)
+   * suppressed}, is rethrown afterwards.</p>
+   *
+   * @param status the status of the completed transaction
+   */
+  @Override
+  public final void afterCompletion(final int status) {
+    final Synchronization[] all;
+    synchronized (this) {
+      this.state = BEFORE_COMPLETION_DONE;
+      this.sort(0);
+      all = Arrays.copyOf(this.synchronizations, this.size);
+    }
+    RuntimeException problem = null;
+    for (final Synchronization synchronization : all) {
+      try {
+        synchronization.afterCompletion(status);
+      } catch (final RuntimeException runtimeException) {
+        if (problem == null) {
+          problem = runtimeException;
+        } else {
+          problem.addSuppressed(runtimeException);
+        }
+      }
+    }
+    if (problem != null) {
+      throw problem;
+    }
+  }
+
+  // Stable insertion sort by priority of the elements from start
+  // (inclusive) to size (exclusive); nearly free when, as is usual,
+  // all priorities are equal.  Called while holding this object's
+  // monitor.
+  private final void sort(final int start) {
+    final Synchronization[] synchronizations = this.synchronizations;
+    final int[] priorities = this.priorities;
+    for (int i = start + 1; i < this.size; i++) {
+      final int priority = priorities[i];
+      if (priority < priorities[i - 1]) {
+        final Synchronization synchronization = synchronizations[i];
+        int j = i - 1;
+        while (j >= start && priorities[j] > priority) {
+          priorities[j + 1] = priorities[j];
+          synchronizations[j + 1] = synchronizations[j];
+          j--;
+        }
+        priorities[j + 1] = priority;
+        synchronizations[j + 1] = synchronization;
+      }
+    }
+  }
+
+}
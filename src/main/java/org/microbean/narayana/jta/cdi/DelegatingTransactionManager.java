@@ -18,12 +18,19 @@ package org.microbean.narayana.jta.cdi;
 
 import java.util.Objects;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.InvalidTransactionException;
 import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
-import javax.transaction.Status; // for javadoc only
+import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
@@ -38,6 +45,58 @@ import javax.transaction.TransactionManager;
  * <p>This class is {@code public} for convenience.  It is extended by
  * other non-{@code public} internal classes.</p>
  *
+ * <p>If a {@link TransactionMetrics} is supplied at construction
+ * time, every transaction demarcated through a {@link
+ * DelegatingTransactionManager} is recorded in it.</p>
+ *
+ * <p>The {@link #commitAsync(Executor)} and {@link
+ * #rollbackAsync(Executor)} methods detach the current transaction
+ * from the calling thread and complete it on a thread supplied by an
+ * {@link Executor}, so that callers need not block while resources
+ * are prepared and the transaction log is forced.</p>
+ *
+ * <p>The {@link #runSuspended(Callable)} and {@link
+ * #runInNewTransaction(Callable)} methods run code outside of the
+ * current transaction and guarantee that it is associated with the
+ * calling thread again afterwards, replacing hand-written {@link
+ * #suspend()} and {@link #resume(Transaction)} calls.  Since the
+ * {@link TransactionManager} made available by the {@link
+ * NarayanaExtension} is a {@link DelegatingTransactionManager}, they
+ * are available by injecting {@link DelegatingTransactionManager}
+ * rather than {@link TransactionManager}.</p>
+ *
+ * <p>If a {@link TransactionTimeoutService} is supplied at
+ * construction time, transactions begun through a {@link
+ * DelegatingTransactionManager} are timed out by it rather than by
+ * the delegate, and {@linkplain #setTransactionTimeout(int) timeouts}
+ * are not passed on to the delegate.  The delegate's transaction is
+ * instead begun with a timeout of zero, which Narayana takes to mean
+ * that it should not time the transaction out itself; transactions
+ * begun in any other way, such as through Narayana's own {@link
+ * javax.transaction.UserTransaction}, are still timed out by the
+ * delegate as usual.  A transaction that is completed
+ * on the thread that began it cancels its timeout as it completes;
+ * the timeout of any other transaction remains pending until it
+ * expires, at which point it is ignored if the transaction has
+ * completed.</p>
+ *
+ * <p>Each invocation of {@link #begin()}, {@link #commit()}, {@link
+ * #rollback()}, {@link #suspend()} and {@link #resume(Transaction)}
+ * emits a JDK Flight Recorder event, with its duration and outcome,
+ * if Flight Recorder is present and recording it.</p>
+ *
+ * <p>If a {@link DelegatingTransactionManager} is constructed with
+ * lazy begin enabled, {@link #begin()} only records that a
+ * transaction has been begun, and when; the delegate's transaction is
+ * created the first time it is really needed, which is when {@link
+ * #getTransaction()} or {@link #suspend()} is invoked.  Until then,
+ * {@link #getStatus()} and {@link #setRollbackOnly()} are answered
+ * without the delegate, and {@link #commit()} and {@link #rollback()}
+ * complete the transaction without ever creating it.  A deferred
+ * transaction is timed from the invocation of {@link #begin()}: it is
+ * created with only the time that remains, and one whose timeout has
+ * already elapsed is marked for rollback.</p>
+ *
  * @author <a href="https://about.me/lairdnelson" target="_parent">Laird Nelson</a>
  *
  * @see TransactionManager
@@ -46,22 +105,134 @@ public abstract class DelegatingTransactionManager implements TransactionManager
 
   private final TransactionManager delegate;
 
+  private final TransactionMetrics metrics;
+
+  private final TransactionTimeoutService timeoutService;
+
+  private final int defaultTimeoutSeconds;
+
+  private final ThreadLocal<TimeoutState> timeoutState;
+
+  private final boolean lazyBegin;
+
+  private final ThreadLocal<DeferredState> deferredState;
+
   /**
-   * Creates a new {@link DelegatingTransactionManager}.
+   * Creates a new {@link DelegatingTransactionManager} that does not
+   * record {@link TransactionMetrics}.
    *
    * @param delegate the {@link TransactionManager} to which all
    * method invocations will be delegated; may be {@code null}, but
    * then a {@link SystemException} will be thrown by every method in
    * this class when invoked
+   *
+   * @see #DelegatingTransactionManager(TransactionManager,
+   * TransactionMetrics)
    */
   protected DelegatingTransactionManager(final TransactionManager delegate) {
+    this(delegate, null);
+  }
+
+  /**
+   * Creates a new {@link DelegatingTransactionManager}.
+   *
+   * @param delegate the {@link TransactionManager} to which all
+   * method invocations will be delegated; may be {@code null}, but
+   * then a {@link SystemException} will be thrown by every method in
+   * this class when invoked
+   *
+   * @param metrics the {@link TransactionMetrics} in which
+   * transactions will be recorded; may be {@code null} in which case
+   * no metrics will be recorded
+   */
+  protected DelegatingTransactionManager(final TransactionManager delegate, final TransactionMetrics metrics) {
+    this(delegate, metrics, null, 0);
+  }
+
+  /**
+   * Creates a new {@link DelegatingTransactionManager}.
+   *
+   * @param delegate the {@link TransactionManager} to which all
+   * method invocations will be delegated; may be {@code null}, but
+   * then a {@link SystemException} will be thrown by every method in
+   * this class when invoked
+   *
+   * @param metrics the {@link TransactionMetrics} in which
+   * transactions will be recorded; may be {@code null} in which case
+   * no metrics will be recorded
+   *
+   * @param timeoutService the {@link TransactionTimeoutService} that
+   * will time out transactions begun by this {@link
+   * DelegatingTransactionManager}; may be {@code null} in which case
+   * timeouts are left to the delegate
+   *
+   * @param defaultTimeoutSeconds the timeout, in seconds, of
+   * transactions begun on threads for which no {@linkplain
+   * #setTransactionTimeout(int) transaction timeout} has been set; a
+   * value less than or equal to {@code 0} indicates that such
+   * transactions do not time out; ignored if {@code timeoutService}
+   * is {@code null}
+   *
+   * @see #DelegatingTransactionManager(TransactionManager,
+   * TransactionMetrics, TransactionTimeoutService, int, boolean)
+   */
+  protected DelegatingTransactionManager(final TransactionManager delegate,
+                                         final TransactionMetrics metrics,
+                                         final TransactionTimeoutService timeoutService,
+                                         final int defaultTimeoutSeconds) {
+    this(delegate, metrics, timeoutService, defaultTimeoutSeconds, false);
+  }
+
+  /**
+   * Creates a new {@link DelegatingTransactionManager}.
+   *
+   * @param delegate the {@link TransactionManager} to which all
+   * method invocations will be delegated; may be {@code null}, but
+   * then a {@link SystemException} will be thrown by every method in
+   * this class when invoked
+   *
+   * @param metrics the {@link TransactionMetrics} in which
+   * transactions will be recorded; may be {@code null} in which case
+   * no metrics will be recorded
+   *
+   * @param timeoutService the {@link TransactionTimeoutService} that
+   * will time out transactions begun by this {@link
+   * DelegatingTransactionManager}; may be {@code null} in which case
+   * timeouts are left to the delegate
+   *
+   * @param defaultTimeoutSeconds the timeout, in seconds, of
+   * transactions begun on threads for which no {@linkplain
+   * #setTransactionTimeout(int) transaction timeout} has been set; a
+   * value less than or equal to {@code 0} indicates that such
+   * transactions do not time out; ignored if {@code timeoutService}
+   * is {@code null} and {@code lazyBegin} is {@code false}
+   *
+   * @param lazyBegin whether the creation of the delegate's
+   * transaction is deferred from {@link #begin()} until it is first
+   * needed
+   */
+  protected DelegatingTransactionManager(final TransactionManager delegate,
+                                         final TransactionMetrics metrics,
+                                         final TransactionTimeoutService timeoutService,
+                                         final int defaultTimeoutSeconds,
+                                         final boolean lazyBegin) {
     super();
     this.delegate = delegate;
+    this.metrics = metrics;
+    this.timeoutService = timeoutService;
+    this.defaultTimeoutSeconds = defaultTimeoutSeconds;
+    this.timeoutState = timeoutService == null ? null : ThreadLocal.withInitial(TimeoutState::new);
+    this.lazyBegin = lazyBegin;
+    this.deferredState = lazyBegin ? ThreadLocal.withInitial(DeferredState::new) : null;
   }
 
   /**
    * Creates a new transaction and associates it with the current thread.
    *
+   * <p>If this {@link DelegatingTransactionManager} was constructed
+   * with lazy begin enabled, the delegate's transaction is not
+   * created until it is first needed.</p>
+   *
    * @exception NotSupportedException if the thread is already
    * associated with a transaction and this {@link TransactionManager}
    * implementation does not support nested transactions
@@ -71,10 +242,248 @@ public abstract class DelegatingTransactionManager implements TransactionManager
    */
   @Override
   public void begin() throws NotSupportedException, SystemException {
+    final Object event = TransactionEvents.begin(TransactionEvents.Kind.BEGIN, this.delegate);
+    String outcome = TransactionEvents.FAILED;
+    try {
+      this.beginTransaction();
+      outcome = TransactionEvents.SUCCEEDED;
+    } finally {
+      TransactionEvents.end(event, this.delegate, outcome);
+    }
+  }
+
+  private final void beginTransaction() throws NotSupportedException, SystemException {
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
-    this.delegate.begin();
+    if (this.lazyBegin) {
+      final DeferredState deferredState = this.deferredState.get();
+      if (deferredState.deferred || this.delegate.getStatus() != Status.STATUS_NO_TRANSACTION) {
+        throw new NotSupportedException("nested transactions are not supported");
+      }
+      final int seconds = deferredState.seconds > 0 ? deferredState.seconds : this.defaultTimeoutSeconds;
+      deferredState.deferred = true;
+      deferredState.rollbackOnly = false;
+      deferredState.key = null;
+      deferredState.beginNanos = System.nanoTime();
+      deferredState.timeoutNanos = seconds > 0 ? TimeUnit.SECONDS.toNanos(seconds) : 0L;
+      if (this.metrics != null) {
+        this.metrics.begun();
+      }
+      return;
+    }
+    this.beginDelegate();
+    if (this.metrics != null) {
+      this.metrics.begun();
+    }
+    if (this.timeoutService != null) {
+      final int seconds = this.timeoutState.get().seconds;
+      this.scheduleTimeout(TimeUnit.SECONDS.toNanos(seconds > 0 ? seconds : this.defaultTimeoutSeconds));
+    }
+  }
+
+  /**
+   * Returns {@code true} if a transaction has been {@linkplain
+   * #begin() begun} on the current thread but, because this {@link
+   * DelegatingTransactionManager} begins transactions lazily, the
+   * delegate's transaction has not yet been created.
+   *
+   * <p>Overrides of this method must return the result of invoking
+   * {@code super.isTransactionDeferred()}.</p>
+   *
+   * @return {@code true} if the current thread's transaction has
+   * been deferred
+   *
+   * @see #deferredTransactionBegun()
+   */
+  protected boolean isTransactionDeferred() {
+    return this.transactionDeferred();
+  }
+
+  // Not overridable, so that this class's own bookkeeping cannot be
+  // affected by subclasses.  (isTransactionDeferred() is not final so
+  // that subclasses in normal scopes remain proxyable.)
+  private final boolean transactionDeferred() {
+    return this.lazyBegin && this.deferredState.get().deferred;
+  }
+
+  /**
+   * Returns an opaque object that represents the transaction whose
+   * creation has been deferred on the current thread, or {@code
+   * null} if there is no such transaction.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The object returned compares equal only to itself, is the
+   * same for every invocation of this method made while the
+   * transaction remains deferred, and is not the key that the
+   * delegate will use once it has created the transaction.  Unlike
+   * {@link #getTransaction()}, this method does not cause the
+   * transaction to be created.</p>
+   *
+   * @return an opaque object representing the current thread's
+   * deferred transaction, or {@code null}
+   *
+   * @see
+   * DelegatingTransactionSynchronizationRegistry#getTransactionKey()
+   */
+  // Not final, so that client proxies forward it.
+  Object getDeferredTransactionKey() {
+    if (!this.lazyBegin) {
+      return null;
+    }
+    final DeferredState deferredState = this.deferredState.get();
+    if (!deferredState.deferred) {
+      return null;
+    }
+    if (deferredState.key == null) {
+      deferredState.key = new DeferredTransactionKey();
+    }
+    return deferredState.key;
+  }
+  /**
+   * Returns the value of {@link System#nanoTime()} at the moment the
+   * transaction most recently begun on the current thread was begun.
+   *
+   * <p>The value is that of the transaction whose creation has been
+   * deferred, if there is one, and remains available once the
+   * transaction has been created, including while {@link
+   * #deferredTransactionBegun()} is invoked, until another
+   * transaction is begun on the current thread.</p>
+   *
+   * @return the time at which the current thread's transaction was
+   * begun
+   *
+   * @exception IllegalStateException if this {@link
+   * DelegatingTransactionManager} does not begin transactions lazily
+   */
+  // Not final, so that client proxies forward it.
+  long getDeferredTransactionBeginNanos() {
+    if (!this.lazyBegin) {
+      throw new IllegalStateException("transactions are not begun lazily");
+    }
+    return this.deferredState.get().beginNanos;
+  }
+
+  /**
+   * Invoked on the current thread once the delegate's transaction
+   * has been created for a transaction whose creation was deferred
+   * by {@link #begin()}, and before the method that needed it
+   * proceeds.
+   *
+   * <p>This implementation does nothing.</p>
+   *
+   * @exception SystemException if an unexpected error condition
+   * occurs
+   *
+   * @see #isTransactionDeferred()
+   */
+  protected void deferredTransactionBegun() throws SystemException {
+
+  }
+
+  // Creates the delegate's transaction for the transaction deferred
+  // on the current thread, giving it only the time that remains of
+  // its timeout.
+  private final void beginDeferredTransaction(final DeferredState deferredState) throws SystemException {
+    deferredState.deferred = false;
+    final long timeoutNanos = deferredState.timeoutNanos;
+    final long remainingNanos = timeoutNanos <= 0L ? 0L : timeoutNanos - (System.nanoTime() - deferredState.beginNanos);
+    try {
+      if (this.timeoutService == null && timeoutNanos > 0L) {
+        this.delegate.setTransactionTimeout((int)Math.max(1L, (remainingNanos + 999_999_999L) / 1_000_000_000L));
+        try {
+          this.delegate.begin();
+        } finally {
+          this.delegate.setTransactionTimeout(deferredState.seconds);
+        }
+      } else {
+        this.beginDelegate();
+      }
+    } catch (final NotSupportedException notSupportedException) {
+      // A transaction was associated with the current thread behind
+      // this DelegatingTransactionManager's back.
+      if (this.metrics != null) {
+        this.metrics.abandoned();
+      }
+      final SystemException systemException = new SystemException(notSupportedException.getMessage());
+      systemException.initCause(notSupportedException);
+      throw systemException;
+    }
+    if (this.timeoutService != null && timeoutNanos > 0L) {
+      this.scheduleTimeout(Math.max(0L, remainingNanos));
+    }
+    if (deferredState.rollbackOnly || (timeoutNanos > 0L && remainingNanos <= 0L)) {
+      this.delegate.setRollbackOnly();
+    }
+    this.deferredTransactionBegun();
+  }
+
+  // Begins the delegate's transaction.  If this
+  // DelegatingTransactionManager times transactions out itself, the
+  // delegate is told not to, for this transaction only, by beginning
+  // it with a timeout of zero.  The delegate's timeout for the current
+  // thread is never otherwise set in that case, so it is then
+  // restored to the default.
+  private final void beginDelegate() throws NotSupportedException, SystemException {
+    if (this.timeoutService == null) {
+      this.delegate.begin();
+    } else {
+      this.delegate.setTransactionTimeout(0);
+      try {
+        this.delegate.begin();
+      } finally {
+        this.delegate.setTransactionTimeout(this.defaultTimeoutSeconds);
+      }
+    }
+  }
+
+  private final void scheduleTimeout(final long timeoutNanos) throws SystemException {
+    final TimeoutState timeoutState = this.timeoutState.get();
+    timeoutState.timeout = null;
+    if (timeoutNanos > 0L) {
+      try {
+        timeoutState.timeout =
+          this.timeoutService.schedule(this.delegate.getTransaction(), timeoutNanos, TimeUnit.NANOSECONDS);
+      } catch (final RuntimeException runtimeException) {
+        // The transaction must not run without its timeout.
+        try {
+          this.rollback();
+        } catch (final SystemException | RuntimeException rollbackProblem) {
+          runtimeException.addSuppressed(rollbackProblem);
+        }
+        final SystemException systemException = new SystemException(runtimeException.getMessage());
+        systemException.initCause(runtimeException);
+        throw systemException;
+      }
+    }
+  }
+
+  // Cancels and forgets the timeout, if any, of the transaction that
+  // was begun by, and has not since been suspended from, the current
+  // thread.
+  private final void cancelTimeout() {
+    if (this.timeoutService != null) {
+      final TimeoutState timeoutState = this.timeoutState.get();
+      final TransactionTimeoutService.Timeout timeout = timeoutState.timeout;
+      if (timeout != null) {
+        timeoutState.timeout = null;
+        timeout.cancel();
+      }
+    }
+  }
+
+  // Returns the timeout, if any, of the transaction that was begun
+  // by, and has not since been suspended from, the current thread,
+  // without forgetting it.  Suspending the transaction forgets it.
+  private final TransactionTimeoutService.Timeout currentTimeout() {
+    return this.timeoutService == null ? null : this.timeoutState.get().timeout;
+  }
+
+  private final void attachTimeout(final TransactionTimeoutService.Timeout timeout) {
+    if (timeout != null) {
+      this.timeoutState.get().timeout = timeout;
+    }
   }
 
   /**
@@ -104,10 +513,73 @@ public abstract class DelegatingTransactionManager implements TransactionManager
    */
   @Override
   public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
+    final Object event = TransactionEvents.begin(TransactionEvents.Kind.COMMIT, this.delegate);
+    if (event == null) {
+      this.commitTransaction();
+      return;
+    }
+    TransactionOutcome outcome = TransactionOutcome.UNKNOWN;
+    try {
+      this.commitTransaction();
+      outcome = TransactionOutcome.COMMITTED;
+    } catch (final RollbackException rollbackException) {
+      outcome = TransactionOutcome.ROLLED_BACK;
+      throw rollbackException;
+    } catch (final HeuristicMixedException heuristicMixedException) {
+      outcome = TransactionOutcome.HEURISTIC_MIXED;
+      throw heuristicMixedException;
+    } catch (final HeuristicRollbackException heuristicRollbackException) {
+      outcome = TransactionOutcome.HEURISTIC_ROLLBACK;
+      throw heuristicRollbackException;
+    } finally {
+      TransactionEvents.end(event, this.delegate, outcome.name());
+    }
+  }
+
+  private final void commitTransaction()
+    throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
-    this.delegate.commit();
+    final TransactionMetrics metrics = this.metrics;
+    if (this.lazyBegin) {
+      final DeferredState deferredState = this.deferredState.get();
+      if (deferredState.deferred) {
+        // Nothing was ever enlisted or registered, so there is
+        // nothing to commit.
+        final long commitStartNanos = System.nanoTime();
+        deferredState.deferred = false;
+        if (deferredState.isRollbackOnly(commitStartNanos)) {
+          if (metrics != null) {
+            metrics.commitRolledBack(commitStartNanos);
+          }
+          throw new RollbackException("transaction marked for rollback");
+        }
+        if (metrics != null) {
+          metrics.committed(commitStartNanos);
+        }
+        return;
+      }
+    }
+    this.cancelTimeout();
+    if (metrics == null) {
+      this.delegate.commit();
+    } else {
+      final long commitStartNanos = System.nanoTime();
+      try {
+        this.delegate.commit();
+      } catch (final RollbackException rollbackException) {
+        metrics.commitRolledBack(commitStartNanos);
+        throw rollbackException;
+      } catch (final HeuristicMixedException | HeuristicRollbackException heuristicException) {
+        metrics.commitHeuristic(commitStartNanos);
+        throw heuristicException;
+      } catch (final SystemException | RuntimeException exception) {
+        metrics.abandoned();
+        throw exception;
+      }
+      metrics.committed(commitStartNanos);
+    }
   }
 
   /**
@@ -129,6 +601,12 @@ public abstract class DelegatingTransactionManager implements TransactionManager
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
+    if (this.lazyBegin) {
+      final DeferredState deferredState = this.deferredState.get();
+      if (deferredState.deferred) {
+        return deferredState.isRollbackOnly(System.nanoTime()) ? Status.STATUS_MARKED_ROLLBACK : Status.STATUS_ACTIVE;
+      }
+    }
     return this.delegate.getStatus();
   }
 
@@ -138,6 +616,9 @@ public abstract class DelegatingTransactionManager implements TransactionManager
    *
    * <p>This method never returns {@code null}.</p>
    *
+   * <p>If the creation of the current thread's transaction was
+   * deferred by {@link #begin()}, it is created now.</p>
+   *
    * @return the {@link Transaction} object representing the
    * transaction associated with the calling thread; never {@code
    * null}
@@ -150,6 +631,12 @@ public abstract class DelegatingTransactionManager implements TransactionManager
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
+    if (this.lazyBegin) {
+      final DeferredState deferredState = this.deferredState.get();
+      if (deferredState.deferred) {
+        this.beginDeferredTransaction(deferredState);
+      }
+    }
     return this.delegate.getTransaction();
   }
 
@@ -175,9 +662,23 @@ public abstract class DelegatingTransactionManager implements TransactionManager
    */
   @Override
   public void resume(final Transaction transaction) throws InvalidTransactionException, SystemException {
+    final Object event = TransactionEvents.begin(TransactionEvents.Kind.RESUME, this.delegate);
+    String outcome = TransactionEvents.FAILED;
+    try {
+      this.resumeTransaction(transaction);
+      outcome = TransactionEvents.SUCCEEDED;
+    } finally {
+      TransactionEvents.end(event, this.delegate, outcome);
+    }
+  }
+
+  private final void resumeTransaction(final Transaction transaction) throws InvalidTransactionException, SystemException {
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
+    if (this.transactionDeferred()) {
+      throw new IllegalStateException("thread already associated with a transaction");
+    }
     this.delegate.resume(transaction);
   }
 
@@ -198,10 +699,600 @@ public abstract class DelegatingTransactionManager implements TransactionManager
    */
   @Override
   public void rollback() throws SystemException {
+    final Object event = TransactionEvents.begin(TransactionEvents.Kind.ROLLBACK, this.delegate);
+    TransactionOutcome outcome = TransactionOutcome.UNKNOWN;
+    try {
+      this.rollbackTransaction();
+      outcome = TransactionOutcome.ROLLED_BACK;
+    } finally {
+      TransactionEvents.end(event, this.delegate, outcome.name());
+    }
+  }
+
+  private final void rollbackTransaction() throws SystemException {
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
-    this.delegate.rollback();
+    final TransactionMetrics metrics = this.metrics;
+    if (this.lazyBegin) {
+      final DeferredState deferredState = this.deferredState.get();
+      if (deferredState.deferred) {
+        deferredState.deferred = false;
+        if (metrics != null) {
+          metrics.rolledBack();
+        }
+        return;
+      }
+    }
+    this.cancelTimeout();
+    if (metrics == null) {
+      this.delegate.rollback();
+    } else {
+      try {
+        this.delegate.rollback();
+      } catch (final SystemException | RuntimeException exception) {
+        metrics.abandoned();
+        throw exception;
+      }
+      metrics.rolledBack();
+    }
+  }
+
+  /**
+   * Asynchronously completes the transaction associated with the
+   * current thread using the {@link Executor} returned by the {@link
+   * #getCompletionExecutor()} method.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a {@link CompletionStage} that will be completed with
+   * {@link TransactionOutcome#COMMITTED} or completed exceptionally
+   * with whatever exception {@link #commit()} throws; never {@code
+   * null}
+   *
+   * @exception IllegalStateException if the current thread is not
+   * associated with a transaction
+   *
+   * @exception SystemException if this {@link TransactionManager}
+   * encounters an unexpected error condition
+   *
+   * @exception UnsupportedOperationException if this {@link
+   * DelegatingTransactionManager} has no default completion {@link
+   * Executor}
+   *
+   * @see #commitAsync(Executor)
+   *
+   * @see #getCompletionExecutor()
+   */
+  public CompletionStage<TransactionOutcome> commitAsync() throws SystemException {
+    return this.commitAsync(this.getCompletionExecutor());
+  }
+
+  /**
+   * Asynchronously completes the transaction associated with the
+   * current thread using the supplied {@link Executor}.
+   *
+   * <p>The transaction is {@linkplain #suspend() suspended} on the
+   * calling thread before this method returns, and is {@linkplain
+   * #resume(Transaction) resumed} and {@linkplain #commit()
+   * committed} on a thread supplied by the {@link Executor}.  When
+   * this method returns, the calling thread is no longer associated
+   * with a transaction.</p>
+   *
+   * <p>A {@link RollbackException}, {@link HeuristicMixedException}
+   * or {@link HeuristicRollbackException} thrown by the {@link
+   * #commit()} method is not swallowed: the returned {@link
+   * CompletionStage} is completed exceptionally with it.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param executor the {@link Executor} on which the transaction
+   * will be committed; must not be {@code null}
+   *
+   * @return a {@link CompletionStage} that will be completed with
+   * {@link TransactionOutcome#COMMITTED} or completed exceptionally
+   * with whatever exception {@link #commit()} throws; never {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code executor} is {@code
+   * null}
+   *
+   * @exception IllegalStateException if the current thread is not
+   * associated with a transaction
+   *
+   * @exception RejectedExecutionException if {@code executor} will
+   * not accept the work; in this case the transaction remains
+   * associated with the current thread
+   *
+   * @exception SystemException if this {@link TransactionManager}
+   * encounters an unexpected error condition
+   */
+  public CompletionStage<TransactionOutcome> commitAsync(final Executor executor) throws SystemException {
+    return this.completeAsync(executor, true);
+  }
+
+  /**
+   * Asynchronously rolls back the transaction associated with the
+   * current thread using the {@link Executor} returned by the {@link
+   * #getCompletionExecutor()} method.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a {@link CompletionStage} that will be completed with
+   * {@link TransactionOutcome#ROLLED_BACK} or completed exceptionally
+   * with whatever exception {@link #rollback()} throws; never {@code
+   * null}
+   *
+   * @exception IllegalStateException if the current thread is not
+   * associated with a transaction
+   *
+   * @exception SystemException if this {@link TransactionManager}
+   * encounters an unexpected error condition
+   *
+   * @exception UnsupportedOperationException if this {@link
+   * DelegatingTransactionManager} has no default completion {@link
+   * Executor}
+   *
+   * @see #rollbackAsync(Executor)
+   *
+   * @see #getCompletionExecutor()
+   */
+  public CompletionStage<TransactionOutcome> rollbackAsync() throws SystemException {
+    return this.rollbackAsync(this.getCompletionExecutor());
+  }
+
+  /**
+   * Asynchronously rolls back the transaction associated with the
+   * current thread using the supplied {@link Executor}.
+   *
+   * <p>The transaction is {@linkplain #suspend() suspended} on the
+   * calling thread before this method returns, and is {@linkplain
+   * #resume(Transaction) resumed} and {@linkplain #rollback() rolled
+   * back} on a thread supplied by the {@link Executor}.  When this
+   * method returns, the calling thread is no longer associated with a
+   * transaction.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param executor the {@link Executor} on which the transaction
+   * will be rolled back; must not be {@code null}
+   *
+   * @return a {@link CompletionStage} that will be completed with
+   * {@link TransactionOutcome#ROLLED_BACK} or completed exceptionally
+   * with whatever exception {@link #rollback()} throws; never {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code executor} is {@code
+   * null}
+   *
+   * @exception IllegalStateException if the current thread is not
+   * associated with a transaction
+   *
+   * @exception RejectedExecutionException if {@code executor} will
+   * not accept the work; in this case the transaction remains
+   * associated with the current thread
+   *
+   * @exception SystemException if this {@link TransactionManager}
+   * encounters an unexpected error condition
+   */
+  public CompletionStage<TransactionOutcome> rollbackAsync(final Executor executor) throws SystemException {
+    return this.completeAsync(executor, false);
+  }
+
+  /**
+   * Returns the {@link Executor} used by the {@link #commitAsync()}
+   * and {@link #rollbackAsync()} methods.
+   *
+   * <p>This implementation throws an {@link
+   * UnsupportedOperationException}.  Subclasses that wish to support
+   * the zero-argument asynchronous completion methods must override
+   * it.</p>
+   *
+   * <p>Overrides of this method must not return {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Executor}
+   *
+   * @exception UnsupportedOperationException if there is no default
+   * completion {@link Executor}
+   */
+  protected Executor getCompletionExecutor() {
+    throw new UnsupportedOperationException();
+  }
+
+  private final CompletionStage<TransactionOutcome> completeAsync(final Executor executor, final boolean commit)
+    throws SystemException {
+    Objects.requireNonNull(executor);
+    if (this.transactionDeferred()) {
+      // Completing a transaction that was never created costs less
+      // than handing it to another thread.
+      final CompletableFuture<TransactionOutcome> returnValue = new CompletableFuture<>();
+      try {
+        if (commit) {
+          this.commit();
+          returnValue.complete(TransactionOutcome.COMMITTED);
+        } else {
+          this.rollback();
+          returnValue.complete(TransactionOutcome.ROLLED_BACK);
+        }
+      } catch (final Throwable throwable) {
+        returnValue.completeExceptionally(throwable);
+      }
+      return returnValue;
+    }
+    // Nothing is detached from the current thread until the
+    // transaction has been suspended, so that it keeps its timeout
+    // and metrics if it cannot be.
+    final TransactionTimeoutService.Timeout timeout = this.currentTimeout();
+    final Transaction transaction = this.suspend();
+    if (transaction == null) {
+      throw new IllegalStateException("no transaction");
+    }
+    final TransactionMetrics metrics = this.metrics;
+    final Object metricsState = metrics == null ? null : metrics.detach();
+    final CompletableFuture<TransactionOutcome> returnValue = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+          try {
+            this.resume(transaction);
+          } catch (final InvalidTransactionException | SystemException | RuntimeException exception) {
+            returnValue.completeExceptionally(exception);
+            return;
+          }
+          if (metrics != null) {
+            metrics.attach(metricsState);
+          }
+          this.attachTimeout(timeout);
+          try {
+            if (commit) {
+              this.commit();
+              returnValue.complete(TransactionOutcome.COMMITTED);
+            } else {
+              this.rollback();
+              returnValue.complete(TransactionOutcome.ROLLED_BACK);
+            }
+          } catch (final Throwable throwable) {
+            returnValue.completeExceptionally(throwable);
+          }
+        });
+    } catch (final RejectedExecutionException rejectedExecutionException) {
+      try {
+        this.resume(transaction);
+      } catch (final InvalidTransactionException | SystemException | RuntimeException exception) {
+        rejectedExecutionException.addSuppressed(exception);
+      }
+      if (metrics != null) {
+        metrics.attach(metricsState);
+      }
+      this.attachTimeout(timeout);
+      throw rejectedExecutionException;
+    }
+    return returnValue;
+  }
+
+  /**
+   * Suspends the transaction, if any, associated with the current
+   * thread, invokes the supplied {@link Callable}, and then resumes
+   * the suspended transaction, returning whatever the {@link
+   * Callable} returned.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The suspended transaction is resumed whether or not the {@link
+   * Callable} completes normally.  If the {@link Callable} leaves a
+   * transaction of its own associated with the current thread, that
+   * transaction is rolled back and an {@link IllegalStateException}
+   * is thrown (or {@linkplain Throwable#addSuppressed(Throwable)
+   * suppressed}, if the {@link Callable} threw an exception of its
+   * own) once the suspended transaction has been resumed.</p>
+   *
+   * <p>If no transaction is associated with the current thread, the
+   * {@link Callable} is simply invoked, and this method allocates
+   * nothing.</p>
+   *
+   * <p>If the creation of the current thread's transaction was
+   * deferred by {@link #begin()}, it is not created in order to be
+   * suspended; it is set aside while the {@link Callable} runs, and
+   * restored afterwards.</p>
+   *
+   * @param <T> the type of the {@link Callable}'s result
+   *
+   * @param callable the {@link Callable} to invoke; must not be
+   * {@code null}
+   *
+   * @return the result of invoking the {@link Callable}, which may be
+   * {@code null}
+   *
+   * @exception NullPointerException if {@code callable} is {@code
+   * null}
+   *
+   * @exception SystemException if this {@link TransactionManager}
+   * encounters an unexpected error condition
+   *
+   * @exception Exception if the {@link Callable} throws an exception
+   *
+   * @see #runInNewTransaction(Callable)
+   */
+  public <T> T runSuspended(final Callable<? extends T> callable) throws Exception {
+    Objects.requireNonNull(callable);
+    if (this.transactionDeferred()) {
+      return this.callWithDeferredTransactionSetAside(callable);
+    }
+    // As in completeAsync(Executor, boolean), nothing is detached
+    // until the transaction has been suspended.
+    final TransactionTimeoutService.Timeout timeout = this.currentTimeout();
+    final Transaction suspended = this.suspend();
+    if (suspended == null) {
+      return callable.call();
+    }
+    final TransactionMetrics metrics = this.metrics;
+    final Object metricsState = metrics == null ? null : metrics.detach();
+    final T returnValue;
+    try {
+      returnValue = callable.call();
+    } catch (final Throwable throwable) {
+      this.reassociate(suspended, timeout, metricsState, throwable);
+      throw throwable;
+    }
+    this.reassociate(suspended, timeout, metricsState, null);
+    return returnValue;
+  }
+
+  /**
+   * Suspends the transaction, if any, associated with the current
+   * thread, invokes the supplied {@link Callable} in a new
+   * transaction, completes the new transaction, and then resumes the
+   * suspended transaction, returning whatever the {@link Callable}
+   * returned.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>If the {@link Callable} throws an exception, the new
+   * transaction is rolled back and the exception is rethrown.  If the
+   * {@link Callable} completes normally, the new transaction is
+   * committed, unless it has been {@linkplain #setRollbackOnly()
+   * marked for rollback}, in which case it is rolled back and a
+   * {@link RollbackException} is thrown in place of the {@link
+   * Callable}'s result.  The suspended transaction is then resumed
+   * (or, if its creation was deferred, restored) as described for
+   * the {@link #runSuspended(Callable)} method.</p>
+   *
+   * @param <T> the type of the {@link Callable}'s result
+   *
+   * @param callable the {@link Callable} to invoke; must not be
+   * {@code null}
+   *
+   * @return the result of invoking the {@link Callable}, which may be
+   * {@code null}
+   *
+   * @exception NullPointerException if {@code callable} is {@code
+   * null}
+   *
+   * @exception RollbackException if the new transaction was rolled
+   * back rather than committed
+   *
+   * @exception HeuristicMixedException if a heuristic decision was
+   * made and some relevant updates have been committed while others
+   * have been rolled back
+   *
+   * @exception HeuristicRollbackException if a heuristic decision was
+   * made and all relevant updates have been rolled back
+   *
+   * @exception NotSupportedException if a new transaction could not
+   * be begun
+   *
+   * @exception SystemException if this {@link TransactionManager}
+   * encounters an unexpected error condition
+   *
+   * @exception Exception if the {@link Callable} throws an exception
+   *
+   * @see #runSuspended(Callable)
+   */
+  public <T> T runInNewTransaction(final Callable<? extends T> callable) throws Exception {
+    Objects.requireNonNull(callable);
+    if (this.transactionDeferred()) {
+      return this.callWithDeferredTransactionSetAside(() -> this.callInNewTransaction(callable));
+    }
+    final TransactionTimeoutService.Timeout timeout = this.currentTimeout();
+    final Transaction suspended = this.suspend();
+    final TransactionMetrics metrics = this.metrics;
+    final Object metricsState = suspended == null || metrics == null ? null : metrics.detach();
+    final T returnValue;
+    try {
+      returnValue = this.callInNewTransaction(callable);
+    } catch (final Throwable throwable) {
+      if (suspended != null) {
+        this.reassociate(suspended, timeout, metricsState, throwable);
+      }
+      throw throwable;
+    }
+    if (suspended != null) {
+      this.reassociate(suspended, timeout, metricsState, null);
+    }
+    return returnValue;
+  }
+
+  private final <T> T callInNewTransaction(final Callable<? extends T> callable) throws Exception {
+    this.begin();
+    final T returnValue;
+    try {
+      returnValue = callable.call();
+    } catch (final Throwable throwable) {
+      try {
+        this.rollback();
+      } catch (final SystemException | RuntimeException rollbackProblem) {
+        throwable.addSuppressed(rollbackProblem);
+      }
+      throw throwable;
+    }
+    if (this.getStatus() == Status.STATUS_MARKED_ROLLBACK) {
+      // The Callable's result must not be mistaken for that of a
+      // committed transaction.
+      this.rollback();
+      throw new RollbackException("the transaction was marked for rollback");
+    }
+    this.commit();
+    return returnValue;
+  }
+
+  /**
+   * Invokes the supplied {@link Callable} with the transaction whose
+   * creation was deferred on the current thread set aside, rather
+   * than creating it only to suspend it, and then restores it.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>While the {@link Callable} runs the current thread appears to
+   * have no transaction.  If the {@link Callable} leaves a
+   * transaction of its own associated with the current thread, that
+   * transaction is rolled back and an {@link IllegalStateException}
+   * is thrown (or {@linkplain Throwable#addSuppressed(Throwable)
+   * suppressed}, if the {@link Callable} threw an exception of its
+   * own) once the deferred transaction has been restored.</p>
+   *
+   * @param <T> the type of the {@link Callable}'s result
+   *
+   * @param callable the {@link Callable} to invoke; must not be
+   * {@code null}
+   *
+   * @return the result of invoking the {@link Callable}, which may be
+   * {@code null}
+   *
+   * @exception Exception if the {@link Callable} throws an exception
+   */
+  private final <T> T callWithDeferredTransactionSetAside(final Callable<? extends T> callable) throws Exception {
+    final DeferredState deferredState = this.deferredState.get();
+    final DeferredState replacement = new DeferredState();
+    replacement.seconds = deferredState.seconds;
+    this.deferredState.set(replacement);
+    final TransactionMetrics metrics = this.metrics;
+    final Object metricsState = metrics == null ? null : metrics.detach();
+    final T returnValue;
+    try {
+      returnValue = callable.call();
+    } catch (final Throwable throwable) {
+      this.restore(deferredState, metricsState, throwable);
+      throw throwable;
+    }
+    this.restore(deferredState, metricsState, null);
+    return returnValue;
+  }
+
+  /**
+   * Restores the supplied {@link DeferredState}, which was set aside
+   * by {@link #callWithDeferredTransactionSetAside(Callable)}, after
+   * rolling back any transaction that was left associated with the
+   * current thread.
+   *
+   * @param deferredState the {@link DeferredState} to restore; must
+   * not be {@code null}
+   *
+   * @param metricsState the {@linkplain TransactionMetrics#detach()
+   * detached metrics state} of the deferred transaction; may be
+   * {@code null}
+   *
+   * @param problem the {@link Throwable} already being thrown, to
+   * which any exception thrown by this method will be {@linkplain
+   * Throwable#addSuppressed(Throwable) added} instead; may be {@code
+   * null}
+   *
+   * @exception Exception if {@code problem} is {@code null} and
+   * another transaction was left associated with the current thread
+   */
+  private final void restore(final DeferredState deferredState, final Object metricsState, final Throwable problem)
+    throws Exception {
+    Exception failure = null;
+    try {
+      if (this.getStatus() != Status.STATUS_NO_TRANSACTION) {
+        // Nothing else can complete it now.
+        failure = new IllegalStateException("transaction left associated with thread");
+        try {
+          this.rollback();
+        } catch (final SystemException | RuntimeException rollbackProblem) {
+          failure.addSuppressed(rollbackProblem);
+        }
+      }
+    } catch (final SystemException | RuntimeException statusProblem) {
+      failure = statusProblem;
+    }
+    // The thread's transaction timeout is not scoped to a
+    // transaction, so a change made while the deferred transaction
+    // was set aside persists.
+    deferredState.seconds = this.deferredState.get().seconds;
+    this.deferredState.set(deferredState);
+    if (this.metrics != null) {
+      this.metrics.attach(metricsState);
+    }
+    if (failure != null) {
+      if (problem == null) {
+        throw failure;
+      }
+      problem.addSuppressed(failure);
+    }
+  }
+
+  /**
+   * Resumes the supplied {@link Transaction}, which was suspended by
+   * {@link #runSuspended(Callable)} or {@link
+   * #runInNewTransaction(Callable)}, after rolling back any
+   * transaction that was left associated with the current thread.
+   *
+   * @param transaction the {@link Transaction} to resume; must not be
+   * {@code null}
+   *
+   * @param timeout the {@link TransactionTimeoutService.Timeout} of
+   * the {@link Transaction} to resume; may be {@code null}
+   *
+   * @param metricsState the {@linkplain TransactionMetrics#detach()
+   * detached metrics state} of the {@link Transaction} to resume; may
+   * be {@code null}
+   *
+   * @param problem the {@link Throwable} already being thrown, to
+   * which any exception thrown by this method will be {@linkplain
+   * Throwable#addSuppressed(Throwable) added} instead; may be {@code
+   * null}
+   *
+   * @exception Exception if {@code problem} is {@code null} and the
+   * {@link Transaction} could not be resumed, or another transaction
+   * was left associated with the current thread
+   */
+  private final void reassociate(final Transaction transaction,
+                                 final TransactionTimeoutService.Timeout timeout,
+                                 final Object metricsState,
+                                 final Throwable problem)
+    throws Exception {
+    Exception failure = null;
+    try {
+      final Transaction leaked = this.suspend();
+      if (leaked != null) {
+        // Nothing else can complete it now.
+        failure = new IllegalStateException("transaction left associated with thread: " + leaked);
+        try {
+          leaked.rollback();
+        } catch (final SystemException | RuntimeException rollbackProblem) {
+          failure.addSuppressed(rollbackProblem);
+        }
+      }
+    } catch (final SystemException | RuntimeException suspendProblem) {
+      failure = suspendProblem;
+    }
+    try {
+      this.resume(transaction);
+      if (this.metrics != null) {
+        this.metrics.attach(metricsState);
+      }
+      this.attachTimeout(timeout);
+    } catch (final InvalidTransactionException | SystemException | RuntimeException resumeProblem) {
+      if (failure != null) {
+        resumeProblem.addSuppressed(failure);
+      }
+      failure = resumeProblem;
+    }
+    if (failure != null) {
+      if (problem == null) {
+        throw failure;
+      }
+      problem.addSuppressed(failure);
+    }
   }
 
   /**
@@ -220,6 +1311,13 @@ public abstract class DelegatingTransactionManager implements TransactionManager
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
+    if (this.lazyBegin) {
+      final DeferredState deferredState = this.deferredState.get();
+      if (deferredState.deferred) {
+        deferredState.rollbackOnly = true;
+        return;
+      }
+    }
     this.delegate.setRollbackOnly();
   }
 
@@ -243,7 +1341,19 @@ public abstract class DelegatingTransactionManager implements TransactionManager
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
-    this.delegate.setTransactionTimeout(seconds);
+    if (this.timeoutService == null) {
+      this.delegate.setTransactionTimeout(seconds);
+    } else if (seconds < 0) {
+      throw new SystemException("seconds < 0: " + seconds);
+    } else {
+      this.timeoutState.get().seconds = seconds;
+    }
+    if (this.lazyBegin) {
+      this.deferredState.get().seconds = seconds;
+    }
+    if (this.metrics != null) {
+      this.metrics.transactionTimeoutSet(seconds);
+    }
   }
 
   /**
@@ -257,6 +1367,10 @@ public abstract class DelegatingTransactionManager implements TransactionManager
    * <p>When this method returns, the calling thread is no longer
    * associated with a transaction.</p>
    *
+   * <p>If the creation of the current thread's transaction was
+   * deferred by {@link #begin()}, it is created now so that it can be
+   * resumed elsewhere.</p>
+   *
    * @return a {@link Transaction} representing the suspended
    * transaction, or {@code null}
    *
@@ -265,10 +1379,99 @@ public abstract class DelegatingTransactionManager implements TransactionManager
    */
   @Override
   public Transaction suspend() throws SystemException {
+    final Object event = TransactionEvents.begin(TransactionEvents.Kind.SUSPEND, this.delegate);
+    String outcome = TransactionEvents.FAILED;
+    try {
+      final Transaction transaction = this.suspendTransaction();
+      outcome = transaction == null ? TransactionEvents.NO_TRANSACTION : TransactionEvents.SUCCEEDED;
+      return transaction;
+    } finally {
+      TransactionEvents.end(event, this.delegate, outcome);
+    }
+  }
+
+  private final Transaction suspendTransaction() throws SystemException {
     if (this.delegate == null) {
       throw new SystemException("delegate == null");
     }
-    return this.delegate.suspend();
+    if (this.lazyBegin) {
+      final DeferredState deferredState = this.deferredState.get();
+      if (deferredState.deferred) {
+        this.beginDeferredTransaction(deferredState);
+      }
+    }
+    final Transaction transaction = this.delegate.suspend();
+    if (transaction != null && this.timeoutService != null) {
+      // The transaction's timeout stays pending, but it can no
+      // longer be cancelled from this thread.
+      this.timeoutState.get().timeout = null;
+    }
+    return transaction;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Mutable, per-thread timeout state.
+   */
+  private static final class TimeoutState {
+
+    private int seconds;
+
+    private TransactionTimeoutService.Timeout timeout;
+
+    private TimeoutState() {
+      super();
+    }
+
+  }
+
+  /**
+   * Mutable, per-thread state describing a transaction whose
+   * creation has been deferred.
+   */
+  private static final class DeferredState {
+
+    private boolean deferred;
+
+    private boolean rollbackOnly;
+
+    private int seconds;
+
+    private long beginNanos;
+
+    private long timeoutNanos;
+
+    private Object key;
+
+    private DeferredState() {
+      super();
+    }
+
+    private final boolean isRollbackOnly(final long now) {
+      return this.rollbackOnly || (this.timeoutNanos > 0L && now - this.beginNanos >= this.timeoutNanos);
+    }
+
+  }
+
+  /**
+   * The key of a transaction whose creation has been deferred.
+   */
+  private static final class DeferredTransactionKey {
+
+    private DeferredTransactionKey() {
+      super();
+    }
+
+    @Override
+    public final String toString() {
+      return "deferred transaction " + Integer.toHexString(System.identityHashCode(this));
+    }
+
   }
 
 }
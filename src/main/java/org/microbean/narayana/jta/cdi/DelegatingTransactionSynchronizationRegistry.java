@@ -19,10 +19,11 @@ package org.microbean.narayana.jta.cdi;
 import java.util.Map; // for javadoc only
 import java.util.Objects;
 
-import javax.transaction.Status; // for javadoc only
+import javax.transaction.Status;
 import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
 import javax.transaction.Transaction; // for javadoc only
-import javax.transaction.TransactionManager; // for javadoc only
+import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
 
 /**
@@ -35,6 +36,23 @@ import javax.transaction.TransactionSynchronizationRegistry;
  * <p>This class is {@code public} for convenience.  It is extended by
  * other non-{@code public} internal classes.</p>
  *
+ * <p>If constructed with batching enabled, a {@link
+ * DelegatingTransactionSynchronizationRegistry} registers a single
+ * composite {@link Synchronization} with its delegate per
+ * transaction, and {@linkplain
+ * #registerInterposedSynchronization(Synchronization, int) interposed
+ * synchronizations} are added to it rather than to the delegate.</p>
+ *
+ * <p>If a {@link TransactionManager} is supplied at construction
+ * time, the status and rollback-only state of the current
+ * transaction are taken from it, and the current transaction is
+ * {@linkplain TransactionManager#getTransaction() retrieved from it}
+ * before any other request is delegated, so that a {@link
+ * DelegatingTransactionManager} that begins transactions lazily
+ * creates the transaction that the delegate needs.  {@linkplain
+ * #getTransactionKey() Transaction keys} do not need the
+ * transaction, and so do not cause it to be created.</p>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
@@ -42,20 +60,94 @@ import javax.transaction.TransactionSynchronizationRegistry;
  */
 public abstract class DelegatingTransactionSynchronizationRegistry implements TransactionSynchronizationRegistry {
 
+  /**
+   * The priority given to interposed synchronizations registered
+   * with the {@link
+   * #registerInterposedSynchronization(Synchronization)} method.
+   *
+   * @see #registerInterposedSynchronization(Synchronization, int)
+   */
+  public static final int DEFAULT_SYNCHRONIZATION_PRIORITY = 0;
+
   private final TransactionSynchronizationRegistry delegate;
 
+  private volatile TransactionLocal<CompositeSynchronization> compositeSynchronization;
+
+  private final TransactionManager transactionManager;
+
   /**
-   * Creates a new {@link DelegatingTransactionSynchronizationRegistry}.
+   * Creates a new {@link DelegatingTransactionSynchronizationRegistry}
+   * that does not batch interposed synchronizations.
    *
    * @param delegate the {@link TransactionSynchronizationRegistry} to
    * which all method invocations will be delegated; may be {@code
    * null} in which case every method in this class will throw an
    * {@link IllegalStateException} when invoked
    *
+   * @see
+   * #DelegatingTransactionSynchronizationRegistry(TransactionSynchronizationRegistry,
+   * boolean)
    */
   protected DelegatingTransactionSynchronizationRegistry(final TransactionSynchronizationRegistry delegate) {
+    this(delegate, false);
+  }
+
+  /**
+   * Creates a new {@link DelegatingTransactionSynchronizationRegistry}.
+   *
+   * @param delegate the {@link TransactionSynchronizationRegistry} to
+   * which all method invocations will be delegated; may be {@code
+   * null} in which case every method in this class will throw an
+   * {@link IllegalStateException} when invoked
+   *
+   * @param batchInterposedSynchronizations whether interposed
+   * synchronizations should be collected into a single composite
+   * {@link Synchronization} per transaction instead of being
+   * registered with the delegate one by one
+   *
+   * @see
+   * #DelegatingTransactionSynchronizationRegistry(TransactionSynchronizationRegistry,
+   * boolean, TransactionManager)
+   */
+  protected DelegatingTransactionSynchronizationRegistry(final TransactionSynchronizationRegistry delegate,
+                                                         final boolean batchInterposedSynchronizations) {
+    this(delegate, batchInterposedSynchronizations, null);
+  }
+
+  /**
+   * Creates a new {@link DelegatingTransactionSynchronizationRegistry}.
+   *
+   * @param delegate the {@link TransactionSynchronizationRegistry} to
+   * which all method invocations will be delegated; may be {@code
+   * null} in which case every method in this class will throw an
+   * {@link IllegalStateException} when invoked
+   *
+   * @param batchInterposedSynchronizations whether interposed
+   * synchronizations should be collected into a single composite
+   * {@link Synchronization} per transaction instead of being
+   * registered with the delegate one by one
+   *
+   * @param transactionManager the {@link TransactionManager} that
+   * demarcates the transactions whose synchronizations are
+   * registered, which must be consulted before the delegate because
+   * it may not create transactions until they are needed; may be
+   * {@code null} in which case the delegate alone is used
+   */
+  protected DelegatingTransactionSynchronizationRegistry(final TransactionSynchronizationRegistry delegate,
+                                                         final boolean batchInterposedSynchronizations,
+                                                         final TransactionManager transactionManager) {
     super();
     this.delegate = delegate;
+    this.transactionManager = transactionManager;
+    if (delegate != null && batchInterposedSynchronizations) {
+      this.compositeSynchronization = TransactionLocal.withInitial(delegate, () -> {
+          final CompositeSynchronization compositeSynchronization = new CompositeSynchronization();
+          delegate.registerInterposedSynchronization(compositeSynchronization);
+          return compositeSynchronization;
+        });
+    } else {
+      this.compositeSynchronization = null;
+    }
   }
 
   /**
@@ -83,6 +175,13 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
    * 
    * <p>The object is not necessarily serializable, and has no defined
    * behavior outside the virtual machine whence it was obtained.</p>
+
+   * <p>If the {@link TransactionManager} supplied at construction
+   * time is a {@link DelegatingTransactionManager} that has deferred
+   * the creation of the current transaction, the transaction is not
+   * created.  An object representing the deferred transaction is
+   * returned instead, and a different object is returned once
+   * something else causes the transaction to be created.</p>
    *
    * @return an opaque object representing the transaction bound to
    * the current thread at the time this method is called, or {@code
@@ -98,6 +197,17 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
     if (this.delegate == null) {
       throw new IllegalStateException("delegate == null");
     }
+    if (this.transactionManager instanceof DelegatingTransactionManager) {
+      // Asking for the key is not a reason to create a deferred
+      // transaction.
+      final Object deferredTransactionKey =
+        ((DelegatingTransactionManager)this.transactionManager).getDeferredTransactionKey();
+      if (deferredTransactionKey != null) {
+        return deferredTransactionKey;
+      }
+    } else {
+      this.createTransaction();
+    }
     return this.delegate.getTransactionKey();
   }
 
@@ -134,6 +244,7 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
     if (this.delegate == null) {
       throw new IllegalStateException("delegate == null");
     }
+    this.createTransaction();
     this.delegate.putResource(key, value);
   }
 
@@ -170,6 +281,7 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
     if (this.delegate == null) {
       throw new IllegalStateException("delegate == null");
     }
+    this.createTransaction();
     return this.delegate.getResource(key);
   }
 
@@ -227,10 +339,47 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
    */
   @Override
   public void registerInterposedSynchronization(final Synchronization synchronization) {
+    this.registerInterposedSynchronization(synchronization, DEFAULT_SYNCHRONIZATION_PRIORITY);
+  }
+
+  /**
+   * Registers a {@link Synchronization} instance with special
+   * ordering semantics and the supplied priority.
+   *
+   * <p>This method behaves like the {@link
+   * #registerInterposedSynchronization(Synchronization)} method.  If
+   * this {@link DelegatingTransactionSynchronizationRegistry} batches
+   * interposed synchronizations, the supplied {@link Synchronization}
+   * is added to the current transaction's composite {@link
+   * Synchronization}, whose callbacks are invoked in ascending order
+   * of priority and, within a priority, in order of registration.
+   * Otherwise the priority is ignored.</p>
+   *
+   * @param synchronization the {@link Synchronization} to register;
+   * must not be {@code null}
+   *
+   * @param priority the priority of the {@link Synchronization};
+   * lower values run first
+   *
+   * @exception IllegalStateException if no transaction is active or
+   * two-phase commit processing has started or if a {@code null}
+   * {@code delegate} was supplied at {@linkplain
+   * #DelegatingTransactionSynchronizationRegistry(TransactionSynchronizationRegistry)
+   * construction time}
+   *
+   * @see #registerInterposedSynchronization(Synchronization)
+   *
+   * @see #DEFAULT_SYNCHRONIZATION_PRIORITY
+   */
+  public void registerInterposedSynchronization(final Synchronization synchronization, final int priority) {
     if (this.delegate == null) {
       throw new IllegalStateException("delegate == null");
     }
-    this.delegate.registerInterposedSynchronization(synchronization);
+    this.createTransaction();
+    final TransactionLocal<CompositeSynchronization> compositeSynchronization = this.compositeSynchronization;
+    if (compositeSynchronization == null || !compositeSynchronization.get().add(synchronization, priority)) {
+      this.delegate.registerInterposedSynchronization(synchronization);
+    }
   }
 
   /**
@@ -260,6 +409,9 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
     if (this.delegate == null) {
       throw new IllegalStateException("delegate == null");
     }
+    if (this.transactionManager != null) {
+      return this.getStatus();
+    }
     return this.delegate.getTransactionStatus();
   }
 
@@ -277,6 +429,14 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
     if (this.delegate == null) {
       throw new IllegalStateException("delegate == null");
     }
+    if (this.transactionManager != null) {
+      try {
+        this.transactionManager.setRollbackOnly();
+      } catch (final SystemException systemException) {
+        throw new IllegalStateException(systemException.getMessage(), systemException);
+      }
+      return;
+    }
     this.delegate.setRollbackOnly();
   }
 
@@ -296,7 +456,52 @@ public abstract class DelegatingTransactionSynchronizationRegistry implements Tr
     if (this.delegate == null) {
       throw new IllegalStateException("delegate == null");
     }
+    if (this.transactionManager != null) {
+      final int status = this.getStatus();
+      if (status == Status.STATUS_NO_TRANSACTION) {
+        throw new IllegalStateException("no transaction");
+      }
+      return status == Status.STATUS_MARKED_ROLLBACK;
+    }
     return this.delegate.getRollbackOnly();
   }
 
+  /**
+   * Releases the {@link TransactionLocal} slot, if any, used to batch
+   * interposed synchronizations, so that it can be reused once this
+   * {@link DelegatingTransactionSynchronizationRegistry} is no longer
+   * in use.
+   *
+   * <p>Interposed synchronizations registered after this method has
+   * been called are registered with the delegate one by one.</p>
+   */
+  void close() {
+    final TransactionLocal<CompositeSynchronization> compositeSynchronization = this.compositeSynchronization;
+    if (compositeSynchronization != null) {
+      this.compositeSynchronization = null;
+      compositeSynchronization.close();
+    }
+  }
+
+  private final int getStatus() {
+    try {
+      return this.transactionManager.getStatus();
+    } catch (final SystemException systemException) {
+      throw new IllegalStateException(systemException.getMessage(), systemException);
+    }
+  }
+
+  // Ensures that a transaction that the TransactionManager has begun
+  // but deferred the creation of exists before the delegate is
+  // asked about it.
+  private final void createTransaction() {
+    if (this.transactionManager != null) {
+      try {
+        this.transactionManager.getTransaction();
+      } catch (final SystemException systemException) {
+        throw new IllegalStateException(systemException.getMessage(), systemException);
+      }
+    }
+  }
+
 }
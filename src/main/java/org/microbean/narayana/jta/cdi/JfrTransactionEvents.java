@@ -0,0 +1,68 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * The inert, Java 8 version of the class that emits JDK Flight
+ * Recorder events on behalf of {@link TransactionEvents}.
+ *
+ * <p>Java 8's class library has no Flight Recorder API, so this
+ * version reports that Flight Recorder is {@linkplain #isAvailable()
+ * unavailable} and is otherwise never used.  On Java 11 and later it
+ * is replaced by the version of this class found in this jar's
+ * {@code META-INF/versions/11} directory, whose source is in {@code
+ * src/main/java11}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionEvents
+ */
+final class JfrTransactionEvents {
+
+  private JfrTransactionEvents() {
+    super();
+  }
+
+  static final boolean isAvailable() {
+    return false;
+  }
+
+  static final Object begin(final TransactionEvents.Kind kind, final TransactionManager transactionManager) {
+    return null;
+  }
+
+  static final void end(final Object event, final TransactionManager transactionManager, final String outcome) {
+
+  }
+
+  static final Object beginTimeout(final Transaction transaction) {
+    return null;
+  }
+
+  static final void endTimeout(final Object event, final String outcome) {
+
+  }
+
+  static final void timedOut(final String transaction, final String outcome) {
+
+  }
+
+}
@@ -0,0 +1,194 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+/**
+ * An immutable summary of a distribution of latencies, expressed in
+ * nanoseconds.
+ *
+ * <p>Percentiles are reported as the upper bound of the histogram
+ * bucket in which they fall, and so may overstate the true value by
+ * up to 12.5%.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is immutable and therefore safe for concurrent use
+ * by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionMetrics
+ */
+public final class LatencyDistribution {
+
+  private final long[] counts;
+
+  private final long count;
+
+  private final long sum;
+
+  private final long max;
+
+  /**
+   * Creates a new {@link LatencyDistribution}.
+   *
+   * @param counts the per-bucket counts; must not be {@code null};
+   * not copied
+   *
+   * @param sum the sum of all recorded values
+   *
+   * @param max the largest recorded value
+   */
+  LatencyDistribution(final long[] counts, final long sum, final long max) {
+    super();
+    this.counts = counts;
+    long count = 0L;
+    for (final long bucketCount : counts) {
+      count += bucketCount;
+    }
+    this.count = count;
+    this.sum = sum;
+    this.max = max;
+  }
+
+  /**
+   * Returns the number of latencies recorded.
+   *
+   * @return the number of latencies recorded
+   */
+  public final long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Returns the arithmetic mean of the recorded latencies in
+   * nanoseconds, or {@code 0} if none have been recorded.
+   *
+   * @return the mean latency in nanoseconds
+   */
+  public final double getMeanNanos() {
+    return this.count == 0L ? 0.0 : (double)this.sum / (double)this.count;
+  }
+
+  /**
+   * Returns the largest recorded latency in nanoseconds, or {@code 0}
+   * if none have been recorded.
+   *
+   * @return the largest recorded latency in nanoseconds
+   */
+  public final long getMaxNanos() {
+    return this.max;
+  }
+
+  /**
+   * Returns the median latency in nanoseconds.
+   *
+   * @return the median latency in nanoseconds
+   *
+   * @see #getPercentileNanos(double)
+   */
+  public final long getP50Nanos() {
+    return this.getPercentileNanos(50.0);
+  }
+
+  /**
+   * Returns the 90th percentile latency in nanoseconds.
+   *
+   * @return the 90th percentile latency in nanoseconds
+   *
+   * @see #getPercentileNanos(double)
+   */
+  public final long getP90Nanos() {
+    return this.getPercentileNanos(90.0);
+  }
+
+  /**
+   * Returns the 99th percentile latency in nanoseconds.
+   *
+   * @return the 99th percentile latency in nanoseconds
+   *
+   * @see #getPercentileNanos(double)
+   */
+  public final long getP99Nanos() {
+    return this.getPercentileNanos(99.0);
+  }
+
+  /**
+   * Returns the 99.9th percentile latency in nanoseconds.
+   *
+   * @return the 99.9th percentile latency in nanoseconds
+   *
+   * @see #getPercentileNanos(double)
+   */
+  public final long getP999Nanos() {
+    return this.getPercentileNanos(99.9);
+  }
+
+  /**
+   * Returns the latency in nanoseconds at or below which the supplied
+   * percentage of recorded latencies fall, or {@code 0} if none have
+   * been recorded.
+   *
+   * @param percentile the percentile, between {@code 0.0} and {@code
+   * 100.0} inclusive
+   *
+   * @return the latency in nanoseconds at the supplied percentile
+   *
+   * @exception IllegalArgumentException if {@code percentile} is out
+   * of range
+   */
+  public final long getPercentileNanos(final double percentile) {
+    if (percentile < 0.0 || percentile > 100.0 || Double.isNaN(percentile)) {
+      throw new IllegalArgumentException("percentile: " + percentile);
+    }
+    if (this.count == 0L) {
+      return 0L;
+    }
+    final long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0 * this.count));
+    long cumulativeCount = 0L;
+    for (int i = 0; i < this.counts.length; i++) {
+      cumulativeCount += this.counts[i];
+      if (cumulativeCount >= rank) {
+        return Math.min(LatencyHistogram.bucketUpperBound(i), this.max);
+      }
+    }
+    return this.max;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * LatencyDistribution}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String} representation of this
+   * {@link LatencyDistribution}
+   */
+  @Override
+  public final String toString() {
+    return new StringBuilder("count=").append(this.getCount())
+      .append(", meanNanos=").append((long)this.getMeanNanos())
+      .append(", p50Nanos=").append(this.getP50Nanos())
+      .append(", p90Nanos=").append(this.getP90Nanos())
+      .append(", p99Nanos=").append(this.getP99Nanos())
+      .append(", p999Nanos=").append(this.getP999Nanos())
+      .append(", maxNanos=").append(this.getMaxNanos())
+      .toString();
+  }
+
+}
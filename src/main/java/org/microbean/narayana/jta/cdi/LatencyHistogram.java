@@ -0,0 +1,139 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, concurrently updatable histogram of latencies
+ * expressed in nanoseconds.
+ *
+ * <p>Values are recorded into log-linear buckets: every power of two
+ * is divided into eight equally sized sub-buckets, so any recorded
+ * value is reported with a relative error of at most 12.5%.  Each
+ * bucket is a {@link LongAdder}, which stripes its count across
+ * cells under contention, so recording never blocks and threads
+ * recording concurrently rarely contend on the same memory.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.
+ * {@linkplain #snapshot() Snapshots} taken while values are being
+ * recorded are not atomic, but every value recorded before a
+ * snapshot begins is reflected in it.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see LatencyDistribution
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  private static final int LINEAR_BUCKET_COUNT = SUB_BUCKET_COUNT << 1;
+
+  private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+  private final LongAdder[] buckets;
+
+  private final LongAdder sum;
+
+  private final LongAccumulator max;
+
+  /**
+   * Creates a new {@link LatencyHistogram}.
+   */
+  LatencyHistogram() {
+    super();
+    this.buckets = new LongAdder[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      this.buckets[i] = new LongAdder();
+    }
+    this.sum = new LongAdder();
+    this.max = new LongAccumulator(Math::max, 0L);
+  }
+
+  /**
+   * Records the supplied latency.
+   *
+   * @param nanos the latency in nanoseconds; negative values are
+   * recorded as {@code 0}
+   */
+  final void record(final long nanos) {
+    final long value = nanos < 0L ? 0L : nanos;
+    this.buckets[bucketIndex(value)].increment();
+    this.sum.add(value);
+    this.max.accumulate(value);
+  }
+
+  /**
+   * Returns a new {@link LatencyDistribution} summarizing the values
+   * recorded so far.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a new {@link LatencyDistribution}; never {@code null}
+   */
+  final LatencyDistribution snapshot() {
+    final long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = this.buckets[i].sum();
+    }
+    return new LatencyDistribution(counts, this.sum.sum(), this.max.get());
+  }
+
+  /**
+   * Returns the index of the bucket into which the supplied value
+   * falls.
+   *
+   * @param value a non-negative value
+   *
+   * @return the index of the bucket into which {@code value} falls
+   */
+  static final int bucketIndex(final long value) {
+    if (value < LINEAR_BUCKET_COUNT) {
+      return (int)value;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    final int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+    return LINEAR_BUCKET_COUNT + ((shift - 1) << SUB_BUCKET_BITS) + subBucket;
+  }
+
+  /**
+   * Returns the largest value that falls into the bucket with the
+   * supplied index.
+   *
+   * @param index a bucket index as returned by {@link
+   * #bucketIndex(long)}
+   *
+   * @return the largest value that falls into the indexed bucket
+   */
+  static final long bucketUpperBound(final int index) {
+    if (index < LINEAR_BUCKET_COUNT) {
+      return index;
+    }
+    final int offset = index - LINEAR_BUCKET_COUNT;
+    final int shift = (offset >>> SUB_BUCKET_BITS) + 1;
+    final long lowerBound = ((long)(SUB_BUCKET_COUNT + (offset & (SUB_BUCKET_COUNT - 1)))) << shift;
+    return lowerBound + ((1L << shift) - 1L);
+  }
+
+}
@@ -0,0 +1,1021 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.SyncFailedException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.zip.CRC32;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+
+import com.arjuna.ats.arjuna.objectstore.ObjectStoreAPI;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+
+import com.arjuna.common.internal.util.propertyservice.BeanPopulator;
+
+/**
+ * An {@link ObjectStoreAPI} implementation that appends transaction
+ * log records to a preallocated, memory-mapped segment file and
+ * coalesces the disk forces of concurrent committers into a single
+ * group force.
+ *
+ * <p>Select this object store by setting {@link
+ * ObjectStoreEnvironmentBean#setObjectStoreType(String)} to the name
+ * of this class, or by using the {@link ObjectStoreProfile#MAPPED}
+ * profile.</p>
+ *
+ * <h2>Design Notes</h2>
+ *
+ * <p>Every state change is appended to the current segment as a
+ * checksummed record and applied to an in-memory index, from which
+ * all reads are served.  If {@linkplain
+ * ObjectStoreEnvironmentBean#isTransactionSync() transaction
+ * synchronization} is enabled, a thread that writes a state does not
+ * return until the segment has been forced to disk up to and
+ * including its record.  While one thread is forcing the segment,
+ * other threads append their records and wait; the next force then
+ * covers all of them.  Removals are not forced on their own and
+ * become durable with the next force.</p>
+ *
+ * <p>When a segment fills up, the live states in the index are
+ * written to a new segment, which is forced, and the old segment is
+ * deleted.  Because most transaction log records are removed soon
+ * after they are written, the live set, and hence the cost of this
+ * checkpoint, is small.  When the store is created, every segment
+ * found in its directory is replayed into the index in order, a torn
+ * record at the end of a segment is ignored, and the result is
+ * checkpointed into a fresh segment.</p>
+ *
+ * <p>Segments are kept in a {@code MappedObjectStore} directory,
+ * below the {@linkplain ObjectStoreEnvironmentBean#getObjectStoreDir()
+ * object store directory}, in a subdirectory named by the
+ * {@linkplain ObjectStoreEnvironmentBean#getLocalOSRoot() local
+ * object store root} and then in a subdirectory named for the store
+ * ({@code default}, {@code stateStore} or {@code
+ * communicationStore}), so that the stores Narayana creates never
+ * share segments even though they share a local object store root.
+ * Their size defaults to 32 megabytes and may be changed with the
+ * {@code org.microbean.narayana.jta.cdi.mappedObjectStore.segmentSize}
+ * system property.</p>
+ *
+ * <p>A {@link MappedObjectStore} holds an exclusive {@link FileLock}
+ * on its directory until it is {@linkplain #stop() stopped}.
+ * Creating a {@link MappedObjectStore} whose directory is locked, by
+ * this or by any other process, fails with an {@link
+ * ObjectStoreException} before any segment is read or deleted.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ObjectStoreProfile#MAPPED
+ */
+public final class MappedObjectStore implements ObjectStoreAPI {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final int MAGIC = 0x4D4F5352; // "MOSR"
+
+  private static final int HEADER_LENGTH = 12; // magic, body length, CRC
+
+  private static final byte WRITE_COMMITTED = 1;
+
+  private static final byte WRITE_UNCOMMITTED = 2;
+
+  private static final byte COMMIT_STATE = 3;
+
+  private static final byte REMOVE_COMMITTED = 4;
+
+  private static final byte REMOVE_UNCOMMITTED = 5;
+
+  private static final byte HIDE = 6;
+
+  private static final byte REVEAL = 7;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private static final String LOCK_FILE_NAME = "lock";
+
+  private static final String DEFAULT_STORE_NAME = "default";
+
+  private static final String[] NAMED_STORES = new String[] { "stateStore", "communicationStore" };
+
+  private static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final File directory;
+
+  private final FileLock lock;
+
+  private final boolean sync;
+
+  private final int segmentSize;
+
+  private final Object appendLock; // guards the fields below it
+
+  private final Map<Key, Entry> entries;
+
+  private RandomAccessFile segmentFile;
+
+  private File segmentPath;
+
+  private MappedByteBuffer segment;
+
+  private long segmentNumber;
+
+  private long appendedSequence;
+
+  private boolean stopped;
+
+  private final Object forceLock; // guards the fields below it
+
+  private long forcedSequence;
+
+  private boolean forcing;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link MappedObjectStore}, replaying any segments
+   * already present in its directory.
+   *
+   * <p>The name of the store, and hence of the directory in which its
+   * segments are kept, is determined by which of Narayana's {@link
+   * ObjectStoreEnvironmentBean} instances the supplied {@link
+   * ObjectStoreEnvironmentBean} is.</p>
+   *
+   * @param objectStoreEnvironmentBean the {@link
+   * ObjectStoreEnvironmentBean} describing this {@link
+   * MappedObjectStore}; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code
+   * objectStoreEnvironmentBean} is {@code null}
+   *
+   * @exception ObjectStoreException if the directory could not be
+   * created or locked, or the segments could not be read or written
+   */
+  public MappedObjectStore(final ObjectStoreEnvironmentBean objectStoreEnvironmentBean) throws ObjectStoreException {
+    this(objectStoreEnvironmentBean, storeName(Objects.requireNonNull(objectStoreEnvironmentBean)));
+  }
+
+  /**
+   * Creates a new {@link MappedObjectStore} with the supplied name,
+   * replaying any segments already present in its directory.
+   *
+   * @param objectStoreEnvironmentBean the {@link
+   * ObjectStoreEnvironmentBean} describing this {@link
+   * MappedObjectStore}; must not be {@code null}
+   *
+   * @param storeName the name of the store, used as the name of the
+   * directory in which its segments are kept; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception ObjectStoreException if the directory could not be
+   * created or locked, or the segments could not be read or written
+   */
+  MappedObjectStore(final ObjectStoreEnvironmentBean objectStoreEnvironmentBean,
+                    final String storeName)
+    throws ObjectStoreException {
+    super();
+    Objects.requireNonNull(objectStoreEnvironmentBean);
+    Objects.requireNonNull(storeName);
+    this.directory = new File(new File(new File(objectStoreEnvironmentBean.getObjectStoreDir(), "MappedObjectStore"),
+                                       objectStoreEnvironmentBean.getLocalOSRoot()),
+                              storeName);
+    this.sync = objectStoreEnvironmentBean.isTransactionSync();
+    final int segmentSize;
+    try {
+      segmentSize = Settings.getInt("mappedObjectStore.segmentSize", DEFAULT_SEGMENT_SIZE);
+    } catch (final IllegalArgumentException invalidSetting) {
+      throw new ObjectStoreException(invalidSetting.getMessage(), invalidSetting);
+    }
+    if (segmentSize <= HEADER_LENGTH) {
+      throw new ObjectStoreException("segmentSize <= " + HEADER_LENGTH + ": " + segmentSize);
+    }
+    this.segmentSize = segmentSize;
+    this.appendLock = new Object();
+    this.forceLock = new Object();
+    this.entries = new HashMap<>();
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new ObjectStoreException("Could not create " + this.directory);
+    }
+    this.lock = lock(this.directory);
+    boolean started = false;
+    try {
+      final List<File> oldSegments = this.replay();
+      synchronized (this.appendLock) {
+        this.roll(0);
+      }
+      for (final File oldSegment : oldSegments) {
+        if (!oldSegment.delete()) {
+          throw new ObjectStoreException("Could not delete " + oldSegment);
+        }
+      }
+      started = true;
+    } finally {
+      if (!started) {
+        synchronized (this.appendLock) {
+          this.stopped = true;
+          if (this.segmentFile != null) {
+            try {
+              this.segmentFile.close();
+            } catch (final IOException ignored) {
+              // Nothing has been acknowledged from this segment.
+            }
+          }
+        }
+        this.unlock();
+      }
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of this {@link MappedObjectStore}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the name of this {@link MappedObjectStore}; never {@code
+   * null}
+   */
+  @Override
+  public final String getStoreName() {
+    return this.getClass().getSimpleName() + ":" + this.directory;
+  }
+
+  /**
+   * Does nothing, since a {@link MappedObjectStore} is ready for use
+   * as soon as it has been constructed.
+   */
+  @Override
+  public final void start() {
+
+  }
+
+  /**
+   * Forces all appended records to disk, closes the current segment
+   * and releases the lock on this {@link MappedObjectStore}'s
+   * directory.
+   *
+   * <p>Once this method has been called, every other state-accessing
+   * method will throw an {@link ObjectStoreException}.</p>
+   */
+  @Override
+  public final void stop() {
+    synchronized (this.appendLock) {
+      if (!this.stopped) {
+        this.stopped = true;
+        this.segment.force();
+        try {
+          this.segmentFile.close();
+        } catch (final IOException ignored) {
+          // The segment has been forced; nothing further can be lost.
+        }
+        this.unlock();
+      }
+    }
+  }
+
+  /**
+   * Forces all appended records to disk.
+   *
+   * @exception SyncFailedException never
+   *
+   * @exception ObjectStoreException if this {@link
+   * MappedObjectStore} has been {@linkplain #stop() stopped}
+   */
+  @Override
+  public final void sync() throws SyncFailedException, ObjectStoreException {
+    final long sequence;
+    synchronized (this.appendLock) {
+      this.checkStopped();
+      sequence = this.appendedSequence;
+    }
+    this.awaitForced(sequence);
+  }
+
+  /**
+   * Returns {@code true}, since uncommitted states written to a
+   * {@link MappedObjectStore} must be explicitly {@linkplain
+   * #commit_state(Uid, String) committed}.
+   *
+   * @return {@code true}
+   */
+  @Override
+  public final boolean fullCommitNeeded() {
+    return true;
+  }
+
+  @Override
+  public final boolean write_committed(final Uid uid, final String typeName, final OutputObjectState state)
+    throws ObjectStoreException {
+    return this.write(WRITE_COMMITTED, uid, typeName, state.buffer(), true);
+  }
+
+  @Override
+  public final boolean write_uncommitted(final Uid uid, final String typeName, final OutputObjectState state)
+    throws ObjectStoreException {
+    return this.write(WRITE_UNCOMMITTED, uid, typeName, state.buffer(), true);
+  }
+
+  @Override
+  public final boolean commit_state(final Uid uid, final String typeName) throws ObjectStoreException {
+    return this.write(COMMIT_STATE, uid, typeName, null, true);
+  }
+
+  @Override
+  public final boolean remove_committed(final Uid uid, final String typeName) throws ObjectStoreException {
+    return this.write(REMOVE_COMMITTED, uid, typeName, null, false);
+  }
+
+  @Override
+  public final boolean remove_uncommitted(final Uid uid, final String typeName) throws ObjectStoreException {
+    return this.write(REMOVE_UNCOMMITTED, uid, typeName, null, false);
+  }
+
+  @Override
+  public final boolean hide_state(final Uid uid, final String typeName) throws ObjectStoreException {
+    return this.write(HIDE, uid, typeName, null, true);
+  }
+
+  @Override
+  public final boolean reveal_state(final Uid uid, final String typeName) throws ObjectStoreException {
+    return this.write(REVEAL, uid, typeName, null, true);
+  }
+
+  @Override
+  public final InputObjectState read_committed(final Uid uid, final String typeName) throws ObjectStoreException {
+    final byte[] state;
+    synchronized (this.appendLock) {
+      this.checkStopped();
+      final Entry entry = this.entries.get(new Key(uid.stringForm(), typeName));
+      state = entry == null ? null : entry.committed;
+    }
+    return state == null ? null : new InputObjectState(uid, typeName, state);
+  }
+
+  @Override
+  public final InputObjectState read_uncommitted(final Uid uid, final String typeName) throws ObjectStoreException {
+    final byte[] state;
+    synchronized (this.appendLock) {
+      this.checkStopped();
+      final Entry entry = this.entries.get(new Key(uid.stringForm(), typeName));
+      state = entry == null ? null : entry.uncommitted;
+    }
+    return state == null ? null : new InputObjectState(uid, typeName, state);
+  }
+
+  @Override
+  public final int currentState(final Uid uid, final String typeName) throws ObjectStoreException {
+    synchronized (this.appendLock) {
+      this.checkStopped();
+      final Entry entry = this.entries.get(new Key(uid.stringForm(), typeName));
+      return entry == null ? StateStatus.OS_UNKNOWN : entry.status();
+    }
+  }
+
+  @Override
+  public final boolean isType(final Uid uid, final String typeName, final int status) throws ObjectStoreException {
+    return this.currentState(uid, typeName) == status;
+  }
+
+  @Override
+  public final boolean allObjUids(final String typeName, final InputObjectState state) throws ObjectStoreException {
+    return this.allObjUids(typeName, state, StateStatus.OS_UNKNOWN);
+  }
+
+  @Override
+  public final boolean allObjUids(final String typeName, final InputObjectState state, final int match)
+    throws ObjectStoreException {
+    final List<String> uids = new ArrayList<>();
+    synchronized (this.appendLock) {
+      this.checkStopped();
+      for (final Map.Entry<Key, Entry> mapEntry : this.entries.entrySet()) {
+        final Key key = mapEntry.getKey();
+        if (key.typeName.equals(typeName) && (match == StateStatus.OS_UNKNOWN || mapEntry.getValue().status() == match)) {
+          uids.add(key.uid);
+        }
+      }
+    }
+    final OutputObjectState output = new OutputObjectState();
+    try {
+      for (final String uid : uids) {
+        UidHelper.packInto(new Uid(uid), output);
+      }
+      UidHelper.packInto(Uid.nullUid(), output);
+    } catch (final IOException ioException) {
+      throw new ObjectStoreException(ioException.getMessage(), ioException);
+    }
+    state.setBuffer(output.buffer());
+    return true;
+  }
+
+  @Override
+  public final boolean allTypes(final InputObjectState state) throws ObjectStoreException {
+    final Set<String> typeNames = new LinkedHashSet<>();
+    synchronized (this.appendLock) {
+      this.checkStopped();
+      for (final Key key : this.entries.keySet()) {
+        typeNames.add(key.typeName);
+      }
+    }
+    final OutputObjectState output = new OutputObjectState();
+    try {
+      for (final String typeName : typeNames) {
+        output.packString(typeName);
+      }
+      output.packString("");
+    } catch (final IOException ioException) {
+      throw new ObjectStoreException(ioException.getMessage(), ioException);
+    }
+    state.setBuffer(output.buffer());
+    return true;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * MappedObjectStore}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return this.getStoreName();
+  }
+
+  private final boolean write(final byte operation,
+                              final Uid uid,
+                              final String typeName,
+                              final byte[] state,
+                              final boolean force)
+    throws ObjectStoreException {
+    final Key key = new Key(uid.stringForm(), typeName);
+    final byte[] record = encode(operation, key, state);
+    final long sequence;
+    synchronized (this.appendLock) {
+      this.checkStopped();
+      if (!applies(this.entries, operation, key)) {
+        return false;
+      }
+      // Append first, so that a checkpoint taken by a roll does not
+      // already contain this change.
+      sequence = this.append(record);
+      apply(this.entries, operation, key, state);
+    }
+    if (force && this.sync) {
+      this.awaitForced(sequence);
+    }
+    return true;
+  }
+
+  // Called while holding appendLock.
+  private final long append(final byte[] record) throws ObjectStoreException {
+    if (this.segment.remaining() < record.length) {
+      this.roll(record.length);
+    }
+    this.segment.put(record);
+    this.appendedSequence += record.length;
+    return this.appendedSequence;
+  }
+
+  // Called while holding appendLock.  Writes the live states to a
+  // new segment, forces it, and deletes the previous segment.
+  private final void roll(final int reserve) throws ObjectStoreException {
+    final List<byte[]> checkpoint = new ArrayList<>();
+    int checkpointLength = 0;
+    for (final Map.Entry<Key, Entry> mapEntry : this.entries.entrySet()) {
+      final Key key = mapEntry.getKey();
+      final Entry entry = mapEntry.getValue();
+      if (entry.committed != null) {
+        checkpoint.add(encode(WRITE_COMMITTED, key, entry.committed));
+      }
+      if (entry.uncommitted != null) {
+        checkpoint.add(encode(WRITE_UNCOMMITTED, key, entry.uncommitted));
+      }
+      if (entry.hidden) {
+        checkpoint.add(encode(HIDE, key, null));
+      }
+    }
+    for (final byte[] record : checkpoint) {
+      checkpointLength += record.length;
+    }
+    final long needed = (long)checkpointLength + reserve;
+    final int size = needed < this.segmentSize ? this.segmentSize : (int)Math.min(Integer.MAX_VALUE, needed * 2L);
+
+    final MappedByteBuffer oldSegment = this.segment;
+    final RandomAccessFile oldSegmentFile = this.segmentFile;
+    final File oldSegmentPath = this.segmentPath;
+    if (oldSegment != null) {
+      oldSegment.force();
+    }
+
+    final long segmentNumber = this.segmentNumber + 1L;
+    final File segmentPath = new File(this.directory, String.format("%s%019d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    final RandomAccessFile segmentFile;
+    final MappedByteBuffer segment;
+    try {
+      segmentFile = new RandomAccessFile(segmentPath, "rw");
+      preallocate(segmentFile.getChannel(), size);
+      segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+    } catch (final IOException ioException) {
+      throw new ObjectStoreException(ioException.getMessage(), ioException);
+    }
+    for (final byte[] record : checkpoint) {
+      segment.put(record);
+    }
+    segment.force();
+
+    this.segment = segment;
+    this.segmentFile = segmentFile;
+    this.segmentPath = segmentPath;
+    this.segmentNumber = segmentNumber;
+    synchronized (this.forceLock) {
+      // Everything appended so far is now on disk, either in the
+      // old segment or in the checkpoint.
+      this.forcedSequence = this.appendedSequence;
+      this.forceLock.notifyAll();
+    }
+
+    if (oldSegmentFile != null) {
+      try {
+        oldSegmentFile.close();
+      } catch (final IOException ignored) {
+        // The segment has been forced and superseded.
+      }
+      if (!oldSegmentPath.delete()) {
+        throw new ObjectStoreException("Could not delete " + oldSegmentPath);
+      }
+    }
+  }
+
+  private final void awaitForced(final long sequence) throws ObjectStoreException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        synchronized (this.forceLock) {
+          if (this.forcedSequence >= sequence) {
+            return;
+          }
+          if (this.forcing) {
+            try {
+              this.forceLock.wait();
+            } catch (final InterruptedException interruptedException) {
+              interrupted = true;
+            }
+            continue;
+          }
+          this.forcing = true;
+        }
+        // This thread is now the leader: it forces on behalf of
+        // every record appended so far.
+        long target = 0L;
+        boolean forced = false;
+        try {
+          final MappedByteBuffer segment;
+          synchronized (this.appendLock) {
+            this.checkStopped();
+            target = this.appendedSequence;
+            segment = this.segment;
+          }
+          segment.force();
+          forced = true;
+        } finally {
+          synchronized (this.forceLock) {
+            this.forcing = false;
+            if (forced && target > this.forcedSequence) {
+              this.forcedSequence = target;
+            }
+            this.forceLock.notifyAll();
+          }
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // Closing the channel releases the lock.
+  private final void unlock() {
+    try {
+      this.lock.channel().close();
+    } catch (final IOException ignored) {
+      // The lock is released when the process exits in any event.
+    }
+  }
+
+  /**
+   * Returns the number of bytes appended to this {@link
+   * MappedObjectStore} since it was created.
+   *
+   * @return the number of bytes appended so far
+   */
+  final long appendedSequence() {
+    synchronized (this.appendLock) {
+      return this.appendedSequence;
+    }
+  }
+
+  /**
+   * Returns the number of bytes appended to this {@link
+   * MappedObjectStore} since it was created that are known to have
+   * been forced to disk.
+   *
+   * @return the number of bytes forced so far
+   */
+  final long forcedSequence() {
+    synchronized (this.forceLock) {
+      return this.forcedSequence;
+    }
+  }
+
+  // Called while holding appendLock.
+  private final void checkStopped() throws ObjectStoreException {
+    if (this.stopped) {
+      throw new ObjectStoreException(this.getStoreName() + " has been stopped");
+    }
+  }
+
+  private final List<File> replay() throws ObjectStoreException {
+    final File[] files = this.directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if (files == null) {
+      throw new ObjectStoreException("Could not list " + this.directory);
+    }
+    Arrays.sort(files);
+    final List<File> segments = Arrays.asList(files);
+    synchronized (this.appendLock) {
+      for (final File file : segments) {
+        final String name = file.getName();
+        final long segmentNumber;
+        try {
+          segmentNumber = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (final NumberFormatException numberFormatException) {
+          throw new ObjectStoreException("Unexpected segment file: " + file, numberFormatException);
+        }
+        this.segmentNumber = Math.max(this.segmentNumber, segmentNumber);
+        try (final RandomAccessFile segmentFile = new RandomAccessFile(file, "r")) {
+          final MappedByteBuffer segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, segmentFile.length());
+          while (replayRecord(segment, this.entries)) {
+            // keep going
+          }
+        } catch (final IOException ioException) {
+          throw new ObjectStoreException(ioException.getMessage(), ioException);
+        }
+      }
+    }
+    return segments;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final String storeName(final ObjectStoreEnvironmentBean objectStoreEnvironmentBean) {
+    for (final String name : NAMED_STORES) {
+      if (objectStoreEnvironmentBean == BeanPopulator.getNamedInstance(ObjectStoreEnvironmentBean.class, name)) {
+        return name;
+      }
+    }
+    return DEFAULT_STORE_NAME;
+  }
+
+  private static final FileLock lock(final File directory) throws ObjectStoreException {
+    final File lockPath = new File(directory, LOCK_FILE_NAME);
+    final FileChannel channel;
+    try {
+      channel = FileChannel.open(lockPath.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    } catch (final IOException ioException) {
+      throw new ObjectStoreException(ioException.getMessage(), ioException);
+    }
+    FileLock lock = null;
+    try {
+      lock = channel.tryLock();
+    } catch (final OverlappingFileLockException lockedByThisProcess) {
+      // Reported below.
+    } catch (final IOException ioException) {
+      throw new ObjectStoreException(ioException.getMessage(), ioException);
+    } finally {
+      if (lock == null) {
+        try {
+          channel.close();
+        } catch (final IOException ignored) {
+          // The lock was never acquired.
+        }
+      }
+    }
+    if (lock == null) {
+      throw new ObjectStoreException(directory + " is in use by another " + MappedObjectStore.class.getSimpleName());
+    }
+    return lock;
+  }
+
+  private static final void preallocate(final FileChannel channel, final int size) throws IOException {
+    final ByteBuffer zeroes = ByteBuffer.allocate(Math.min(size, 1024 * 1024));
+    long position = 0L;
+    while (position < size) {
+      zeroes.clear();
+      zeroes.limit((int)Math.min(zeroes.capacity(), size - position));
+      position += channel.write(zeroes, position);
+    }
+    channel.force(true);
+  }
+
+  private static final byte[] encode(final byte operation, final Key key, final byte[] state) throws ObjectStoreException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH + 128 + (state == null ? 0 : state.length));
+    try (final DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(0); // body length; filled in below
+      out.writeInt(0); // CRC; filled in below
+      out.writeByte(operation);
+      writeString(out, key.uid);
+      writeString(out, key.typeName);
+      if (state == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(state.length);
+        out.write(state);
+      }
+    } catch (final IOException ioException) {
+      throw new ObjectStoreException(ioException.getMessage(), ioException);
+    }
+    final byte[] record = bytes.toByteArray();
+    final int bodyLength = record.length - HEADER_LENGTH;
+    final CRC32 crc = new CRC32();
+    crc.update(record, HEADER_LENGTH, bodyLength);
+    final ByteBuffer header = ByteBuffer.wrap(record);
+    header.putInt(4, bodyLength);
+    header.putInt(8, (int)crc.getValue());
+    return record;
+  }
+
+  private static final void writeString(final DataOutputStream out, final String s) throws IOException {
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static final String readString(final ByteBuffer in) {
+    final byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Returns false at the end of the valid records in the segment.
+  private static final boolean replayRecord(final ByteBuffer segment, final Map<Key, Entry> entries) {
+    if (segment.remaining() < HEADER_LENGTH) {
+      return false;
+    }
+    final int start = segment.position();
+    if (segment.getInt() != MAGIC) {
+      return false;
+    }
+    final int bodyLength = segment.getInt();
+    final int crcValue = segment.getInt();
+    if (bodyLength <= 0 || bodyLength > segment.remaining()) {
+      return false;
+    }
+    final byte[] body = new byte[bodyLength];
+    segment.get(body);
+    final CRC32 crc = new CRC32();
+    crc.update(body, 0, bodyLength);
+    if ((int)crc.getValue() != crcValue) {
+      // A torn write; nothing after it was acknowledged.
+      segment.position(start);
+      return false;
+    }
+    final ByteBuffer in = ByteBuffer.wrap(body);
+    try {
+      final byte operation = in.get();
+      final Key key = new Key(readString(in), readString(in));
+      final int stateLength = in.getInt();
+      final byte[] state;
+      if (stateLength < 0) {
+        state = null;
+      } else {
+        state = new byte[stateLength];
+        in.get(state);
+      }
+      apply(entries, operation, key, state);
+    } catch (final BufferUnderflowException | NegativeArraySizeException malformed) {
+      segment.position(start);
+      return false;
+    }
+    return true;
+  }
+
+  // Returns false if the operation would have nothing to act upon.
+  private static final boolean applies(final Map<Key, Entry> entries, final byte operation, final Key key) {
+    final Entry entry = entries.get(key);
+    switch (operation) {
+    case WRITE_COMMITTED:
+    case WRITE_UNCOMMITTED:
+      return true;
+    case COMMIT_STATE:
+    case REMOVE_UNCOMMITTED:
+      return entry != null && entry.uncommitted != null;
+    case REMOVE_COMMITTED:
+      return entry != null && entry.committed != null;
+    case HIDE:
+      return entry != null && !entry.hidden;
+    case REVEAL:
+      return entry != null && entry.hidden;
+    default:
+      throw new IllegalArgumentException("operation: " + operation);
+    }
+  }
+
+  // Returns false if the operation had nothing to act upon.
+  private static final boolean apply(final Map<Key, Entry> entries, final byte operation, final Key key, final byte[] state) {
+    Entry entry = entries.get(key);
+    switch (operation) {
+    case WRITE_COMMITTED:
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(key, entry);
+      }
+      entry.committed = state;
+      return true;
+    case WRITE_UNCOMMITTED:
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(key, entry);
+      }
+      entry.uncommitted = state;
+      return true;
+    case COMMIT_STATE:
+      if (entry == null || entry.uncommitted == null) {
+        return false;
+      }
+      entry.committed = entry.uncommitted;
+      entry.uncommitted = null;
+      return true;
+    case REMOVE_COMMITTED:
+      if (entry == null || entry.committed == null) {
+        return false;
+      }
+      entry.committed = null;
+      break;
+    case REMOVE_UNCOMMITTED:
+      if (entry == null || entry.uncommitted == null) {
+        return false;
+      }
+      entry.uncommitted = null;
+      break;
+    case HIDE:
+      if (entry == null || entry.hidden) {
+        return false;
+      }
+      entry.hidden = true;
+      return true;
+    case REVEAL:
+      if (entry == null || !entry.hidden) {
+        return false;
+      }
+      entry.hidden = false;
+      return true;
+    default:
+      throw new IllegalArgumentException("operation: " + operation);
+    }
+    if (entry.committed == null && entry.uncommitted == null) {
+      entries.remove(key);
+    }
+    return true;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class Key {
+
+    private final String uid;
+
+    private final String typeName;
+
+    private Key(final String uid, final String typeName) {
+      super();
+      this.uid = Objects.requireNonNull(uid);
+      this.typeName = Objects.requireNonNull(typeName);
+    }
+
+    @Override
+    public final int hashCode() {
+      return 31 * this.uid.hashCode() + this.typeName.hashCode();
+    }
+
+    @Override
+    public final boolean equals(final Object other) {
+      if (other == this) {
+        return true;
+      } else if (other instanceof Key) {
+        final Key her = (Key)other;
+        return this.uid.equals(her.uid) && this.typeName.equals(her.typeName);
+      } else {
+        return false;
+      }
+    }
+
+  }
+
+  private static final class Entry {
+
+    private byte[] committed;
+
+    private byte[] uncommitted;
+
+    private boolean hidden;
+
+    private Entry() {
+      super();
+    }
+
+    private final int status() {
+      if (this.uncommitted != null) {
+        return this.hidden ? StateStatus.OS_UNCOMMITTED_HIDDEN : StateStatus.OS_UNCOMMITTED;
+      } else if (this.committed != null) {
+        return this.hidden ? StateStatus.OS_COMMITTED_HIDDEN : StateStatus.OS_COMMITTED;
+      } else {
+        return StateStatus.OS_UNKNOWN;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,72 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Objects;
+
+import java.util.concurrent.ThreadFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} that creates daemon {@link Thread}s whose
+ * names identify the pool to which they belong.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class NamedThreadFactory implements ThreadFactory {
+
+  private final String namePrefix;
+
+  private final AtomicInteger threadNumber;
+
+  /**
+   * Creates a new {@link NamedThreadFactory}.
+   *
+   * @param poolName the name of the pool; used to form the names of
+   * the {@link Thread}s this {@link NamedThreadFactory} creates; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if {@code poolName} is {@code
+   * null}
+   */
+  NamedThreadFactory(final String poolName) {
+    super();
+    this.namePrefix = "narayana-cdi-" + Objects.requireNonNull(poolName) + "-";
+    this.threadNumber = new AtomicInteger();
+  }
+
+  /**
+   * Returns a new daemon {@link Thread} that will run the supplied
+   * {@link Runnable}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param runnable the {@link Runnable} to run; must not be {@code
+   * null}
+   *
+   * @return a new daemon {@link Thread}; never {@code null}
+   */
+  @Override
+  public final Thread newThread(final Runnable runnable) {
+    final Thread thread = new Thread(runnable, this.namePrefix + this.threadNumber.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+
+}
@@ -16,7 +16,38 @@
  */
 package org.microbean.narayana.jta.cdi;
 
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.annotation.Annotation;
+
+import java.lang.management.ManagementFactory;
+
+import java.lang.reflect.Method;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.context.Dependent;
@@ -28,23 +59,65 @@ import javax.enterprise.inject.CreationException;
 import javax.enterprise.inject.Default;
 import javax.enterprise.inject.Produces;
 
+import javax.enterprise.inject.literal.SingletonLiteral;
+
 import javax.enterprise.inject.spi.AfterBeanDiscovery;
+import javax.enterprise.inject.spi.AfterDeploymentValidation;
+import javax.enterprise.inject.spi.AnnotatedMethod;
+import javax.enterprise.inject.spi.AnnotatedType;
 import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.BeforeBeanDiscovery;
+import javax.enterprise.inject.spi.BeforeShutdown;
 import javax.enterprise.inject.spi.CDI;
 import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.ProcessAnnotatedType;
+import javax.enterprise.inject.spi.ProcessBean;
+import javax.enterprise.inject.spi.WithAnnotations;
+
+import javax.enterprise.util.Nonbinding;
 
 import javax.inject.Singleton;
 
+import javax.interceptor.Interceptor;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.sql.DataSource;
+import javax.sql.XADataSource;
+
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import javax.transaction.TransactionScoped;
 import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.Transactional;
 import javax.transaction.UserTransaction;
 
+import com.arjuna.ats.arjuna.common.CoordinatorEnvironmentBean;
+import com.arjuna.ats.arjuna.common.CoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.CoreEnvironmentBeanException;
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.RecoveryEnvironmentBean;
+
+import com.arjuna.ats.arjuna.coordinator.TransactionReaper;
+
+import com.arjuna.ats.arjuna.objectstore.StoreManager;
+
+import com.arjuna.ats.arjuna.recovery.RecoveryManager;
+
+import com.arjuna.ats.internal.arjuna.objectstore.hornetq.HornetqJournalEnvironmentBean;
+
+import com.arjuna.ats.internal.jta.recovery.arjunacore.XARecoveryModule;
+
 import com.arjuna.ats.jta.common.JTAEnvironmentBean;
 
+import com.arjuna.ats.jta.recovery.XAResourceRecoveryHelper;
+
 import com.arjuna.common.internal.util.propertyservice.BeanPopulator;
 
 /**
@@ -55,12 +128,406 @@ import com.arjuna.common.internal.util.propertyservice.BeanPopulator;
  * href="http://docs.jboss.org/cdi/spec/2.0/cdi-spec.html#part_2">CDI
  * 2.0 SE environment</a>.
  *
+ * <h2>Configuration</h2>
+ *
+ * <p>Narayana itself is configured as usual, via {@code
+ * jbossts-properties.xml} and system properties.  This extension
+ * additionally recognizes the following settings, each of which is a
+ * system property whose name begins with {@code
+ * org.microbean.narayana.jta.cdi.}:</p>
+ *
+ * <table>
+ *
+ * <caption>Settings</caption>
+ *
+ * <thead>
+ * <tr><th>Name (without prefix)</th><th>Default</th><th>Meaning</th></tr>
+ * </thead>
+ *
+ * <tbody>
+ *
+ * <tr><td>{@code slowTransactionRecorder.thresholdMillis}</td>
+ * <td>{@code -1}</td>
+ * <td>The duration in milliseconds at or above which the {@link
+ * SlowTransactionRecorder} records a transaction's phases; a negative
+ * value disables it</td></tr>
+ *
+ * <tr><td>{@code slowTransactionRecorder.capacity}</td>
+ * <td>{@code 256}</td>
+ * <td>The number of slow transactions the {@link
+ * SlowTransactionRecorder} retains</td></tr>
+ *
+ * <tr><td>{@code asyncCompletion.threads}</td>
+ * <td>the number of available processors</td>
+ * <td>The number of threads on which {@link
+ * DelegatingTransactionManager#commitAsync()} and {@link
+ * DelegatingTransactionManager#rollbackAsync()} complete
+ * transactions</td></tr>
+ *
+ * <tr><td>{@code propagatingExecutor.threads}</td>
+ * <td>the number of available processors</td>
+ * <td>The number of threads used by the {@link
+ * TransactionPropagating}-qualified {@link
+ * TransactionPropagatingExecutorService}</td></tr>
+ *
+ * <tr><td>{@code transactionalInterceptor.enabled}</td>
+ * <td>{@code false}</td>
+ * <td>Whether {@link Transactional} methods are
+ * intercepted by this extension's interceptor, which resolves each
+ * method's transactional metadata once, instead of by Narayana's own
+ * interceptors; when enabled, Narayana's interceptors are vetoed and
+ * {@link Transactional#value()} is made non-binding for the whole
+ * deployment</td></tr>
+ *
+ * <tr><td>{@code objectStore.profile}</td>
+ * <td>none</td>
+ * <td>The {@link ObjectStoreProfile} ({@code file}, {@code journal},
+ * {@code mapped} or {@code volatile}) to apply to Narayana's object stores; if
+ * unset, Narayana's own properties are used; {@code journal} requires
+ * the optional {@code org.apache.activemq:artemis-journal}
+ * dependency</td></tr>
+ *
+ * <tr><td>{@code objectStore.directory}</td>
+ * <td>none</td>
+ * <td>The directory in which Narayana's object stores are kept; if
+ * unset, Narayana's own properties are used</td></tr>
+ *
+ * <tr><td>{@code objectStore.partitioned}</td>
+ * <td>{@code true}</td>
+ * <td>Whether, when a node identifier is derived, Narayana's object
+ * stores are kept in a subdirectory of the object store directory
+ * named by it, so that nodes sharing a volume do not share a
+ * store</td></tr>
+ *
+ * <tr><td>{@code nodeIdentifier.source}</td>
+ * <td>none</td>
+ * <td>Where the node identifier that distinguishes this node's
+ * transactions and XIDs from those of other nodes is derived from:
+ * the host name ({@code hostname}), the {@code StatefulSet} name and
+ * ordinal of a Kubernetes {@code StatefulSet} pod ({@code ordinal}),
+ * an environment variable ({@code environment}) or a file ({@code
+ * file}); a value that is longer than 28 characters, or that is not
+ * suitable for a directory name, is replaced by a digest of itself;
+ * the node identifier is added to the XA recovery nodes configured
+ * by Narayana's own {@code JTAEnvironmentBean.xaRecoveryNodes}
+ * property, and must survive restarts; to change it, add the former
+ * node identifier to that property until the transaction branches
+ * left in doubt under it have been recovered; if unset, Narayana's
+ * own properties are used</td></tr>
+ *
+ * <tr><td>{@code nodeIdentifier.stableHostname}</td>
+ * <td>{@code false}</td>
+ * <td>Confirms that host names survive restarts, which is required
+ * for {@code nodeIdentifier.source} to be {@code hostname}; host
+ * names do not survive restarts for the pods of a Kubernetes {@code
+ * Deployment}, whose in-doubt transaction branches would then never
+ * be recovered</td></tr>
+ *
+ * <tr><td>{@code nodeIdentifier.location}</td>
+ * <td>none</td>
+ * <td>The name of the environment variable, or the path of the file,
+ * from which the node identifier is read when {@code
+ * nodeIdentifier.source} is {@code environment} or {@code
+ * file}</td></tr>
+ *
+ * <tr><td>{@code twoPhaseCommit.asyncPrepare}</td>
+ * <td>Narayana's own properties</td>
+ * <td>Whether the participants of a transaction are prepared in
+ * parallel, so that preparing takes as long as the slowest
+ * participant rather than the sum of all of them</td></tr>
+ *
+ * <tr><td>{@code twoPhaseCommit.asyncCommit}</td>
+ * <td>Narayana's own properties</td>
+ * <td>Whether the participants of a prepared transaction are
+ * committed in parallel</td></tr>
+ *
+ * <tr><td>{@code twoPhaseCommit.asyncRollback}</td>
+ * <td>Narayana's own properties</td>
+ * <td>Whether the participants of a transaction are rolled back in
+ * parallel</td></tr>
+ *
+ * <tr><td>{@code twoPhaseCommit.threads}</td>
+ * <td>Narayana's own properties</td>
+ * <td>The maximum number of threads in the pool on which Narayana
+ * prepares, commits and rolls back participants in parallel; must
+ * be positive</td></tr>
+ *
+ * <tr><td>{@code mappedObjectStore.segmentSize}</td>
+ * <td>{@code 33554432}</td>
+ * <td>The size in bytes of each segment file written by the {@link
+ * MappedObjectStore}</td></tr>
+ *
+ * <tr><td>{@code bootstrap}</td>
+ * <td>{@code lazy}</td>
+ * <td>Whether Narayana is initialized when first used ({@code lazy})
+ * or in parallel before the container finishes starting ({@code
+ * eager})</td></tr>
+ *
+ * <tr><td>{@code recovery.enabled}</td>
+ * <td>{@code false}</td>
+ * <td>Whether this extension starts Narayana's recovery manager when
+ * the container starts and stops it when the container shuts
+ * down</td></tr>
+ *
+ * <tr><td>{@code recovery.threads}</td>
+ * <td>{@code 4}</td>
+ * <td>The number of threads on which {@link
+ * javax.transaction.xa.XAResource}s supplied by {@code
+ * XAResourceRecoveryHelper} beans are scanned concurrently</td></tr>
+ *
+ * <tr><td>{@code recovery.scanBudgetMillis}</td>
+ * <td>{@code 30000}</td>
+ * <td>The time allowed for each recovery pass's scans; resources not
+ * scanned in time are retried in the next pass</td></tr>
+ *
+ * <tr><td>{@code recovery.periodSeconds}</td>
+ * <td>Narayana's own setting</td>
+ * <td>The interval between periodic recovery passes</td></tr>
+ *
+ * <tr><td>{@code recovery.backoffSeconds}</td>
+ * <td>Narayana's own setting</td>
+ * <td>The interval between the two phases of a recovery pass</td></tr>
+ *
+ * <tr><td>{@code synchronizationBatching.enabled}</td>
+ * <td>{@code false}</td>
+ * <td>Whether interposed synchronizations registered through the
+ * {@link javax.transaction.TransactionSynchronizationRegistry} bean
+ * are collected into a single composite synchronization per
+ * transaction</td></tr>
+ *
+ * <tr><td>{@code transactionScopedContext.enabled}</td>
+ * <td>{@code false}</td>
+ * <td>Whether this extension supplies the context for {@link
+ * TransactionScoped} beans, which keeps each transaction's
+ * contextual instances in an array indexed by bean; Narayana's own
+ * {@code com.arjuna.ats.jta.cdi.TransactionExtension}, which supplies
+ * a context for the same scope, must then not be installed</td></tr>
+ *
+ * <tr><td>{@code transactionTimeouts}</td>
+ * <td>{@code reaper}</td>
+ * <td>Whether transactions are timed out by Narayana's transaction
+ * reaper ({@code reaper}) or by a {@link TimingWheelTimeoutService}
+ * ({@code timingWheel}); an application that supplies its own
+ * {@link TransactionTimeoutService} bean should use {@code
+ * reaper}</td></tr>
+ *
+ * <tr><td>{@code timingWheel.tickMillis}</td>
+ * <td>{@code 100}</td>
+ * <td>The granularity in milliseconds of the {@link
+ * TimingWheelTimeoutService}</td></tr>
+ *
+ * <tr><td>{@code directInjection.enabled}</td>
+ * <td>{@code false}</td>
+ * <td>Whether the {@link javax.transaction.TransactionManager} and
+ * {@link javax.transaction.TransactionSynchronizationRegistry} beans
+ * are in {@linkplain Singleton singleton scope}, and so are injected
+ * without client proxies, rather than in {@linkplain ApplicationScoped
+ * application scope}</td></tr>
+ *
+ * <tr><td>{@code lazyBegin.enabled}</td>
+ * <td>{@code false}</td>
+ * <td>Whether the {@link javax.transaction.TransactionManager} bean
+ * defers the creation of each transaction until it is first needed,
+ * so that transactions in which nothing is enlisted or registered
+ * are never created; Narayana's own {@code
+ * com.arjuna.ats.jta.cdi.TransactionExtension} treats the
+ * {@linkplain TransactionScoped transaction scope} as inactive until
+ * the transaction is created</td></tr>
+ *
+ * <tr><td>{@code transactionalDataSource.enabled}</td>
+ * <td>{@code false}</td>
+ * <td>Whether a {@link TransactionalDataSource}, which enlists one
+ * connection per transaction, is made available with the same
+ * qualifiers as each {@link javax.sql.XADataSource} bean for which
+ * there is no {@link javax.sql.DataSource} bean</td></tr>
+ *
+ * <tr><td>{@code transactionalDataSource.maxIdle}</td>
+ * <td>{@code 8}</td>
+ * <td>The maximum number of idle connections that each {@link
+ * TransactionalDataSource} keeps for reuse</td></tr>
+ *
+ * <tr><td>{@code jfr.enabled}</td>
+ * <td>{@code true}</td>
+ * <td>Whether JDK Flight Recorder events are emitted when
+ * transactions are begun, committed, rolled back, suspended, resumed
+ * or timed out; events are only emitted while a recording that
+ * enables them is in progress</td></tr>
+ *
+ * <tr><td>{@code completionEvents.threads}</td>
+ * <td>{@code 0}</td>
+ * <td>The number of threads on which asynchronous observers of
+ * {@link TransactionCompletion} events are notified; if not positive,
+ * the container's default executor is used</td></tr>
+ *
+ * </tbody>
+ *
+ * </table>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  */
 public final class NarayanaExtension implements Extension {
 
 
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The {@link ObjectName} under which the {@link TransactionMetrics}
+   * in effect are registered with the platform {@link MBeanServer}.
+   *
+   * @see TransactionMetricsMXBean
+   */
+  public static final String TRANSACTION_METRICS_OBJECT_NAME = "org.microbean.narayana.jta.cdi:type=TransactionMetrics";
+
+  private static final Logger logger = Logger.getLogger(NarayanaExtension.class.getName());
+
+  /**
+   * The maximum length of a node identifier, which is the number of
+   * bytes that Narayana reserves for it in each XID it creates.
+   */
+  private static final int MAX_NODE_IDENTIFIER_LENGTH = 28;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  /**
+   * A contextual reference to the {@link TransactionManager} bean,
+   * captured once the container has validated its deployment.
+   *
+   * <p>This field may be {@code null}.</p>
+   *
+   * @see #afterDeploymentValidation(AfterDeploymentValidation,
+   * BeanManager)
+   */
+  private volatile TransactionManager transactionManager;
+
+  /**
+   * The {@link TransactionMetrics} made available for injection and
+   * registered with the platform {@link MBeanServer}.
+   *
+   * <p>This field may be {@code null}.</p>
+   */
+  private volatile TransactionMetrics transactionMetrics;
+
+  /**
+   * The {@link ObjectName} under which the {@link
+   * #transactionMetrics} field's value was registered with the
+   * platform {@link MBeanServer}, or {@code null} if it has not been
+   * registered.
+   */
+  private volatile ObjectName transactionMetricsObjectName;
+
+  /**
+   * Whether the {@link TransactionalInterceptor} is enabled.
+   *
+   * @see #beforeBeanDiscovery(BeforeBeanDiscovery)
+   */
+  private volatile boolean transactionalInterceptorEnabled;
+
+  /**
+   * Whether the {@link NarayanaTransactionManager} and {@link
+   * NarayanaTransactionSynchronizationRegistry} beans are in
+   * {@linkplain Singleton singleton scope} so that they are injected
+   * without client proxies.
+   *
+   * @see #beforeBeanDiscovery(BeforeBeanDiscovery)
+   */
+  private volatile boolean directInjection;
+
+  /**
+   * Whether a {@link TransactionalDataSource} is made available for
+   * each {@link XADataSource} bean for which there is no {@link
+   * DataSource} bean.
+   *
+   * @see #beforeBeanDiscovery(BeforeBeanDiscovery)
+   */
+  private volatile boolean transactionalDataSourceEnabled;
+
+  /**
+   * The qualifiers, other than {@link Any}, of each {@link
+   * XADataSource} bean.
+   *
+   * <p>This field is populated only if {@linkplain
+   * #transactionalDataSourceEnabled transactional data sources are
+   * enabled}.</p>
+   *
+   * @see #processBean(ProcessBean)
+   */
+  private final Set<Set<Annotation>> xaDataSourceQualifiers;
+
+  /**
+   * The qualifiers, other than {@link Any}, of each {@link
+   * DataSource} bean.
+   *
+   * <p>This field is populated only if {@linkplain
+   * #transactionalDataSourceEnabled transactional data sources are
+   * enabled}.</p>
+   *
+   * @see #processBean(ProcessBean)
+   */
+  private final Set<Set<Annotation>> dataSourceQualifiers;
+
+  /**
+   * The beans whose scope is {@link TransactionScoped} that were
+   * discovered before the {@link #transactionScopedContext} was
+   * created.
+   *
+   * @see #processBean(ProcessBean)
+   */
+  private final Collection<Bean<?>> transactionScopedBeans;
+
+  /**
+   * The {@link TransactionScopedContext} added by this extension, if
+   * any.
+   *
+   * <p>This field may be {@code null}.</p>
+   */
+  private volatile TransactionScopedContext transactionScopedContext;
+
+  /**
+   * When Narayana is initialized.
+   *
+   * <p>This field is never {@code null}.</p>
+   *
+   * @see BootstrapMode
+   */
+  private volatile BootstrapMode bootstrapMode;
+
+  /**
+   * The {@link RecoveryManager} started by this extension, or {@code
+   * null} if recovery is not managed by this extension.
+   *
+   * @see #startRecovery(BeanManager)
+   */
+  private volatile RecoveryManager recoveryManager;
+
+  /**
+   * The {@link ParallelXAResourceRecoveryHelper} registered with
+   * Narayana's {@link XARecoveryModule}, or {@code null}.
+   *
+   * @see #startRecovery(BeanManager)
+   */
+  private volatile ParallelXAResourceRecoveryHelper recoveryHelper;
+
+  /**
+   * The {@link TransactionalMetadata} resolved for each {@link
+   * Transactional} method, keyed by {@link Method}.
+   *
+   * <p>This {@link Map} is concurrently populated while types are
+   * being discovered and is replaced with an immutable copy
+   * thereafter.</p>
+   *
+   * @see #getTransactionalMetadata(Method)
+   */
+  private volatile Map<Method, TransactionalMetadata> transactionalMetadata;
+
+
   /*
    * Constructors.
    */
@@ -71,6 +538,11 @@ public final class NarayanaExtension implements Extension {
    */
   public NarayanaExtension() {
     super();
+    this.transactionalMetadata = new ConcurrentHashMap<>();
+    this.xaDataSourceQualifiers = ConcurrentHashMap.newKeySet();
+    this.dataSourceQualifiers = ConcurrentHashMap.newKeySet();
+    this.transactionScopedBeans = new ConcurrentLinkedQueue<>();
+    this.bootstrapMode = BootstrapMode.LAZY;
   }
 
 
@@ -79,9 +551,141 @@ public final class NarayanaExtension implements Extension {
    */
 
 
+  /**
+   * Reads the settings that affect type discovery, and makes the
+   * {@link Transactional#value()} element non-binding, if the {@link
+   * TransactionalInterceptor} is enabled, so that a single
+   * interceptor applies to all {@link Transactional} methods.
+   *
+   * @param event the {@link BeforeBeanDiscovery} event fired by the
+   * CDI container; may be {@code null} in which case no action will
+   * be taken
+   */
+  private final void beforeBeanDiscovery(@Observes final BeforeBeanDiscovery event) {
+    if (event != null) {
+      this.directInjection = Settings.getBoolean("directInjection.enabled", false);
+      this.transactionalDataSourceEnabled = Settings.getBoolean("transactionalDataSource.enabled", false);
+      final boolean transactionalInterceptorEnabled = Settings.getBoolean("transactionalInterceptor.enabled", false);
+      this.transactionalInterceptorEnabled = transactionalInterceptorEnabled;
+      if (transactionalInterceptorEnabled) {
+        event.configureInterceptorBinding(Transactional.class)
+          .filterMethods(m -> "value".equals(m.getJavaMember().getName()))
+          .forEach(m -> m.add(Nonbinding.Literal.INSTANCE));
+      }
+    }
+  }
+
+  /**
+   * Places the {@link NarayanaTransactionManager} bean in {@linkplain
+   * Singleton singleton scope} if direct injection is enabled.
+   *
+   * @param event the {@link ProcessAnnotatedType} event fired by the
+   * CDI container; may be {@code null} in which case no action will
+   * be taken
+   *
+   * @see #makeSingleton(ProcessAnnotatedType)
+   */
+  private final void processNarayanaTransactionManager(@Observes final ProcessAnnotatedType<NarayanaTransactionManager> event) {
+    if (event != null && this.directInjection) {
+      makeSingleton(event);
+    }
+  }
+
+  /**
+   * Places the {@link NarayanaTransactionSynchronizationRegistry}
+   * bean in {@linkplain Singleton singleton scope} if direct
+   * injection is enabled.
+   *
+   * @param event the {@link ProcessAnnotatedType} event fired by the
+   * CDI container; may be {@code null} in which case no action will
+   * be taken
+   *
+   * @see #makeSingleton(ProcessAnnotatedType)
+   */
+  private final void processNarayanaTransactionSynchronizationRegistry(@Observes final ProcessAnnotatedType<NarayanaTransactionSynchronizationRegistry> event) {
+    if (event != null && this.directInjection) {
+      makeSingleton(event);
+    }
+  }
+
+  /**
+   * Replaces the {@link ApplicationScoped} annotation of the type
+   * being processed with {@link Singleton}, so that the container
+   * injects its instance itself rather than a client proxy that looks
+   * it up in the application context on every invocation.
+   *
+   * @param event the {@link ProcessAnnotatedType} event fired by the
+   * CDI container; must not be {@code null}
+   */
+  private static final void makeSingleton(final ProcessAnnotatedType<?> event) {
+    event.configureAnnotatedType()
+      .remove(a -> a.annotationType().equals(ApplicationScoped.class))
+      .add(SingletonLiteral.INSTANCE);
+  }
+
+  /**
+   * Vetoes Narayana's own {@link Transactional} interceptors if the
+   * {@link TransactionalInterceptor} is enabled, and vetoes the
+   * {@link TransactionalInterceptor} otherwise, so that exactly one
+   * set of interceptors is in effect.
+   *
+   * @param event the {@link ProcessAnnotatedType} event fired by the
+   * CDI container; may be {@code null} in which case no action will
+   * be taken
+   */
+  private final void processInterceptor(@Observes @WithAnnotations(Interceptor.class) final ProcessAnnotatedType<?> event) {
+    if (event != null) {
+      final Class<?> c = event.getAnnotatedType().getJavaClass();
+      if (this.transactionalInterceptorEnabled) {
+        if (c.getName().startsWith("com.arjuna.ats.jta.cdi.TransactionalInterceptor")) {
+          event.veto();
+        }
+      } else if (TransactionalInterceptor.class.equals(c)) {
+        event.veto();
+      }
+    }
+  }
+
+  /**
+   * Resolves the {@link TransactionalMetadata} for each method of a
+   * {@link Transactional} type or with a {@link Transactional}
+   * method so that the {@link TransactionalInterceptor} need not do
+   * so at invocation time.
+   *
+   * @param event the {@link ProcessAnnotatedType} event fired by the
+   * CDI container; may be {@code null} in which case no action will
+   * be taken
+   */
+  private final void processTransactional(@Observes @WithAnnotations(Transactional.class) final ProcessAnnotatedType<?> event) {
+    if (event != null && this.transactionalInterceptorEnabled) {
+      this.resolveTransactionalMetadata(event.getAnnotatedType());
+    }
+  }
+
+  private final <X> void resolveTransactionalMetadata(final AnnotatedType<X> type) {
+    final Map<Method, TransactionalMetadata> transactionalMetadata = this.transactionalMetadata;
+    final Class<X> javaClass = type.getJavaClass();
+    final Transactional typeTransactional = type.getAnnotation(Transactional.class);
+    for (final AnnotatedMethod<? super X> annotatedMethod : type.getMethods()) {
+      if (!annotatedMethod.isStatic()) {
+        final Method method = annotatedMethod.getJavaMember();
+        final Transactional methodTransactional = annotatedMethod.getAnnotation(Transactional.class);
+        if (methodTransactional != null) {
+          transactionalMetadata.put(method, TransactionalMetadata.of(methodTransactional));
+        } else if (typeTransactional != null && javaClass.equals(method.getDeclaringClass())) {
+          transactionalMetadata.put(method, TransactionalMetadata.of(typeTransactional));
+        }
+        // Otherwise the metadata depends on the class of the target
+        // and is resolved by the interceptor.
+      }
+    }
+  }
+
   /**
    * Adds a synthetic bean that creates a {@link Transaction} in
-   * {@linkplain TransactionScoped transaction scope}.
+   * {@linkplain TransactionScoped transaction scope}, along with the
+   * other beans and, if so configured, the {@link
+   * TransactionScopedContext} supplied by this extension.
    *
    * @param event the {@link AfterBeanDiscovery} event fired by the
    * CDI container; may be {@code null} in which case no action will
@@ -90,6 +694,9 @@ public final class NarayanaExtension implements Extension {
   private final void afterBeanDiscovery(@Observes final AfterBeanDiscovery event, final BeanManager beanManager) {
     if (event != null) {
 
+      // Type discovery is over; nothing more will be added.
+      this.transactionalMetadata = Collections.unmodifiableMap(new HashMap<>(this.transactionalMetadata));
+
       // Weld registers a UserTransaction bean well before this
       // observer method fires.  OpenWebBeans does not.
       final Collection<? extends Bean<?>> userTransactionBeans = beanManager.getBeans(UserTransaction.class);
@@ -115,19 +722,775 @@ public final class NarayanaExtension implements Extension {
         .scope(TransactionScoped.class)
         .createWith(cc -> {
             try {
-              return CDI.current().select(TransactionManager.class).get().getTransaction();
+              return this.getTransactionManager().getTransaction();
             } catch (final SystemException systemException) {
               throw new CreationException(systemException.getMessage(), systemException);
             }
           });
 
+      if (Settings.getBoolean("transactionScopedContext.enabled", false)) {
+        if (isInstalled(beanManager, "com.arjuna.ats.jta.cdi.TransactionExtension")) {
+          // Its context would be active whenever ours is.
+          event.addDefinitionError(new IllegalStateException("The " + Settings.PREFIX + "transactionScopedContext.enabled " +
+                                                             "setting requires that com.arjuna.ats.jta.cdi.TransactionExtension " +
+                                                             "not be installed"));
+        } else {
+          final TransactionScopedContext transactionScopedContext;
+          if (Settings.getBoolean("lazyBegin.enabled", false)) {
+            // Only the TransactionSynchronizationRegistry bean knows
+            // about transactions whose creation has been deferred.
+            transactionScopedContext =
+              new TransactionScopedContext(() -> CDI.current().select(TransactionSynchronizationRegistry.class).get(),
+                                           this.transactionScopedBeans);
+          } else {
+            transactionScopedContext =
+              new TransactionScopedContext(() -> BeanPopulator.getDefaultInstance(JTAEnvironmentBean.class)
+                                           .getTransactionSynchronizationRegistry(),
+                                           this.transactionScopedBeans);
+          }
+          // Beans added by this and other observers are processed
+          // later and are registered directly.
+          this.transactionScopedContext = transactionScopedContext;
+          this.transactionScopedBeans.clear();
+          event.addContext(transactionScopedContext);
+        }
+      }
+
+      try {
+        this.bootstrapMode = Settings.getEnum("bootstrap", BootstrapMode.class, BootstrapMode.LAZY);
+      } catch (final IllegalArgumentException invalidSetting) {
+        event.addDefinitionError(invalidSetting);
+      }
+
+      // The node identifier and the object store must be configured
+      // before Narayana uses them, so this must happen before the
+      // JTAEnvironmentBean is made available.
+      String nodeIdentifier = null;
+      try {
+        final NodeIdentifierSource nodeIdentifierSource =
+          Settings.getEnum("nodeIdentifier.source", NodeIdentifierSource.class, null);
+        if (nodeIdentifierSource == NodeIdentifierSource.HOSTNAME
+            && !Settings.getBoolean("nodeIdentifier.stableHostname", false)) {
+          throw new IllegalArgumentException("A node identifier derived from the host name must not change when the " +
+                                             "node restarts, or its in-doubt transaction branches will never be " +
+                                             "recovered; set " + Settings.PREFIX + "nodeIdentifier.stableHostname " +
+                                             "to true to confirm that host names are stable, or use another " +
+                                             Settings.PREFIX + "nodeIdentifier.source");
+        }
+        if (nodeIdentifierSource != null) {
+          nodeIdentifier =
+            configureNodeIdentifier(nodeIdentifierSource.read(Settings.getString("nodeIdentifier.location", null)));
+        }
+      } catch (final IllegalArgumentException invalidSetting) {
+        event.addDefinitionError(invalidSetting);
+      } catch (final IOException | CoreEnvironmentBeanException exception) {
+        event.addDefinitionError(exception);
+      }
+      try {
+        configureObjectStore(Settings.getEnum("objectStore.profile", ObjectStoreProfile.class, null),
+                             Settings.getString("objectStore.directory", null),
+                             Settings.getBoolean("objectStore.partitioned", true) ? nodeIdentifier : null);
+      } catch (final IllegalArgumentException | IllegalStateException invalidSetting) {
+        event.addDefinitionError(invalidSetting);
+      }
+      try {
+        configureCoordinator();
+      } catch (final IllegalArgumentException invalidSetting) {
+        event.addDefinitionError(invalidSetting);
+      }
+
+      event.addBean()
+        .addTransitiveTypeClosure(ObjectStoreEnvironmentBean.class)
+        .addQualifiers(Any.Literal.INSTANCE, Default.Literal.INSTANCE) // OpenWebBeans does not add these; Weld does automatically
+        .scope(Singleton.class)
+        .createWith(cc -> BeanPopulator.getDefaultInstance(ObjectStoreEnvironmentBean.class));
+
       event.addBean()
         .addTransitiveTypeClosure(JTAEnvironmentBean.class)
         .addQualifiers(Any.Literal.INSTANCE, Default.Literal.INSTANCE) // OpenWebBeans does not add these; Weld does automatically
         .scope(Singleton.class)
         .createWith(cc -> BeanPopulator.getDefaultInstance(JTAEnvironmentBean.class));
 
+      event.addBean()
+        .addTransitiveTypeClosure(CoordinatorEnvironmentBean.class)
+        .addQualifiers(Any.Literal.INSTANCE, Default.Literal.INSTANCE) // OpenWebBeans does not add these; Weld does automatically
+        .scope(Singleton.class)
+        .createWith(cc -> BeanPopulator.getDefaultInstance(CoordinatorEnvironmentBean.class));
+
+      // The default transaction timeout is supplied by the
+      // NarayanaTransactionManager when it is created, so Narayana's
+      // configuration need not be read here.
+      final TransactionMetrics transactionMetrics = new TransactionMetrics();
+      this.transactionMetrics = transactionMetrics;
+
+      event.addBean()
+        .addTransitiveTypeClosure(TransactionMetrics.class)
+        .addQualifiers(Any.Literal.INSTANCE, Default.Literal.INSTANCE) // OpenWebBeans does not add these; Weld does automatically
+        .scope(Singleton.class)
+        .createWith(cc -> transactionMetrics);
+
+      event.addBean()
+        .addTransitiveTypeClosure(TransactionMetricsSnapshot.class)
+        .addQualifiers(Any.Literal.INSTANCE, Default.Literal.INSTANCE) // OpenWebBeans does not add these; Weld does automatically
+        .scope(Dependent.class)
+        .createWith(cc -> transactionMetrics.snapshot());
+
+      SlowTransactionRecorder slowTransactionRecorder;
+      try {
+        slowTransactionRecorder =
+          new SlowTransactionRecorder(Settings.getInt("slowTransactionRecorder.capacity", 256),
+                                      Settings.getLong("slowTransactionRecorder.thresholdMillis", -1L),
+                                      TimeUnit.MILLISECONDS);
+      } catch (final IllegalArgumentException invalidSetting) {
+        event.addDefinitionError(invalidSetting);
+        slowTransactionRecorder = new SlowTransactionRecorder(1, -1L, TimeUnit.MILLISECONDS);
+      }
+      final SlowTransactionRecorder finalSlowTransactionRecorder = slowTransactionRecorder;
+      event.addBean()
+        .addTransitiveTypeClosure(SlowTransactionRecorder.class)
+        .addQualifiers(Any.Literal.INSTANCE, Default.Literal.INSTANCE) // OpenWebBeans does not add these; Weld does automatically
+        .scope(Singleton.class)
+        .createWith(cc -> finalSlowTransactionRecorder);
+
+      try {
+        if (Settings.getEnum("transactionTimeouts", TransactionTimeoutMode.class, TransactionTimeoutMode.REAPER) ==
+            TransactionTimeoutMode.TIMING_WHEEL) {
+          final long tickMillis = Settings.getLong("timingWheel.tickMillis", 100L);
+          if (tickMillis <= 0L) {
+            throw new IllegalArgumentException(Settings.PREFIX + "timingWheel.tickMillis: " + tickMillis);
+          }
+          event.addBean()
+            .addTransitiveTypeClosure(TimingWheelTimeoutService.class)
+            .addQualifiers(Any.Literal.INSTANCE, Default.Literal.INSTANCE) // OpenWebBeans does not add these; Weld does automatically
+            .scope(Singleton.class)
+            .<TimingWheelTimeoutService>createWith(cc -> new TimingWheelTimeoutService(tickMillis, TimeUnit.MILLISECONDS))
+            .destroyWith((timeoutService, cc) -> timeoutService.close());
+        }
+      } catch (final IllegalArgumentException invalidSetting) {
+        event.addDefinitionError(invalidSetting);
+      }
+
+      int propagatingExecutorThreads;
+      try {
+        propagatingExecutorThreads = Settings.getInt("propagatingExecutor.threads", 0);
+      } catch (final IllegalArgumentException invalidSetting) {
+        event.addDefinitionError(invalidSetting);
+        propagatingExecutorThreads = 0;
+      }
+      final int finalPropagatingExecutorThreads =
+        propagatingExecutorThreads > 0 ? propagatingExecutorThreads : Runtime.getRuntime().availableProcessors();
+      event.addBean()
+        .addTransitiveTypeClosure(TransactionPropagatingExecutorService.class)
+        .addQualifiers(Any.Literal.INSTANCE, TransactionPropagating.Literal.INSTANCE)
+        .scope(Singleton.class)
+        .<TransactionPropagatingExecutorService>createWith(cc -> {
+            final NamedThreadFactory threadFactory = new NamedThreadFactory("transaction-propagating");
+            return new TransactionPropagatingExecutorService(Executors.newFixedThreadPool(finalPropagatingExecutorThreads,
+                                                                                          threadFactory),
+                                                             this.getTransactionManager());
+          })
+        .destroyWith((executorService, cc) -> executorService.shutdown());
+
+      if (this.transactionalDataSourceEnabled) {
+        try {
+          final int maxIdle = Settings.getInt("transactionalDataSource.maxIdle", 8);
+          if (maxIdle < 0) {
+            throw new IllegalArgumentException(Settings.PREFIX + "transactionalDataSource.maxIdle: " + maxIdle);
+          }
+          for (final Set<Annotation> qualifiers : this.xaDataSourceQualifiers) {
+            if (!this.dataSourceQualifiers.contains(qualifiers)) {
+              final Annotation[] qualifierArray = qualifiers.toArray(new Annotation[qualifiers.size()]);
+              // Only the DataSource types are exposed, since the
+              // XADataSource bean already has the other types that
+              // they share.
+              event.addBean()
+                .types(TransactionalDataSource.class, DataSource.class, Object.class)
+                .addQualifiers(qualifiers)
+                .addQualifier(Any.Literal.INSTANCE)
+                .scope(Singleton.class)
+                .<TransactionalDataSource>createWith(cc -> {
+                    return new TransactionalDataSource(beanManager.createInstance().select(XADataSource.class, qualifierArray).get(),
+                                                       this.getTransactionManager(),
+                                                       beanManager.createInstance().select(TransactionSynchronizationRegistry.class).get(),
+                                                       maxIdle);
+                  })
+                .destroyWith((dataSource, cc) -> dataSource.close());
+            }
+          }
+        } catch (final IllegalArgumentException invalidSetting) {
+          event.addDefinitionError(invalidSetting);
+        }
+      }
+
+    }
+  }
+
+  /**
+   * Records the qualifiers of {@link XADataSource} and {@link
+   * DataSource} beans if transactional data sources are enabled, so
+   * that the {@link #afterBeanDiscovery(AfterBeanDiscovery,
+   * BeanManager)} method can add a {@link TransactionalDataSource} for
+   * each {@link XADataSource} that has no {@link DataSource}
+   * counterpart, and assigns each bean whose scope is {@link
+   * TransactionScoped} its slot in the {@link
+   * TransactionScopedContext}.
+   *
+   * @param event the {@link ProcessBean} event fired by the CDI
+   * container; may be {@code null} in which case no action will be
+   * taken
+   */
+  private final void processBean(@Observes final ProcessBean<?> event) {
+    if (event != null && TransactionScoped.class.equals(event.getBean().getScope())) {
+      final TransactionScopedContext transactionScopedContext = this.transactionScopedContext;
+      if (transactionScopedContext == null) {
+        this.transactionScopedBeans.add(event.getBean());
+      } else {
+        transactionScopedContext.register(event.getBean());
+      }
+    }
+    if (event != null && this.transactionalDataSourceEnabled) {
+      final Bean<?> bean = event.getBean();
+      final boolean xaDataSource = bean.getTypes().contains(XADataSource.class);
+      final boolean dataSource = bean.getTypes().contains(DataSource.class);
+      if (xaDataSource || dataSource) {
+        final Set<Annotation> qualifiers = new HashSet<>(bean.getQualifiers());
+        qualifiers.remove(Any.Literal.INSTANCE);
+        if (xaDataSource) {
+          this.xaDataSourceQualifiers.add(qualifiers);
+        }
+        if (dataSource) {
+          this.dataSourceQualifiers.add(qualifiers);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if the portable extension with the supplied
+   * class name is installed in the container represented by the
+   * supplied {@link BeanManager}.
+   *
+   * @param beanManager the {@link BeanManager} in effect; must not be
+   * {@code null}
+   *
+   * @param extensionClassName the name of the extension's class; must
+   * not be {@code null}
+   *
+   * @return {@code true} if the extension is installed; {@code false}
+   * otherwise
+   */
+  private static final boolean isInstalled(final BeanManager beanManager, final String extensionClassName) {
+    final Class<? extends Extension> extensionClass;
+    try {
+      extensionClass = Class.forName(extensionClassName, false, NarayanaExtension.class.getClassLoader()).asSubclass(Extension.class);
+    } catch (final ClassNotFoundException | ClassCastException notAnExtension) {
+      return false;
+    }
+    try {
+      return beanManager.getExtension(extensionClass) != null;
+    } catch (final IllegalArgumentException notInstalled) {
+      return false;
+    }
+  }
+
+  /**
+   * Captures a contextual reference to the {@link TransactionManager}
+   * bean so that the synthetic {@link Transaction} bean added by the
+   * {@link #afterBeanDiscovery(AfterBeanDiscovery, BeanManager)}
+   * method does not need to perform a dynamic lookup every time it is
+   * created.
+   *
+   * <p>The reference so captured is normally a client proxy, so
+   * acquiring it does not cause the underlying {@link
+   * TransactionManager} to be created.</p>
+   *
+   * <p>This method also arranges for Flight Recorder events to be
+   * emitted for transactions timed out by Narayana's transaction
+   * reaper.</p>
+   *
+   * @param event the {@link AfterDeploymentValidation} event fired by
+   * the CDI container; may be {@code null} in which case no action
+   * will be taken
+   *
+   * @param beanManager the {@link BeanManager} in effect; may be
+   * {@code null} in which case no action will be taken
+   */
+  private final void afterDeploymentValidation(@Observes final AfterDeploymentValidation event, final BeanManager beanManager) {
+    if (event != null && beanManager != null) {
+      final Bean<?> bean = beanManager.resolve(beanManager.getBeans(TransactionManager.class));
+      // Without a client proxy in the way, acquiring a reference would
+      // create the TransactionManager now; let the
+      // getTransactionManager() method do so when it is needed
+      // instead.
+      if (bean != null && !this.directInjection) {
+        this.transactionManager =
+          (TransactionManager)beanManager.getReference(bean, TransactionManager.class, beanManager.createCreationalContext(bean));
+      }
+
+      final TransactionMetrics transactionMetrics = this.transactionMetrics;
+      if (transactionMetrics != null) {
+        try {
+          final ObjectName objectName = new ObjectName(TRANSACTION_METRICS_OBJECT_NAME);
+          ManagementFactory.getPlatformMBeanServer().registerMBean(transactionMetrics, objectName);
+          this.transactionMetricsObjectName = objectName;
+        } catch (final InstanceAlreadyExistsException instanceAlreadyExistsException) {
+          // Another container in this virtual machine got there
+          // first; its metrics remain visible and ours remain
+          // injectable.
+          logger.log(Level.WARNING,
+                     "Transaction metrics were not registered with the platform MBeanServer because another " +
+                     "container in this virtual machine has already registered its own under " +
+                     TRANSACTION_METRICS_OBJECT_NAME,
+                     instanceAlreadyExistsException);
+        } catch (final JMException jmException) {
+          event.addDeploymentProblem(jmException);
+        }
+      }
+
+      if (this.bootstrapMode == BootstrapMode.EAGER) {
+        try {
+          this.bootstrap(beanManager);
+        } catch (final RuntimeException bootstrapProblem) {
+          event.addDeploymentProblem(bootstrapProblem);
+        }
+      }
+
+      try {
+        // Narayana's transaction reaper times transactions out on its
+        // own thread, so only it can report having done so.  This
+        // creates the reaper, but only if Flight Recorder events are
+        // enabled.
+        TransactionEvents.monitorReaper();
+      } catch (final RuntimeException reaperProblem) {
+        event.addDeploymentProblem(reaperProblem);
+      }
+
+      try {
+        if (Settings.getBoolean("recovery.enabled", false)) {
+          this.startRecovery(beanManager);
+        }
+      } catch (final RuntimeException recoveryProblem) {
+        event.addDeploymentProblem(recoveryProblem);
+      }
+    }
+  }
+
+  /**
+   * Initializes the {@link TransactionManager}, the {@link
+   * TransactionSynchronizationRegistry} and Narayana's object store
+   * and transaction reaper in parallel, and waits for them all to be
+   * ready.
+   *
+   * <p>The {@link TransactionManager} and the transaction reaper are
+   * initialized on the calling thread, and the others on the {@link
+   * CompletableFuture}'s default {@link java.util.concurrent.Executor},
+   * so no threads are created solely for this purpose.  The {@link
+   * TransactionManager} is created here even if direct injection is
+   * enabled.</p>
+   *
+   * @param beanManager the {@link BeanManager} in effect; must not be
+   * {@code null}
+   *
+   * @exception RuntimeException if any of them could not be
+   * initialized
+   */
+  private final void bootstrap(final BeanManager beanManager) {
+    final TransactionSynchronizationRegistry registry = reference(beanManager, TransactionSynchronizationRegistry.class);
+    TransactionManager transactionManager = this.transactionManager;
+    if (transactionManager == null) {
+      // Direct injection is enabled, so no reference has been
+      // acquired yet; acquiring one creates the TransactionManager,
+      // which is the point.
+      transactionManager = reference(beanManager, TransactionManager.class);
+      this.transactionManager = transactionManager;
+    }
+    final CompletableFuture<Void> registryReady = CompletableFuture.runAsync(() -> {
+        if (registry != null) {
+          registry.getTransactionStatus();
+        }
+      });
+    final CompletableFuture<Void> objectStoreReady = CompletableFuture.runAsync(() -> {
+        StoreManager.getParticipantStore();
+        StoreManager.getRecoveryStore();
+      });
+    try {
+      if (transactionManager != null) {
+        transactionManager.getStatus();
+      }
+      TransactionReaper.instantiate();
+      CompletableFuture.allOf(registryReady, objectStoreReady).join();
+    } catch (final SystemException systemException) {
+      throw new IllegalStateException(systemException.getMessage(), systemException);
+    } catch (final CompletionException completionException) {
+      final Throwable cause = completionException.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException)cause : completionException;
+    }
+  }
+
+  /**
+   * Returns a contextual reference to the bean that the supplied
+   * {@link BeanManager} resolves for the supplied type, or {@code
+   * null} if there is no such bean.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param <T> the type of the reference
+   *
+   * @param beanManager the {@link BeanManager} in effect; must not be
+   * {@code null}
+   *
+   * @param type the type of the reference; must not be {@code null}
+   *
+   * @return a contextual reference, or {@code null}
+   */
+  private static final <T> T reference(final BeanManager beanManager, final Class<T> type) {
+    final Bean<?> bean = beanManager.resolve(beanManager.getBeans(type));
+    return bean == null ? null : type.cast(beanManager.getReference(bean, type, beanManager.createCreationalContext(bean)));
+  }
+
+  /**
+   * Starts Narayana's {@link RecoveryManager} and registers a {@link
+   * ParallelXAResourceRecoveryHelper} that scans the {@link
+   * javax.transaction.xa.XAResource}s supplied by every {@link
+   * XAResourceRecoveryHelper} bean.
+   *
+   * <p>The helper is registered before the {@link RecoveryManager}'s
+   * thread is started, so that it takes part in the first scan.</p>
+   *
+   * @param beanManager the {@link BeanManager} in effect; must not be
+   * {@code null}
+   *
+   * @exception IllegalArgumentException if a recovery setting is
+   * invalid
+   *
+   * @exception IllegalStateException if Narayana's {@link
+   * XARecoveryModule} is not configured
+   */
+  private final void startRecovery(final BeanManager beanManager) {
+    final int threads = Settings.getInt("recovery.threads", 4);
+    final long budgetMillis = Settings.getLong("recovery.scanBudgetMillis", 30000L);
+    final int periodSeconds = Settings.getInt("recovery.periodSeconds", 0);
+    final int backoffSeconds = Settings.getInt("recovery.backoffSeconds", 0);
+
+    // These must be set before the RecoveryManager is created.
+    final RecoveryEnvironmentBean recoveryEnvironmentBean = BeanPopulator.getDefaultInstance(RecoveryEnvironmentBean.class);
+    if (periodSeconds > 0) {
+      recoveryEnvironmentBean.setPeriodicRecoveryPeriod(periodSeconds);
+    }
+    if (backoffSeconds > 0) {
+      recoveryEnvironmentBean.setRecoveryBackoffPeriod(backoffSeconds);
+    }
+
+    final List<XAResourceRecoveryHelper> helpers = new ArrayList<>();
+    for (final Bean<?> bean : beanManager.getBeans(XAResourceRecoveryHelper.class, Any.Literal.INSTANCE)) {
+      helpers.add((XAResourceRecoveryHelper)beanManager.getReference(bean,
+                                                                     XAResourceRecoveryHelper.class,
+                                                                     beanManager.createCreationalContext(bean)));
+    }
+    final ParallelXAResourceRecoveryHelper recoveryHelper =
+      new ParallelXAResourceRecoveryHelper(helpers, threads, budgetMillis, TimeUnit.MILLISECONDS);
+
+    // The recovery modules are loaded when the RecoveryManager is
+    // created, but its first scan must not begin until the helper
+    // has been registered, or in-doubt branches would wait a whole
+    // period to be recovered.
+    RecoveryManager.delayRecoveryManagerThread();
+    final RecoveryManager recoveryManager = RecoveryManager.manager(RecoveryManager.INDIRECT_MANAGEMENT);
+    this.recoveryManager = recoveryManager;
+    final XARecoveryModule xaRecoveryModule = XARecoveryModule.getRegisteredXARecoveryModule();
+    if (xaRecoveryModule == null) {
+      recoveryHelper.close();
+      throw new IllegalStateException("No XARecoveryModule is configured");
+    }
+    xaRecoveryModule.addXAResourceRecoveryHelper(recoveryHelper);
+    this.recoveryHelper = recoveryHelper;
+    recoveryManager.startRecoveryManagerThread();
+  }
+
+  /**
+   * Stops the {@link RecoveryManager} if it was started by the
+   * {@link #afterDeploymentValidation(AfterDeploymentValidation,
+   * BeanManager)} method, and unregisters the {@link
+   * TransactionMetrics} in effect from the platform {@link
+   * MBeanServer} if they were registered by it.
+   *
+   * @param event the {@link BeforeShutdown} event fired by the CDI
+   * container; may be {@code null} in which case no action will be
+   * taken
+   */
+  private final void beforeShutdown(@Observes final BeforeShutdown event) {
+    if (event != null) {
+      final TransactionScopedContext transactionScopedContext = this.transactionScopedContext;
+      if (transactionScopedContext != null) {
+        this.transactionScopedContext = null;
+        transactionScopedContext.close();
+      }
+
+      final ParallelXAResourceRecoveryHelper recoveryHelper = this.recoveryHelper;
+      if (recoveryHelper != null) {
+        this.recoveryHelper = null;
+        final XARecoveryModule xaRecoveryModule = XARecoveryModule.getRegisteredXARecoveryModule();
+        if (xaRecoveryModule != null) {
+          xaRecoveryModule.removeXAResourceRecoveryHelper(recoveryHelper);
+        }
+      }
+      final RecoveryManager recoveryManager = this.recoveryManager;
+      if (recoveryManager != null) {
+        this.recoveryManager = null;
+        recoveryManager.terminate();
+      }
+      if (recoveryHelper != null) {
+        recoveryHelper.close();
+      }
+
+      final ObjectName objectName = this.transactionMetricsObjectName;
+      if (objectName != null) {
+        this.transactionMetricsObjectName = null;
+        try {
+          ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (final InstanceNotFoundException instanceNotFoundException) {
+          // Already gone; nothing to do.
+        } catch (final JMException jmException) {
+          // The container is shutting down regardless.
+          logger.log(Level.WARNING,
+                     "Transaction metrics could not be unregistered from the platform MBeanServer",
+                     jmException);
+        }
+      }
+    }
+  }
+
+  /**
+   * Derives a node identifier from the supplied value and makes it
+   * Narayana's node identifier and an {@linkplain
+   * JTAEnvironmentBean#setXaRecoveryNodes(List) XA recovery node}, so
+   * that this node recovers the transaction branches that it created.
+   *
+   * <p>Any XA recovery nodes configured by Narayana's own properties
+   * are kept, so that a node whose identifier changes can still
+   * recover the branches it left in doubt under its former
+   * identifier if that identifier is configured as an XA recovery
+   * node.</p>
+   *
+   * <p>A value that is no longer than {@value #MAX_NODE_IDENTIFIER_LENGTH}
+   * characters, and that consists only of ASCII letters, digits,
+   * periods, hyphens and underscores, is used as is.  Any other value
+   * is replaced by a prefix of the hexadecimal form of its SHA-256
+   * digest, so that the node identifier fits in an XID and may be
+   * used as a directory name.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param value the value from which to derive the node
+   * identifier; must not be {@code null}
+   *
+   * @return the node identifier; never {@code null}
+   *
+   * @exception NullPointerException if {@code value} is {@code null}
+   *
+   * @exception CoreEnvironmentBeanException if Narayana rejected the
+   * node identifier
+   *
+   * @see NodeIdentifierSource
+   */
+  private static final String configureNodeIdentifier(final String value) throws CoreEnvironmentBeanException {
+    final String nodeIdentifier;
+    if (value.length() <= MAX_NODE_IDENTIFIER_LENGTH
+        && !value.equals(".")
+        && !value.equals("..")
+        && value.matches("[A-Za-z0-9._-]+")) {
+      nodeIdentifier = value;
+    } else {
+      final byte[] digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      } catch (final NoSuchAlgorithmException noSuchAlgorithmException) {
+        // Every Java platform is required to support SHA-256.
+        throw new IllegalStateException(noSuchAlgorithmException.getMessage(), noSuchAlgorithmException);
+      }
+      final StringBuilder sb = new StringBuilder(MAX_NODE_IDENTIFIER_LENGTH);
+      for (int i = 0; sb.length() < MAX_NODE_IDENTIFIER_LENGTH; i++) {
+        sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+      }
+      nodeIdentifier = sb.toString();
+    }
+    BeanPopulator.getDefaultInstance(CoreEnvironmentBean.class).setNodeIdentifier(nodeIdentifier);
+    final JTAEnvironmentBean jtaEnvironmentBean = BeanPopulator.getDefaultInstance(JTAEnvironmentBean.class);
+    jtaEnvironmentBean.setXaRecoveryNodes(xaRecoveryNodes(nodeIdentifier, jtaEnvironmentBean.getXaRecoveryNodes()));
+    return nodeIdentifier;
+  }
+
+  /**
+   * Returns the XA recovery nodes to use given this node's
+   * identifier and the XA recovery nodes configured by Narayana's own
+   * properties.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param nodeIdentifier this node's identifier; must not be {@code
+   * null}
+   *
+   * @param configuredXaRecoveryNodes the XA recovery nodes
+   * configured by Narayana's {@code JTAEnvironmentBean.xaRecoveryNodes}
+   * property, such as a former node identifier whose in-doubt
+   * transaction branches have yet to be recovered; may be {@code
+   * null}
+   *
+   * @return a new mutable {@link List} containing {@code
+   * nodeIdentifier} followed by each of the configured XA recovery
+   * nodes that is distinct from it; never {@code null}
+   */
+  static final List<String> xaRecoveryNodes(final String nodeIdentifier,
+                                            final Collection<? extends String> configuredXaRecoveryNodes) {
+    final List<String> xaRecoveryNodes = new ArrayList<>();
+    xaRecoveryNodes.add(nodeIdentifier);
+    if (configuredXaRecoveryNodes != null) {
+      for (final String configuredXaRecoveryNode : configuredXaRecoveryNodes) {
+        if (!xaRecoveryNodes.contains(configuredXaRecoveryNode)) {
+          xaRecoveryNodes.add(configuredXaRecoveryNode);
+        }
+      }
+    }
+    return xaRecoveryNodes;
+  }
+
+  /**
+   * Applies the supplied {@link ObjectStoreProfile} and object store
+   * directory to each of the {@link ObjectStoreEnvironmentBean}
+   * instances that Narayana uses.
+   *
+   * @param profile the {@link ObjectStoreProfile} to apply; may be
+   * {@code null} in which case the object store type and
+   * synchronization policy are left as configured by Narayana's own
+   * properties
+   *
+   * @param directory the object store directory; may be {@code null}
+   * in which case it is left as configured by Narayana's own
+   * properties
+   *
+   * @param partition the name of a subdirectory of the object store
+   * directory in which this node's object stores are kept, so that
+   * nodes sharing a volume do not share a store; may be {@code null}
+   * in which case the object store directory is used as is
+   *
+   * @exception IllegalStateException if {@code profile} needs an
+   * optional dependency that is absent
+   */
+  private static final void configureObjectStore(final ObjectStoreProfile profile,
+                                                 final String directory,
+                                                 final String partition) {
+    if (profile == null && directory == null && partition == null) {
+      // Don't cause Narayana's configuration to be read before it is
+      // needed.
+      return;
+    }
+    if (profile != null) {
+      // Narayana loads the object store, and so whatever it needs,
+      // with its own class loader.
+      profile.checkAvailable(ObjectStoreEnvironmentBean.class.getClassLoader());
+    }
+    for (final String name : new String[] { null, "stateStore", "communicationStore" }) {
+      final ObjectStoreEnvironmentBean objectStoreEnvironmentBean =
+        name == null
+        ? BeanPopulator.getDefaultInstance(ObjectStoreEnvironmentBean.class)
+        : BeanPopulator.getNamedInstance(ObjectStoreEnvironmentBean.class, name);
+      final String objectStoreDirectory = directory == null ? objectStoreEnvironmentBean.getObjectStoreDir() : directory;
+      if (objectStoreDirectory != null) {
+        objectStoreEnvironmentBean.setObjectStoreDir(partition == null
+                                                     ? objectStoreDirectory
+                                                     : new File(objectStoreDirectory, partition).getPath());
+      }
+      if (profile != null) {
+        profile.applyTo(objectStoreEnvironmentBean);
+      }
+    }
+    if (profile == ObjectStoreProfile.JOURNAL) {
+      final HornetqJournalEnvironmentBean journalEnvironmentBean =
+        BeanPopulator.getDefaultInstance(HornetqJournalEnvironmentBean.class);
+      final String objectStoreDirectory =
+        BeanPopulator.getDefaultInstance(ObjectStoreEnvironmentBean.class).getObjectStoreDir();
+      journalEnvironmentBean.setStoreDir(new File(objectStoreDirectory, "HornetqObjectStore").getPath());
+      journalEnvironmentBean.setSyncWrites(true);
+      journalEnvironmentBean.setSyncDeletes(true);
+    }
+  }
+
+  /**
+   * Applies the {@code twoPhaseCommit.*} settings, if any are set, to
+   * Narayana's {@link CoordinatorEnvironmentBean}.
+   *
+   * <p>Narayana sizes the thread pool on which participants are
+   * prepared, committed and rolled back in parallel when it is first
+   * used, so this method must be called before any transaction
+   * completes.</p>
+   *
+   * @exception IllegalArgumentException if a {@code
+   * twoPhaseCommit.*} setting is invalid
+   */
+  private static final void configureCoordinator() {
+    final String asyncPrepare = Settings.getString("twoPhaseCommit.asyncPrepare", null);
+    final String asyncCommit = Settings.getString("twoPhaseCommit.asyncCommit", null);
+    final String asyncRollback = Settings.getString("twoPhaseCommit.asyncRollback", null);
+    final boolean threadsSet = Settings.getString("twoPhaseCommit.threads", null) != null;
+    final int threads = Settings.getInt("twoPhaseCommit.threads", 0);
+    if (threadsSet && threads <= 0) {
+      throw new IllegalArgumentException(Settings.PREFIX + "twoPhaseCommit.threads: " + threads);
+    }
+    if (asyncPrepare == null && asyncCommit == null && asyncRollback == null && !threadsSet) {
+      // Don't cause Narayana's configuration to be read before it is
+      // needed.
+      return;
+    }
+    final CoordinatorEnvironmentBean coordinatorEnvironmentBean =
+      BeanPopulator.getDefaultInstance(CoordinatorEnvironmentBean.class);
+    if (asyncPrepare != null) {
+      coordinatorEnvironmentBean.setAsyncPrepare(Boolean.parseBoolean(asyncPrepare));
+    }
+    if (asyncCommit != null) {
+      coordinatorEnvironmentBean.setAsyncCommit(Boolean.parseBoolean(asyncCommit));
+    }
+    if (asyncRollback != null) {
+      coordinatorEnvironmentBean.setAsyncRollback(Boolean.parseBoolean(asyncRollback));
+    }
+    if (threadsSet) {
+      coordinatorEnvironmentBean.setMaxTwoPhaseCommitThreads(threads);
+    }
+  }
+
+  /**
+   * Returns the {@link TransactionalMetadata} resolved at startup for
+   * the supplied {@link Method}, or {@code null} if it was not
+   * resolved at startup.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param method the {@link Method} in question; may be {@code
+   * null} in which case {@code null} will be returned
+   *
+   * @return the {@link TransactionalMetadata} for {@code method}, or
+   * {@code null}
+   */
+  final TransactionalMetadata getTransactionalMetadata(final Method method) {
+    return method == null ? null : this.transactionalMetadata.get(method);
+  }
+
+  /**
+   * Returns the {@link TransactionManager} captured by the {@link
+   * #afterDeploymentValidation(AfterDeploymentValidation,
+   * BeanManager)} method, looking it up and caching it if for any
+   * reason it has not yet been captured.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a {@link TransactionManager}; never {@code null}
+   */
+  private final TransactionManager getTransactionManager() {
+    TransactionManager returnValue = this.transactionManager;
+    if (returnValue == null) {
+      returnValue = CDI.current().select(TransactionManager.class).get();
+      this.transactionManager = returnValue;
     }
+    return returnValue;
   }
 
 }
@@ -16,11 +16,25 @@
  */
 package org.microbean.narayana.jta.cdi;
 
+import java.lang.reflect.Proxy;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.context.Destroyed;
 import javax.enterprise.context.Initialized;
 
 import javax.enterprise.event.Event;
+import javax.enterprise.event.NotificationOptions;
+
+import javax.enterprise.inject.Instance;
+
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.ObserverMethod;
 
 import javax.inject.Inject;
 
@@ -32,9 +46,14 @@ import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager; // for javadoc only
 import javax.transaction.TransactionScoped;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import com.arjuna.ats.arjuna.common.CoordinatorEnvironmentBean;
 
 import com.arjuna.ats.jta.common.JTAEnvironmentBean;
 
+import com.arjuna.common.internal.util.propertyservice.BeanPopulator;
+
 /**
  * A {@link DelegatingTransactionManager} in {@linkplain
  * ApplicationScoped application scope} that uses the return value
@@ -42,6 +61,28 @@ import com.arjuna.ats.jta.common.JTAEnvironmentBean;
  * JTAEnvironmentBean#getTransactionManager()} method as its backing
  * implementation.
  *
+ * <p>If a {@link TransactionTimeoutService} bean is available,
+ * transactions begun through this {@link NarayanaTransactionManager}
+ * are timed out by it instead of by Narayana's transaction reaper.
+ * Narayana's default timeout is left as it is, so transactions begun
+ * in any other way, such as through Narayana's own {@link
+ * javax.transaction.UserTransaction} or {@link
+ * javax.transaction.Transactional} interceptors, are still timed out
+ * by the reaper.  Either way, a JDK Flight Recorder event is
+ * emitted for every transaction that times out, if Flight Recorder
+ * is present.</p>
+ *
+ * <p>Each time a transaction is committed or rolled back, a {@link
+ * TransactionCompletion} event is fired if there are any observers
+ * for it.</p>
+ *
+ * <p>If the {@code org.microbean.narayana.jta.cdi.lazyBegin.enabled}
+ * system property is {@code true}, Narayana's transaction is created
+ * only when it is first needed, as described by {@link
+ * DelegatingTransactionManager}, and the {@linkplain TransactionScoped
+ * transaction scope} events are fired only for transactions that
+ * were created.</p>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
@@ -54,6 +95,34 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
 
   private final Event<Object> transactionScopeDestroyedBroadcaster;
 
+  private final boolean transactionScopeInitializedObserved;
+
+  private final boolean transactionScopeDestroyedObserved;
+
+  private final Event<TransactionCompletion> transactionCompletionBroadcaster;
+
+  private final boolean transactionCompletionObserved;
+
+  private final boolean transactionCompletionObservedAsynchronously;
+
+  private final SlowTransactionRecorder slowTransactionRecorder;
+
+  private final TransactionLocal<SlowTransactionRecorder.PhaseTimer> phaseTimers;
+
+  private final TransactionLocal<Long> beginTimes;
+
+  private final TransactionSynchronizationRegistry transactionSynchronizationRegistry;
+
+  private final int completionThreads;
+
+  private volatile ExecutorService completionExecutor;
+
+  private final int completionEventThreads;
+
+  private volatile ExecutorService completionEventExecutor;
+
+  private boolean closed; // guarded by this
+
   /**
    * Creates a new, <strong>nonfunctional</strong> {@link
    * NarayanaTransactionManager}.
@@ -63,11 +132,13 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    *
    * @deprecated This constructor exists only to conform with section
    * 3.15 of the CDI specification; please use the {@link
-   * #NarayanaTransactionManager(JTAEnvironmentBean, Event, Event)}
-   * constructor instead.
+   * #NarayanaTransactionManager(JTAEnvironmentBean,
+   * TransactionMetrics, SlowTransactionRecorder, Instance,
+   * BeanManager, Event, Event, Event)} constructor instead.
    *
-   * @see #NarayanaTransactionManager(JTAEnvironmentBean, Event,
-   * Event)
+   * @see #NarayanaTransactionManager(JTAEnvironmentBean,
+   * TransactionMetrics, SlowTransactionRecorder, Instance,
+   * BeanManager, Event, Event, Event)
    *
    * @see <a
    * href="http://docs.jboss.org/cdi/spec/1.2/cdi-spec.html#unproxyable">Section
@@ -75,7 +146,7 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    */
   @Deprecated
   NarayanaTransactionManager() {
-    this(null, null, null);
+    this(null, null, null, (TransactionTimeoutService)null, null, null, null, null);
   }
   
   /**
@@ -86,6 +157,24 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    * be {@code null} but then a {@link SystemException} will be thrown
    * by every method in this class when invoked
    *
+   * @param transactionMetrics the {@link TransactionMetrics} in which
+   * transactions will be recorded; may be {@code null}
+   *
+   * @param slowTransactionRecorder the {@link
+   * SlowTransactionRecorder} that will time the phases of each
+   * transaction if it is {@linkplain
+   * SlowTransactionRecorder#isEnabled() enabled}; may be {@code null}
+   *
+   * @param timeoutServices an {@link Instance} that, if it is
+   * {@linkplain Instance#isResolvable() resolvable}, supplies the
+   * {@link TransactionTimeoutService} that will time out transactions
+   * in place of Narayana's transaction reaper; may be {@code null}
+   *
+   * @param beanManager the {@link BeanManager} used, once, to
+   * determine whether there are any observers for the events that
+   * this {@link NarayanaTransactionManager} fires; may be {@code
+   * null} in which case the events will always be fired
+   *
    * @param transactionScopeInitializedBroadcaster an {@link Event}
    * capable of {@linkplain Event#fire(Object) firing} {@link
    * Transaction} instances; may be {@code null}
@@ -94,6 +183,10 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    * capable of {@linkplain Event#fire(Object) firing} {@link Object}
    * instances; may be {@code null}
    *
+   * @param transactionCompletionBroadcaster an {@link Event} capable
+   * of {@linkplain Event#fire(Object) firing} {@link
+   * TransactionCompletion} instances; may be {@code null}
+   *
    * @see #begin()
    *
    * @see #commit()
@@ -102,11 +195,105 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    */
   @Inject
   private NarayanaTransactionManager(final JTAEnvironmentBean jtaEnvironmentBean,
+                                     final TransactionMetrics transactionMetrics,
+                                     final SlowTransactionRecorder slowTransactionRecorder,
+                                     final Instance<TransactionTimeoutService> timeoutServices,
+                                     final BeanManager beanManager,
                                      @Initialized(TransactionScoped.class) final Event<Transaction> transactionScopeInitializedBroadcaster,
-                                     @Destroyed(TransactionScoped.class) final Event<Object> transactionScopeDestroyedBroadcaster) {
-    super(jtaEnvironmentBean == null ? null : jtaEnvironmentBean.getTransactionManager());
+                                     @Destroyed(TransactionScoped.class) final Event<Object> transactionScopeDestroyedBroadcaster,
+                                     final Event<TransactionCompletion> transactionCompletionBroadcaster) {
+    this(jtaEnvironmentBean,
+         transactionMetrics,
+         slowTransactionRecorder,
+         timeoutServices == null || !timeoutServices.isResolvable() ? null : timeoutServices.get(),
+         beanManager,
+         transactionScopeInitializedBroadcaster,
+         transactionScopeDestroyedBroadcaster,
+         transactionCompletionBroadcaster);
+  }
+
+  private NarayanaTransactionManager(final JTAEnvironmentBean jtaEnvironmentBean,
+                                     final TransactionMetrics transactionMetrics,
+                                     final SlowTransactionRecorder slowTransactionRecorder,
+                                     final TransactionTimeoutService timeoutService,
+                                     final BeanManager beanManager,
+                                     final Event<Transaction> transactionScopeInitializedBroadcaster,
+                                     final Event<Object> transactionScopeDestroyedBroadcaster,
+                                     final Event<TransactionCompletion> transactionCompletionBroadcaster) {
+    // Narayana's configuration has been read by the time a
+    // JTAEnvironmentBean exists, so reading its default timeout costs
+    // nothing extra.
+    super(jtaEnvironmentBean == null ? null : jtaEnvironmentBean.getTransactionManager(),
+          transactionMetrics,
+          timeoutService,
+          jtaEnvironmentBean == null ? 0 : BeanPopulator.getDefaultInstance(CoordinatorEnvironmentBean.class).getDefaultTimeout(),
+          jtaEnvironmentBean != null && Settings.getBoolean("lazyBegin.enabled", false));
+    if (jtaEnvironmentBean != null && transactionMetrics != null) {
+      transactionMetrics.defaultTimeoutSet(BeanPopulator.getDefaultInstance(CoordinatorEnvironmentBean.class).getDefaultTimeout());
+    }
+    final int completionThreads = Settings.getInt("asyncCompletion.threads", 0);
+    this.completionThreads = completionThreads > 0 ? completionThreads : Runtime.getRuntime().availableProcessors();
+    this.completionEventThreads = Settings.getInt("completionEvents.threads", 0);
     this.transactionScopeInitializedBroadcaster = transactionScopeInitializedBroadcaster;
     this.transactionScopeDestroyedBroadcaster = transactionScopeDestroyedBroadcaster;
+    this.transactionCompletionBroadcaster = transactionCompletionBroadcaster;
+    this.slowTransactionRecorder =
+      slowTransactionRecorder == null || !slowTransactionRecorder.isEnabled() ? null : slowTransactionRecorder;
+    if (beanManager == null) {
+      this.transactionScopeInitializedObserved = transactionScopeInitializedBroadcaster != null;
+      this.transactionScopeDestroyedObserved = transactionScopeDestroyedBroadcaster != null;
+      this.transactionCompletionObserved = transactionCompletionBroadcaster != null;
+      this.transactionCompletionObservedAsynchronously = false;
+    } else {
+      // The set of observer methods is fixed once the container has
+      // started, so this need only be worked out once.  The sample
+      // payloads have the same types as the payloads that are
+      // actually fired.
+      final Transaction samplePayload =
+        (Transaction)Proxy.newProxyInstance(Transaction.class.getClassLoader(),
+                                            new Class<?>[] { Transaction.class },
+                                            (proxy, method, arguments) -> {
+                                              throw new UnsupportedOperationException();
+                                            });
+      this.transactionScopeInitializedObserved =
+        transactionScopeInitializedBroadcaster != null &&
+        !beanManager.resolveObserverMethods(samplePayload, Initialized.Literal.of(TransactionScoped.class)).isEmpty();
+      this.transactionScopeDestroyedObserved =
+        transactionScopeDestroyedBroadcaster != null &&
+        !beanManager.resolveObserverMethods("", Destroyed.Literal.of(TransactionScoped.class)).isEmpty();
+      boolean transactionCompletionObserved = false;
+      boolean transactionCompletionObservedAsynchronously = false;
+      if (transactionCompletionBroadcaster != null) {
+        for (final ObserverMethod<?> observerMethod :
+               beanManager.resolveObserverMethods(new TransactionCompletion(null, TransactionOutcome.UNKNOWN, -1L))) {
+          if (observerMethod.isAsync()) {
+            transactionCompletionObservedAsynchronously = true;
+          } else {
+            transactionCompletionObserved = true;
+          }
+        }
+      }
+      this.transactionCompletionObserved = transactionCompletionObserved;
+      this.transactionCompletionObservedAsynchronously = transactionCompletionObservedAsynchronously;
+    }
+    // The transaction key is needed only to time the phases of slow
+    // transactions and to describe completed ones.
+    this.transactionSynchronizationRegistry =
+      jtaEnvironmentBean == null ||
+      (this.slowTransactionRecorder == null &&
+       !this.transactionCompletionObserved &&
+       !this.transactionCompletionObservedAsynchronously) ? null : jtaEnvironmentBean.getTransactionSynchronizationRegistry();
+    // Each transaction's phase timer stays with the transaction, so
+    // that whichever thread completes it finds it.
+    this.phaseTimers =
+      this.slowTransactionRecorder == null || this.transactionSynchronizationRegistry == null
+      ? null : new TransactionLocal<>(this.transactionSynchronizationRegistry);
+    // So does each transaction's begin time, which is needed only to
+    // describe completed transactions.
+    this.beginTimes =
+      this.transactionSynchronizationRegistry == null ||
+      (!this.transactionCompletionObserved && !this.transactionCompletionObservedAsynchronously)
+      ? null : new TransactionLocal<>(this.transactionSynchronizationRegistry);
   }
 
   /**
@@ -115,6 +302,12 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    * Object} representing the {@linkplain Initialized initialization}
    * of the {@linkplain TransactionScoped transaction scope}.
    *
+   * <p>If there were no observers for this event when this {@link
+   * NarayanaTransactionManager} was created, no event is fired and
+   * the current {@link Transaction} is not retrieved.  If the
+   * creation of the transaction is deferred, the event is fired when
+   * it is created instead.</p>
+   *
    * @exception NotSupportedException if the thread is already
    * associated with a transaction and this {@link TransactionManager}
    * implementation does not support nested transactions
@@ -132,8 +325,54 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    */
   @Override
   public void begin() throws NotSupportedException, SystemException {
-    super.begin();
-    if (this.transactionScopeInitializedBroadcaster != null) {
+    if (this.phaseTimers == null && this.beginTimes == null) {
+      super.begin();
+    } else {
+      final long beginStartNanos = System.nanoTime();
+      super.begin();
+      if (!this.isTransactionDeferred()) {
+        if (this.phaseTimers != null) {
+          this.startPhaseTimer(beginStartNanos);
+        }
+        if (this.beginTimes != null) {
+          this.recordBeginTime(beginStartNanos);
+        }
+      }
+    }
+    if (this.transactionScopeInitializedObserved && !this.isTransactionDeferred()) {
+      this.transactionScopeInitializedBroadcaster.fire(this.getTransaction());
+    }
+  }
+
+  /**
+   * Overrides {@link
+   * DelegatingTransactionManager#deferredTransactionBegun()} to
+   * {@linkplain Event#fire(Object) fire} the {@link Transaction} that
+   * has just been created to represent the {@linkplain Initialized
+   * initialization} of the {@linkplain TransactionScoped transaction
+   * scope}.
+   *
+   * <p>If a {@link SlowTransactionRecorder} is {@linkplain
+   * SlowTransactionRecorder#isEnabled() enabled}, the timing of the
+   * transaction's phases starts here.</p>
+   *
+   * @exception SystemException if this {@link TransactionManager}
+   * encounters an unexpected error condition
+   *
+   * @see #begin()
+   */
+  @Override
+  protected void deferredTransactionBegun() throws SystemException {
+    if (this.phaseTimers != null) {
+      // Timing starts when the transaction is actually created.
+      this.startPhaseTimer(System.nanoTime());
+    }
+    if (this.beginTimes != null) {
+      // The transaction's duration, however, includes the time for
+      // which its creation was deferred.
+      this.recordBeginTime(this.getDeferredTransactionBeginNanos());
+    }
+    if (this.transactionScopeInitializedObserved) {
       this.transactionScopeInitializedBroadcaster.fire(this.getTransaction());
     }
   }
@@ -144,6 +383,18 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    * Object} representing the {@linkplain Destroyed destruction}
    * of the {@linkplain TransactionScoped transaction scope}.
    *
+   * <p>If there were no observers for this event when this {@link
+   * NarayanaTransactionManager} was created, or if the creation of
+   * the transaction was deferred and it was never created, no event
+   * is fired.</p>
+   *
+   * <p>If a {@link SlowTransactionRecorder} is {@linkplain
+   * SlowTransactionRecorder#isEnabled() enabled}, the phases of the
+   * transaction are timed and recorded.</p>
+   *
+   * <p>A {@link TransactionCompletion} event is then fired if there
+   * are any observers for it.</p>
+   *
    * @exception RollbackException if the transaction has been rolled
    * back rather than committed
    *
@@ -173,12 +424,35 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    */
   @Override
   public void commit() throws HeuristicMixedException, HeuristicRollbackException, RollbackException, SystemException {
+    final SlowTransactionRecorder slowTransactionRecorder = this.slowTransactionRecorder;
+    final SlowTransactionRecorder.PhaseTimer phaseTimer =
+      slowTransactionRecorder == null ? null : slowTransactionRecorder.completing(this.phaseTimer(),
+                                                                                  this.transactionSynchronizationRegistry);
+    final TransactionCompletionTimer completionTimer = this.transactionCompletionTimer();
+    final boolean deferred = this.isTransactionDeferred();
+    TransactionOutcome outcome = TransactionOutcome.UNKNOWN;
     try {
       super.commit();
+      outcome = TransactionOutcome.COMMITTED;
+    } catch (final RollbackException rollbackException) {
+      outcome = TransactionOutcome.ROLLED_BACK;
+      throw rollbackException;
+    } catch (final HeuristicMixedException heuristicMixedException) {
+      outcome = TransactionOutcome.HEURISTIC_MIXED;
+      throw heuristicMixedException;
+    } catch (final HeuristicRollbackException heuristicRollbackException) {
+      outcome = TransactionOutcome.HEURISTIC_ROLLBACK;
+      throw heuristicRollbackException;
     } finally {
-      if (this.transactionScopeDestroyedBroadcaster != null) {
+      if (phaseTimer != null) {
+        slowTransactionRecorder.completed(phaseTimer, outcome);
+      }
+      if (this.transactionScopeDestroyedObserved && !deferred) {
         this.transactionScopeDestroyedBroadcaster.fire(this.toString());
       }
+      if (completionTimer != null) {
+        this.fireTransactionCompletion(completionTimer, outcome);
+      }
     }
   }
 
@@ -188,6 +462,14 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    * Object} representing the {@linkplain Destroyed destruction}
    * of the {@linkplain TransactionScoped transaction scope}.
    *
+   * <p>If there were no observers for this event when this {@link
+   * NarayanaTransactionManager} was created, or if the creation of
+   * the transaction was deferred and it was never created, no event
+   * is fired.</p>
+   *
+   * <p>A {@link TransactionCompletion} event is then fired if there
+   * are any observers for it.</p>
+   *
    * @exception SecurityException if the thread is not allowed to roll
    * back the transaction
    *
@@ -207,13 +489,306 @@ class NarayanaTransactionManager extends DelegatingTransactionManager {
    */
   @Override
   public void rollback() throws SystemException {
+    final SlowTransactionRecorder slowTransactionRecorder = this.slowTransactionRecorder;
+    final SlowTransactionRecorder.PhaseTimer phaseTimer =
+      slowTransactionRecorder == null ? null : slowTransactionRecorder.completing(this.phaseTimer(),
+                                                                                  this.transactionSynchronizationRegistry);
+    final TransactionCompletionTimer completionTimer = this.transactionCompletionTimer();
+    final boolean deferred = this.isTransactionDeferred();
+    TransactionOutcome outcome = TransactionOutcome.UNKNOWN;
     try {
       super.rollback();
+      outcome = TransactionOutcome.ROLLED_BACK;
     } finally {
-      if (this.transactionScopeDestroyedBroadcaster != null) {
+      if (phaseTimer != null) {
+        slowTransactionRecorder.completed(phaseTimer, outcome);
+      }
+      if (this.transactionScopeDestroyedObserved && !deferred) {
         this.transactionScopeDestroyedBroadcaster.fire(this.toString());
       }
+      if (completionTimer != null) {
+        this.fireTransactionCompletion(completionTimer, outcome);
+      }
+    }
+  }
+
+  /**
+   * Keeps a new {@link SlowTransactionRecorder.PhaseTimer} with the
+   * transaction that has just been begun on the current thread.
+   *
+   * @param beginStartNanos the value of {@link System#nanoTime()}
+   * immediately before the transaction was begun
+   */
+  private final void startPhaseTimer(final long beginStartNanos) {
+    try {
+      this.phaseTimers.set(this.slowTransactionRecorder.begun(beginStartNanos));
+    } catch (final IllegalStateException closedOrInactive) {
+      // This NarayanaTransactionManager is being destroyed, or the
+      // transaction can no longer accept values; the transaction
+      // simply goes unrecorded.
     }
   }
 
+  /**
+   * Keeps the supplied begin time with the transaction that has just
+   * been begun on the current thread.
+   *
+   * @param beginNanos the value of {@link System#nanoTime()}
+   * immediately before the transaction was begun
+   */
+  private final void recordBeginTime(final long beginNanos) {
+    try {
+      this.beginTimes.set(Long.valueOf(beginNanos));
+    } catch (final IllegalStateException closedOrInactive) {
+      // This NarayanaTransactionManager is being destroyed, or the
+      // transaction can no longer accept values; its duration
+      // simply goes unreported.
+    }
+  }
+
+  /**
+   * Returns the time in nanoseconds that has elapsed since the
+   * transaction associated with the current thread was begun, or
+   * {@code -1} if it is not known, as is the case if there are no
+   * observers of {@link TransactionCompletion} events or if the
+   * transaction was not begun by this {@link
+   * NarayanaTransactionManager}.
+   *
+   * @return the time elapsed since the current transaction was
+   * begun, or {@code -1}
+   */
+  private final long elapsedNanos() {
+    if (this.isTransactionDeferred()) {
+      return System.nanoTime() - this.getDeferredTransactionBeginNanos();
+    }
+    final TransactionLocal<Long> beginTimes = this.beginTimes;
+    if (beginTimes == null || this.transactionSynchronizationRegistry.getTransactionKey() == null) {
+      return -1L;
+    }
+    final Long beginNanos;
+    try {
+      beginNanos = beginTimes.getIfPresent();
+    } catch (final IllegalStateException closed) {
+      return -1L;
+    }
+    return beginNanos == null ? -1L : System.nanoTime() - beginNanos.longValue();
+  }
+
+  /**
+   * Returns the {@link SlowTransactionRecorder.PhaseTimer} kept with
+   * the transaction associated with the current thread, or {@code
+   * null} if there is none, as is the case if no {@link
+   * SlowTransactionRecorder} is enabled, if the transaction was not
+   * begun by this {@link NarayanaTransactionManager}, or if its
+   * creation was deferred and never happened.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the current transaction's {@link
+   * SlowTransactionRecorder.PhaseTimer}, or {@code null}
+   */
+  private final SlowTransactionRecorder.PhaseTimer phaseTimer() {
+    final TransactionLocal<SlowTransactionRecorder.PhaseTimer> phaseTimers = this.phaseTimers;
+    if (phaseTimers == null || this.transactionSynchronizationRegistry.getTransactionKey() == null) {
+      return null;
+    }
+    try {
+      return phaseTimers.getIfPresent();
+    } catch (final IllegalStateException closed) {
+      // This NarayanaTransactionManager is being destroyed; the
+      // transaction simply goes unrecorded.
+      return null;
+    }
+  }
+
+  /**
+   * Returns a new {@link TransactionCompletionTimer} for the
+   * transaction associated with the current thread if there are any
+   * observers of {@link TransactionCompletion} events, or {@code
+   * null} otherwise.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return a new {@link TransactionCompletionTimer}, or {@code null}
+   */
+  private final TransactionCompletionTimer transactionCompletionTimer() {
+    if (!this.transactionCompletionObserved && !this.transactionCompletionObservedAsynchronously) {
+      return null;
+    }
+    return new TransactionCompletionTimer(this.transactionSynchronizationRegistry == null ? null :
+                                          this.transactionSynchronizationRegistry.getTransactionKey(),
+                                          this.elapsedNanos());
+  }
+
+  /**
+   * Fires a {@link TransactionCompletion} event to synchronous
+   * observers on the current thread and to asynchronous observers
+   * using the {@link Executor} described by the {@link
+   * #getCompletionEventExecutor()} method.
+   *
+   * @param completionTimer the {@link TransactionCompletionTimer}
+   * created when completion began; must not be {@code null}
+   *
+   * @param outcome the {@link TransactionOutcome}; must not be {@code
+   * null}
+   */
+  private final void fireTransactionCompletion(final TransactionCompletionTimer completionTimer,
+                                               final TransactionOutcome outcome) {
+    final TransactionCompletion transactionCompletion = completionTimer.completed(outcome);
+    if (this.transactionCompletionObserved) {
+      this.transactionCompletionBroadcaster.fire(transactionCompletion);
+    }
+    if (this.transactionCompletionObservedAsynchronously) {
+      final Executor completionEventExecutor = this.getCompletionEventExecutor();
+      if (completionEventExecutor == null) {
+        this.transactionCompletionBroadcaster.fireAsync(transactionCompletion);
+      } else {
+        this.transactionCompletionBroadcaster.fireAsync(transactionCompletion,
+                                                        NotificationOptions.ofExecutor(completionEventExecutor));
+      }
+    }
+  }
+
+  /**
+   * Returns the {@link Executor} used to notify asynchronous
+   * observers of {@link TransactionCompletion} events, or {@code
+   * null} if the container's default executor should be used.
+   *
+   * <p>The {@link Executor} is a fixed-size pool of daemon threads
+   * that is created the first time this method is invoked, if the
+   * {@code org.microbean.narayana.jta.cdi.completionEvents.threads}
+   * system property is positive.</p>
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return an {@link Executor}, or {@code null}
+   */
+  private final Executor getCompletionEventExecutor() {
+    if (this.completionEventThreads <= 0) {
+      return null;
+    }
+    ExecutorService completionEventExecutor = this.completionEventExecutor;
+    if (completionEventExecutor == null) {
+      synchronized (this) {
+        if (this.closed) {
+          return null;
+        }
+        completionEventExecutor = this.completionEventExecutor;
+        if (completionEventExecutor == null) {
+          completionEventExecutor =
+            Executors.newFixedThreadPool(this.completionEventThreads, new NamedThreadFactory("completion-events"));
+          this.completionEventExecutor = completionEventExecutor;
+        }
+      }
+    }
+    return completionEventExecutor.isShutdown() ? null : completionEventExecutor;
+  }
+
+  /**
+   * Returns the {@link Executor} used by the {@link #commitAsync()}
+   * and {@link #rollbackAsync()} methods.
+   *
+   * <p>The {@link Executor} is a fixed-size pool of daemon threads
+   * that is created the first time this method is invoked.  Its size
+   * is governed by the {@code
+   * org.microbean.narayana.jta.cdi.asyncCompletion.threads} system
+   * property and defaults to the number of available processors.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Executor}
+   *
+   * @exception IllegalStateException if this {@link
+   * NarayanaTransactionManager} has been {@linkplain #close() closed}
+   */
+  @Override
+  protected Executor getCompletionExecutor() {
+    ExecutorService completionExecutor = this.completionExecutor;
+    if (completionExecutor == null) {
+      synchronized (this) {
+        if (this.closed) {
+          throw new IllegalStateException("closed");
+        }
+        completionExecutor = this.completionExecutor;
+        if (completionExecutor == null) {
+          completionExecutor =
+            Executors.newFixedThreadPool(this.completionThreads, new NamedThreadFactory("async-completion"));
+          this.completionExecutor = completionExecutor;
+        }
+      }
+    }
+    if (completionExecutor.isShutdown()) {
+      throw new IllegalStateException("closed");
+    }
+    return completionExecutor;
+  }
+
+  /**
+   * Shuts down the {@link Executor}s used by the {@link
+   * #commitAsync()} and {@link #rollbackAsync()} methods and to
+   * notify asynchronous observers of {@link TransactionCompletion}
+   * events, if they were ever created.
+   *
+   * <p>Transactions whose completion has already been submitted are
+   * still completed, and observers of events that have already been
+   * fired are still notified.</p>
+   *
+   * <p>The {@link TransactionLocal} in which the {@linkplain
+   * SlowTransactionRecorder slow transaction recorder}'s timing state
+   * is kept is closed as well.</p>
+   */
+  @PreDestroy
+  private final synchronized void close() {
+    this.closed = true;
+    if (this.phaseTimers != null) {
+      this.phaseTimers.close();
+    }
+    if (this.beginTimes != null) {
+      this.beginTimes.close();
+    }
+    final ExecutorService completionExecutor = this.completionExecutor;
+    if (completionExecutor != null) {
+      completionExecutor.shutdown();
+    }
+    final ExecutorService completionEventExecutor = this.completionEventExecutor;
+    if (completionEventExecutor != null) {
+      completionEventExecutor.shutdown();
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * What is known about a transaction as its completion begins,
+   * from which a {@link TransactionCompletion} is made once it has
+   * completed.
+   */
+  private static final class TransactionCompletionTimer {
+
+    private final Object transactionKey;
+
+    private final long elapsedNanosBeforeCompletion;
+
+    private final long completionStartNanos;
+
+    private TransactionCompletionTimer(final Object transactionKey, final long elapsedNanosBeforeCompletion) {
+      super();
+      this.transactionKey = transactionKey;
+      this.elapsedNanosBeforeCompletion = elapsedNanosBeforeCompletion;
+      this.completionStartNanos = System.nanoTime();
+    }
+
+    private final TransactionCompletion completed(final TransactionOutcome outcome) {
+      final long elapsedNanos =
+        this.elapsedNanosBeforeCompletion < 0L ? -1L :
+        this.elapsedNanosBeforeCompletion + System.nanoTime() - this.completionStartNanos;
+      return new TransactionCompletion(this.transactionKey, outcome, elapsedNanos);
+    }
+
+  }
+
 }
@@ -18,11 +18,16 @@ package org.microbean.narayana.jta.cdi;
 
 import java.util.Objects;
 
+import javax.annotation.PreDestroy;
+
 import javax.enterprise.context.ApplicationScoped;
 
+import javax.enterprise.inject.Instance;
+
 import javax.inject.Inject;
 
 import javax.transaction.Synchronization;
+import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
 
 import com.arjuna.ats.jta.common.JTAEnvironmentBean;
@@ -34,6 +39,16 @@ import com.arjuna.ats.jta.common.JTAEnvironmentBean;
  * JTAEnvironmentBean#getTransactionSynchronizationRegistry()} method
  * as its backing implementation.
  *
+ * <p>Interposed synchronizations are batched into one composite
+ * {@link Synchronization} per transaction if the {@code
+ * org.microbean.narayana.jta.cdi.synchronizationBatching.enabled}
+ * system property is {@code true}.</p>
+ *
+ * <p>If the {@code org.microbean.narayana.jta.cdi.lazyBegin.enabled}
+ * system property is {@code true}, the {@link TransactionManager}
+ * bean is consulted so that a transaction whose creation it has
+ * deferred is created before Narayana is asked about it.</p>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
@@ -51,10 +66,11 @@ class NarayanaTransactionSynchronizationRegistry extends DelegatingTransactionSy
    *
    * @deprecated This constructor exists only to conform with section
    * 3.15 of the CDI specification; please use the {@link
-   * #NarayanaTransactionSynchronizationRegistry(JTAEnvironmentBean)}
-   * constructor instead.
+   * #NarayanaTransactionSynchronizationRegistry(JTAEnvironmentBean,
+   * Instance)} constructor instead.
    *
-   * @see #NarayanaTransactionSynchronizationRegistry(JTAEnvironmentBean)
+   * @see #NarayanaTransactionSynchronizationRegistry(JTAEnvironmentBean,
+   * Instance)
    *
    * @see <a
    * href="http://docs.jboss.org/cdi/spec/1.2/cdi-spec.html#unproxyable">Section
@@ -62,17 +78,36 @@ class NarayanaTransactionSynchronizationRegistry extends DelegatingTransactionSy
    */
   @Deprecated
   NarayanaTransactionSynchronizationRegistry() {
-    this(null);
+    this(null, null);
   }
   
   /**
    * Creates a new {@link NarayanaTransactionSynchronizationRegistry}.
    *
+   * @param jtaEnvironmentBean a {@link JTAEnvironmentBean} used to
+   * acquire this {@link NarayanaTransactionSynchronizationRegistry}'s
+   * delegate; may be {@code null} but then an {@link
+   * IllegalStateException} will be thrown by every method in this
+   * class when invoked
+   *
+   * @param transactionManagers an {@link Instance} supplying the
+   * {@link TransactionManager} bean, which is used only if
+   * transactions are begun lazily; may be {@code null}
+   *
    * @see JTAEnvironmentBean#getTransactionSynchronizationRegistry()
    */
   @Inject
-  private NarayanaTransactionSynchronizationRegistry(final JTAEnvironmentBean jtaEnvironmentBean) {
-    super(jtaEnvironmentBean == null ? null : jtaEnvironmentBean.getTransactionSynchronizationRegistry());
+  private NarayanaTransactionSynchronizationRegistry(final JTAEnvironmentBean jtaEnvironmentBean,
+                                                     final Instance<TransactionManager> transactionManagers) {
+    super(jtaEnvironmentBean == null ? null : jtaEnvironmentBean.getTransactionSynchronizationRegistry(),
+          Settings.getBoolean("synchronizationBatching.enabled", false),
+          jtaEnvironmentBean == null || transactionManagers == null || !Settings.getBoolean("lazyBegin.enabled", false)
+          ? null : transactionManagers.get());
+  }
+
+  @PreDestroy
+  private void preDestroy() {
+    this.close();
   }
   
 }
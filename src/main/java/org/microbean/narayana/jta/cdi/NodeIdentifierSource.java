@@ -0,0 +1,192 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.List;
+
+/**
+ * Where the {@link NarayanaExtension} finds the raw material for
+ * Narayana's node identifier, selected with the {@code
+ * org.microbean.narayana.jta.cdi.nodeIdentifier.source} system
+ * property.
+ *
+ * <p>Each source must yield a value that is stable across restarts
+ * of the same node and distinct from the values yielded on every
+ * other node that shares resource managers with it.  A node recovers
+ * only the transaction branches created under its current identifier
+ * and under any XA recovery nodes configured by Narayana's own
+ * properties, so a node whose identifier changes when it restarts
+ * never recovers the transaction branches that it left in doubt
+ * unless its former identifier is so configured.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ */
+enum NodeIdentifierSource {
+
+  /**
+   * The host name, taken from the {@code HOSTNAME} environment
+   * variable if it is set and from {@link
+   * InetAddress#getLocalHost()} otherwise.
+   *
+   * <p>This is suitable only where host names survive restarts,
+   * which is not the case for the pods of a Kubernetes {@code
+   * Deployment} or {@code ReplicaSet}: each replacement pod gets a
+   * new name, and the transaction branches left in doubt by the pod
+   * it replaces are then never recovered.  This source is therefore
+   * refused unless the {@code
+   * org.microbean.narayana.jta.cdi.nodeIdentifier.stableHostname}
+   * system property is {@code true}.  For the pods of a {@code
+   * StatefulSet}, whose names are stable, use {@link #ORDINAL}
+   * instead.</p>
+   */
+  HOSTNAME {
+    @Override
+    final String read(final String location) throws IOException {
+      final String hostname = System.getenv("HOSTNAME");
+      if (hostname != null && !hostname.trim().isEmpty()) {
+        return hostname.trim();
+      }
+      return InetAddress.getLocalHost().getHostName();
+    }
+  },
+
+  /**
+   * The name of a Kubernetes {@code StatefulSet} followed by the
+   * ordinal of a pod within it, both taken from the pod's
+   * {@linkplain #HOSTNAME host name}, which has the form {@code
+   * <set>-<ordinal>} and survives restarts.
+   *
+   * <p>Reading fails if the host name does not have that form.  The
+   * identifiers yielded are distinct among the pods of all {@code
+   * StatefulSet}s with distinct names.</p>
+   */
+  ORDINAL {
+    @Override
+    final String read(final String location) throws IOException {
+      return statefulSetPodName(HOSTNAME.read(location));
+    }
+  },
+
+  /**
+   * The value of the environment variable named by the {@code
+   * org.microbean.narayana.jta.cdi.nodeIdentifier.location} system
+   * property.
+   */
+  ENVIRONMENT {
+    @Override
+    final String read(final String location) throws IOException {
+      if (location == null) {
+        throw new IllegalArgumentException(Settings.PREFIX + "nodeIdentifier.location is required");
+      }
+      final String value = System.getenv(location);
+      if (value == null || value.trim().isEmpty()) {
+        throw new IOException("Environment variable " + location + " is not set");
+      }
+      return value.trim();
+    }
+  },
+
+  /**
+   * The first non-blank line of the file named by the {@code
+   * org.microbean.narayana.jta.cdi.nodeIdentifier.location} system
+   * property, such as one projected into a container by the
+   * Kubernetes downward API.
+   */
+  FILE {
+    @Override
+    final String read(final String location) throws IOException {
+      if (location == null) {
+        throw new IllegalArgumentException(Settings.PREFIX + "nodeIdentifier.location is required");
+      }
+      final List<String> lines = Files.readAllLines(Paths.get(location), StandardCharsets.UTF_8);
+      for (final String line : lines) {
+        if (!line.trim().isEmpty()) {
+          return line.trim();
+        }
+      }
+      throw new IOException("No node identifier in " + location);
+    }
+  };
+
+  /**
+   * Reads and returns the raw value from which a node identifier is
+   * derived.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param location the environment variable or file to read, for
+   * those sources that need one; may be {@code null}
+   *
+   * @return a non-{@code null}, non-blank value
+   *
+   * @exception IOException if the value could not be read
+   *
+   * @exception IllegalArgumentException if this source requires a
+   * {@code location} and it is {@code null}
+   *
+   * @see NarayanaExtension
+   */
+  abstract String read(final String location) throws IOException;
+
+  /**
+   * Returns the supplied host name if it is that of a pod in a
+   * Kubernetes {@code StatefulSet}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param hostname the host name; must not be {@code null}
+   *
+   * @return the supplied host name, which is the name of the {@code
+   * StatefulSet}, a hyphen and the ordinal of the pod; never {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code hostname} is {@code
+   * null}
+   *
+   * @exception IOException if {@code hostname} does not consist of a
+   * name, a hyphen and an ordinal
+   */
+  static final String statefulSetPodName(final String hostname) throws IOException {
+    // A StatefulSet pod's host name is its name, which is never
+    // qualified by a domain.
+    final int hyphen = hostname.lastIndexOf('-');
+    if (hyphen <= 0 || hyphen == hostname.length() - 1) {
+      throw new IOException("Host name is not that of a StatefulSet pod: " + hostname);
+    }
+    final String ordinal = hostname.substring(hyphen + 1);
+    for (int i = 0; i < ordinal.length(); i++) {
+      final char c = ordinal.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new IOException("Host name does not end with an ordinal: " + hostname);
+      }
+    }
+    return hostname;
+  }
+
+}
@@ -0,0 +1,151 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+
+/**
+ * A named configuration of Narayana's object store, selected with
+ * the {@code org.microbean.narayana.jta.cdi.objectStore.profile}
+ * system property.
+ *
+ * <p>The durable profiles force the transaction log to stable
+ * storage before a two-phase commit completes; the {@link #VOLATILE}
+ * profile does not, and is suitable only for workloads that are
+ * one-phase or idempotent and that can tolerate the loss of
+ * in-flight transactions if the virtual machine fails.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ */
+public enum ObjectStoreProfile {
+
+  /**
+   * A durable object store that keeps each transaction log record in
+   * its own file and forces it to disk.
+   */
+  FILE("com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore", true, null),
+
+  /**
+   * A durable object store that appends transaction log records to a
+   * journal, amortizing disk forces across concurrent transactions.
+   *
+   * <p>This profile requires the Apache ActiveMQ Artemis journal
+   * ({@code org.apache.activemq:artemis-journal}), an optional
+   * dependency of this library, to be present on the classpath at
+   * runtime.</p>
+   */
+  JOURNAL("com.arjuna.ats.internal.arjuna.objectstore.hornetq.HornetqObjectStoreAdaptor",
+          true,
+          "org.apache.activemq.artemis.core.journal.Journal"),
+
+  /**
+   * A durable object store that appends transaction log records to a
+   * preallocated, memory-mapped segment file and forces the records
+   * of concurrent committers with a single group force.
+   *
+   * @see MappedObjectStore
+   */
+  MAPPED(MappedObjectStore.class.getName(), true, null),
+
+  /**
+   * A non-durable object store that keeps transaction log records in
+   * memory only.
+   */
+  VOLATILE("com.arjuna.ats.internal.arjuna.objectstore.VolatileStore", false, null);
+
+  private final String objectStoreType;
+
+  private final boolean durable;
+
+  private final String requiredClassName;
+
+  private ObjectStoreProfile(final String objectStoreType, final boolean durable, final String requiredClassName) {
+    this.objectStoreType = objectStoreType;
+    this.durable = durable;
+    this.requiredClassName = requiredClassName;
+  }
+
+  /**
+   * Returns the name of the Narayana object store implementation
+   * class used by this {@link ObjectStoreProfile}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the name of an object store implementation class; never
+   * {@code null}
+   */
+  public final String getObjectStoreType() {
+    return this.objectStoreType;
+  }
+
+  /**
+   * Returns {@code true} if this {@link ObjectStoreProfile} forces
+   * transaction log records to stable storage.
+   *
+   * @return {@code true} if this {@link ObjectStoreProfile} is
+   * durable
+   */
+  public final boolean isDurable() {
+    return this.durable;
+  }
+
+  /**
+   * Ensures that the optional classes that this {@link
+   * ObjectStoreProfile} needs at runtime can be loaded by the supplied
+   * {@link ClassLoader}, so that a missing dependency is reported
+   * when the profile is selected rather than when the first
+   * transaction is logged.
+   *
+   * @param classLoader the {@link ClassLoader} to use; may be {@code
+   * null} in which case the bootstrap class loader is used
+   *
+   * @exception IllegalStateException if a required class cannot be
+   * loaded
+   */
+  final void checkAvailable(final ClassLoader classLoader) {
+    if (this.requiredClassName != null) {
+      try {
+        Class.forName(this.requiredClassName, false, classLoader);
+      } catch (final ClassNotFoundException | LinkageError classNotAvailable) {
+        throw new IllegalStateException("The " + this.name() + " object store profile requires " +
+                                        this.requiredClassName + ", which could not be loaded; " +
+                                        "add org.apache.activemq:artemis-journal to the classpath",
+                                        classNotAvailable);
+      }
+    }
+  }
+
+  /**
+   * Applies this {@link ObjectStoreProfile} to the supplied {@link
+   * ObjectStoreEnvironmentBean}.
+   *
+   * @param objectStoreEnvironmentBean the {@link
+   * ObjectStoreEnvironmentBean} to configure; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code
+   * objectStoreEnvironmentBean} is {@code null}
+   */
+  final void applyTo(final ObjectStoreEnvironmentBean objectStoreEnvironmentBean) {
+    objectStoreEnvironmentBean.setObjectStoreType(this.objectStoreType);
+    objectStoreEnvironmentBean.setTransactionSync(this.durable);
+  }
+
+}
@@ -0,0 +1,292 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import com.arjuna.ats.jta.recovery.XAResourceRecoveryHelper;
+
+/**
+ * An {@link XAResourceRecoveryHelper} that combines other {@link
+ * XAResourceRecoveryHelper}s and scans the {@link XAResource}s they
+ * supply concurrently.
+ *
+ * <p>Narayana's {@code XARecoveryModule} obtains {@link XAResource}s
+ * from each registered {@link XAResourceRecoveryHelper} and calls
+ * {@link XAResource#recover(int)} on each of them in turn.  With
+ * many resource managers, or slow ones, a recovery pass can take a
+ * very long time, during which in-doubt transactions continue to
+ * hold locks.</p>
+ *
+ * <p>When its {@link #getXAResources()} method is called, a {@link
+ * ParallelXAResourceRecoveryHelper} instead asks each of its
+ * delegates for {@link XAResource}s, and then performs a complete
+ * {@linkplain XAResource#recover(int) recovery scan} of each of them,
+ * all on a bounded pool of threads.  It returns {@link XAResource}s
+ * that answer the recovery module's subsequent {@link
+ * XAResource#recover(int)} calls from the results of those scans
+ * and delegate every other operation.  Delegates and resources that
+ * do not finish within the per-pass time budget are left out of the
+ * pass and tried again in the next one.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see XAResourceRecoveryHelper
+ */
+final class ParallelXAResourceRecoveryHelper implements XAResourceRecoveryHelper {
+
+  private static final XAResource[] EMPTY_XARESOURCE_ARRAY = new XAResource[0];
+
+  private static final Xid[] EMPTY_XID_ARRAY = new Xid[0];
+
+  private final List<XAResourceRecoveryHelper> delegates;
+
+  private final ExecutorService executor;
+
+  private final long budgetNanos;
+
+  /**
+   * Creates a new {@link ParallelXAResourceRecoveryHelper}.
+   *
+   * @param delegates the {@link XAResourceRecoveryHelper}s to
+   * combine; must not be {@code null}
+   *
+   * @param threads the number of threads on which to scan; must be
+   * greater than {@code 0}
+   *
+   * @param budget the time allowed for each recovery pass; must be
+   * greater than {@code 0}
+   *
+   * @param unit the {@link TimeUnit} of {@code budget}; must not be
+   * {@code null}
+   *
+   * @exception NullPointerException if {@code delegates} or {@code
+   * unit} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code threads} or {@code
+   * budget} is less than or equal to {@code 0}
+   */
+  ParallelXAResourceRecoveryHelper(final Collection<? extends XAResourceRecoveryHelper> delegates,
+                                   final int threads,
+                                   final long budget,
+                                   final TimeUnit unit) {
+    super();
+    if (threads <= 0) {
+      throw new IllegalArgumentException("threads <= 0: " + threads);
+    }
+    if (budget <= 0L) {
+      throw new IllegalArgumentException("budget <= 0: " + budget);
+    }
+    this.delegates = new ArrayList<>(delegates);
+    this.budgetNanos = unit.toNanos(budget);
+    this.executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("recovery"));
+  }
+
+  /**
+   * Returns {@code true}.
+   *
+   * @param properties ignored
+   *
+   * @return {@code true}
+   */
+  @Override
+  public final boolean initialise(final String properties) {
+    return true;
+  }
+
+  /**
+   * Obtains {@link XAResource}s from each delegate and scans them
+   * concurrently, returning those whose scans completed within the
+   * time budget.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} array of {@link XAResource}s whose
+   * {@link XAResource#recover(int)} methods return pre-scanned results
+   *
+   * @exception InterruptedException if the current thread is
+   * interrupted while waiting
+   */
+  @Override
+  public final XAResource[] getXAResources() throws InterruptedException {
+    final long deadline = System.nanoTime() + this.budgetNanos;
+
+    final List<Future<XAResource[]>> resourceFutures = new ArrayList<>(this.delegates.size());
+    for (final XAResourceRecoveryHelper delegate : this.delegates) {
+      resourceFutures.add(this.executor.submit(delegate::getXAResources));
+    }
+    final List<Future<PrescannedXAResource>> scanFutures = new ArrayList<>();
+    for (final Future<XAResource[]> resourceFuture : resourceFutures) {
+      final XAResource[] resources = awaitUntil(resourceFuture, deadline);
+      if (resources != null) {
+        for (final XAResource resource : resources) {
+          if (resource != null) {
+            scanFutures.add(this.executor.submit(() -> new PrescannedXAResource(resource, scan(resource))));
+          }
+        }
+      }
+    }
+    final List<XAResource> returnValue = new ArrayList<>(scanFutures.size());
+    for (final Future<PrescannedXAResource> scanFuture : scanFutures) {
+      final XAResource resource = awaitUntil(scanFuture, deadline);
+      if (resource != null) {
+        returnValue.add(resource);
+      }
+    }
+    return returnValue.toArray(EMPTY_XARESOURCE_ARRAY);
+  }
+
+  /**
+   * Stops the threads used by this {@link
+   * ParallelXAResourceRecoveryHelper}.
+   */
+  final void close() {
+    this.executor.shutdownNow();
+  }
+
+  @Override
+  public final String toString() {
+    return this.getClass().getSimpleName() + this.delegates;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  // Returns null if the work failed or did not finish in time.
+  private static final <T> T awaitUntil(final Future<T> future, final long deadline) throws InterruptedException {
+    try {
+      return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (final ExecutionException | TimeoutException exception) {
+      future.cancel(true);
+      return null;
+    }
+  }
+
+  private static final Xid[] scan(final XAResource resource) throws XAException {
+    final List<Xid> xids = new ArrayList<>();
+    int flags = XAResource.TMSTARTRSCAN;
+    try {
+      Xid[] batch;
+      do {
+        batch = resource.recover(flags);
+        flags = XAResource.TMNOFLAGS;
+        if (batch != null) {
+          for (final Xid xid : batch) {
+            xids.add(xid);
+          }
+        }
+      } while (batch != null && batch.length > 0 && !Thread.currentThread().isInterrupted());
+    } finally {
+      resource.recover(XAResource.TMENDRSCAN);
+    }
+    return xids.toArray(EMPTY_XID_ARRAY);
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class PrescannedXAResource implements XAResource {
+
+    private final XAResource delegate;
+
+    private final Xid[] xids;
+
+    private PrescannedXAResource(final XAResource delegate, final Xid[] xids) {
+      super();
+      this.delegate = Objects.requireNonNull(delegate);
+      this.xids = xids;
+    }
+
+    @Override
+    public final Xid[] recover(final int flags) {
+      return (flags & XAResource.TMSTARTRSCAN) != 0 ? this.xids.clone() : EMPTY_XID_ARRAY;
+    }
+
+    @Override
+    public final void commit(final Xid xid, final boolean onePhase) throws XAException {
+      this.delegate.commit(xid, onePhase);
+    }
+
+    @Override
+    public final void rollback(final Xid xid) throws XAException {
+      this.delegate.rollback(xid);
+    }
+
+    @Override
+    public final void forget(final Xid xid) throws XAException {
+      this.delegate.forget(xid);
+    }
+
+    @Override
+    public final void start(final Xid xid, final int flags) throws XAException {
+      this.delegate.start(xid, flags);
+    }
+
+    @Override
+    public final void end(final Xid xid, final int flags) throws XAException {
+      this.delegate.end(xid, flags);
+    }
+
+    @Override
+    public final int prepare(final Xid xid) throws XAException {
+      return this.delegate.prepare(xid);
+    }
+
+    @Override
+    public final boolean isSameRM(final XAResource other) throws XAException {
+      return this.delegate.isSameRM(other instanceof PrescannedXAResource ? ((PrescannedXAResource)other).delegate : other);
+    }
+
+    @Override
+    public final int getTransactionTimeout() throws XAException {
+      return this.delegate.getTransactionTimeout();
+    }
+
+    @Override
+    public final boolean setTransactionTimeout(final int seconds) throws XAException {
+      return this.delegate.setTransactionTimeout(seconds);
+    }
+
+    @Override
+    public final String toString() {
+      return this.delegate.toString();
+    }
+
+  }
+
+}
@@ -0,0 +1,91 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.arjuna.ats.arjuna.common.Uid;
+
+import com.arjuna.ats.arjuna.coordinator.TransactionReaper;
+
+import com.arjuna.ats.arjuna.coordinator.listener.ReaperMonitor;
+
+/**
+ * A {@link ReaperMonitor} that emits a JDK Flight Recorder event,
+ * through {@link TransactionEvents}, for every transaction that
+ * Narayana's transaction reaper times out.
+ *
+ * <p>Narayana's transaction reaper rolls transactions back on its
+ * own thread, so unlike a {@link TimingWheelTimeoutService} it
+ * cannot time the rollback; the events emitted by this class
+ * therefore have no duration.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionEvents#monitorReaper()
+ */
+final class ReaperTimeoutMonitor implements ReaperMonitor {
+
+  /**
+   * Whether the sole {@link ReaperTimeoutMonitor} has been added to
+   * Narayana's transaction reaper.
+   */
+  private static final AtomicBoolean installed = new AtomicBoolean();
+
+  private ReaperTimeoutMonitor() {
+    super();
+  }
+
+  /**
+   * Emits an event recording that the transaction identified by the
+   * supplied {@link Uid} was rolled back by Narayana's transaction
+   * reaper.
+   *
+   * @param txId the {@link Uid} of the transaction; must not be
+   * {@code null}
+   */
+  @Override
+  public final void rolledBack(final Uid txId) {
+    TransactionEvents.timedOut(String.valueOf(txId), TransactionOutcome.ROLLED_BACK.name());
+  }
+
+  /**
+   * Emits an event recording that the transaction identified by the
+   * supplied {@link Uid} was marked for rollback by Narayana's
+   * transaction reaper, which could not roll it back in time.
+   *
+   * @param txId the {@link Uid} of the transaction; must not be
+   * {@code null}
+   */
+  @Override
+  public final void markedRollbackOnly(final Uid txId) {
+    TransactionEvents.timedOut(String.valueOf(txId), TransactionEvents.MARKED_ROLLBACK);
+  }
+
+  /**
+   * Adds a {@link ReaperTimeoutMonitor} to Narayana's transaction
+   * reaper, creating the reaper if necessary, unless one has already
+   * been added.
+   */
+  static final void install() {
+    if (installed.compareAndSet(false, true)) {
+      TransactionReaper.transactionReaper().addListener(new ReaperTimeoutMonitor());
+    }
+  }
+
+}
@@ -0,0 +1,179 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Objects;
+
+/**
+ * Utility methods for reading the settings that configure this
+ * library, each of which is a {@linkplain System#getProperty(String,
+ * String) system property} whose name begins with {@value #PREFIX}.
+ *
+ * <p>The settings that are recognized are documented by {@link
+ * NarayanaExtension}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ */
+final class Settings {
+
+  /**
+   * The prefix with which the names of all settings begin.
+   */
+  static final String PREFIX = "org.microbean.narayana.jta.cdi.";
+
+  private Settings() {
+    super();
+  }
+
+  /**
+   * Returns the value of the named setting, or the supplied default
+   * value if it is not set.
+   *
+   * @param name the name of the setting without its {@linkplain
+   * #PREFIX prefix}; must not be {@code null}
+   *
+   * @param defaultValue the value to return if the setting is not
+   * set; may be {@code null}
+   *
+   * @return the value of the setting, or {@code defaultValue}
+   */
+  static final String getString(final String name, final String defaultValue) {
+    final String value = System.getProperty(PREFIX + Objects.requireNonNull(name));
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  /**
+   * Returns the value of the named setting as a {@code boolean}, or
+   * the supplied default value if it is not set.
+   *
+   * @param name the name of the setting without its {@linkplain
+   * #PREFIX prefix}; must not be {@code null}
+   *
+   * @param defaultValue the value to return if the setting is not
+   * set
+   *
+   * @return the value of the setting, or {@code defaultValue}
+   */
+  static final boolean getBoolean(final String name, final boolean defaultValue) {
+    final String value = getString(name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Returns the value of the named setting as an {@code int}, or the
+   * supplied default value if it is not set.
+   *
+   * @param name the name of the setting without its {@linkplain
+   * #PREFIX prefix}; must not be {@code null}
+   *
+   * @param defaultValue the value to return if the setting is not
+   * set
+   *
+   * @return the value of the setting, or {@code defaultValue}
+   *
+   * @exception IllegalArgumentException if the setting is set but is
+   * not an {@code int}
+   */
+  static final int getInt(final String name, final int defaultValue) {
+    final long value = getLong(name, defaultValue);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(PREFIX + name + ": " + value);
+    }
+    return (int)value;
+  }
+
+  /**
+   * Returns the value of the named setting as a {@code long}, or the
+   * supplied default value if it is not set.
+   *
+   * @param name the name of the setting without its {@linkplain
+   * #PREFIX prefix}; must not be {@code null}
+   *
+   * @param defaultValue the value to return if the setting is not
+   * set
+   *
+   * @return the value of the setting, or {@code defaultValue}
+   *
+   * @exception IllegalArgumentException if the setting is set but is
+   * not a {@code long}
+   */
+  static final long getLong(final String name, final long defaultValue) {
+    final String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (final NumberFormatException numberFormatException) {
+      throw new IllegalArgumentException(PREFIX + name + ": " + value, numberFormatException);
+    }
+  }
+
+  /**
+   * Returns the value of the named setting as a constant of the
+   * supplied {@code enum} type, or the supplied default value if it
+   * is not set.
+   *
+   * <p>Values are matched against constant names without regard to
+   * case or to the presence of hyphens and underscores, so {@code
+   * timing-wheel}, {@code timingWheel} and {@code TIMING_WHEEL} all
+   * denote the same constant.</p>
+   *
+   * @param <E> the {@code enum} type
+   *
+   * @param name the name of the setting without its {@linkplain
+   * #PREFIX prefix}; must not be {@code null}
+   *
+   * @param type the {@code enum} type; must not be {@code null}
+   *
+   * @param defaultValue the value to return if the setting is not
+   * set; may be {@code null}
+   *
+   * @return the value of the setting, or {@code defaultValue}
+   *
+   * @exception IllegalArgumentException if the setting is set but
+   * does not denote a constant of the supplied type
+   */
+  static final <E extends Enum<E>> E getEnum(final String name, final Class<E> type, final E defaultValue) {
+    final String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    final String normalizedValue = normalize(value);
+    for (final E constant : type.getEnumConstants()) {
+      if (normalize(constant.name()).equals(normalizedValue)) {
+        return constant;
+      }
+    }
+    throw new IllegalArgumentException(PREFIX + name + ": " + value);
+  }
+
+  private static final String normalize(final String value) {
+    final StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c != '-' && c != '_') {
+        sb.append(Character.toLowerCase(c));
+      }
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,254 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.time.Instant;
+
+import java.util.Objects;
+
+/**
+ * An immutable record of the phases of a transaction whose duration
+ * exceeded the threshold of a {@link SlowTransactionRecorder}.
+ *
+ * <p>All durations are expressed in nanoseconds.  A duration of
+ * {@code -1} indicates that the corresponding phase was not
+ * observed, for example because the transaction was rolled back
+ * rather than committed, or because it was begun on a different
+ * thread.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is immutable and therefore safe for concurrent use
+ * by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see SlowTransactionRecorder
+ */
+public final class SlowTransaction {
+
+  private final long completionTimeMillis;
+
+  private final String threadName;
+
+  private final long threadId;
+
+  private final TransactionOutcome outcome;
+
+  private final long beginNanos;
+
+  private final long workNanos;
+
+  private final long beforeCompletionNanos;
+
+  private final long prepareAndCommitNanos;
+
+  private final long afterCompletionNanos;
+
+  private final long totalNanos;
+
+  /**
+   * Creates a new {@link SlowTransaction}.
+   *
+   * @param completionTimeMillis the time at which the transaction
+   * completed, in milliseconds since the epoch
+   *
+   * @param threadName the name of the completing thread; may be
+   * {@code null}
+   *
+   * @param threadId the identifier of the completing thread
+   *
+   * @param outcome the {@link TransactionOutcome}; must not be {@code
+   * null}
+   *
+   * @param beginNanos the time spent beginning the transaction, or
+   * {@code -1}
+   *
+   * @param workNanos the time spent doing transactional work, or
+   * {@code -1}
+   *
+   * @param beforeCompletionNanos the time spent running {@code
+   * beforeCompletion()} callbacks, or {@code -1}
+   *
+   * @param prepareAndCommitNanos the time spent preparing and
+   * committing, or {@code -1}
+   *
+   * @param afterCompletionNanos the time spent running {@code
+   * afterCompletion(int)} callbacks, or {@code -1}
+   *
+   * @param totalNanos the total duration of the transaction
+   *
+   * @exception NullPointerException if {@code outcome} is {@code
+   * null}
+   */
+  SlowTransaction(final long completionTimeMillis,
+                  final String threadName,
+                  final long threadId,
+                  final TransactionOutcome outcome,
+                  final long beginNanos,
+                  final long workNanos,
+                  final long beforeCompletionNanos,
+                  final long prepareAndCommitNanos,
+                  final long afterCompletionNanos,
+                  final long totalNanos) {
+    super();
+    this.completionTimeMillis = completionTimeMillis;
+    this.threadName = threadName;
+    this.threadId = threadId;
+    this.outcome = Objects.requireNonNull(outcome);
+    this.beginNanos = beginNanos;
+    this.workNanos = workNanos;
+    this.beforeCompletionNanos = beforeCompletionNanos;
+    this.prepareAndCommitNanos = prepareAndCommitNanos;
+    this.afterCompletionNanos = afterCompletionNanos;
+    this.totalNanos = totalNanos;
+  }
+
+  /**
+   * Returns the {@link Instant} at which the transaction completed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the {@link Instant} at which the transaction completed;
+   * never {@code null}
+   */
+  public final Instant getCompletionTime() {
+    return Instant.ofEpochMilli(this.completionTimeMillis);
+  }
+
+  /**
+   * Returns the name of the thread that completed the transaction.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the name of the completing thread, or {@code null}
+   */
+  public final String getThreadName() {
+    return this.threadName;
+  }
+
+  /**
+   * Returns the identifier of the thread that completed the
+   * transaction.
+   *
+   * @return the identifier of the completing thread
+   *
+   * @see Thread#getId()
+   */
+  public final long getThreadId() {
+    return this.threadId;
+  }
+
+  /**
+   * Returns the {@link TransactionOutcome} of the transaction.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the {@link TransactionOutcome}; never {@code null}
+   */
+  public final TransactionOutcome getOutcome() {
+    return this.outcome;
+  }
+
+  /**
+   * Returns the time spent beginning the transaction.
+   *
+   * @return the time spent beginning the transaction, or {@code -1}
+   */
+  public final long getBeginNanos() {
+    return this.beginNanos;
+  }
+
+  /**
+   * Returns the time that elapsed between the transaction's having
+   * been begun and the request to complete it, i.e. the time spent
+   * by the application doing transactional work.
+   *
+   * @return the time spent doing transactional work, or {@code -1}
+   */
+  public final long getWorkNanos() {
+    return this.workNanos;
+  }
+
+  /**
+   * Returns the time spent running {@link
+   * javax.transaction.Synchronization#beforeCompletion()} callbacks.
+   *
+   * @return the time spent running {@code beforeCompletion()}
+   * callbacks, or {@code -1}
+   */
+  public final long getBeforeCompletionNanos() {
+    return this.beforeCompletionNanos;
+  }
+
+  /**
+   * Returns the time spent preparing and committing enlisted
+   * resources, including writing the transaction log.
+   *
+   * @return the time spent preparing and committing, or {@code -1}
+   */
+  public final long getPrepareAndCommitNanos() {
+    return this.prepareAndCommitNanos;
+  }
+
+  /**
+   * Returns the time spent running {@link
+   * javax.transaction.Synchronization#afterCompletion(int)}
+   * callbacks.
+   *
+   * @return the time spent running {@code afterCompletion(int)}
+   * callbacks, or {@code -1}
+   */
+  public final long getAfterCompletionNanos() {
+    return this.afterCompletionNanos;
+  }
+
+  /**
+   * Returns the total time between the request to begin the
+   * transaction and its completion.
+   *
+   * @return the total duration of the transaction
+   */
+  public final long getTotalNanos() {
+    return this.totalNanos;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * SlowTransaction}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String} representation of this
+   * {@link SlowTransaction}
+   */
+  @Override
+  public final String toString() {
+    return new StringBuilder().append(this.getCompletionTime())
+      .append(" [").append(this.threadName).append(" (").append(this.threadId).append(")] ")
+      .append(this.outcome)
+      .append(" totalNanos=").append(this.totalNanos)
+      .append(" beginNanos=").append(this.beginNanos)
+      .append(" workNanos=").append(this.workNanos)
+      .append(" beforeCompletionNanos=").append(this.beforeCompletionNanos)
+      .append(" prepareAndCommitNanos=").append(this.prepareAndCommitNanos)
+      .append(" afterCompletionNanos=").append(this.afterCompletionNanos)
+      .toString();
+  }
+
+}
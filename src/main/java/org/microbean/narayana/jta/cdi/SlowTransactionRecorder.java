@@ -0,0 +1,448 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * An opt-in recorder that timestamps the phases of every
+ * transaction demarcated by a {@link NarayanaTransactionManager} and
+ * retains, in a fixed-size, preallocated ring buffer, the phase
+ * breakdown of those whose total duration meets or exceeds a
+ * threshold.
+ *
+ * <p>The phases recorded are: beginning the transaction; the
+ * application's transactional work; {@link
+ * Synchronization#beforeCompletion()} callbacks; preparing and
+ * committing enlisted resources (including writing the transaction
+ * log); and {@link Synchronization#afterCompletion(int)} callbacks.
+ * The boundaries between the last three are observed by an interposed
+ * {@link Synchronization} registered immediately before commit
+ * begins, which therefore runs after every other {@code
+ * beforeCompletion()} callback.  Depending on the ordering Narayana
+ * applies to {@code afterCompletion(int)} callbacks, some of them may
+ * be attributed to the prepare-and-commit phase.</p>
+ *
+ * <p>Timing state is allocated per transaction, and kept with the
+ * transaction rather than with the thread that began it, so that a
+ * transaction completed on another thread, or one that times out,
+ * never leaves stale timestamps behind for the next transaction on
+ * the same thread.  Transactions under the threshold cost one small
+ * allocation, a handful of {@link System#nanoTime()} calls and one
+ * {@linkplain
+ * TransactionSynchronizationRegistry#registerInterposedSynchronization(Synchronization)
+ * synchronization registration}.</p>
+ *
+ * <p>An instance of this class is available for injection in
+ * {@linkplain javax.inject.Singleton singleton scope}.  It is {@link
+ * #isEnabled() enabled} only if the {@code
+ * org.microbean.narayana.jta.cdi.slowTransactionRecorder.thresholdMillis}
+ * setting is set to a non-negative value; see {@link
+ * NarayanaExtension}.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #getSlowTransactions()
+ *
+ * @see SlowTransaction
+ */
+public final class SlowTransactionRecorder {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final long thresholdNanos;
+
+  private final Slot[] slots;
+
+  private final int mask;
+
+  private final AtomicLong sequence;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link SlowTransactionRecorder}.
+   *
+   * @param capacity the number of {@link SlowTransaction}s to
+   * retain; will be rounded up to the nearest power of two; must be
+   * positive
+   *
+   * @param threshold the duration at or above which a transaction
+   * will be recorded; if negative, this {@link
+   * SlowTransactionRecorder} will not be {@linkplain #isEnabled()
+   * enabled}
+   *
+   * @param thresholdUnit the {@link TimeUnit} in which {@code
+   * threshold} is expressed; must not be {@code null}
+   *
+   * @exception IllegalArgumentException if {@code capacity} is not
+   * positive or is too large
+   *
+   * @exception NullPointerException if {@code thresholdUnit} is
+   * {@code null}
+   */
+  public SlowTransactionRecorder(final int capacity, final long threshold, final TimeUnit thresholdUnit) {
+    super();
+    Objects.requireNonNull(thresholdUnit);
+    if (capacity <= 0 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("capacity: " + capacity);
+    }
+    this.thresholdNanos = threshold < 0L ? -1L : thresholdUnit.toNanos(threshold);
+    if (this.thresholdNanos < 0L) {
+      this.slots = new Slot[0];
+      this.mask = 0;
+    } else {
+      final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+      this.slots = new Slot[size];
+      for (int i = 0; i < size; i++) {
+        this.slots[i] = new Slot();
+      }
+      this.mask = size - 1;
+    }
+    this.sequence = new AtomicLong();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns {@code true} if this {@link SlowTransactionRecorder}
+   * records slow transactions.
+   *
+   * @return {@code true} if this {@link SlowTransactionRecorder} is
+   * enabled
+   */
+  public final boolean isEnabled() {
+    return this.thresholdNanos >= 0L;
+  }
+
+  /**
+   * Returns the duration at or above which transactions are
+   * recorded, expressed in the supplied {@link TimeUnit}, or {@code
+   * -1} if this {@link SlowTransactionRecorder} is not {@linkplain
+   * #isEnabled() enabled}.
+   *
+   * @param unit the {@link TimeUnit} in which to express the
+   * threshold; must not be {@code null}
+   *
+   * @return the threshold, or {@code -1}
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   */
+  public final long getThreshold(final TimeUnit unit) {
+    return this.thresholdNanos < 0L ? -1L : unit.convert(this.thresholdNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of {@link SlowTransaction}s this {@link
+   * SlowTransactionRecorder} retains.
+   *
+   * @return the capacity of this {@link SlowTransactionRecorder}
+   */
+  public final int getCapacity() {
+    return this.slots.length;
+  }
+
+  /**
+   * Returns an immutable {@link List} of the {@link SlowTransaction}s
+   * currently retained by this {@link SlowTransactionRecorder},
+   * oldest first.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return an immutable {@link List} of {@link SlowTransaction}s;
+   * never {@code null}
+   */
+  public final List<SlowTransaction> getSlowTransactions() {
+    final long upperBound = this.sequence.get();
+    final long lowerBound = Math.max(0L, upperBound - this.slots.length);
+    final List<SlowTransaction> returnValue = new ArrayList<>((int)(upperBound - lowerBound));
+    for (long s = lowerBound; s < upperBound; s++) {
+      final SlowTransaction slowTransaction = this.slots[(int)(s & this.mask)].toSlowTransaction(s);
+      if (slowTransaction != null) {
+        returnValue.add(slowTransaction);
+      }
+    }
+    return Collections.unmodifiableList(returnValue);
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * SlowTransactionRecorder}, consisting of one line per retained
+   * {@link SlowTransaction}, oldest first.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String} representation of this
+   * {@link SlowTransactionRecorder}
+   */
+  @Override
+  public final String toString() {
+    final StringBuilder sb = new StringBuilder();
+    for (final SlowTransaction slowTransaction : this.getSlowTransactions()) {
+      sb.append(slowTransaction).append(System.lineSeparator());
+    }
+    return sb.toString();
+  }
+
+
+  /*
+   * Recording methods.
+   */
+
+
+  /**
+   * Records that a transaction has been begun, and returns a new
+   * {@link PhaseTimer} that must be kept with that transaction and
+   * supplied to the {@link #completing(PhaseTimer,
+   * TransactionSynchronizationRegistry)} method when it is about to
+   * be completed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param beginStartNanos the value of {@link System#nanoTime()}
+   * immediately before the transaction was begun
+   *
+   * @return a new {@link PhaseTimer}; never {@code null}
+   */
+  final PhaseTimer begun(final long beginStartNanos) {
+    return new PhaseTimer(beginStartNanos, System.nanoTime());
+  }
+
+  /**
+   * Records that the transaction timed by the supplied {@link
+   * PhaseTimer} is about to be completed, and returns that {@link
+   * PhaseTimer}, which must subsequently be supplied to the {@link
+   * #completed(PhaseTimer, TransactionOutcome)} method.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param phaseTimer the {@link PhaseTimer} returned by the {@link
+   * #begun(long)} method for the transaction about to be completed;
+   * may be {@code null} (if the transaction was not begun by a
+   * {@link NarayanaTransactionManager}) in which case {@code null}
+   * is returned
+   *
+   * @param registry the {@link TransactionSynchronizationRegistry}
+   * with which to register the {@link PhaseTimer} so that the
+   * boundaries of the completion phases may be observed; may be
+   * {@code null} in which case those boundaries will not be
+   * observed.  A rollback has no {@code beforeCompletion()} phase, so
+   * only the start of its {@code afterCompletion(int)} phase is
+   * observed.
+   *
+   * @return the supplied {@link PhaseTimer}, or {@code null}
+   */
+  final PhaseTimer completing(final PhaseTimer phaseTimer, final TransactionSynchronizationRegistry registry) {
+    if (phaseTimer == null) {
+      return null;
+    }
+    phaseTimer.completionStartNanos = System.nanoTime();
+    if (registry != null && phaseTimer.active) {
+      try {
+        registry.registerInterposedSynchronization(phaseTimer);
+      } catch (final IllegalStateException transactionNotActive) {
+        // The transaction is marked for rollback or has no
+        // transaction at all; the commit attempt will report the
+        // problem.
+      }
+    }
+    return phaseTimer;
+  }
+
+  /**
+   * Records that the transaction timed by the supplied {@link
+   * PhaseTimer} has completed and, if it took at least as long as
+   * this {@link SlowTransactionRecorder}'s threshold, retains its
+   * phase breakdown.
+   *
+   * @param phaseTimer the {@link PhaseTimer} returned by the {@link
+   * #completing(PhaseTimer, TransactionSynchronizationRegistry)}
+   * method; must not be {@code null}
+   *
+   * @param outcome the {@link TransactionOutcome}; must not be {@code
+   * null}
+   */
+  final void completed(final PhaseTimer phaseTimer, final TransactionOutcome outcome) {
+    final long now = System.nanoTime();
+    if (phaseTimer.active) {
+      phaseTimer.active = false;
+      if (now - phaseTimer.beginStartNanos >= this.thresholdNanos) {
+        final long sequence = this.sequence.getAndIncrement();
+        this.slots[(int)(sequence & this.mask)].record(sequence, phaseTimer, outcome, now);
+      }
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Mutable, per-transaction timing state that is also registered as
+   * an interposed {@link Synchronization} to observe the boundaries
+   * of the completion phases.
+   *
+   * <p>A transaction may be completed on a thread other than the one
+   * that began it, so all mutable state is {@code volatile}.</p>
+   */
+  static final class PhaseTimer implements Synchronization {
+
+    private volatile boolean active;
+
+    private final long beginStartNanos;
+
+    private final long beginEndNanos;
+
+    private volatile long completionStartNanos;
+
+    private volatile long beforeCompletionEndNanos;
+
+    private volatile long afterCompletionStartNanos;
+
+    private PhaseTimer(final long beginStartNanos, final long beginEndNanos) {
+      super();
+      this.beginStartNanos = beginStartNanos;
+      this.beginEndNanos = beginEndNanos;
+      this.active = true;
+    }
+
+    /**
+     * Records the end of the {@code beforeCompletion()} phase.
+     */
+    @Override
+    public final void beforeCompletion() {
+      this.beforeCompletionEndNanos = System.nanoTime();
+    }
+
+    /**
+     * Records the start of the {@code afterCompletion(int)} phase.
+     *
+     * @param status the completion status of the transaction;
+     * ignored
+     */
+    @Override
+    public final void afterCompletion(final int status) {
+      this.afterCompletionStartNanos = System.nanoTime();
+    }
+
+  }
+
+  /**
+   * A preallocated, reusable ring buffer entry.
+   */
+  private static final class Slot {
+
+    private long sequence;
+
+    private long completionTimeMillis;
+
+    private String threadName;
+
+    private long threadId;
+
+    private TransactionOutcome outcome;
+
+    private long beginNanos;
+
+    private long workNanos;
+
+    private long beforeCompletionNanos;
+
+    private long prepareAndCommitNanos;
+
+    private long afterCompletionNanos;
+
+    private long totalNanos;
+
+    private Slot() {
+      super();
+      this.sequence = -1L;
+    }
+
+    private final synchronized void record(final long sequence,
+                                           final PhaseTimer phaseTimer,
+                                           final TransactionOutcome outcome,
+                                           final long now) {
+      final Thread thread = Thread.currentThread();
+      final long beforeCompletionEnd = phaseTimer.beforeCompletionEndNanos;
+      final long afterCompletionStart = phaseTimer.afterCompletionStartNanos;
+      this.sequence = sequence;
+      this.completionTimeMillis = System.currentTimeMillis();
+      this.threadName = thread.getName();
+      this.threadId = thread.getId();
+      this.outcome = outcome;
+      this.beginNanos = phaseTimer.beginEndNanos - phaseTimer.beginStartNanos;
+      this.workNanos = phaseTimer.completionStartNanos - phaseTimer.beginEndNanos;
+      if (beforeCompletionEnd == 0L) {
+        this.beforeCompletionNanos = -1L;
+        this.prepareAndCommitNanos = -1L;
+      } else {
+        this.beforeCompletionNanos = beforeCompletionEnd - phaseTimer.completionStartNanos;
+        this.prepareAndCommitNanos = afterCompletionStart == 0L ? -1L : afterCompletionStart - beforeCompletionEnd;
+      }
+      this.afterCompletionNanos = afterCompletionStart == 0L ? -1L : now - afterCompletionStart;
+      this.totalNanos = now - phaseTimer.beginStartNanos;
+    }
+
+    private final synchronized SlowTransaction toSlowTransaction(final long sequence) {
+      if (this.sequence != sequence) {
+        return null;
+      }
+      return new SlowTransaction(this.completionTimeMillis,
+                                 this.threadName,
+                                 this.threadId,
+                                 this.outcome,
+                                 this.beginNanos,
+                                 this.workNanos,
+                                 this.beforeCompletionNanos,
+                                 this.prepareAndCommitNanos,
+                                 this.afterCompletionNanos,
+                                 this.totalNanos);
+    }
+
+  }
+
+}
@@ -0,0 +1,400 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+/**
+ * A {@link TransactionTimeoutService} backed by hierarchical timing
+ * wheels, whose {@link #schedule(Transaction, long, TimeUnit)} and
+ * {@link TransactionTimeoutService.Timeout#cancel()} operations take
+ * constant time regardless of how many transactions are being timed.
+ *
+ * <p>Time is divided into ticks of a fixed duration.  Each wheel has
+ * {@value #LEVELS} levels of {@value #SLOTS} slots; the slots of the
+ * lowest level each span one tick, and the slots of each higher level
+ * span as many ticks as the whole of the level beneath it.  A pending
+ * timeout is linked into the slot of the lowest level that can hold
+ * its deadline, and is moved down a level whenever the wheel turns
+ * past the slot that holds it, so that it reaches the lowest level
+ * just as it is due.  Cancelling a timeout simply unlinks it.</p>
+ *
+ * <p>To keep threads that schedule and cancel timeouts from
+ * contending with one another, there is one wheel for every two
+ * available processors, rounded up to a power of two, and each
+ * thread uses the wheel selected by its identifier.  A single daemon
+ * thread turns all of the wheels once per tick and rolls back the
+ * transactions whose timeouts have expired, so a timeout fires
+ * between one and two ticks after it is due.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionTimeoutService
+ */
+public final class TimingWheelTimeoutService implements TransactionTimeoutService, AutoCloseable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final int SLOT_BITS = 6;
+
+  /**
+   * The number of slots in each level of a wheel.
+   */
+  static final int SLOTS = 1 << SLOT_BITS;
+
+  private static final long SLOT_MASK = SLOTS - 1;
+
+  /**
+   * The number of levels in each wheel.
+   */
+  static final int LEVELS = 6;
+
+  private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1L;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final long tickNanos;
+
+  private final long startNanos;
+
+  private final Wheel[] wheels;
+
+  private final int wheelMask;
+
+  private final ScheduledExecutorService ticker;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link TimingWheelTimeoutService} and starts the
+   * thread that turns its wheels.
+   *
+   * @param tickDuration the duration of a tick; must be positive
+   *
+   * @param unit the {@link TimeUnit} of {@code tickDuration}; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code tickDuration} is
+   * not positive
+   *
+   * @see #close()
+   */
+  public TimingWheelTimeoutService(final long tickDuration, final TimeUnit unit) {
+    super();
+    final long tickNanos = unit.toNanos(tickDuration);
+    if (tickNanos <= 0L) {
+      throw new IllegalArgumentException("tickDuration: " + tickDuration);
+    }
+    this.tickNanos = tickNanos;
+    this.startNanos = System.nanoTime();
+    int wheelCount = 1;
+    while (wheelCount < Runtime.getRuntime().availableProcessors() * 2) {
+      wheelCount <<= 1;
+    }
+    this.wheels = new Wheel[wheelCount];
+    for (int i = 0; i < wheelCount; i++) {
+      this.wheels[i] = new Wheel();
+    }
+    this.wheelMask = wheelCount - 1;
+    this.ticker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("transaction-timeout"));
+    this.ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Arranges for the supplied {@link Transaction} to be rolled back
+   * if it is still active when the supplied timeout elapses, and
+   * returns a {@link TransactionTimeoutService.Timeout} that can be
+   * used to cancel the arrangement.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param transaction the {@link Transaction} to time; must not be
+   * {@code null}
+   *
+   * @param timeout the timeout; must be positive
+   *
+   * @param unit the {@link TimeUnit} of the timeout; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link
+   * TransactionTimeoutService.Timeout}
+   *
+   * @exception NullPointerException if {@code transaction} or {@code
+   * unit} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code timeout} is not
+   * positive
+   *
+   * @exception IllegalStateException if this {@link
+   * TimingWheelTimeoutService} has been {@linkplain #close() closed}
+   */
+  @Override
+  public final Timeout schedule(final Transaction transaction, final long timeout, final TimeUnit unit) {
+    Objects.requireNonNull(transaction);
+    final long timeoutNanos = unit.toNanos(timeout);
+    if (timeoutNanos <= 0L) {
+      throw new IllegalArgumentException("timeout: " + timeout);
+    }
+    if (this.ticker.isShutdown()) {
+      throw new IllegalStateException("closed");
+    }
+    final long tickNanos = this.tickNanos;
+    // The current tick may have begun almost a whole tick ago, so
+    // one more is added to make sure that the timeout never fires
+    // early.
+    final long ticks = Math.min(MAX_TICKS, timeoutNanos / tickNanos + (timeoutNanos % tickNanos == 0L ? 1L : 2L));
+    final long nowTick = (System.nanoTime() - this.startNanos) / tickNanos;
+    final Wheel wheel = this.wheels[(int)Thread.currentThread().getId() & this.wheelMask];
+    final Entry entry = new Entry(wheel, transaction, nowTick + ticks);
+    wheel.add(entry);
+    return entry;
+  }
+
+  /**
+   * Stops the thread that turns this {@link
+   * TimingWheelTimeoutService}'s wheels, so that no further
+   * transactions will be timed out by it.
+   *
+   * <p>Invoking this method more than once has no further
+   * effect.</p>
+   */
+  @Override
+  public final void close() {
+    this.ticker.shutdownNow();
+  }
+
+  private final void tick() {
+    final long targetTick = (System.nanoTime() - this.startNanos) / this.tickNanos;
+    final List<Transaction> expired = new ArrayList<>();
+    for (final Wheel wheel : this.wheels) {
+      wheel.advance(targetTick, expired);
+    }
+    // Roll back without holding any wheel's lock.  A scheduled task
+    // that throws is never run again, so nothing may escape.
+    for (final Transaction transaction : expired) {
+      try {
+        final int status = transaction.getStatus();
+        if (status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK) {
+          final Object event = TransactionEvents.beginTimeout(transaction);
+          TransactionOutcome outcome = TransactionOutcome.UNKNOWN;
+          try {
+            // Marking the transaction first ensures that it cannot
+            // commit even if it cannot be rolled back from this
+            // thread.
+            transaction.setRollbackOnly();
+            transaction.rollback();
+            outcome = TransactionOutcome.ROLLED_BACK;
+          } finally {
+            TransactionEvents.endTimeout(event, outcome.name());
+          }
+        }
+      } catch (final SystemException | RuntimeException completedConcurrently) {
+        // The transaction completed while it was being rolled back.
+      }
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A pending timeout, linked into a circular, doubly-linked list of
+   * the timeouts in the same slot of a {@link Wheel}.
+   *
+   * <p>Each slot's list starts with a sentinel {@link Entry} that
+   * has no {@link Wheel}.</p>
+   */
+  private static final class Entry implements Timeout {
+
+    private final Wheel wheel;
+
+    private final long deadlineTick;
+
+    private Transaction transaction; // guarded by wheel
+
+    private Entry previous; // guarded by wheel
+
+    private Entry next; // guarded by wheel; null if unlinked
+
+    private Entry(final Wheel wheel, final Transaction transaction, final long deadlineTick) {
+      super();
+      this.wheel = wheel;
+      this.transaction = transaction;
+      this.deadlineTick = deadlineTick;
+    }
+
+    private Entry() {
+      super();
+      this.wheel = null;
+      this.deadlineTick = 0L;
+      this.previous = this;
+      this.next = this;
+    }
+
+    @Override
+    public final void cancel() {
+      this.wheel.remove(this);
+    }
+
+  }
+
+  /**
+   * A hierarchical timing wheel.
+   */
+  private static final class Wheel {
+
+    private final Entry[] sentinels;
+
+    private long currentTick; // guarded by this
+
+    private Wheel() {
+      super();
+      this.sentinels = new Entry[LEVELS * SLOTS];
+      for (int i = 0; i < this.sentinels.length; i++) {
+        this.sentinels[i] = new Entry();
+      }
+    }
+
+    private final synchronized void add(final Entry entry) {
+      // The slot for the current tick has already been emptied.
+      this.place(entry, this.currentTick + 1L);
+    }
+
+    private final synchronized void remove(final Entry entry) {
+      if (entry.next != null) {
+        unlink(entry);
+      }
+      entry.transaction = null;
+    }
+
+    /**
+     * Turns this {@link Wheel} until it reaches the supplied tick,
+     * unlinking expired timeouts and adding their transactions to
+     * the supplied {@link List}.
+     *
+     * @param targetTick the tick to reach
+     *
+     * @param expired the {@link List} to which the transactions of
+     * expired timeouts are added; must not be {@code null}
+     */
+    private final synchronized void advance(final long targetTick, final List<? super Transaction> expired) {
+      while (this.currentTick < targetTick) {
+        final long tick = ++this.currentTick;
+        // Higher levels first, so that their timeouts can cascade all
+        // the way down in one turn.
+        for (int level = LEVELS - 1; level > 0; level--) {
+          if ((tick & ((1L << (SLOT_BITS * level)) - 1L)) == 0L) {
+            final Entry sentinel = this.sentinels[level * SLOTS + (int)((tick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+            Entry entry = sentinel.next;
+            sentinel.next = sentinel;
+            sentinel.previous = sentinel;
+            while (entry != sentinel) {
+              final Entry next = entry.next;
+              this.place(entry, tick);
+              entry = next;
+            }
+          }
+        }
+        final Entry sentinel = this.sentinels[(int)(tick & SLOT_MASK)];
+        Entry entry = sentinel.next;
+        sentinel.next = sentinel;
+        sentinel.previous = sentinel;
+        while (entry != sentinel) {
+          final Entry next = entry.next;
+          if (entry.deadlineTick <= tick) {
+            entry.next = null;
+            entry.previous = null;
+            if (entry.transaction != null) {
+              expired.add(entry.transaction);
+              entry.transaction = null;
+            }
+          } else {
+            this.place(entry, tick + 1L);
+          }
+          entry = next;
+        }
+      }
+    }
+
+    // Links the supplied Entry into the slot that will be emptied at
+    // its deadline or at the supplied tick, whichever is later.
+    // Called while holding this object's monitor.
+    private final void place(final Entry entry, final long earliestTick) {
+      final long currentTick = this.currentTick;
+      final long deadlineTick = Math.max(entry.deadlineTick, earliestTick);
+      // The level is the one whose bits are the most significant to
+      // differ between the deadline and the current tick, or the
+      // lowest if they are equal.
+      final long difference = deadlineTick ^ currentTick;
+      final int level =
+        difference == 0L ? 0 : Math.min(LEVELS - 1, (63 - Long.numberOfLeadingZeros(difference)) / SLOT_BITS);
+      final Entry sentinel = this.sentinels[level * SLOTS + (int)((deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+      entry.previous = sentinel.previous;
+      entry.next = sentinel;
+      sentinel.previous.next = entry;
+      sentinel.previous = entry;
+    }
+
+    // Called while holding this object's monitor.
+    private static final void unlink(final Entry entry) {
+      entry.previous.next = entry.next;
+      entry.next.previous = entry.previous;
+      entry.next = null;
+      entry.previous = null;
+    }
+
+  }
+
+}
@@ -0,0 +1,137 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Objects;
+
+/**
+ * An immutable event describing the completion of a transaction,
+ * fired by the {@link javax.transaction.TransactionManager} made
+ * available by the {@link NarayanaExtension} each time it commits or
+ * rolls back a transaction.
+ *
+ * <p>The event is delivered to observers declared with {@link
+ * javax.enterprise.event.Observes @Observes} on the completing thread
+ * after the transaction has completed, and to observers declared
+ * with {@link javax.enterprise.event.ObservesAsync @ObservesAsync}
+ * asynchronously, so that they add nothing to the latency of the
+ * commit.  Asynchronous observers are notified using a dedicated
+ * pool of threads if the {@code
+ * org.microbean.narayana.jta.cdi.completionEvents.threads} system
+ * property is set to a positive number, and using the container's
+ * default executor otherwise.  No event is constructed if there are
+ * no observers.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is immutable and therefore safe for concurrent use
+ * by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionOutcome
+ */
+public final class TransactionCompletion {
+
+  private final Object transactionKey;
+
+  private final TransactionOutcome outcome;
+
+  private final long elapsedNanos;
+
+  /**
+   * Creates a new {@link TransactionCompletion}.
+   *
+   * @param transactionKey the {@linkplain
+   * javax.transaction.TransactionSynchronizationRegistry#getTransactionKey()
+   * key} of the completed transaction; may be {@code null} if it
+   * could not be determined
+   *
+   * @param outcome the {@link TransactionOutcome}; must not be {@code
+   * null}
+   *
+   * @param elapsedNanos the time in nanoseconds from the beginning of
+   * the transaction to its completion, or {@code -1} if it is not
+   * known
+   *
+   * @exception NullPointerException if {@code outcome} is {@code
+   * null}
+   */
+  public TransactionCompletion(final Object transactionKey, final TransactionOutcome outcome, final long elapsedNanos) {
+    super();
+    this.transactionKey = transactionKey;
+    this.outcome = Objects.requireNonNull(outcome);
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * Returns the {@linkplain
+   * javax.transaction.TransactionSynchronizationRegistry#getTransactionKey()
+   * key} of the completed transaction.
+   *
+   * <p>This method may return {@code null} if the key could not be
+   * determined.</p>
+   *
+   * @return the key of the completed transaction, or {@code null}
+   */
+  public final Object getTransactionKey() {
+    return this.transactionKey;
+  }
+
+  /**
+   * Returns the {@link TransactionOutcome} of the completed
+   * transaction.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} {@link TransactionOutcome}
+   */
+  public final TransactionOutcome getOutcome() {
+    return this.outcome;
+  }
+
+  /**
+   * Returns the time in nanoseconds from the beginning of the
+   * transaction to its completion, or {@code -1} if it is not known
+   * because the transaction was not begun by the {@link
+   * javax.transaction.TransactionManager} that completed it.
+   *
+   * @return the elapsed time in nanoseconds, or {@code -1}
+   */
+  public final long getElapsedNanos() {
+    return this.elapsedNanos;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * TransactionCompletion}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String} representation of this
+   * {@link TransactionCompletion}
+   */
+  @Override
+  public final String toString() {
+    return new StringBuilder().append(this.transactionKey)
+      .append(' ').append(this.outcome)
+      .append(" elapsedNanos=").append(this.elapsedNanos)
+      .toString();
+  }
+
+}
@@ -0,0 +1,247 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * Emits JDK Flight Recorder events describing the lifecycle of
+ * transactions, if Flight Recorder is present.
+ *
+ * <p>This class refers to no Flight Recorder types itself, so it may
+ * be loaded on any Java virtual machine.  If Flight Recorder is
+ * absent, or the {@code org.microbean.narayana.jta.cdi.jfr.enabled}
+ * system property is {@code false}, every method returns
+ * immediately; otherwise the cost of an event that is not being
+ * recorded is that of checking whether its type is enabled.</p>
+ *
+ * <p>Each event has a duration and an outcome, and names the
+ * transaction it concerns.  Timeouts are recorded whether a {@link
+ * TimingWheelTimeoutService} or Narayana's transaction reaper
+ * enforces them, but only the former can time the rollback; events
+ * for transactions timed out by the reaper, which {@link
+ * #monitorReaper()} arranges to receive, have no duration.  The
+ * events are in the {@code org.microbean.narayana.jta.cdi} namespace
+ * and can be enabled, disabled and given thresholds like any other
+ * Flight Recorder event.</p>
+ *
+ * <p>On Java 8 the Flight Recorder API is absent and no events are
+ * ever emitted.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JfrTransactionEvents
+ */
+final class TransactionEvents {
+
+  /**
+   * The outcome of an operation that succeeded without completing a
+   * transaction.
+   */
+  static final String SUCCEEDED = "SUCCEEDED";
+
+  /**
+   * The outcome of an operation that threw an exception without
+   * completing a transaction.
+   */
+  static final String FAILED = "FAILED";
+
+  /**
+   * The outcome of a {@linkplain TransactionManager#suspend()
+   * suspension} when no transaction was associated with the current
+   * thread.
+   */
+  static final String NO_TRANSACTION = "NO_TRANSACTION";
+
+  /**
+   * The outcome of a timeout when Narayana's transaction reaper
+   * marked the transaction for rollback but could not roll it back.
+   */
+  static final String MARKED_ROLLBACK = "MARKED_ROLLBACK";
+
+  /**
+   * Whether Flight Recorder events may be emitted.
+   */
+  private static final boolean ENABLED = isEnabled();
+
+  private TransactionEvents() {
+    super();
+  }
+
+  /**
+   * Starts timing an event of the supplied {@link Kind} if Flight
+   * Recorder is recording events of that kind, and returns an opaque
+   * object representing it, or {@code null} if it is not being
+   * recorded.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param kind the {@link Kind} of the event; must not be {@code
+   * null}
+   *
+   * @param transactionManager the {@link TransactionManager} whose
+   * current transaction the event concerns; must not be {@code null}
+   *
+   * @return an opaque event to be passed to {@link #end(Object,
+   * TransactionManager, String)}, or {@code null}
+   */
+  static final Object begin(final Kind kind, final TransactionManager transactionManager) {
+    return ENABLED ? JfrTransactionEvents.begin(kind, transactionManager) : null;
+  }
+
+  /**
+   * Finishes timing, and commits, an event returned by the {@link
+   * #begin(Kind, TransactionManager)} method.
+   *
+   * @param event the event; may be {@code null} in which case no
+   * action is taken
+   *
+   * @param transactionManager the {@link TransactionManager} passed
+   * to the {@link #begin(Kind, TransactionManager)} method; must not
+   * be {@code null}
+   *
+   * @param outcome the outcome of the operation the event describes;
+   * may be {@code null}
+   */
+  static final void end(final Object event, final TransactionManager transactionManager, final String outcome) {
+    if (event != null) {
+      JfrTransactionEvents.end(event, transactionManager, outcome);
+    }
+  }
+
+  /**
+   * Starts timing the rollback of a transaction whose timeout has
+   * expired, if Flight Recorder is recording such events, and returns
+   * an opaque object representing it, or {@code null} if it is not
+   * being recorded.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @param transaction the {@link Transaction} that has timed out;
+   * must not be {@code null}
+   *
+   * @return an opaque event to be passed to {@link
+   * #endTimeout(Object, String)}, or {@code null}
+   */
+  static final Object beginTimeout(final Transaction transaction) {
+    return ENABLED ? JfrTransactionEvents.beginTimeout(transaction) : null;
+  }
+
+  /**
+   * Finishes timing, and commits, an event returned by the {@link
+   * #beginTimeout(Transaction)} method.
+   *
+   * @param event the event; may be {@code null} in which case no
+   * action is taken
+   *
+   * @param outcome the outcome of the rollback; may be {@code null}
+   */
+  static final void endTimeout(final Object event, final String outcome) {
+    if (event != null) {
+      JfrTransactionEvents.endTimeout(event, outcome);
+    }
+  }
+
+  /**
+   * Commits an event recording that a transaction was timed out by
+   * Narayana's transaction reaper, if Flight Recorder is recording
+   * such events.
+   *
+   * @param transaction a description of the transaction that timed
+   * out; may be {@code null}
+   *
+   * @param outcome the outcome of the timeout; may be {@code null}
+   *
+   * @see ReaperTimeoutMonitor
+   */
+  static final void timedOut(final String transaction, final String outcome) {
+    if (ENABLED) {
+      JfrTransactionEvents.timedOut(transaction, outcome);
+    }
+  }
+
+  /**
+   * Arranges for a timeout event to be emitted for every transaction
+   * that Narayana's transaction reaper times out, if Flight Recorder
+   * events may be emitted at all.
+   *
+   * <p>This method may be called more than once; only the first
+   * call has any effect.  It creates the reaper if it does not yet
+   * exist.</p>
+   *
+   * @see ReaperTimeoutMonitor#install()
+   */
+  static final void monitorReaper() {
+    if (ENABLED) {
+      ReaperTimeoutMonitor.install();
+    }
+  }
+
+  private static final boolean isEnabled() {
+    if (!Settings.getBoolean("jfr.enabled", true)) {
+      return false;
+    }
+    try {
+      Class.forName("jdk.jfr.FlightRecorder", false, TransactionEvents.class.getClassLoader());
+      return JfrTransactionEvents.isAvailable();
+    } catch (final ClassNotFoundException | LinkageError noFlightRecorder) {
+      return false;
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * The kinds of transaction lifecycle operation for which events
+   * are emitted.
+   */
+  enum Kind {
+
+    /**
+     * {@link TransactionManager#begin()}.
+     */
+    BEGIN,
+
+    /**
+     * {@link TransactionManager#commit()}.
+     */
+    COMMIT,
+
+    /**
+     * {@link TransactionManager#rollback()}.
+     */
+    ROLLBACK,
+
+    /**
+     * {@link TransactionManager#suspend()}.
+     */
+    SUSPEND,
+
+    /**
+     * {@link TransactionManager#resume(Transaction)}.
+     */
+    RESUME
+
+  }
+
+}
@@ -0,0 +1,395 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.BitSet;
+import java.util.Objects;
+
+import java.util.function.Supplier;
+
+import javax.transaction.Synchronization; // for javadoc only
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * A variable whose value is scoped to the transaction bound to the
+ * current thread, in the spirit of {@link ThreadLocal}.
+ *
+ * <p>Each {@link TransactionLocal} is assigned a fixed slot index
+ * when it is created.  The values of all {@link TransactionLocal}s
+ * for a given transaction are stored together in a single compact
+ * array that is {@linkplain
+ * TransactionSynchronizationRegistry#putResource(Object, Object)
+ * attached} to that transaction the first time any {@link
+ * TransactionLocal} is used within it, and that is cleared
+ * automatically when the transaction completes.  The most recently
+ * used such array is additionally cached per thread, so that
+ * repeated accesses within the same transaction on the same thread
+ * cost one {@linkplain
+ * TransactionSynchronizationRegistry#getTransactionKey() transaction
+ * key} comparison and one array read rather than a {@link
+ * java.util.Map} lookup.</p>
+ *
+ * <p>{@link TransactionLocal} instances are intended to be
+ * long-lived, typically stored in {@code static} fields or in
+ * beans in {@linkplain javax.enterprise.context.ApplicationScoped
+ * application scope}.  Every instance reserves a slot until it is
+ * {@linkplain #close() closed}, after which the slot is reused by the
+ * next {@link TransactionLocal} to be created, so that the
+ * per-transaction array stays as small as the number of open
+ * instances.  Short-lived instances must therefore be closed.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads,
+ * including multiple threads associated with the same transaction:
+ * attaching the array of values to a transaction is serialized, so
+ * all such threads see the same values.</p>
+ *
+ * @param <T> the type of value held by this {@link TransactionLocal}
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionSynchronizationRegistry
+ */
+public class TransactionLocal<T> implements AutoCloseable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final Object indexLock = new Object();
+
+  private static final BitSet releasedIndices = new BitSet(); // guarded by indexLock
+
+  private static int nextIndex; // guarded by indexLock
+
+  private static volatile int indexCount;
+
+  private static final ThreadLocal<TransactionLocalValues> currentValues = new ThreadLocal<>();
+
+  private static final Object[] creationLocks = newLocks(64); // length must be a power of two
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final TransactionSynchronizationRegistry registry;
+
+  private final int index;
+
+  private volatile boolean closed;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link TransactionLocal}.
+   *
+   * @param registry the {@link TransactionSynchronizationRegistry}
+   * used to attach values to the current transaction; must not be
+   * {@code null}
+   *
+   * @exception NullPointerException if {@code registry} is {@code
+   * null}
+   */
+  public TransactionLocal(final TransactionSynchronizationRegistry registry) {
+    super();
+    this.registry = Objects.requireNonNull(registry);
+    this.index = acquireIndex();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the value that this {@link TransactionLocal} should have
+   * in a transaction in which it has not yet been {@linkplain
+   * #set(Object) set}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>The default implementation returns {@code null}.</p>
+   *
+   * @return the initial value, or {@code null}
+   */
+  protected T initialValue() {
+    return null;
+  }
+
+  /**
+   * Returns the value of this {@link TransactionLocal} in the
+   * transaction bound to the current thread, {@linkplain
+   * #initialValue() initializing} it first if necessary.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the value of this {@link TransactionLocal} in the current
+   * transaction, or {@code null}
+   *
+   * @exception IllegalStateException if no transaction is active,
+   * or if this {@link TransactionLocal} has been {@linkplain #close()
+   * closed}
+   */
+  @SuppressWarnings("unchecked")
+  public T get() {
+    final TransactionLocalValues values = this.values(true);
+    Object value = values.get(this.index, this);
+    if (value == null) {
+      value = values.putIfAbsent(this.index, this, this.initialValue());
+    }
+    return value == TransactionLocalValues.NULL ? null : (T)value;
+  }
+
+  /**
+   * Returns the value of this {@link TransactionLocal} in the
+   * transaction bound to the current thread if it has been
+   * {@linkplain #set(Object) set} or {@linkplain #get() initialized},
+   * or {@code null} otherwise.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * <p>Unlike {@link #get()}, this method neither {@linkplain
+   * #initialValue() initializes} the value nor attaches anything to
+   * the transaction.</p>
+   *
+   * @return the value of this {@link TransactionLocal} in the current
+   * transaction, or {@code null}
+   *
+   * @exception IllegalStateException if no transaction is active,
+   * or if this {@link TransactionLocal} has been {@linkplain #close()
+   * closed}
+   */
+  @SuppressWarnings("unchecked")
+  final T getIfPresent() {
+    final TransactionLocalValues values = this.values(false);
+    if (values == null) {
+      return null;
+    }
+    final Object value = values.get(this.index, this);
+    return value == TransactionLocalValues.NULL ? null : (T)value;
+  }
+
+  /**
+   * Sets the value of this {@link TransactionLocal} in the
+   * transaction bound to the current thread.
+   *
+   * @param value the new value; may be {@code null}
+   *
+   * @exception IllegalStateException if no transaction is active,
+   * or if this {@link TransactionLocal} has been {@linkplain #close()
+   * closed}
+   */
+  public void set(final T value) {
+    this.values(true).set(this.index, this, value);
+  }
+
+  /**
+   * Removes the value of this {@link TransactionLocal} in the
+   * transaction bound to the current thread, so that a subsequent
+   * invocation of the {@link #get()} method will return the result
+   * of invoking the {@link #initialValue()} method again.
+   *
+   * @exception IllegalStateException if no transaction is active,
+   * or if this {@link TransactionLocal} has been {@linkplain #close()
+   * closed}
+   */
+  public void remove() {
+    this.values(true).remove(this.index, this);
+  }
+
+  /**
+   * Releases the slot reserved by this {@link TransactionLocal} so
+   * that it may be reused by a {@link TransactionLocal} created
+   * later.
+   *
+   * <p>Values of this {@link TransactionLocal} in transactions that
+   * are still in progress are no longer accessible, and are released
+   * when those transactions complete.  Once this method has been
+   * called, the {@link #get()}, {@link #set(Object)} and {@link
+   * #remove()} methods throw {@link IllegalStateException}.  Calling
+   * this method more than once has no further effect.</p>
+   */
+  @Override
+  public void close() {
+    synchronized (indexLock) {
+      if (!this.closed) {
+        this.closed = true;
+        releasedIndices.set(this.index);
+      }
+    }
+  }
+
+  /**
+   * Returns the {@link TransactionLocalValues} attached to the
+   * transaction bound to the current thread, creating and attaching
+   * it if necessary and requested.
+   *
+   * <p>This method returns {@code null} only if {@code create} is
+   * {@code false}.</p>
+   *
+   * @param create whether to create and attach the {@link
+   * TransactionLocalValues} if none is attached yet
+   *
+   * @return the {@link TransactionLocalValues} for the current
+   * transaction, or {@code null}
+   *
+   * @exception IllegalStateException if no transaction is active,
+   * or if this {@link TransactionLocal} has been {@linkplain #close()
+   * closed}
+   */
+  private final TransactionLocalValues values(final boolean create) {
+    if (this.closed) {
+      throw new IllegalStateException("closed");
+    }
+    final Object key = this.registry.getTransactionKey();
+    if (key == null) {
+      throw new IllegalStateException("no transaction is active");
+    }
+    TransactionLocalValues values = currentValues.get();
+    if (values == null || !values.belongsTo(key)) {
+      values = (TransactionLocalValues)this.registry.getResource(TransactionLocalValues.class);
+      if (values == null) {
+        if (!create) {
+          return null;
+        }
+        // Looking for the values has created the transaction if its
+        // creation had been deferred, in which case it now has a
+        // different key.
+        final Object transactionKey = this.registry.getTransactionKey();
+        // Threads that share a transaction, such as those of a
+        // TransactionPropagatingExecutorService, must all attach the
+        // same values to it.
+        synchronized (creationLock(transactionKey)) {
+          values = (TransactionLocalValues)this.registry.getResource(TransactionLocalValues.class);
+          if (values == null) {
+            values = new TransactionLocalValues(transactionKey, indexCount);
+            this.registry.putResource(TransactionLocalValues.class, values);
+            try {
+              this.registry.registerInterposedSynchronization(values);
+              values.setRegistered();
+            } catch (final IllegalStateException transactionNotActive) {
+              // The transaction has been marked for rollback, or is
+              // already completing, so the values cannot be cleared
+              // on completion.  They remain reachable through the
+              // registry for the rest of the transaction, but must
+              // not be cached per thread, since nothing would ever
+              // invalidate them.
+              return values;
+            }
+          }
+        }
+      }
+      if (values.isRegistered()) {
+        currentValues.set(values);
+      }
+    }
+    return values;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the lock that serializes the creation of {@link
+   * TransactionLocalValues} for the transaction identified by the
+   * supplied key.
+   *
+   * <p>Transaction keys that are {@linkplain Object#equals(Object)
+   * equal} share a lock, even if they are not identical.  Unrelated
+   * transactions may share one too, but only contend for it the
+   * first time a {@link TransactionLocal} is used in each.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param key a transaction key; must not be {@code null}
+   *
+   * @return a lock; never {@code null}
+   */
+  private static final Object creationLock(final Object key) {
+    final int hashCode = key.hashCode();
+    return creationLocks[(hashCode ^ (hashCode >>> 16)) & (creationLocks.length - 1)];
+  }
+
+  private static final int acquireIndex() {
+    synchronized (indexLock) {
+      final int releasedIndex = releasedIndices.nextSetBit(0);
+      if (releasedIndex >= 0) {
+        releasedIndices.clear(releasedIndex);
+        return releasedIndex;
+      }
+      final int index = nextIndex++;
+      indexCount = nextIndex;
+      return index;
+    }
+  }
+
+  private static final Object[] newLocks(final int count) {
+    final Object[] locks = new Object[count];
+    for (int i = 0; i < count; i++) {
+      locks[i] = new Object();
+    }
+    return locks;
+  }
+
+  /**
+   * Creates a new {@link TransactionLocal} whose {@linkplain
+   * #initialValue() initial value} is supplied by the supplied {@link
+   * Supplier}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param <T> the type of value held by the new {@link
+   * TransactionLocal}
+   *
+   * @param registry the {@link TransactionSynchronizationRegistry}
+   * used to attach values to the current transaction; must not be
+   * {@code null}
+   *
+   * @param initialValueSupplier the {@link Supplier} of initial
+   * values; must not be {@code null}
+   *
+   * @return a new {@link TransactionLocal}; never {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public static final <T> TransactionLocal<T> withInitial(final TransactionSynchronizationRegistry registry,
+                                                          final Supplier<? extends T> initialValueSupplier) {
+    Objects.requireNonNull(initialValueSupplier);
+    return new TransactionLocal<T>(registry) {
+      @Override
+      protected final T initialValue() {
+        return initialValueSupplier.get();
+      }
+    };
+  }
+
+}
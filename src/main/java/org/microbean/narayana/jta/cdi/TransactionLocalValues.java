@@ -0,0 +1,236 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Arrays;
+
+import javax.transaction.Synchronization;
+
+/**
+ * The compact, per-transaction array of {@link TransactionLocal}
+ * values, which also serves as the interposed {@link
+ * Synchronization} that clears them when the transaction completes.
+ *
+ * <p>Each slot records the {@link TransactionLocal} that owns it
+ * alongside its value, so that a slot index {@linkplain
+ * TransactionLocal#close() released} by one {@link TransactionLocal}
+ * and reused by another never exposes the former's value to the
+ * latter, even in a transaction that was in progress when the index
+ * was released.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>Reads are unsynchronized; writes and array growth are
+ * synchronized on this object and publish a new array through a
+ * {@code volatile} field.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionLocal
+ */
+final class TransactionLocalValues implements Synchronization {
+
+  /**
+   * A sentinel stored in a slot to represent a {@code null} value
+   * that has been explicitly set, as distinct from an empty slot.
+   */
+  static final Object NULL = new Object();
+
+  private static final Object[] EMPTY = new Object[0];
+
+  private volatile Object key;
+
+  // Slot i's owner is at 2i; its value is at 2i + 1.
+  private volatile Object[] values;
+
+  private volatile boolean registered;
+
+  /**
+   * Creates a new {@link TransactionLocalValues}.
+   *
+   * @param key the {@linkplain
+   * javax.transaction.TransactionSynchronizationRegistry#getTransactionKey()
+   * transaction key} of the transaction to which this {@link
+   * TransactionLocalValues} belongs; must not be {@code null}
+   *
+   * @param initialCapacity the number of slots to preallocate; must
+   * not be negative
+   */
+  TransactionLocalValues(final Object key, final int initialCapacity) {
+    super();
+    this.key = key;
+    this.values = initialCapacity <= 0 ? EMPTY : new Object[initialCapacity * 2];
+  }
+
+  /**
+   * Returns {@code true} if this {@link TransactionLocalValues}
+   * belongs to the transaction identified by the supplied key and
+   * that transaction has not yet completed.
+   *
+   * @param key a transaction key; may be {@code null}
+   *
+   * @return {@code true} if this {@link TransactionLocalValues}
+   * belongs to the identified transaction
+   */
+  final boolean belongsTo(final Object key) {
+    final Object myKey = this.key;
+    return myKey != null && (myKey == key || myKey.equals(key));
+  }
+
+  /**
+   * Returns {@code true} once this {@link TransactionLocalValues} has
+   * been registered as a {@link Synchronization}, i.e. once its
+   * {@link #beforeCompletion()} or {@link #afterCompletion(int)}
+   * method is guaranteed to be called.
+   *
+   * @return {@code true} if this {@link TransactionLocalValues} will
+   * be cleared on completion
+   */
+  final boolean isRegistered() {
+    return this.registered;
+  }
+
+  /**
+   * Returns the number of slots for which space is currently
+   * allocated.
+   *
+   * @return the number of allocated slots
+   */
+  final int capacity() {
+    return this.values.length / 2;
+  }
+
+  /**
+   * Returns the raw value stored by the supplied owner in the slot
+   * with the supplied index, which may be {@code null} if the slot is
+   * empty or belongs to another owner, or {@link #NULL} if it holds
+   * an explicit {@code null}.
+   *
+   * @param index the slot index; must not be negative
+   *
+   * @param owner the {@link TransactionLocal} that owns the slot;
+   * must not be {@code null}
+   *
+   * @return the raw slot value, or {@code null}
+   */
+  final Object get(final int index, final Object owner) {
+    final Object[] values = this.values;
+    final int i = index * 2;
+    return i < values.length && values[i] == owner ? values[i + 1] : null;
+  }
+
+  /**
+   * Stores the supplied value in the slot with the supplied index
+   * unless that slot is already occupied by the supplied owner, and
+   * returns the raw value that the slot holds afterwards.
+   *
+   * @param index the slot index; must not be negative
+   *
+   * @param owner the {@link TransactionLocal} that owns the slot;
+   * must not be {@code null}
+   *
+   * @param value the value to store; may be {@code null}
+   *
+   * @return the raw slot value after this call; never {@code null}
+   */
+  final synchronized Object putIfAbsent(final int index, final Object owner, final Object value) {
+    final Object existing = this.get(index, owner);
+    if (existing != null) {
+      return existing;
+    }
+    final Object newValue = value == null ? NULL : value;
+    this.store(index, owner, newValue);
+    return newValue;
+  }
+
+  /**
+   * Stores the supplied value in the slot with the supplied index on
+   * behalf of the supplied owner.
+   *
+   * @param index the slot index; must not be negative
+   *
+   * @param owner the {@link TransactionLocal} that owns the slot;
+   * must not be {@code null}
+   *
+   * @param value the value to store; may be {@code null}
+   */
+  final synchronized void set(final int index, final Object owner, final Object value) {
+    this.store(index, owner, value == null ? NULL : value);
+  }
+
+  /**
+   * Empties the slot with the supplied index if it belongs to the
+   * supplied owner.
+   *
+   * @param index the slot index; must not be negative
+   *
+   * @param owner the {@link TransactionLocal} that owns the slot;
+   * must not be {@code null}
+   */
+  final synchronized void remove(final int index, final Object owner) {
+    if (this.get(index, owner) != null) {
+      this.store(index, null, null);
+    }
+  }
+
+  private final void store(final int index, final Object owner, final Object value) {
+    assert Thread.holdsLock(this);
+    Object[] values = this.values;
+    final int i = index * 2;
+    if (i >= values.length) {
+      values = Arrays.copyOf(values, Math.max(i + 2, values.length * 2));
+    }
+    values[i] = owner;
+    values[i + 1] = value;
+    // Always republish so that unsynchronized readers observe the
+    // store.
+    this.values = values;
+  }
+
+  /**
+   * Records that this {@link TransactionLocalValues} has been
+   * successfully registered as an interposed {@link Synchronization}
+   * with its transaction.
+   *
+   * @see #isRegistered()
+   */
+  final void setRegistered() {
+    this.registered = true;
+  }
+
+  /**
+   * Does nothing.
+   */
+  @Override
+  public final void beforeCompletion() {
+
+  }
+
+  /**
+   * Clears all values held by this {@link TransactionLocalValues} and
+   * detaches it from its transaction.
+   *
+   * @param status the completion status of the transaction; ignored
+   */
+  @Override
+  public final synchronized void afterCompletion(final int status) {
+    this.key = null;
+    this.values = EMPTY;
+  }
+
+}
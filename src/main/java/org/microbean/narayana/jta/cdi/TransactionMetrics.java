@@ -0,0 +1,425 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms describing the transactions
+ * demarcated by a {@link DelegatingTransactionManager}.
+ *
+ * <p>All counters are {@link LongAdder}s and all histograms are
+ * composed of {@link LongAdder}s, so recording a transaction never
+ * takes a lock.  The begin timestamp of the transaction in progress
+ * is kept per thread, so begin-to-completion latencies are only
+ * recorded for transactions that are completed on the thread that
+ * began them.</p>
+ *
+ * <p>An instance of this class is available for injection in
+ * {@linkplain javax.inject.Singleton singleton scope}, as is a
+ * {@link TransactionMetricsSnapshot}, and it is registered with the
+ * platform {@link javax.management.MBeanServer} under the name
+ * {@value NarayanaExtension#TRANSACTION_METRICS_OBJECT_NAME}.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #snapshot()
+ *
+ * @see TransactionMetricsSnapshot
+ */
+public final class TransactionMetrics implements TransactionMetricsMXBean {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final LongAdder beginCount;
+
+  private final LongAdder commitCount;
+
+  private final LongAdder rollbackCount;
+
+  private final LongAdder heuristicCount;
+
+  private final LongAdder timeoutCount;
+
+  private final LatencyHistogram completionLatency;
+
+  private final LatencyHistogram commitLatency;
+
+  private volatile long defaultTimeoutNanos;
+
+  private final ThreadLocal<ThreadState> threadState;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link TransactionMetrics} that does not know the
+   * default transaction timeout and so counts timeouts only for
+   * transactions begun after an explicit {@linkplain
+   * javax.transaction.TransactionManager#setTransactionTimeout(int)
+   * transaction timeout} was set.
+   */
+  public TransactionMetrics() {
+    this(0);
+  }
+
+  /**
+   * Creates a new {@link TransactionMetrics}.
+   *
+   * @param defaultTimeoutSeconds the timeout, in seconds, of
+   * transactions begun on threads for which no {@linkplain
+   * javax.transaction.TransactionManager#setTransactionTimeout(int)
+   * transaction timeout} has been set; a value less than or equal to
+   * {@code 0} indicates that such transactions do not time out
+   */
+  public TransactionMetrics(final int defaultTimeoutSeconds) {
+    super();
+    this.beginCount = new LongAdder();
+    this.commitCount = new LongAdder();
+    this.rollbackCount = new LongAdder();
+    this.heuristicCount = new LongAdder();
+    this.timeoutCount = new LongAdder();
+    this.completionLatency = new LatencyHistogram();
+    this.commitLatency = new LatencyHistogram();
+    this.defaultTimeoutNanos = defaultTimeoutSeconds <= 0 ? 0L : TimeUnit.SECONDS.toNanos(defaultTimeoutSeconds);
+    this.threadState = ThreadLocal.withInitial(ThreadState::new);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getBeginCount() {
+    return this.beginCount.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getCommitCount() {
+    return this.commitCount.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getRollbackCount() {
+    return this.rollbackCount.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getHeuristicCount() {
+    return this.heuristicCount.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getTimeoutCount() {
+    return this.timeoutCount.sum();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final LatencyDistribution getCompletionLatency() {
+    return this.completionLatency.snapshot();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final LatencyDistribution getCommitLatency() {
+    return this.commitLatency.snapshot();
+  }
+
+  /**
+   * Returns a new {@link TransactionMetricsSnapshot} reflecting the
+   * current state of this {@link TransactionMetrics}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a new {@link TransactionMetricsSnapshot}; never {@code
+   * null}
+   */
+  public final TransactionMetricsSnapshot snapshot() {
+    return new TransactionMetricsSnapshot(this.getBeginCount(),
+                                          this.getCommitCount(),
+                                          this.getRollbackCount(),
+                                          this.getHeuristicCount(),
+                                          this.getTimeoutCount(),
+                                          this.getCompletionLatency(),
+                                          this.getCommitLatency());
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * TransactionMetrics}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String} representation of this
+   * {@link TransactionMetrics}
+   */
+  @Override
+  public final String toString() {
+    return this.snapshot().toString();
+  }
+
+
+  /*
+   * Recording methods.
+   */
+
+
+  /**
+   * Records the default transaction timeout, which applies to
+   * transactions begun on threads for which no {@linkplain
+   * #transactionTimeoutSet(int) transaction timeout} has been set.
+   *
+   * <p>This allows a {@link TransactionMetrics} to be created before
+   * the transaction manager's configuration has been read.</p>
+   *
+   * @param seconds the default timeout in seconds; a value less than
+   * or equal to {@code 0} indicates that such transactions do not
+   * time out
+   */
+  final void defaultTimeoutSet(final int seconds) {
+    this.defaultTimeoutNanos = seconds <= 0 ? 0L : TimeUnit.SECONDS.toNanos(seconds);
+  }
+
+  /**
+   * Records that the current thread's transaction timeout has been
+   * set.
+   *
+   * @param seconds the new timeout in seconds; {@code 0} restores
+   * the default
+   */
+  final void transactionTimeoutSet(final int seconds) {
+    this.threadState.get().timeoutNanos = seconds <= 0 ? 0L : TimeUnit.SECONDS.toNanos(seconds);
+  }
+
+  /**
+   * Records that a transaction has been begun on the current thread.
+   */
+  final void begun() {
+    this.beginCount.increment();
+    final ThreadState threadState = this.threadState.get();
+    threadState.beginNanos = System.nanoTime();
+    threadState.active = true;
+    threadState.attachedTimeoutNanos = -1L;
+  }
+
+  /**
+   * Records that the transaction on the current thread has been
+   * committed.
+   *
+   * @param commitStartNanos the value of {@link System#nanoTime()}
+   * when the attempt to commit began
+   */
+  final void committed(final long commitStartNanos) {
+    final long now = System.nanoTime();
+    this.commitCount.increment();
+    this.commitLatency.record(now - commitStartNanos);
+    this.completed(now);
+  }
+
+  /**
+   * Records that an attempt to commit the transaction on the current
+   * thread resulted in its being rolled back.
+   *
+   * @param commitStartNanos the value of {@link System#nanoTime()}
+   * when the attempt to commit began
+   */
+  final void commitRolledBack(final long commitStartNanos) {
+    final long now = System.nanoTime();
+    this.commitLatency.record(now - commitStartNanos);
+    this.rolledBack(now);
+  }
+
+  /**
+   * Records that an attempt to commit the transaction on the current
+   * thread resulted in a heuristic outcome.
+   *
+   * @param commitStartNanos the value of {@link System#nanoTime()}
+   * when the attempt to commit began
+   */
+  final void commitHeuristic(final long commitStartNanos) {
+    final long now = System.nanoTime();
+    this.heuristicCount.increment();
+    this.commitLatency.record(now - commitStartNanos);
+    this.completed(now);
+  }
+
+  /**
+   * Records that the transaction on the current thread has been
+   * rolled back.
+   */
+  final void rolledBack() {
+    this.rolledBack(System.nanoTime());
+  }
+
+  /**
+   * Detaches the recording state of the transaction on the current
+   * thread so that it may be {@linkplain #attach(Object) attached} to
+   * another thread that will complete the transaction.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return an opaque object representing the detached state, or
+   * {@code null} if there was none
+   *
+   * @see #attach(Object)
+   */
+  final Object detach() {
+    final ThreadState threadState = this.threadState.get();
+    if (!threadState.active) {
+      return null;
+    }
+    threadState.active = false;
+    final ThreadState returnValue = new ThreadState();
+    returnValue.active = true;
+    returnValue.beginNanos = threadState.beginNanos;
+    returnValue.timeoutNanos = threadState.timeoutNanos;
+    return returnValue;
+  }
+
+  /**
+   * Attaches recording state previously {@linkplain #detach()
+   * detached} from another thread to the current thread.
+   *
+   * <p>The timeout of the transaction is taken from the detached
+   * state; the current thread's own {@linkplain
+   * #transactionTimeoutSet(int) transaction timeout} is not
+   * disturbed.</p>
+   *
+   * @param detachedState the object returned by {@link #detach()};
+   * may be {@code null} in which case no action is taken
+   *
+   * @see #detach()
+   */
+  final void attach(final Object detachedState) {
+    if (detachedState instanceof ThreadState) {
+      final ThreadState source = (ThreadState)detachedState;
+      final ThreadState threadState = this.threadState.get();
+      threadState.active = true;
+      threadState.beginNanos = source.beginNanos;
+      threadState.attachedTimeoutNanos = source.timeoutNanos;
+    }
+  }
+
+  /**
+   * Returns the time in nanoseconds since the transaction on the
+   * current thread was begun, or {@code -1} if it was not begun on,
+   * or {@linkplain #attach(Object) attached} to, the current thread.
+   *
+   * @return the elapsed time in nanoseconds, or {@code -1}
+   */
+  final long elapsedNanos() {
+    final ThreadState threadState = this.threadState.get();
+    return threadState.active ? System.nanoTime() - threadState.beginNanos : -1L;
+  }
+
+  /**
+   * Records that the transaction on the current thread has reached
+   * an unknown state, or is no longer associated with the current
+   * thread, so that no further latency should be recorded for it.
+   */
+  final void abandoned() {
+    final ThreadState threadState = this.threadState.get();
+    threadState.active = false;
+    threadState.attachedTimeoutNanos = -1L;
+  }
+
+  private final void rolledBack(final long now) {
+    this.rollbackCount.increment();
+    final ThreadState threadState = this.threadState.get();
+    if (threadState.active) {
+      final long threadTimeoutNanos =
+        threadState.attachedTimeoutNanos >= 0L ? threadState.attachedTimeoutNanos : threadState.timeoutNanos;
+      final long timeoutNanos = threadTimeoutNanos > 0L ? threadTimeoutNanos : this.defaultTimeoutNanos;
+      if (timeoutNanos > 0L && now - threadState.beginNanos >= timeoutNanos) {
+        this.timeoutCount.increment();
+      }
+    }
+    this.completed(now);
+  }
+
+  private final void completed(final long now) {
+    final ThreadState threadState = this.threadState.get();
+    if (threadState.active) {
+      threadState.active = false;
+      this.completionLatency.record(now - threadState.beginNanos);
+    }
+    threadState.attachedTimeoutNanos = -1L;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Mutable, per-thread recording state.
+   */
+  private static final class ThreadState {
+
+    private boolean active;
+
+    private long beginNanos;
+
+    private long timeoutNanos;
+
+    private long attachedTimeoutNanos;
+
+    private ThreadState() {
+      super();
+      this.attachedTimeoutNanos = -1L;
+    }
+
+  }
+
+}
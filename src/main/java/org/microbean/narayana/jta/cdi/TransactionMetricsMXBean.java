@@ -0,0 +1,93 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+/**
+ * The management interface through which {@link TransactionMetrics}
+ * are exposed via JMX.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionMetrics
+ *
+ * @see TransactionMetricsSnapshot
+ */
+public interface TransactionMetricsMXBean {
+
+  /**
+   * Returns the number of transactions that have been begun.
+   *
+   * @return the number of transactions that have been begun
+   */
+  long getBeginCount();
+
+  /**
+   * Returns the number of transactions that have been committed.
+   *
+   * @return the number of transactions that have been committed
+   */
+  long getCommitCount();
+
+  /**
+   * Returns the number of transactions that have been rolled back,
+   * whether explicitly or because an attempt to commit them failed.
+   *
+   * @return the number of transactions that have been rolled back
+   */
+  long getRollbackCount();
+
+  /**
+   * Returns the number of transactions whose completion resulted in
+   * a heuristic outcome.
+   *
+   * @return the number of transactions with heuristic outcomes
+   */
+  long getHeuristicCount();
+
+  /**
+   * Returns the number of transactions that were rolled back, when
+   * an attempt was made to commit them, after their timeout had
+   * elapsed.
+   *
+   * @return the number of transactions that timed out
+   */
+  long getTimeoutCount();
+
+  /**
+   * Returns the distribution of the elapsed times between the
+   * beginning of a transaction and its completion.
+   *
+   * <p>Implementations of this method must not return {@code
+   * null}.</p>
+   *
+   * @return a {@link LatencyDistribution}; never {@code null}
+   */
+  LatencyDistribution getCompletionLatency();
+
+  /**
+   * Returns the distribution of the durations of attempts to commit
+   * transactions.
+   *
+   * <p>Implementations of this method must not return {@code
+   * null}.</p>
+   *
+   * @return a {@link LatencyDistribution}; never {@code null}
+   */
+  LatencyDistribution getCommitLatency();
+
+}
@@ -0,0 +1,171 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Objects;
+
+/**
+ * An immutable, point-in-time copy of {@link TransactionMetrics}.
+ *
+ * <p>An instance of this class may be injected; each injection
+ * yields a fresh snapshot.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is immutable and therefore safe for concurrent use
+ * by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionMetrics#snapshot()
+ */
+public final class TransactionMetricsSnapshot implements TransactionMetricsMXBean {
+
+  private final long beginCount;
+
+  private final long commitCount;
+
+  private final long rollbackCount;
+
+  private final long heuristicCount;
+
+  private final long timeoutCount;
+
+  private final LatencyDistribution completionLatency;
+
+  private final LatencyDistribution commitLatency;
+
+  /**
+   * Creates a new {@link TransactionMetricsSnapshot}.
+   *
+   * @param beginCount the number of transactions begun
+   *
+   * @param commitCount the number of transactions committed
+   *
+   * @param rollbackCount the number of transactions rolled back
+   *
+   * @param heuristicCount the number of transactions with heuristic
+   * outcomes
+   *
+   * @param timeoutCount the number of transactions that timed out
+   *
+   * @param completionLatency the distribution of begin-to-completion
+   * latencies; must not be {@code null}
+   *
+   * @param commitLatency the distribution of commit latencies; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if either {@code
+   * completionLatency} or {@code commitLatency} is {@code null}
+   */
+  TransactionMetricsSnapshot(final long beginCount,
+                             final long commitCount,
+                             final long rollbackCount,
+                             final long heuristicCount,
+                             final long timeoutCount,
+                             final LatencyDistribution completionLatency,
+                             final LatencyDistribution commitLatency) {
+    super();
+    this.beginCount = beginCount;
+    this.commitCount = commitCount;
+    this.rollbackCount = rollbackCount;
+    this.heuristicCount = heuristicCount;
+    this.timeoutCount = timeoutCount;
+    this.completionLatency = Objects.requireNonNull(completionLatency);
+    this.commitLatency = Objects.requireNonNull(commitLatency);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getBeginCount() {
+    return this.beginCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getCommitCount() {
+    return this.commitCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getRollbackCount() {
+    return this.rollbackCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getHeuristicCount() {
+    return this.heuristicCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final long getTimeoutCount() {
+    return this.timeoutCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final LatencyDistribution getCompletionLatency() {
+    return this.completionLatency;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public final LatencyDistribution getCommitLatency() {
+    return this.commitLatency;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * TransactionMetricsSnapshot}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String} representation of this
+   * {@link TransactionMetricsSnapshot}
+   */
+  @Override
+  public final String toString() {
+    return new StringBuilder("begun=").append(this.beginCount)
+      .append(", committed=").append(this.commitCount)
+      .append(", rolledBack=").append(this.rollbackCount)
+      .append(", heuristic=").append(this.heuristicCount)
+      .append(", timedOut=").append(this.timeoutCount)
+      .append(", completionLatency={").append(this.completionLatency)
+      .append("}, commitLatency={").append(this.commitLatency)
+      .append("}")
+      .toString();
+  }
+
+}
@@ -0,0 +1,75 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+/**
+ * The outcome of an attempt to complete a transaction.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+public enum TransactionOutcome {
+
+  /**
+   * The transaction was committed.
+   */
+  COMMITTED,
+
+  /**
+   * The transaction was rolled back, either explicitly or because it
+   * could not be committed.
+   *
+   * @see javax.transaction.RollbackException
+   */
+  ROLLED_BACK,
+
+  /**
+   * A heuristic decision was made and some relevant updates were
+   * committed while others were rolled back.
+   *
+   * @see javax.transaction.HeuristicMixedException
+   */
+  HEURISTIC_MIXED,
+
+  /**
+   * A heuristic decision was made and all relevant updates were
+   * rolled back.
+   *
+   * @see javax.transaction.HeuristicRollbackException
+   */
+  HEURISTIC_ROLLBACK,
+
+  /**
+   * The outcome could not be determined, typically because the
+   * attempt to complete the transaction failed with a {@link
+   * javax.transaction.SystemException} or an unexpected {@link
+   * RuntimeException}.
+   */
+  UNKNOWN;
+
+  /**
+   * Returns {@code true} if this {@link TransactionOutcome} is the
+   * result of a heuristic decision.
+   *
+   * @return {@code true} if this {@link TransactionOutcome} is
+   * heuristic
+   */
+  public final boolean isHeuristic() {
+    return this == HEURISTIC_MIXED || this == HEURISTIC_ROLLBACK;
+  }
+
+}
@@ -0,0 +1,77 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.enterprise.util.AnnotationLiteral;
+
+import javax.inject.Qualifier;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * A {@link Qualifier} that identifies the {@link
+ * TransactionPropagatingExecutorService} bean added by the {@link
+ * NarayanaExtension}.
+ *
+ * <p>Typical usage:</p>
+ *
+ * <blockquote><pre>&#64;Inject
+ *&#64;TransactionPropagating
+ *private ExecutorService executorService;</pre></blockquote>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionPropagatingExecutorService
+ */
+@Documented
+@Qualifier
+@Retention(RUNTIME)
+@Target({ FIELD, METHOD, PARAMETER, TYPE })
+public @interface TransactionPropagating {
+
+  /**
+   * An {@link AnnotationLiteral} that implements {@link
+   * TransactionPropagating}.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  public static final class Literal extends AnnotationLiteral<TransactionPropagating> implements TransactionPropagating {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The sole instance of this class.
+     */
+    public static final TransactionPropagating INSTANCE = new Literal();
+
+    private Literal() {
+      super();
+    }
+
+  }
+
+}
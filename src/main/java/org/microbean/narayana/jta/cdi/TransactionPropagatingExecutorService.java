@@ -0,0 +1,253 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * An {@link ExecutorService} that runs each submitted task in the
+ * transaction that was associated with the submitting thread at the
+ * time the task was submitted.
+ *
+ * <p>When a task is submitted, the current {@link Transaction} is
+ * captured.  When the task runs, the worker thread's own
+ * transaction, if any, is {@linkplain TransactionManager#suspend()
+ * suspended}, the captured {@link Transaction} is {@linkplain
+ * TransactionManager#resume(Transaction) resumed}, and, once the task
+ * has finished, the worker thread's previous state is restored.  A
+ * task submitted by a thread with no transaction runs with no
+ * transaction.</p>
+ *
+ * <p>This permits independent work to be fanned out across several
+ * threads while remaining inside a single transaction.  The
+ * submitting thread must wait for the tasks it has submitted to
+ * finish before it commits or rolls back the transaction.</p>
+ *
+ * <p>An instance of this class is available as a bean with the
+ * {@link TransactionPropagating} qualifier.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionPropagating
+ */
+public final class TransactionPropagatingExecutorService extends AbstractExecutorService {
+
+  private final ExecutorService delegate;
+
+  private final TransactionManager transactionManager;
+
+  /**
+   * Creates a new {@link TransactionPropagatingExecutorService}.
+   *
+   * @param delegate the {@link ExecutorService} that will actually
+   * run tasks; must not be {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} used to
+   * capture and re-associate transactions; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public TransactionPropagatingExecutorService(final ExecutorService delegate,
+                                               final TransactionManager transactionManager) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+    this.transactionManager = Objects.requireNonNull(transactionManager);
+  }
+
+  /**
+   * Arranges for the supplied {@link Runnable} to be run in the
+   * transaction associated with the current thread, if any.
+   *
+   * @param runnable the {@link Runnable} to run; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code runnable} is {@code
+   * null}
+   *
+   * @exception RejectedExecutionException if the task could not be
+   * accepted, or if the current transaction could not be determined
+   */
+  @Override
+  public final void execute(final Runnable runnable) {
+    Objects.requireNonNull(runnable);
+    final Transaction transaction;
+    try {
+      transaction = this.transactionManager.getTransaction();
+    } catch (final SystemException systemException) {
+      throw new RejectedExecutionException(systemException.getMessage(), systemException);
+    }
+    this.delegate.execute(new TransactionPropagatingRunnable(this.transactionManager, transaction, runnable));
+  }
+
+  /**
+   * Initiates an orderly shutdown of the underlying {@link
+   * ExecutorService}.
+   *
+   * @see ExecutorService#shutdown()
+   */
+  @Override
+  public final void shutdown() {
+    this.delegate.shutdown();
+  }
+
+  /**
+   * Attempts to stop all actively executing tasks and returns those
+   * that were awaiting execution.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link List} of tasks that never
+   * commenced execution
+   *
+   * @see ExecutorService#shutdownNow()
+   */
+  @Override
+  public final List<Runnable> shutdownNow() {
+    return this.delegate.shutdownNow();
+  }
+
+  /**
+   * Returns {@code true} if this {@link
+   * TransactionPropagatingExecutorService} has been shut down.
+   *
+   * @return {@code true} if this {@link
+   * TransactionPropagatingExecutorService} has been shut down
+   */
+  @Override
+  public final boolean isShutdown() {
+    return this.delegate.isShutdown();
+  }
+
+  /**
+   * Returns {@code true} if all tasks have completed following shut
+   * down.
+   *
+   * @return {@code true} if all tasks have completed following shut
+   * down
+   */
+  @Override
+  public final boolean isTerminated() {
+    return this.delegate.isTerminated();
+  }
+
+  /**
+   * Blocks until all tasks have completed execution after a shutdown
+   * request, or the timeout occurs, or the current thread is
+   * interrupted, whichever happens first.
+   *
+   * @param timeout the maximum time to wait
+   *
+   * @param unit the {@link TimeUnit} of the {@code timeout} argument;
+   * must not be {@code null}
+   *
+   * @return {@code true} if this {@link
+   * TransactionPropagatingExecutorService} terminated and {@code
+   * false} if the timeout elapsed before termination
+   *
+   * @exception InterruptedException if interrupted while waiting
+   */
+  @Override
+  public final boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return this.delegate.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * TransactionPropagatingExecutorService}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return this.getClass().getSimpleName() + "[" + this.delegate + "]";
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class TransactionPropagatingRunnable implements Runnable {
+
+    private final TransactionManager transactionManager;
+
+    private final Transaction transaction;
+
+    private final Runnable delegate;
+
+    private TransactionPropagatingRunnable(final TransactionManager transactionManager,
+                                           final Transaction transaction,
+                                           final Runnable delegate) {
+      super();
+      this.transactionManager = transactionManager;
+      this.transaction = transaction;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public final void run() {
+      final TransactionManager transactionManager = this.transactionManager;
+      final Transaction transaction = this.transaction;
+      final Transaction previousTransaction;
+      try {
+        previousTransaction = transactionManager.suspend();
+      } catch (final SystemException systemException) {
+        throw new IllegalStateException(systemException.getMessage(), systemException);
+      }
+      try {
+        if (transaction == null) {
+          this.delegate.run();
+        } else {
+          transactionManager.resume(transaction);
+          try {
+            this.delegate.run();
+          } finally {
+            transactionManager.suspend();
+          }
+        }
+      } catch (final InvalidTransactionException | SystemException exception) {
+        throw new IllegalStateException(exception.getMessage(), exception);
+      } finally {
+        if (previousTransaction != null) {
+          try {
+            transactionManager.resume(previousTransaction);
+          } catch (final InvalidTransactionException | SystemException exception) {
+            throw new IllegalStateException(exception.getMessage(), exception);
+          }
+        }
+      }
+    }
+
+  }
+
+}
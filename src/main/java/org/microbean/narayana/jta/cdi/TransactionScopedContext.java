@@ -0,0 +1,581 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.annotation.Annotation;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+
+import java.util.function.Supplier;
+
+import javax.enterprise.context.ContextNotActiveException;
+
+import javax.enterprise.context.spi.AlterableContext;
+import javax.enterprise.context.spi.Contextual;
+import javax.enterprise.context.spi.CreationalContext;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionScoped;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * An {@link AlterableContext} for {@linkplain TransactionScoped
+ * transaction-scoped} beans that stores contextual instances in a
+ * compact per-transaction array indexed by bean.
+ *
+ * <p>Each {@linkplain TransactionScoped transaction-scoped} bean is
+ * {@linkplain #register(Contextual) assigned} a fixed slot index when
+ * it is discovered, and slot indices are looked up by the identity
+ * of the {@link Contextual} in an immutable open-addressed table, so
+ * no {@link java.util.Map} is consulted when a contextual instance
+ * is retrieved.  A {@link Contextual} that was not registered at
+ * discovery time is assigned a slot the first time it is seen.  The
+ * contextual instances of a transaction are held in an array that is
+ * attached to the transaction with a {@link TransactionLocal} and
+ * that is {@linkplain
+ * TransactionSynchronizationRegistry#registerInterposedSynchronization(Synchronization)
+ * registered} to destroy them when the transaction completes.
+ * Retrieving an existing contextual instance therefore costs a
+ * {@linkplain TransactionSynchronizationRegistry#getTransactionKey()
+ * transaction key} comparison, a short identity probe and two array
+ * reads, and takes no lock.</p>
+ *
+ * <p>Narayana refuses to register synchronizations with a
+ * transaction that has been {@linkplain Status#STATUS_MARKED_ROLLBACK
+ * marked for rollback}, although this context remains active for such
+ * a transaction.  If the first contextual instance in such a
+ * transaction is requested after it has been so marked, the instance
+ * is created and retained for the rest of the transaction as usual,
+ * but it cannot be destroyed when the transaction completes.</p>
+ *
+ * <p>This context is added by the {@link NarayanaExtension} only if
+ * the {@code
+ * org.microbean.narayana.jta.cdi.transactionScopedContext.enabled}
+ * system property is {@code true}, and cannot be used together with
+ * Narayana's own {@code com.arjuna.ats.jta.cdi.TransactionExtension},
+ * which adds a context for the same scope.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads,
+ * including multiple threads associated with the same
+ * transaction.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionScoped
+ *
+ * @see TransactionLocal
+ */
+final class TransactionScopedContext implements AlterableContext {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final Supplier<? extends TransactionSynchronizationRegistry> registrySupplier;
+
+  private volatile Slots slots; // written while holding this object's monitor
+
+  private volatile TransactionSynchronizationRegistry registry;
+
+  private volatile TransactionLocal<Instances> instances;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link TransactionScopedContext}.
+   *
+   * @param registrySupplier a {@link Supplier} of the {@link
+   * TransactionSynchronizationRegistry} to use, which is invoked the
+   * first time this context is used rather than at construction time
+   * so that Narayana need not be initialized while the container is
+   * starting; must not be {@code null}
+   *
+   * @param contextuals the {@link Contextual}s discovered so far
+   * whose scope is {@link TransactionScoped}, each of which will be
+   * {@linkplain #register(Contextual) registered}; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  TransactionScopedContext(final Supplier<? extends TransactionSynchronizationRegistry> registrySupplier,
+                           final Collection<? extends Contextual<?>> contextuals) {
+    super();
+    this.registrySupplier = Objects.requireNonNull(registrySupplier);
+    this.slots = Slots.EMPTY;
+    for (final Contextual<?> contextual : contextuals) {
+      this.register(contextual);
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns {@link TransactionScoped TransactionScoped.class} when
+   * invoked.
+   *
+   * @return {@link TransactionScoped TransactionScoped.class}
+   */
+  @Override
+  public final Class<? extends Annotation> getScope() {
+    return TransactionScoped.class;
+  }
+
+  /**
+   * Returns {@code true} if a transaction that has not yet completed
+   * is associated with the current thread.
+   *
+   * @return {@code true} if this context is active; {@code false}
+   * otherwise
+   */
+  @Override
+  public final boolean isActive() {
+    switch (this.registry().getTransactionStatus()) {
+    case Status.STATUS_ACTIVE:
+    case Status.STATUS_MARKED_ROLLBACK:
+    case Status.STATUS_PREPARED:
+    case Status.STATUS_UNKNOWN:
+    case Status.STATUS_PREPARING:
+    case Status.STATUS_COMMITTING:
+    case Status.STATUS_ROLLING_BACK:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Returns the contextual instance of the supplied {@link
+   * Contextual} in the current transaction, creating it if necessary.
+   *
+   * @param <T> the type of the contextual instance
+   *
+   * @param contextual the {@link Contextual}; must not be {@code
+   * null}
+   *
+   * @param creationalContext the {@link CreationalContext} to use if
+   * the contextual instance must be created; may be {@code null} in
+   * which case no contextual instance will be created
+   *
+   * @return the contextual instance, or {@code null}
+   *
+   * @exception ContextNotActiveException if this context is not
+   * {@linkplain #isActive() active}
+   */
+  @Override
+  public final <T> T get(final Contextual<T> contextual, final CreationalContext<T> creationalContext) {
+    final int index = this.index(contextual);
+    if (creationalContext == null) {
+      final Instances instances = this.existingInstances();
+      return instances == null ? null : instances.get(index);
+    }
+    final Instances instances = this.instances();
+    final T instance = instances.get(index);
+    if (instance != null) {
+      return instance;
+    }
+    if (!this.isActive()) {
+      throw new ContextNotActiveException(TransactionScoped.class.getName());
+    }
+    return instances.create(index, contextual, creationalContext);
+  }
+
+  /**
+   * Returns the contextual instance of the supplied {@link
+   * Contextual} in the current transaction, or {@code null} if there
+   * is none.
+   *
+   * @param <T> the type of the contextual instance
+   *
+   * @param contextual the {@link Contextual}; must not be {@code
+   * null}
+   *
+   * @return the contextual instance, or {@code null}
+   *
+   * @exception ContextNotActiveException if this context is not
+   * {@linkplain #isActive() active}
+   */
+  @Override
+  public final <T> T get(final Contextual<T> contextual) {
+    return this.get(contextual, null);
+  }
+
+  /**
+   * Destroys the contextual instance of the supplied {@link
+   * Contextual} in the current transaction, if there is one.
+   *
+   * @param contextual the {@link Contextual}; must not be {@code
+   * null}
+   *
+   * @exception ContextNotActiveException if this context is not
+   * {@linkplain #isActive() active}
+   */
+  @Override
+  public final void destroy(final Contextual<?> contextual) {
+    final int index = this.index(contextual);
+    final Instances instances = this.existingInstances();
+    if (instances != null) {
+      instances.destroy(index);
+    }
+  }
+
+  /**
+   * Assigns a slot index to the supplied {@link Contextual} if it
+   * does not already have one.
+   *
+   * <p>This method is normally called while the container is
+   * starting, once for each bean whose scope is {@link
+   * TransactionScoped}.</p>
+   *
+   * @param contextual the {@link Contextual}; must not be {@code
+   * null}
+   *
+   * @return the slot index of the supplied {@link Contextual}
+   *
+   * @exception NullPointerException if {@code contextual} is {@code
+   * null}
+   */
+  final synchronized int register(final Contextual<?> contextual) {
+    Objects.requireNonNull(contextual);
+    final Slots slots = this.slots;
+    final int index = slots.indexOf(contextual);
+    if (index >= 0) {
+      return index;
+    }
+    this.slots = slots.with(contextual);
+    return slots.size();
+  }
+
+  /**
+   * Releases the {@link TransactionLocal} slot used by this {@link
+   * TransactionScopedContext}.
+   *
+   * <p>Once this method has been called, the {@link #get(Contextual,
+   * CreationalContext)}, {@link #get(Contextual)} and {@link
+   * #destroy(Contextual)} methods throw {@link
+   * ContextNotActiveException}.</p>
+   */
+  final synchronized void close() {
+    final TransactionLocal<Instances> instances = this.instances;
+    if (instances != null) {
+      instances.close();
+    }
+  }
+
+  private final int index(final Contextual<?> contextual) {
+    final int index = this.slots.indexOf(Objects.requireNonNull(contextual));
+    return index >= 0 ? index : this.register(contextual);
+  }
+
+  private final Instances instances() {
+    TransactionLocal<Instances> instances = this.instances;
+    if (instances == null) {
+      final TransactionSynchronizationRegistry registry = this.registry();
+      synchronized (this) {
+        instances = this.instances;
+        if (instances == null) {
+          instances = TransactionLocal.withInitial(registry, () -> {
+              final Instances newInstances = new Instances();
+              try {
+                registry.registerInterposedSynchronization(newInstances);
+              } catch (final IllegalStateException rejected) {
+                if (registry.getTransactionStatus() != Status.STATUS_MARKED_ROLLBACK) {
+                  throw rejected;
+                }
+                // Narayana accepts no synchronizations once a
+                // transaction has been marked for rollback, but the
+                // transaction, and so this context, is still active.
+              }
+              return newInstances;
+            });
+          this.instances = instances;
+        }
+      }
+    }
+    try {
+      return instances.get();
+    } catch (final IllegalStateException notActive) {
+      throw new ContextNotActiveException(TransactionScoped.class.getName(), notActive);
+    }
+  }
+
+  // Returns null if no contextual instance has been created in the
+  // current transaction, without creating anything.
+  private final Instances existingInstances() {
+    final TransactionLocal<Instances> instances = this.instances;
+    if (instances == null) {
+      if (!this.isActive()) {
+        throw new ContextNotActiveException(TransactionScoped.class.getName());
+      }
+      return null;
+    }
+    try {
+      return instances.getIfPresent();
+    } catch (final IllegalStateException notActive) {
+      throw new ContextNotActiveException(TransactionScoped.class.getName(), notActive);
+    }
+  }
+
+  private final TransactionSynchronizationRegistry registry() {
+    TransactionSynchronizationRegistry registry = this.registry;
+    if (registry == null) {
+      registry = Objects.requireNonNull(this.registrySupplier.get());
+      this.registry = registry;
+    }
+    return registry;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An immutable table of slot indices keyed by the identity of
+   * {@link Contextual}s, using open addressing with linear probing.
+   */
+  private static final class Slots {
+
+    private static final Slots EMPTY = new Slots(new Contextual<?>[16], new int[16], 0);
+
+    private final Contextual<?>[] keys; // length is a power of two, at most half full
+
+    private final int[] indices;
+
+    private final int size;
+
+    private Slots(final Contextual<?>[] keys, final int[] indices, final int size) {
+      super();
+      this.keys = keys;
+      this.indices = indices;
+      this.size = size;
+    }
+
+    private final int size() {
+      return this.size;
+    }
+
+    // Returns -1 if the contextual has no slot.
+    private final int indexOf(final Contextual<?> contextual) {
+      final Contextual<?>[] keys = this.keys;
+      final int mask = keys.length - 1;
+      int i = System.identityHashCode(contextual) & mask;
+      while (true) {
+        final Contextual<?> key = keys[i];
+        if (key == contextual) {
+          return this.indices[i];
+        } else if (key == null) {
+          return -1;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    // Returns a copy of this table in which the supplied contextual,
+    // which must not already be present, has the next slot index.
+    private final Slots with(final Contextual<?> contextual) {
+      final int size = this.size + 1;
+      int length = this.keys.length;
+      while (size * 2 > length) {
+        length *= 2;
+      }
+      final Contextual<?>[] keys = new Contextual<?>[length];
+      final int[] indices = new int[length];
+      for (int i = 0; i < this.keys.length; i++) {
+        if (this.keys[i] != null) {
+          put(keys, indices, this.keys[i], this.indices[i]);
+        }
+      }
+      put(keys, indices, contextual, this.size);
+      return new Slots(keys, indices, size);
+    }
+
+    private static final void put(final Contextual<?>[] keys,
+                                  final int[] indices,
+                                  final Contextual<?> contextual,
+                                  final int index) {
+      final int mask = keys.length - 1;
+      int i = System.identityHashCode(contextual) & mask;
+      while (keys[i] != null) {
+        i = (i + 1) & mask;
+      }
+      keys[i] = contextual;
+      indices[i] = index;
+    }
+
+  }
+
+  /**
+   * The contextual instances of a single transaction, which destroys
+   * them when the transaction completes.
+   *
+   * <p>Reads take no lock: the array is published through a {@code
+   * volatile} field and each {@link Instance} is immutable, so a
+   * reader either sees a fully constructed {@link Instance} or
+   * {@code null}, in which case it falls back to the locked path.</p>
+   */
+  private static final class Instances implements Synchronization {
+
+    private volatile Instance<?>[] instances;
+
+    private boolean destroyed; // guarded by this
+
+    private Instances() {
+      super();
+      this.instances = new Instance<?>[8];
+    }
+
+    @SuppressWarnings("unchecked")
+    private final <T> T get(final int index) {
+      final Instance<?>[] instances = this.instances;
+      if (index < instances.length) {
+        final Instance<?> instance = instances[index];
+        if (instance != null) {
+          return (T)instance.instance;
+        }
+      }
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private final synchronized <T> T create(final int index,
+                                            final Contextual<T> contextual,
+                                            final CreationalContext<T> creationalContext) {
+      if (this.destroyed) {
+        throw new ContextNotActiveException(TransactionScoped.class.getName());
+      }
+      Instance<?>[] instances = this.instances;
+      if (index < instances.length && instances[index] != null) {
+        return (T)instances[index].instance;
+      }
+      final T instance = contextual.create(creationalContext);
+      if (instance != null) {
+        if (index >= instances.length) {
+          instances = Arrays.copyOf(instances, Math.max(index + 1, instances.length * 2));
+        }
+        instances[index] = new Instance<>(contextual, instance, creationalContext);
+        this.instances = instances;
+      }
+      return instance;
+    }
+
+    private final void destroy(final int index) {
+      final Instance<?> instance;
+      synchronized (this) {
+        final Instance<?>[] instances = this.instances;
+        if (index >= instances.length || instances[index] == null) {
+          return;
+        }
+        instance = instances[index];
+        instances[index] = null;
+        this.instances = instances;
+      }
+      instance.destroy();
+    }
+
+    @Override
+    public final void beforeCompletion() {
+      // Contextual instances remain usable until the transaction has
+      // completed.
+    }
+
+    /**
+     * Destroys every contextual instance of the completed
+     * transaction.
+     *
+     * <p>Every contextual instance is destroyed even if the
+     * destruction of an earlier one fails; the first {@link
+     * RuntimeException} so thrown, with any others {@linkplain
+     * Throwable#addSuppressed(Throwable) suppressed}, is rethrown
+     * afterwards.</p>
+     *
+     * @param status the status of the completed transaction
+     */
+    @Override
+    public final void afterCompletion(final int status) {
+      final Instance<?>[] instances;
+      synchronized (this) {
+        this.destroyed = true;
+        instances = this.instances;
+        this.instances = new Instance<?>[0];
+      }
+      RuntimeException problem = null;
+      for (final Instance<?> instance : instances) {
+        if (instance != null) {
+          try {
+            instance.destroy();
+          } catch (final RuntimeException runtimeException) {
+            if (problem == null) {
+              problem = runtimeException;
+            } else {
+              problem.addSuppressed(runtimeException);
+            }
+          }
+        }
+      }
+      if (problem != null) {
+        throw problem;
+      }
+    }
+
+  }
+
+  /**
+   * An immutable contextual instance together with the {@link
+   * Contextual} that created it and its {@link CreationalContext}.
+   *
+   * @param <T> the type of the contextual instance
+   */
+  private static final class Instance<T> {
+
+    private final Contextual<T> contextual;
+
+    private final T instance;
+
+    private final CreationalContext<T> creationalContext;
+
+    private Instance(final Contextual<T> contextual, final T instance, final CreationalContext<T> creationalContext) {
+      super();
+      this.contextual = contextual;
+      this.instance = instance;
+      this.creationalContext = creationalContext;
+    }
+
+    private final void destroy() {
+      this.contextual.destroy(this.instance, this.creationalContext);
+    }
+
+  }
+
+}
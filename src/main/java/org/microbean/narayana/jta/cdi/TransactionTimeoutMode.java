@@ -0,0 +1,46 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+/**
+ * How transactions are timed out, selected with the {@code
+ * org.microbean.narayana.jta.cdi.transactionTimeouts} system
+ * property.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see NarayanaExtension
+ *
+ * @see TransactionTimeoutService
+ */
+enum TransactionTimeoutMode {
+
+  /**
+   * Transactions are timed out by Narayana's own transaction reaper,
+   * unless the application supplies a {@link
+   * TransactionTimeoutService}.
+   */
+  REAPER,
+
+  /**
+   * Transactions are timed out by a {@link
+   * TimingWheelTimeoutService}.
+   */
+  TIMING_WHEEL
+
+}
@@ -0,0 +1,110 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Transaction;
+
+/**
+ * A service that rolls back transactions that have not completed
+ * within their timeouts, used by a {@link
+ * DelegatingTransactionManager} in place of the transaction engine's
+ * own timeout mechanism.
+ *
+ * <p>If a bean of this type is available, the {@link
+ * javax.transaction.TransactionManager} made available by the {@link
+ * NarayanaExtension} uses it to time out the transactions it begins,
+ * and Narayana's transaction reaper is not used to do so.  Other
+ * transactions are still timed out by the reaper.  The {@link
+ * NarayanaExtension} supplies a {@link TimingWheelTimeoutService} if
+ * the {@code org.microbean.narayana.jta.cdi.transactionTimeouts}
+ * system property is {@code timingWheel}; an application may supply
+ * its own implementation as a bean instead.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>Implementations of this interface must be safe for concurrent
+ * use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TimingWheelTimeoutService
+ *
+ * @see
+ * DelegatingTransactionManager#DelegatingTransactionManager(javax.transaction.TransactionManager,
+ * TransactionMetrics, TransactionTimeoutService, int)
+ */
+public interface TransactionTimeoutService {
+
+  /**
+   * Arranges for the supplied {@link Transaction} to be rolled back
+   * if it is still active when the supplied timeout elapses, and
+   * returns a {@link Timeout} that can be used to cancel the
+   * arrangement.
+   *
+   * <p>Implementations of this method must not return {@code
+   * null}.</p>
+   *
+   * @param transaction the {@link Transaction} to time; must not be
+   * {@code null}
+   *
+   * @param timeout the timeout; must be positive
+   *
+   * @param unit the {@link TimeUnit} of the timeout; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link Timeout}
+   *
+   * @exception NullPointerException if {@code transaction} or {@code
+   * unit} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code timeout} is not
+   * positive
+   *
+   * @exception IllegalStateException if this {@link
+   * TransactionTimeoutService} has been shut down
+   */
+  Timeout schedule(final Transaction transaction, final long timeout, final TimeUnit unit);
+
+  /**
+   * A pending timeout {@linkplain #schedule(Transaction, long,
+   * TimeUnit) scheduled} by a {@link TransactionTimeoutService}.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see TransactionTimeoutService#schedule(Transaction, long,
+   * TimeUnit)
+   */
+  interface Timeout {
+
+    /**
+     * Cancels this {@link Timeout}, typically because its
+     * transaction has completed, so that its transaction will not be
+     * rolled back by the {@link TransactionTimeoutService} that
+     * scheduled it and is no longer referenced by it.
+     *
+     * <p>Invoking this method on a {@link Timeout} that has already
+     * been cancelled or has already expired has no effect.</p>
+     */
+    void cancel();
+
+  }
+
+}
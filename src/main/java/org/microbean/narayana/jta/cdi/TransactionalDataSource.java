@@ -0,0 +1,573 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.PrintWriter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import java.util.Objects;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.DataSource;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * A {@link DataSource} that hands out connections drawn from an
+ * {@link XADataSource} and enlists them in the current transaction.
+ *
+ * <p>The first time a connection is requested in a transaction, an
+ * {@link XAConnection} is taken from a small pool of idle ones, its
+ * {@link javax.transaction.xa.XAResource} is {@linkplain
+ * Transaction#enlistResource(javax.transaction.xa.XAResource)
+ * enlisted} in the transaction, and it is associated with the
+ * transaction by a {@link TransactionLocal}.  Every later request in
+ * the same transaction is given a handle to the same physical
+ * connection, so a transaction that uses one database through a
+ * {@link TransactionalDataSource} has a single branch, and can be
+ * committed in one phase without a transaction log record.  Closing
+ * such a handle does nothing; the {@link XAConnection} is returned to
+ * the pool once the transaction has completed, after which any handle
+ * to it that is still open throws an {@link SQLException} when
+ * used.</p>
+ *
+ * <p>A connection requested outside of a transaction is a plain,
+ * auto-committing connection that is returned to the pool when it is
+ * closed.</p>
+ *
+ * <p>The pool only recycles {@link XAConnection}s; it does not bound
+ * the number of them that are in use, validate them, or expire
+ * them.  An {@link XAConnection} whose driver has reported a
+ * {@linkplain ConnectionEventListener#connectionErrorOccurred(ConnectionEvent)
+ * connection error} is closed rather than returned to the pool.</p>
+ *
+ * <p>If the {@code
+ * org.microbean.narayana.jta.cdi.transactionalDataSource.enabled}
+ * system property is {@code true}, the {@link NarayanaExtension}
+ * makes an instance of this class available, in {@linkplain
+ * javax.inject.Singleton singleton scope} and with the same
+ * qualifiers, for every {@link XADataSource} bean for which there is
+ * no {@link DataSource} bean.</p>
+ *
+ * <h2>Thread Safety</h2>
+ *
+ * <p>This class is safe for concurrent use by multiple threads.  The
+ * connections it hands out are not: threads that share a transaction,
+ * such as those of a {@link TransactionPropagatingExecutorService},
+ * share its connection and must not use it at the same time.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionLocal
+ */
+public final class TransactionalDataSource implements DataSource, AutoCloseable {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final XADataSource xaDataSource;
+
+  private final TransactionManager transactionManager;
+
+  private final TransactionLocal<Lease> leases;
+
+  private final int maxIdle;
+
+  private final ConcurrentLinkedDeque<PooledConnection> idle;
+
+  private final AtomicInteger idleCount;
+
+  private volatile boolean closed;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link TransactionalDataSource}.
+   *
+   * @param xaDataSource the {@link XADataSource} from which physical
+   * connections are obtained; must not be {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} whose
+   * current transaction connections are enlisted in; must not be
+   * {@code null}
+   *
+   * @param transactionSynchronizationRegistry the {@link
+   * TransactionSynchronizationRegistry} used to associate connections
+   * with transactions; must not be {@code null}
+   *
+   * @param maxIdle the maximum number of idle {@link XAConnection}s
+   * kept for reuse; must not be negative
+   *
+   * @exception NullPointerException if any reference parameter is
+   * {@code null}
+   *
+   * @exception IllegalArgumentException if {@code maxIdle} is
+   * negative
+   */
+  public TransactionalDataSource(final XADataSource xaDataSource,
+                                 final TransactionManager transactionManager,
+                                 final TransactionSynchronizationRegistry transactionSynchronizationRegistry,
+                                 final int maxIdle) {
+    super();
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("maxIdle < 0: " + maxIdle);
+    }
+    this.xaDataSource = Objects.requireNonNull(xaDataSource);
+    this.transactionManager = Objects.requireNonNull(transactionManager);
+    this.leases = new TransactionLocal<>(transactionSynchronizationRegistry);
+    this.maxIdle = maxIdle;
+    this.idle = new ConcurrentLinkedDeque<>();
+    this.idleCount = new AtomicInteger();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns a {@link Connection} that is enlisted in the transaction
+   * associated with the current thread, or an auto-committing {@link
+   * Connection} if there is no such transaction.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Connection}
+   *
+   * @exception SQLException if this {@link TransactionalDataSource}
+   * has been {@linkplain #close() closed}, if a connection could not
+   * be obtained, or if the current transaction is marked for
+   * rollback, is completing, or could not be enlisted in
+   */
+  @Override
+  public final Connection getConnection() throws SQLException {
+    if (this.closed) {
+      throw new SQLException("closed");
+    }
+    final int status;
+    try {
+      status = this.transactionManager.getStatus();
+    } catch (final SystemException systemException) {
+      throw new SQLException(systemException.getMessage(), systemException);
+    }
+    switch (status) {
+    case Status.STATUS_NO_TRANSACTION:
+      return this.acquire().handle(false);
+    case Status.STATUS_ACTIVE:
+      Lease lease = this.leases.get();
+      if (lease == null) {
+        lease = this.enlist();
+        this.leases.set(lease);
+      }
+      return lease.handle(true);
+    default:
+      throw new SQLException("transaction is not active: status " + status);
+    }
+  }
+
+  /**
+   * Throws an {@link SQLFeatureNotSupportedException}, since physical
+   * connections are pooled and so cannot be obtained for arbitrary
+   * users.
+   *
+   * @param user ignored
+   *
+   * @param password ignored
+   *
+   * @return nothing
+   *
+   * @exception SQLFeatureNotSupportedException when invoked
+   */
+  @Override
+  public final Connection getConnection(final String user, final String password) throws SQLException {
+    throw new SQLFeatureNotSupportedException("getConnection(String, String)");
+  }
+
+  private final Lease enlist() throws SQLException {
+    final Lease lease = this.acquire();
+    try {
+      final Transaction transaction = this.transactionManager.getTransaction();
+      if (transaction == null) {
+        throw new SQLException("no transaction");
+      }
+      // Registering first means that a connection that has been
+      // enlisted is never released before the transaction completes.
+      transaction.registerSynchronization(lease);
+      if (!transaction.enlistResource(lease.pooledConnection.xaConnection.getXAResource())) {
+        throw new SQLException("could not enlist in transaction: " + transaction);
+      }
+    } catch (final RollbackException | SystemException | RuntimeException exception) {
+      lease.discard();
+      throw new SQLException(exception.getMessage(), exception);
+    } catch (final SQLException sqlException) {
+      lease.discard();
+      throw sqlException;
+    }
+    return lease;
+  }
+
+  private final Lease acquire() throws SQLException {
+    PooledConnection pooledConnection = this.idle.pollFirst();
+    if (pooledConnection == null) {
+      pooledConnection = new PooledConnection(this.xaDataSource.getXAConnection());
+    } else {
+      this.idleCount.decrementAndGet();
+    }
+    final Connection connection;
+    try {
+      connection = pooledConnection.xaConnection.getConnection();
+    } catch (final SQLException | RuntimeException exception) {
+      pooledConnection.close(exception);
+      throw exception;
+    }
+    return new Lease(pooledConnection, connection);
+  }
+
+  private final void release(final PooledConnection pooledConnection) {
+    if (!pooledConnection.broken && !this.closed) {
+      if (this.idleCount.incrementAndGet() <= this.maxIdle) {
+        this.idle.offerFirst(pooledConnection);
+        if (this.closed && this.idle.remove(pooledConnection)) {
+          // close() drained the pool before this connection was
+          // added to it.
+          this.idleCount.decrementAndGet();
+          pooledConnection.close(null);
+        }
+        return;
+      }
+      this.idleCount.decrementAndGet();
+    }
+    pooledConnection.close(null);
+  }
+
+  /**
+   * Returns the log writer of the underlying {@link XADataSource}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the log writer, or {@code null}
+   *
+   * @exception SQLException if a database access error occurs
+   */
+  @Override
+  public final PrintWriter getLogWriter() throws SQLException {
+    return this.xaDataSource.getLogWriter();
+  }
+
+  /**
+   * Sets the log writer of the underlying {@link XADataSource}.
+   *
+   * @param logWriter the new log writer; may be {@code null}
+   *
+   * @exception SQLException if a database access error occurs
+   */
+  @Override
+  public final void setLogWriter(final PrintWriter logWriter) throws SQLException {
+    this.xaDataSource.setLogWriter(logWriter);
+  }
+
+  /**
+   * Returns the login timeout of the underlying {@link XADataSource}.
+   *
+   * @return the login timeout in seconds
+   *
+   * @exception SQLException if a database access error occurs
+   */
+  @Override
+  public final int getLoginTimeout() throws SQLException {
+    return this.xaDataSource.getLoginTimeout();
+  }
+
+  /**
+   * Sets the login timeout of the underlying {@link XADataSource}.
+   *
+   * @param seconds the login timeout in seconds
+   *
+   * @exception SQLException if a database access error occurs
+   */
+  @Override
+  public final void setLoginTimeout(final int seconds) throws SQLException {
+    this.xaDataSource.setLoginTimeout(seconds);
+  }
+
+  /**
+   * Returns the parent {@link Logger} of the underlying {@link
+   * XADataSource}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Logger}
+   *
+   * @exception SQLFeatureNotSupportedException if the underlying
+   * {@link XADataSource} does not use {@code java.util.logging}
+   */
+  @Override
+  public final Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return this.xaDataSource.getParentLogger();
+  }
+
+  /**
+   * Returns this {@link TransactionalDataSource} or the underlying
+   * {@link XADataSource} if either is an instance of the supplied
+   * interface.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param <T> the type of the interface
+   *
+   * @param iface the interface; must not be {@code null}
+   *
+   * @return a non-{@code null} object implementing {@code iface}
+   *
+   * @exception SQLException if neither object implements {@code
+   * iface}
+   */
+  @Override
+  public final <T> T unwrap(final Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    } else if (iface.isInstance(this.xaDataSource)) {
+      return iface.cast(this.xaDataSource);
+    }
+    throw new SQLException("not a wrapper for " + iface);
+  }
+
+  /**
+   * Returns {@code true} if this {@link TransactionalDataSource} or
+   * the underlying {@link XADataSource} is an instance of the
+   * supplied interface.
+   *
+   * @param iface the interface; must not be {@code null}
+   *
+   * @return {@code true} if {@link #unwrap(Class)} would succeed
+   */
+  @Override
+  public final boolean isWrapperFor(final Class<?> iface) {
+    return iface.isInstance(this) || iface.isInstance(this.xaDataSource);
+  }
+
+  /**
+   * Closes the idle {@link XAConnection}s in the pool and prevents
+   * further connections from being handed out.
+   *
+   * <p>{@link XAConnection}s in use are closed when they are
+   * returned.  The {@link TransactionLocal} that tracks each
+   * transaction's connection is closed as well, so that its slot can
+   * be reused.</p>
+   */
+  @Override
+  public final void close() {
+    this.closed = true;
+    this.leases.close();
+    PooledConnection pooledConnection;
+    while ((pooledConnection = this.idle.pollFirst()) != null) {
+      this.idleCount.decrementAndGet();
+      pooledConnection.close(null);
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link XAConnection} that is pooled, together with whether
+   * its driver has reported that it is unusable.
+   */
+  private static final class PooledConnection implements ConnectionEventListener {
+
+    private final XAConnection xaConnection;
+
+    private volatile boolean broken;
+
+    private PooledConnection(final XAConnection xaConnection) {
+      super();
+      this.xaConnection = Objects.requireNonNull(xaConnection);
+      xaConnection.addConnectionEventListener(this);
+    }
+
+    @Override
+    public final void connectionClosed(final ConnectionEvent event) {
+
+    }
+
+    @Override
+    public final void connectionErrorOccurred(final ConnectionEvent event) {
+      this.broken = true;
+    }
+
+    private final void close(final Exception problem) {
+      this.broken = true;
+      try {
+        this.xaConnection.close();
+      } catch (final SQLException closeProblem) {
+        if (problem != null) {
+          problem.addSuppressed(closeProblem);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * One use of a {@link PooledConnection}, either for the lifetime
+   * of a transaction or until the sole handle to it is closed.
+   */
+  private final class Lease implements Synchronization {
+
+    private final PooledConnection pooledConnection;
+
+    private final Connection connection;
+
+    private final AtomicInteger released;
+
+    private Lease(final PooledConnection pooledConnection, final Connection connection) {
+      super();
+      this.pooledConnection = pooledConnection;
+      this.connection = connection;
+      this.released = new AtomicInteger();
+    }
+
+    private final Connection handle(final boolean transactional) {
+      return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                new Class<?>[] { Connection.class },
+                                                new Handle(this, transactional));
+    }
+
+    private final boolean isReleased() {
+      return this.released.get() != 0;
+    }
+
+    private final void release() {
+      if (this.released.compareAndSet(0, 1)) {
+        try {
+          this.connection.close();
+        } catch (final SQLException closeProblem) {
+          this.pooledConnection.broken = true;
+        }
+        TransactionalDataSource.this.release(this.pooledConnection);
+      }
+    }
+
+    // Releases this lease without returning its connection to the
+    // pool, since it may have been left partially enlisted.
+    private final void discard() {
+      this.pooledConnection.broken = true;
+      this.release();
+    }
+
+    @Override
+    public final void beforeCompletion() {
+
+    }
+
+    @Override
+    public final void afterCompletion(final int status) {
+      this.release();
+    }
+
+  }
+
+  /**
+   * The {@link InvocationHandler} behind each {@link Connection}
+   * handed out by a {@link TransactionalDataSource}.
+   */
+  private static final class Handle implements InvocationHandler {
+
+    private final Lease lease;
+
+    private final boolean transactional;
+
+    private volatile boolean closed;
+
+    private Handle(final Lease lease, final boolean transactional) {
+      super();
+      this.lease = lease;
+      this.transactional = transactional;
+    }
+
+    @Override
+    public final Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Throwable {
+      switch (method.getName()) {
+      case "close":
+        if (!this.closed) {
+          this.closed = true;
+          if (!this.transactional) {
+            this.lease.release();
+          }
+        }
+        return null;
+      case "isClosed":
+        return this.closed || this.lease.isReleased() || this.lease.connection.isClosed();
+      case "equals":
+        return proxy == arguments[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return "TransactionalDataSource connection handle [" + this.lease.connection + "]";
+      default:
+        break;
+      }
+      if (this.closed) {
+        throw new SQLException("connection is closed");
+      } else if (this.lease.isReleased()) {
+        throw new SQLException("connection is no longer associated with a transaction");
+      }
+      try {
+        return method.invoke(this.lease.connection, arguments);
+      } catch (final InvocationTargetException invocationTargetException) {
+        throw invocationTargetException.getCause();
+      }
+    }
+
+  }
+
+}
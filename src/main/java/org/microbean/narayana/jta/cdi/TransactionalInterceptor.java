@@ -0,0 +1,266 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.Method;
+
+import javax.annotation.Priority;
+
+import javax.inject.Inject;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionRequiredException;
+import javax.transaction.Transactional;
+import javax.transaction.TransactionalException;
+
+/**
+ * An interceptor that implements the semantics of the {@link
+ * Transactional} annotation for all of its {@linkplain
+ * Transactional.TxType transaction types}.
+ *
+ * <p>The {@link NarayanaExtension} makes {@link
+ * Transactional#value()} non-binding so that this single interceptor
+ * applies to every {@link Transactional}-annotated method, and
+ * resolves the {@link TransactionalMetadata} for each such method
+ * once, when the container starts.  Metadata that depends on the
+ * class of the target instance is resolved on the first invocation
+ * on an instance of that class and cached thereafter, so annotation
+ * reflection is never repeated.</p>
+ *
+ * <p>An exception thrown while resuming a transaction suspended for
+ * {@link Transactional.TxType#REQUIRES_NEW} or {@link
+ * Transactional.TxType#NOT_SUPPORTED} never replaces an exception
+ * thrown by the intercepted method; it is {@linkplain
+ * Throwable#addSuppressed(Throwable) added} to it instead.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Transactional
+ *
+ * @see TransactionalMetadata
+ */
+@Interceptor
+@Priority(Interceptor.Priority.PLATFORM_BEFORE + 200)
+@Transactional
+class TransactionalInterceptor {
+
+  private final NarayanaExtension extension;
+
+  private final NarayanaTransactionManager transactionManager;
+
+  /**
+   * Creates a new {@link TransactionalInterceptor}.
+   *
+   * @param extension the {@link NarayanaExtension} holding
+   * precomputed {@link TransactionalMetadata}; must not be {@code
+   * null}
+   *
+   * @param transactionManager the {@link NarayanaTransactionManager}
+   * used to demarcate transactions; must not be {@code null}
+   */
+  @Inject
+  private TransactionalInterceptor(final NarayanaExtension extension,
+                                   final NarayanaTransactionManager transactionManager) {
+    super();
+    this.extension = extension;
+    this.transactionManager = transactionManager;
+  }
+
+  /**
+   * Invokes the intercepted method according to the {@link
+   * Transactional} semantics in effect for it.
+   *
+   * @param invocationContext the {@link InvocationContext}
+   * representing the invocation; must not be {@code null}
+   *
+   * @return the result of the invocation
+   *
+   * @exception TransactionalException if a transaction could not be
+   * demarcated, if a transaction was required but absent, or if a
+   * transaction was forbidden but present
+   *
+   * @exception Exception if the intercepted method throws an
+   * exception
+   */
+  @AroundInvoke
+  private Object intercept(final InvocationContext invocationContext) throws Exception {
+    final Method method = invocationContext.getMethod();
+    TransactionalMetadata metadata = this.extension.getTransactionalMetadata(method);
+    if (metadata == null) {
+      final Object target = invocationContext.getTarget();
+      metadata = TransactionalMetadata.of(method, target == null ? null : target.getClass());
+    }
+    final NarayanaTransactionManager transactionManager = this.transactionManager;
+    final Transaction suspendedTransaction;
+    try {
+      switch (metadata.getTxType()) {
+      case REQUIRED:
+        if (transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION) {
+          return this.proceedInNewTransaction(invocationContext, metadata);
+        }
+        return this.proceedInCurrentTransaction(invocationContext, metadata);
+      case REQUIRES_NEW:
+        suspendedTransaction = transactionManager.suspend();
+        final Object newTransactionReturnValue;
+        try {
+          newTransactionReturnValue = this.proceedInNewTransaction(invocationContext, metadata);
+        } catch (final Exception | Error throwable) {
+          this.resume(suspendedTransaction, throwable);
+          throw throwable;
+        }
+        this.resume(suspendedTransaction, null);
+        return newTransactionReturnValue;
+      case MANDATORY:
+        if (transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION) {
+          throw new TransactionalException("TxType.MANDATORY", new TransactionRequiredException());
+        }
+        return this.proceedInCurrentTransaction(invocationContext, metadata);
+      case SUPPORTS:
+        if (transactionManager.getStatus() == Status.STATUS_NO_TRANSACTION) {
+          return invocationContext.proceed();
+        }
+        return this.proceedInCurrentTransaction(invocationContext, metadata);
+      case NOT_SUPPORTED:
+        suspendedTransaction = transactionManager.suspend();
+        final Object returnValue;
+        try {
+          returnValue = invocationContext.proceed();
+        } catch (final Exception | Error throwable) {
+          this.resume(suspendedTransaction, throwable);
+          throw throwable;
+        }
+        this.resume(suspendedTransaction, null);
+        return returnValue;
+      case NEVER:
+        if (transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION) {
+          throw new TransactionalException("TxType.NEVER", new InvalidTransactionException());
+        }
+        return invocationContext.proceed();
+      default:
+        throw new IllegalStateException("Unexpected TxType: " + metadata.getTxType());
+      }
+    } catch (final InvalidTransactionException | SystemException exception) {
+      throw new TransactionalException(exception.getMessage(), exception);
+    }
+  }
+
+  private final Object proceedInNewTransaction(final InvocationContext invocationContext,
+                                               final TransactionalMetadata metadata)
+    throws Exception {
+    final NarayanaTransactionManager transactionManager = this.transactionManager;
+    try {
+      transactionManager.begin();
+    } catch (final NotSupportedException | SystemException exception) {
+      throw new TransactionalException(exception.getMessage(), exception);
+    }
+    final Object returnValue;
+    try {
+      returnValue = invocationContext.proceed();
+    } catch (final Exception | Error throwable) {
+      try {
+        if (metadata.rollsBackOn(throwable)) {
+          transactionManager.rollback();
+        } else {
+          this.complete();
+        }
+      } catch (final Exception completionException) {
+        throwable.addSuppressed(completionException);
+      }
+      throw throwable;
+    }
+    try {
+      this.complete();
+    } catch (final HeuristicMixedException | HeuristicRollbackException | RollbackException | SystemException exception) {
+      throw new TransactionalException(exception.getMessage(), exception);
+    }
+    return returnValue;
+  }
+
+  private final Object proceedInCurrentTransaction(final InvocationContext invocationContext,
+                                                   final TransactionalMetadata metadata)
+    throws Exception {
+    try {
+      return invocationContext.proceed();
+    } catch (final Exception | Error throwable) {
+      if (metadata.rollsBackOn(throwable)) {
+        try {
+          this.transactionManager.setRollbackOnly();
+        } catch (final IllegalStateException | SystemException exception) {
+          throwable.addSuppressed(exception);
+        }
+      }
+      throw throwable;
+    }
+  }
+
+  /**
+   * Resumes the supplied suspended {@link Transaction}, if there is
+   * one.
+   *
+   * @param suspendedTransaction the {@link Transaction} to resume;
+   * may be {@code null} in which case no action is taken
+   *
+   * @param problem the {@link Throwable} thrown by the intercepted
+   * method, to which any exception thrown while resuming will be
+   * {@linkplain Throwable#addSuppressed(Throwable) added} instead of
+   * being thrown; may be {@code null}
+   *
+   * @exception InvalidTransactionException if {@code problem} is
+   * {@code null} and {@code suspendedTransaction} is not a valid
+   * transaction
+   *
+   * @exception SystemException if {@code problem} is {@code null}
+   * and the transaction manager encountered an unexpected error
+   * condition
+   */
+  private final void resume(final Transaction suspendedTransaction, final Throwable problem)
+    throws InvalidTransactionException, SystemException {
+    if (suspendedTransaction != null) {
+      try {
+        this.transactionManager.resume(suspendedTransaction);
+      } catch (final InvalidTransactionException | SystemException | RuntimeException exception) {
+        if (problem == null) {
+          throw exception;
+        }
+        problem.addSuppressed(exception);
+      }
+    }
+  }
+
+  private final void complete()
+    throws HeuristicMixedException, HeuristicRollbackException, RollbackException, SystemException {
+    final NarayanaTransactionManager transactionManager = this.transactionManager;
+    if (transactionManager.getStatus() == Status.STATUS_MARKED_ROLLBACK) {
+      transactionManager.rollback();
+    } else {
+      transactionManager.commit();
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.Method;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+
+/**
+ * An immutable, pre-resolved representation of the {@link
+ * Transactional} annotation in effect for a particular method.
+ *
+ * <p>Instances of this class are computed once, when the container
+ * starts or, for methods whose metadata depends on the class of the
+ * instance on which they are invoked, on the first such invocation,
+ * so that the {@link TransactionalInterceptor} need not perform
+ * annotation reflection on every invocation.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionalInterceptor
+ */
+final class TransactionalMetadata {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final Class<?>[] EMPTY_CLASS_ARRAY = new Class<?>[0];
+
+  private static final Map<TxType, TransactionalMetadata> defaults;
+
+  /**
+   * The {@link TransactionalMetadata} resolved by {@link #of(Method,
+   * Class)}, keyed by the class of the target instance and then by
+   * {@link Method}.
+   */
+  private static final ClassValue<ConcurrentMap<Method, TransactionalMetadata>> resolved =
+    new ClassValue<ConcurrentMap<Method, TransactionalMetadata>>() {
+      @Override
+      protected final ConcurrentMap<Method, TransactionalMetadata> computeValue(final Class<?> targetClass) {
+        return new ConcurrentHashMap<>();
+      }
+    };
+
+  static {
+    final Map<TxType, TransactionalMetadata> map = new EnumMap<>(TxType.class);
+    for (final TxType txType : TxType.values()) {
+      map.put(txType, new TransactionalMetadata(txType, EMPTY_CLASS_ARRAY, EMPTY_CLASS_ARRAY));
+    }
+    defaults = map;
+  }
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final TxType txType;
+
+  private final Class<?>[] rollbackOn;
+
+  private final Class<?>[] dontRollbackOn;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private TransactionalMetadata(final TxType txType, final Class<?>[] rollbackOn, final Class<?>[] dontRollbackOn) {
+    super();
+    this.txType = txType;
+    this.rollbackOn = rollbackOn;
+    this.dontRollbackOn = dontRollbackOn;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the {@link TxType} in effect.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the {@link TxType} in effect; never {@code null}
+   */
+  final TxType getTxType() {
+    return this.txType;
+  }
+
+  /**
+   * Returns {@code true} if the supplied {@link Throwable}, thrown by
+   * a method to which this {@link TransactionalMetadata} applies,
+   * should cause the current transaction to roll back.
+   *
+   * <p>As required by the {@link Transactional} specification,
+   * unchecked exceptions cause a rollback and checked exceptions do
+   * not, unless overridden by {@link Transactional#rollbackOn()}.
+   * {@link Transactional#dontRollbackOn()} takes precedence over
+   * both.</p>
+   *
+   * @param throwable the {@link Throwable} in question; must not be
+   * {@code null}
+   *
+   * @return {@code true} if the current transaction should roll back
+   */
+  final boolean rollsBackOn(final Throwable throwable) {
+    for (final Class<?> c : this.dontRollbackOn) {
+      if (c.isInstance(throwable)) {
+        return false;
+      }
+    }
+    for (final Class<?> c : this.rollbackOn) {
+      if (c.isInstance(throwable)) {
+        return true;
+      }
+    }
+    return throwable instanceof RuntimeException || throwable instanceof Error;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * TransactionalMetadata}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return this.txType.toString();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a {@link TransactionalMetadata} representing the supplied
+   * {@link Transactional} annotation.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param transactional the {@link Transactional} annotation; may be
+   * {@code null} in which case the defaults for {@link
+   * TxType#REQUIRED} are returned
+   *
+   * @return a {@link TransactionalMetadata}; never {@code null}
+   */
+  static final TransactionalMetadata of(final Transactional transactional) {
+    if (transactional == null) {
+      return defaults.get(TxType.REQUIRED);
+    }
+    final Class<?>[] rollbackOn = transactional.rollbackOn();
+    final Class<?>[] dontRollbackOn = transactional.dontRollbackOn();
+    if (rollbackOn.length == 0 && dontRollbackOn.length == 0) {
+      return defaults.get(transactional.value());
+    }
+    return new TransactionalMetadata(transactional.value(), rollbackOn.clone(), dontRollbackOn.clone());
+  }
+
+  /**
+   * Returns the {@link TransactionalMetadata} in effect for the
+   * supplied {@link Method} when invoked on an instance of the
+   * supplied {@link Class}, resolving it by reflection the first time
+   * a given combination of {@link Class} and {@link Method} is seen.
+   *
+   * <p>This is the path used for methods that were not resolved when
+   * the container started, such as inherited methods and methods
+   * whose {@link Transactional} annotation is found on a subclass of
+   * their declaring class.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param method the {@link Method} being invoked; must not be
+   * {@code null}
+   *
+   * @param targetClass the {@link Class} of the instance on which
+   * {@code method} is being invoked; may be {@code null}
+   *
+   * @return a {@link TransactionalMetadata}; never {@code null}
+   */
+  static final TransactionalMetadata of(final Method method, final Class<?> targetClass) {
+    final Class<?> c = targetClass == null ? method.getDeclaringClass() : targetClass;
+    final ConcurrentMap<Method, TransactionalMetadata> metadata = resolved.get(c);
+    TransactionalMetadata returnValue = metadata.get(method);
+    if (returnValue == null) {
+      returnValue = resolve(method, c);
+      final TransactionalMetadata existing = metadata.putIfAbsent(method, returnValue);
+      if (existing != null) {
+        returnValue = existing;
+      }
+    }
+    return returnValue;
+  }
+
+  private static final TransactionalMetadata resolve(final Method method, final Class<?> targetClass) {
+    Transactional transactional = method.getAnnotation(Transactional.class);
+    if (transactional == null) {
+      transactional = targetClass.getAnnotation(Transactional.class);
+    }
+    if (transactional == null) {
+      transactional = method.getDeclaringClass().getAnnotation(Transactional.class);
+    }
+    return of(transactional);
+  }
+
+}
@@ -0,0 +1,200 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JDK Flight Recorder event types emitted through {@link
+ * TransactionEvents}.
+ *
+ * <p>This class, unlike {@link TransactionEvents}, refers to Flight
+ * Recorder types, and so must not be loaded unless Flight Recorder is
+ * present.  It is compiled for Java 11 into this jar's {@code
+ * META-INF/versions/11} directory; on Java 8 an inert version of it,
+ * whose source is in {@code src/main/java}, is used instead.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see TransactionEvents
+ */
+final class JfrTransactionEvents {
+
+  private JfrTransactionEvents() {
+    super();
+  }
+
+  static final boolean isAvailable() {
+    return FlightRecorder.isAvailable();
+  }
+
+  static final Object begin(final TransactionEvents.Kind kind, final TransactionManager transactionManager) {
+    final TransactionEvent event;
+    switch (kind) {
+    case BEGIN:
+      event = new TransactionBeginEvent();
+      break;
+    case COMMIT:
+      event = new TransactionCommitEvent();
+      break;
+    case ROLLBACK:
+      event = new TransactionRollbackEvent();
+      break;
+    case SUSPEND:
+      event = new TransactionSuspendEvent();
+      break;
+    case RESUME:
+      event = new TransactionResumeEvent();
+      break;
+    default:
+      throw new IllegalArgumentException("kind: " + kind);
+    }
+    if (!event.isEnabled()) {
+      return null;
+    }
+    if (kind != TransactionEvents.Kind.BEGIN && kind != TransactionEvents.Kind.RESUME) {
+      // The transaction is about to be completed or disassociated
+      // from the current thread.
+      event.transaction = describe(transactionManager);
+    }
+    event.begin();
+    return event;
+  }
+
+  static final void end(final Object event, final TransactionManager transactionManager, final String outcome) {
+    final TransactionEvent transactionEvent = (TransactionEvent)event;
+    transactionEvent.end();
+    if (transactionEvent.shouldCommit()) {
+      if (transactionEvent.transaction == null) {
+        // The transaction has just been associated with the current
+        // thread.
+        transactionEvent.transaction = describe(transactionManager);
+      }
+      transactionEvent.outcome = outcome;
+      transactionEvent.commit();
+    }
+  }
+
+  static final Object beginTimeout(final Transaction transaction) {
+    final TransactionTimeoutEvent event = new TransactionTimeoutEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.transaction = String.valueOf(transaction);
+    event.begin();
+    return event;
+  }
+
+  static final void endTimeout(final Object event, final String outcome) {
+    final TransactionTimeoutEvent timeoutEvent = (TransactionTimeoutEvent)event;
+    timeoutEvent.end();
+    if (timeoutEvent.shouldCommit()) {
+      timeoutEvent.outcome = outcome;
+      timeoutEvent.commit();
+    }
+  }
+
+  static final void timedOut(final String transaction, final String outcome) {
+    final TransactionTimeoutEvent event = new TransactionTimeoutEvent();
+    if (event.isEnabled()) {
+      event.transaction = transaction;
+      event.outcome = outcome;
+      event.commit();
+    }
+  }
+
+  private static final String describe(final TransactionManager transactionManager) {
+    try {
+      final Transaction transaction = transactionManager.getTransaction();
+      return transaction == null ? null : transaction.toString();
+    } catch (final SystemException | RuntimeException exception) {
+      return null;
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  @Category({ "Narayana", "Transactions" })
+  abstract static class TransactionEvent extends Event {
+
+    @Label("Transaction")
+    @Description("The transaction concerned")
+    String transaction;
+
+    @Label("Outcome")
+    @Description("The outcome of the operation")
+    String outcome;
+
+  }
+
+  @Name("org.microbean.narayana.jta.cdi.TransactionBegin")
+  @Label("Transaction Begin")
+  @Description("A transaction was begun")
+  static final class TransactionBeginEvent extends TransactionEvent {
+
+  }
+
+  @Name("org.microbean.narayana.jta.cdi.TransactionCommit")
+  @Label("Transaction Commit")
+  @Description("A transaction was committed, or an attempt to commit it failed")
+  static final class TransactionCommitEvent extends TransactionEvent {
+
+  }
+
+  @Name("org.microbean.narayana.jta.cdi.TransactionRollback")
+  @Label("Transaction Rollback")
+  @Description("A transaction was rolled back")
+  static final class TransactionRollbackEvent extends TransactionEvent {
+
+  }
+
+  @Name("org.microbean.narayana.jta.cdi.TransactionSuspend")
+  @Label("Transaction Suspend")
+  @Description("A transaction was disassociated from a thread")
+  static final class TransactionSuspendEvent extends TransactionEvent {
+
+  }
+
+  @Name("org.microbean.narayana.jta.cdi.TransactionResume")
+  @Label("Transaction Resume")
+  @Description("A transaction was associated with a thread")
+  static final class TransactionResumeEvent extends TransactionEvent {
+
+  }
+
+  @Name("org.microbean.narayana.jta.cdi.TransactionTimeout")
+  @Label("Transaction Timeout")
+  @Description("A transaction whose timeout expired was rolled back, or marked for rollback")
+  static final class TransactionTimeoutEvent extends TransactionEvent {
+
+  }
+
+}
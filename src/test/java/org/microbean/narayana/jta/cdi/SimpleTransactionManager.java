@@ -0,0 +1,441 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * A minimal {@link TransactionManager} for use in tests, whose
+ * transactions are associated with threads, may be suspended on one
+ * thread and resumed on another, and drive the {@link XAResource}s
+ * enlisted in them.
+ *
+ * <p>Unlike Narayana it keeps no log, has no timeouts and cannot
+ * recover; it exists so that the classes in this package can be
+ * exercised without a transaction engine.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class SimpleTransactionManager implements TransactionManager {
+
+  private static final AtomicLong ids = new AtomicLong();
+
+  private final ThreadLocal<SimpleTransaction> current;
+
+  private final TransactionSynchronizationRegistry registry;
+
+  private final AtomicInteger begun;
+
+  private volatile int timeoutSeconds;
+
+  SimpleTransactionManager() {
+    super();
+    this.current = new ThreadLocal<>();
+    this.registry = new Registry();
+    this.begun = new AtomicInteger();
+  }
+
+  /**
+   * Returns a {@link TransactionSynchronizationRegistry} that
+   * reflects the transaction associated with the current thread by
+   * this {@link SimpleTransactionManager}.
+   *
+   * @return a {@link TransactionSynchronizationRegistry}; never
+   * {@code null}
+   */
+  final TransactionSynchronizationRegistry getTransactionSynchronizationRegistry() {
+    return this.registry;
+  }
+
+  /**
+   * Returns the number of times the {@link #begin()} method has
+   * begun a transaction.
+   *
+   * @return the number of transactions begun
+   */
+  final int begun() {
+    return this.begun.get();
+  }
+
+  /**
+   * Returns the value most recently passed to the {@link
+   * #setTransactionTimeout(int)} method.
+   *
+   * @return the transaction timeout in seconds
+   */
+  final int getTransactionTimeout() {
+    return this.timeoutSeconds;
+  }
+
+  @Override
+  public final void begin() throws NotSupportedException {
+    if (this.current.get() != null) {
+      throw new NotSupportedException("nested transactions are not supported");
+    }
+    this.current.set(new SimpleTransaction());
+    this.begun.incrementAndGet();
+  }
+
+  @Override
+  public final void commit() throws HeuristicMixedException, HeuristicRollbackException, RollbackException, SystemException {
+    final SimpleTransaction transaction = this.require();
+    this.current.remove();
+    transaction.commit();
+  }
+
+  @Override
+  public final void rollback() throws SystemException {
+    final SimpleTransaction transaction = this.require();
+    this.current.remove();
+    transaction.rollback();
+  }
+
+  @Override
+  public final int getStatus() {
+    final SimpleTransaction transaction = this.current.get();
+    return transaction == null ? Status.STATUS_NO_TRANSACTION : transaction.getStatus();
+  }
+
+  @Override
+  public final Transaction getTransaction() {
+    return this.current.get();
+  }
+
+  @Override
+  public final void resume(final Transaction transaction) throws InvalidTransactionException {
+    if (!(transaction instanceof SimpleTransaction)) {
+      throw new InvalidTransactionException(String.valueOf(transaction));
+    } else if (this.current.get() != null) {
+      throw new IllegalStateException("a transaction is already associated with the current thread");
+    }
+    this.current.set((SimpleTransaction)transaction);
+  }
+
+  @Override
+  public final Transaction suspend() {
+    final SimpleTransaction transaction = this.current.get();
+    this.current.remove();
+    return transaction;
+  }
+
+  @Override
+  public final void setRollbackOnly() {
+    this.require().setRollbackOnly();
+  }
+
+  @Override
+  public final void setTransactionTimeout(final int timeoutSeconds) {
+    this.timeoutSeconds = timeoutSeconds;
+  }
+
+  private final SimpleTransaction require() {
+    final SimpleTransaction transaction = this.current.get();
+    if (transaction == null) {
+      throw new IllegalStateException("no transaction");
+    }
+    return transaction;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private final class Registry implements TransactionSynchronizationRegistry {
+
+    private Registry() {
+      super();
+    }
+
+    @Override
+    public final Object getTransactionKey() {
+      return current.get();
+    }
+
+    @Override
+    public final void putResource(final Object key, final Object value) {
+      require().resources.put(key, value);
+    }
+
+    @Override
+    public final Object getResource(final Object key) {
+      return require().resources.get(key);
+    }
+
+    @Override
+    public final void registerInterposedSynchronization(final Synchronization synchronization) {
+      require().register(synchronization, true);
+    }
+
+    @Override
+    public final int getTransactionStatus() {
+      return getStatus();
+    }
+
+    @Override
+    public final void setRollbackOnly() {
+      require().setRollbackOnly();
+    }
+
+    @Override
+    public final boolean getRollbackOnly() {
+      return require().getStatus() == Status.STATUS_MARKED_ROLLBACK;
+    }
+
+  }
+
+  /**
+   * A {@link Transaction} begun by a {@link SimpleTransactionManager}.
+   */
+  static final class SimpleTransaction implements Transaction {
+
+    private final long id;
+
+    private final Map<Object, Object> resources;
+
+    private final List<Synchronization> synchronizations;
+
+    private final List<Synchronization> interposedSynchronizations;
+
+    private final List<XAResource> xaResources;
+
+    private volatile int status;
+
+    private SimpleTransaction() {
+      super();
+      this.id = ids.incrementAndGet();
+      this.resources = new ConcurrentHashMap<>();
+      this.synchronizations = new CopyOnWriteArrayList<>();
+      this.interposedSynchronizations = new CopyOnWriteArrayList<>();
+      this.xaResources = new CopyOnWriteArrayList<>();
+      this.status = Status.STATUS_ACTIVE;
+    }
+
+    @Override
+    public final void commit() throws HeuristicMixedException, HeuristicRollbackException, RollbackException, SystemException {
+      if (this.status == Status.STATUS_ACTIVE) {
+        // Synchronizations may register further synchronizations.
+        for (int i = 0; i < this.synchronizations.size(); i++) {
+          this.synchronizations.get(i).beforeCompletion();
+        }
+        for (int i = 0; i < this.interposedSynchronizations.size(); i++) {
+          this.interposedSynchronizations.get(i).beforeCompletion();
+        }
+      }
+      if (this.status != Status.STATUS_ACTIVE) {
+        this.rollback();
+        throw new RollbackException("transaction " + this.id + " was marked for rollback");
+      }
+      this.status = Status.STATUS_COMMITTING;
+      try {
+        final boolean onePhase = this.xaResources.size() == 1;
+        for (int i = 0; i < this.xaResources.size(); i++) {
+          final XAResource xaResource = this.xaResources.get(i);
+          final Xid xid = new SimpleXid(this.id, i);
+          xaResource.end(xid, XAResource.TMSUCCESS);
+          if (!onePhase) {
+            xaResource.prepare(xid);
+          }
+        }
+        for (int i = 0; i < this.xaResources.size(); i++) {
+          this.xaResources.get(i).commit(new SimpleXid(this.id, i), onePhase);
+        }
+      } catch (final XAException xaException) {
+        this.complete(Status.STATUS_UNKNOWN);
+        throw (SystemException)new SystemException(xaException.getMessage()).initCause(xaException);
+      }
+      this.complete(Status.STATUS_COMMITTED);
+    }
+
+    @Override
+    public final void rollback() throws SystemException {
+      if (this.status != Status.STATUS_ACTIVE && this.status != Status.STATUS_MARKED_ROLLBACK) {
+        throw new IllegalStateException("status: " + this.status);
+      }
+      this.status = Status.STATUS_ROLLING_BACK;
+      XAException problem = null;
+      for (int i = 0; i < this.xaResources.size(); i++) {
+        final XAResource xaResource = this.xaResources.get(i);
+        final Xid xid = new SimpleXid(this.id, i);
+        try {
+          xaResource.end(xid, XAResource.TMFAIL);
+          xaResource.rollback(xid);
+        } catch (final XAException xaException) {
+          problem = xaException;
+        }
+      }
+      this.complete(Status.STATUS_ROLLEDBACK);
+      if (problem != null) {
+        throw (SystemException)new SystemException(problem.getMessage()).initCause(problem);
+      }
+    }
+
+    private final void complete(final int status) {
+      this.status = status;
+      for (final Synchronization synchronization : this.interposedSynchronizations) {
+        synchronization.afterCompletion(status);
+      }
+      for (final Synchronization synchronization : this.synchronizations) {
+        synchronization.afterCompletion(status);
+      }
+    }
+
+    @Override
+    public final boolean enlistResource(final XAResource xaResource) throws RollbackException, SystemException {
+      this.checkActive();
+      try {
+        xaResource.start(new SimpleXid(this.id, this.xaResources.size()), XAResource.TMNOFLAGS);
+      } catch (final XAException xaException) {
+        throw (SystemException)new SystemException(xaException.getMessage()).initCause(xaException);
+      }
+      this.xaResources.add(xaResource);
+      return true;
+    }
+
+    @Override
+    public final boolean delistResource(final XAResource xaResource, final int flags) {
+      return this.xaResources.contains(xaResource);
+    }
+
+    /**
+     * Returns the {@link XAResource}s enlisted in this transaction,
+     * in enlistment order.
+     *
+     * @return the enlisted {@link XAResource}s; never {@code null}
+     */
+    final List<XAResource> getXAResources() {
+      return this.xaResources;
+    }
+
+    @Override
+    public final int getStatus() {
+      return this.status;
+    }
+
+    @Override
+    public final void registerSynchronization(final Synchronization synchronization) throws RollbackException {
+      this.register(synchronization, false);
+    }
+
+    private final void register(final Synchronization synchronization, final boolean interposed) {
+      if (this.status != Status.STATUS_ACTIVE) {
+        // Narayana refuses registrations once rollback-only is set.
+        throw new IllegalStateException("status: " + this.status);
+      }
+      (interposed ? this.interposedSynchronizations : this.synchronizations).add(synchronization);
+    }
+
+    private final void checkActive() throws RollbackException {
+      if (this.status == Status.STATUS_MARKED_ROLLBACK) {
+        throw new RollbackException("transaction " + this.id + " is marked for rollback");
+      } else if (this.status != Status.STATUS_ACTIVE) {
+        throw new IllegalStateException("status: " + this.status);
+      }
+    }
+
+    @Override
+    public final void setRollbackOnly() {
+      if (this.status != Status.STATUS_ACTIVE && this.status != Status.STATUS_MARKED_ROLLBACK) {
+        throw new IllegalStateException("status: " + this.status);
+      }
+      this.status = Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    @Override
+    public final String toString() {
+      return "SimpleTransaction " + this.id;
+    }
+
+  }
+
+  private static final class SimpleXid implements Xid {
+
+    private final byte[] globalTransactionId;
+
+    private final byte[] branchQualifier;
+
+    private SimpleXid(final long id, final int branch) {
+      super();
+      this.globalTransactionId = Long.toString(id).getBytes();
+      this.branchQualifier = Integer.toString(branch).getBytes();
+    }
+
+    @Override
+    public final int getFormatId() {
+      return 0x4d42; // "MB"
+    }
+
+    @Override
+    public final byte[] getGlobalTransactionId() {
+      return this.globalTransactionId.clone();
+    }
+
+    @Override
+    public final byte[] getBranchQualifier() {
+      return this.branchQualifier.clone();
+    }
+
+    @Override
+    public final int hashCode() {
+      return 31 * Arrays.hashCode(this.globalTransactionId) + Arrays.hashCode(this.branchQualifier);
+    }
+
+    // Resource managers such as H2 compare the Xid passed to end()
+    // and commit() with the one passed to start().
+    @Override
+    public final boolean equals(final Object other) {
+      if (other == this) {
+        return true;
+      } else if (other instanceof SimpleXid) {
+        final SimpleXid her = (SimpleXid)other;
+        return
+          Arrays.equals(this.globalTransactionId, her.globalTransactionId) &&
+          Arrays.equals(this.branchQualifier, her.branchQualifier);
+      } else {
+        return false;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,141 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * A minimal, single-threaded {@link
+ * TransactionSynchronizationRegistry} for use in tests, whose
+ * transactions are begun and completed explicitly.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class SimpleTransactionSynchronizationRegistry implements TransactionSynchronizationRegistry {
+
+  private Transaction transaction;
+
+  SimpleTransactionSynchronizationRegistry() {
+    super();
+  }
+
+  /**
+   * Begins a new transaction, replacing any current one.
+   */
+  final void begin() {
+    this.transaction = new Transaction();
+  }
+
+  /**
+   * Returns the interposed {@link Synchronization}s registered with
+   * the current transaction, in registration order.
+   *
+   * @return the registered {@link Synchronization}s; never {@code
+   * null}
+   */
+  final List<Synchronization> getSynchronizations() {
+    return this.transaction.synchronizations;
+  }
+
+  /**
+   * Completes the current transaction with the supplied status,
+   * invoking its interposed {@link Synchronization}s as a
+   * transaction manager would.
+   *
+   * @param status the completion status
+   */
+  final void complete(final int status) {
+    final Transaction transaction = this.transaction;
+    if (status == Status.STATUS_COMMITTED) {
+      // Synchronizations may register further synchronizations.
+      for (int i = 0; i < transaction.synchronizations.size(); i++) {
+        transaction.synchronizations.get(i).beforeCompletion();
+      }
+    }
+    transaction.status = status;
+    for (final Synchronization synchronization : transaction.synchronizations) {
+      synchronization.afterCompletion(status);
+    }
+    this.transaction = null;
+  }
+
+  @Override
+  public final Object getTransactionKey() {
+    return this.transaction;
+  }
+
+  @Override
+  public final void putResource(final Object key, final Object value) {
+    this.current().resources.put(key, value);
+  }
+
+  @Override
+  public final Object getResource(final Object key) {
+    return this.current().resources.get(key);
+  }
+
+  @Override
+  public final void registerInterposedSynchronization(final Synchronization synchronization) {
+    final Transaction transaction = this.current();
+    if (transaction.status != Status.STATUS_ACTIVE) {
+      // Narayana refuses registrations once rollback-only is set.
+      throw new IllegalStateException("status: " + transaction.status);
+    }
+    transaction.synchronizations.add(synchronization);
+  }
+
+  @Override
+  public final int getTransactionStatus() {
+    return this.transaction == null ? Status.STATUS_NO_TRANSACTION : this.transaction.status;
+  }
+
+  @Override
+  public final void setRollbackOnly() {
+    this.current().status = Status.STATUS_MARKED_ROLLBACK;
+  }
+
+  @Override
+  public final boolean getRollbackOnly() {
+    return this.current().status == Status.STATUS_MARKED_ROLLBACK;
+  }
+
+  private final Transaction current() {
+    if (this.transaction == null) {
+      throw new IllegalStateException("no transaction");
+    }
+    return this.transaction;
+  }
+
+  private static final class Transaction {
+
+    private final Map<Object, Object> resources = new HashMap<>();
+
+    private final List<Synchronization> synchronizations = new ArrayList<>();
+
+    private int status = Status.STATUS_ACTIVE;
+
+  }
+
+}
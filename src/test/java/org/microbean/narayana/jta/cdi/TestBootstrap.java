@@ -0,0 +1,89 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestBootstrap {
+
+  private SeContainer container;
+
+  public TestBootstrap() {
+    super();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.container != null) {
+      this.container.close();
+    }
+    System.clearProperty("org.microbean.narayana.jta.cdi.bootstrap");
+    System.clearProperty("org.microbean.narayana.jta.cdi.directInjection.enabled");
+  }
+
+  @Test
+  public void testEagerBootstrapCreatesTransactionManager() {
+    this.start("eager", false);
+    assertNotNull(this.existingTransactionManager());
+  }
+
+  @Test
+  public void testEagerBootstrapCreatesDirectlyInjectedTransactionManager() {
+    this.start("eager", true);
+    assertNotNull(this.existingTransactionManager());
+  }
+
+  @Test
+  public void testLazyBootstrapDoesNotCreateTransactionManager() {
+    this.start("lazy", false);
+    assertNull(this.existingTransactionManager());
+  }
+
+  @Test
+  public void testLazyBootstrapDoesNotCreateDirectlyInjectedTransactionManager() {
+    this.start("lazy", true);
+    assertNull(this.existingTransactionManager());
+  }
+
+  private final void start(final String bootstrap, final boolean directInjection) {
+    System.setProperty("org.microbean.narayana.jta.cdi.bootstrap", bootstrap);
+    System.setProperty("org.microbean.narayana.jta.cdi.directInjection.enabled", String.valueOf(directInjection));
+    this.container = SeContainerInitializer.newInstance().initialize();
+  }
+
+  // Returns the TransactionManager bean's instance without creating
+  // it, or null if it has not been created.
+  private final Object existingTransactionManager() {
+    final BeanManager beanManager = this.container.getBeanManager();
+    final Bean<?> bean = beanManager.resolve(beanManager.getBeans(TransactionManager.class));
+    assertNotNull(bean);
+    return beanManager.getContext(bean.getScope()).get(bean);
+  }
+
+}
@@ -0,0 +1,191 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCompositeSynchronization {
+
+  private List<String> log;
+
+  public TestCompositeSynchronization() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.log = new ArrayList<>();
+  }
+
+  @Test
+  public void testPriorityOrder() {
+    final CompositeSynchronization composite = new CompositeSynchronization();
+    assertTrue(composite.add(new Recorder("c"), 10));
+    assertTrue(composite.add(new Recorder("a"), -5));
+    assertTrue(composite.add(new Recorder("b"), 0));
+    composite.beforeCompletion();
+    composite.afterCompletion(Status.STATUS_COMMITTED);
+    assertEquals(Arrays.asList("before a", "before b", "before c",
+                               "after a", "after b", "after c"),
+                 this.log);
+  }
+
+  @Test
+  public void testRegistrationOrderIsKeptWithinAPriority() {
+    final CompositeSynchronization composite = new CompositeSynchronization();
+    // More than the initial capacity, interleaving two priorities.
+    for (int i = 0; i < 20; i++) {
+      assertTrue(composite.add(new Recorder((i % 2 == 0 ? "even " : "odd ") + i), i % 2 == 0 ? 1 : 0));
+    }
+    composite.afterCompletion(Status.STATUS_ROLLEDBACK);
+    final List<String> expected = new ArrayList<>();
+    for (int i = 1; i < 20; i += 2) {
+      expected.add("after odd " + i);
+    }
+    for (int i = 0; i < 20; i += 2) {
+      expected.add("after even " + i);
+    }
+    assertEquals(expected, this.log);
+  }
+
+  @Test
+  public void testAdditionsDuringBeforeCompletionAreRun() {
+    final CompositeSynchronization composite = new CompositeSynchronization();
+    assertTrue(composite.add(new Recorder("a", () -> {
+          assertTrue(composite.add(new Recorder("late high"), 5));
+          assertTrue(composite.add(new Recorder("late low"), -5));
+        }), 0));
+    assertTrue(composite.add(new Recorder("b"), 0));
+    composite.beforeCompletion();
+    // Late additions run after the batch in progress, in priority
+    // order among themselves.
+    assertEquals(Arrays.asList("before a", "before b", "before late low", "before late high"), this.log);
+    assertFalse(composite.add(new Recorder("too late"), 0));
+    this.log.clear();
+    composite.afterCompletion(Status.STATUS_COMMITTED);
+    assertEquals(Arrays.asList("after late low", "after a", "after b", "after late high"), this.log);
+  }
+
+  @Test
+  public void testAfterCompletionRunsEverySynchronization() {
+    final CompositeSynchronization composite = new CompositeSynchronization();
+    final RuntimeException first = new RuntimeException("first");
+    final RuntimeException second = new RuntimeException("second");
+    composite.add(new Failing(first), 0);
+    composite.add(new Recorder("a"), 1);
+    composite.add(new Failing(second), 2);
+    try {
+      composite.afterCompletion(Status.STATUS_COMMITTED);
+      fail();
+    } catch (final RuntimeException expected) {
+      assertSame(first, expected);
+      assertEquals(1, expected.getSuppressed().length);
+      assertSame(second, expected.getSuppressed()[0]);
+    }
+    assertEquals(Arrays.asList("after a"), this.log);
+  }
+
+  @Test
+  public void testRegistrationsAfterBeforeCompletionFallBackToTheDelegate() {
+    final SimpleTransactionSynchronizationRegistry delegate = new SimpleTransactionSynchronizationRegistry();
+    final DelegatingTransactionSynchronizationRegistry registry =
+      new DelegatingTransactionSynchronizationRegistry(delegate, true) {};
+    delegate.begin();
+    registry.registerInterposedSynchronization(new Recorder("a"), 0);
+    final int size = delegate.getSynchronizations().size();
+    registry.registerInterposedSynchronization(new Recorder("b"), -1);
+    // Further registrations go to the composite, not the delegate.
+    assertEquals(size, delegate.getSynchronizations().size());
+    // This one is registered with the delegate directly, after the
+    // composite, so it runs once the composite's beforeCompletion()
+    // has finished.
+    delegate.registerInterposedSynchronization(new Recorder("direct", () -> {
+          registry.registerInterposedSynchronization(new Recorder("late"), -100);
+        }));
+    delegate.complete(Status.STATUS_COMMITTED);
+    assertEquals(Arrays.asList("before b", "before a", "before direct", "before late",
+                               "after b", "after a", "after direct", "after late"),
+                 this.log);
+  }
+
+  private final class Recorder implements Synchronization {
+
+    private final String name;
+
+    private final Runnable beforeCompletion;
+
+    private Recorder(final String name) {
+      this(name, null);
+    }
+
+    private Recorder(final String name, final Runnable beforeCompletion) {
+      super();
+      this.name = name;
+      this.beforeCompletion = beforeCompletion;
+    }
+
+    @Override
+    public void beforeCompletion() {
+      log.add("before " + this.name);
+      if (this.beforeCompletion != null) {
+        this.beforeCompletion.run();
+      }
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+      log.add("after " + this.name);
+    }
+
+  }
+
+  private static final class Failing implements Synchronization {
+
+    private final RuntimeException exception;
+
+    private Failing(final RuntimeException exception) {
+      super();
+      this.exception = exception;
+    }
+
+    @Override
+    public void beforeCompletion() {
+
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+      throw this.exception;
+    }
+
+  }
+
+}
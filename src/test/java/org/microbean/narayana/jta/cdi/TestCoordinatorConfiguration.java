@@ -0,0 +1,91 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.arjuna.common.CoordinatorEnvironmentBean;
+
+import com.arjuna.common.internal.util.propertyservice.BeanPopulator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCoordinatorConfiguration {
+
+  private SeContainer container;
+
+  private CoordinatorEnvironmentBean coordinatorEnvironmentBean;
+
+  private boolean asyncPrepare;
+
+  private boolean asyncCommit;
+
+  private int threads;
+
+  public TestCoordinatorConfiguration() {
+    super();
+  }
+
+  @Before
+  public void saveCoordinatorConfiguration() {
+    // Narayana's configuration is global to the virtual machine, so
+    // put it back the way it was for other tests.
+    this.coordinatorEnvironmentBean = BeanPopulator.getDefaultInstance(CoordinatorEnvironmentBean.class);
+    this.asyncPrepare = this.coordinatorEnvironmentBean.isAsyncPrepare();
+    this.asyncCommit = this.coordinatorEnvironmentBean.isAsyncCommit();
+    this.threads = this.coordinatorEnvironmentBean.getMaxTwoPhaseCommitThreads();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.container != null) {
+      this.container.close();
+    }
+    System.clearProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncPrepare");
+    System.clearProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncCommit");
+    System.clearProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.threads");
+    this.coordinatorEnvironmentBean.setAsyncPrepare(this.asyncPrepare);
+    this.coordinatorEnvironmentBean.setAsyncCommit(this.asyncCommit);
+    this.coordinatorEnvironmentBean.setMaxTwoPhaseCommitThreads(this.threads);
+  }
+
+  @Test
+  public void testAsyncTwoPhaseCommitSettingsAreApplied() throws Exception {
+    System.setProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncPrepare", "true");
+    System.setProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.asyncCommit", "true");
+    System.setProperty("org.microbean.narayana.jta.cdi.twoPhaseCommit.threads", "7");
+    this.container = SeContainerInitializer.newInstance().initialize();
+
+    assertTrue(this.coordinatorEnvironmentBean.isAsyncPrepare());
+    assertTrue(this.coordinatorEnvironmentBean.isAsyncCommit());
+    assertEquals(7, this.coordinatorEnvironmentBean.getMaxTwoPhaseCommitThreads());
+
+    // Transactions still complete with the settings in effect.
+    final TransactionManager transactionManager = this.container.select(TransactionManager.class).get();
+    transactionManager.begin();
+    transactionManager.commit();
+  }
+
+}
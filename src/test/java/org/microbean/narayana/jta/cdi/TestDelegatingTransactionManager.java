@@ -0,0 +1,384 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDelegatingTransactionManager {
+
+  private List<String> calls;
+
+  private TransactionManager delegate;
+
+  private ExecutorService executor;
+
+  public TestDelegatingTransactionManager() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.calls = new ArrayList<>();
+    final Transaction transaction =
+      (Transaction)Proxy.newProxyInstance(Transaction.class.getClassLoader(),
+                                          new Class<?>[] { Transaction.class },
+                                          (proxy, method, arguments) -> {
+                                            throw new UnsupportedOperationException(method.getName());
+                                          });
+    this.delegate =
+      (TransactionManager)Proxy.newProxyInstance(TransactionManager.class.getClassLoader(),
+                                                 new Class<?>[] { TransactionManager.class },
+                                                 (proxy, method, arguments) -> {
+                                                   switch (method.getName()) {
+                                                   case "begin":
+                                                     this.calls.add("begin");
+                                                     return null;
+                                                   case "setTransactionTimeout":
+                                                     this.calls.add("setTransactionTimeout " + arguments[0]);
+                                                     return null;
+                                                   case "getTransaction":
+                                                     return transaction;
+                                                   case "getStatus":
+                                                     return Integer.valueOf(Status.STATUS_ACTIVE);
+                                                   default:
+                                                     throw new UnsupportedOperationException(method.getName());
+                                                   }
+                                                 });
+  }
+
+  @After
+  public void tearDown() {
+    if (this.executor != null) {
+      this.executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDelegateTimesOutTransactionsWithoutATimeoutService() throws Exception {
+    final DelegatingTransactionManager transactionManager =
+      new DelegatingTransactionManager(this.delegate, null, null, 30) {};
+    transactionManager.setTransactionTimeout(10);
+    transactionManager.begin();
+    assertEquals(Arrays.asList("setTransactionTimeout 10", "begin"), this.calls);
+  }
+
+  @Test
+  public void testDelegateDoesNotTimeOutTransactionsTimedByATimeoutService() throws Exception {
+    final List<Long> scheduled = new ArrayList<>();
+    final TransactionTimeoutService timeoutService = (transaction, timeout, unit) -> {
+      scheduled.add(Long.valueOf(unit.toSeconds(timeout)));
+      return () -> {};
+    };
+    final DelegatingTransactionManager transactionManager =
+      new DelegatingTransactionManager(this.delegate, null, timeoutService, 30) {};
+    transactionManager.setTransactionTimeout(10);
+    transactionManager.begin();
+    // Only the delegate's transaction is exempted from its own
+    // timeout; the delegate's default applies again afterwards.
+    assertEquals(Arrays.asList("setTransactionTimeout 0", "begin", "setTransactionTimeout 30"), this.calls);
+    assertEquals(Arrays.asList(Long.valueOf(10L)), scheduled);
+  }
+
+  @Test
+  public void testCommitAsync() throws Exception {
+    final SimpleTransactionManager delegate = new SimpleTransactionManager();
+    final TransactionMetrics metrics = new TransactionMetrics();
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(delegate, metrics) {};
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    final CompletionStage<TransactionOutcome> outcome = transactionManager.commitAsync(this.executor());
+    assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+    assertSame(TransactionOutcome.COMMITTED, outcome.toCompletableFuture().get());
+    assertEquals(Status.STATUS_COMMITTED, transaction.getStatus());
+    // The metrics followed the transaction to the completing thread.
+    assertEquals(1L, metrics.getCommitCount());
+    assertEquals(1L, metrics.getCompletionLatency().getCount());
+  }
+
+  @Test
+  public void testRollbackAsync() throws Exception {
+    final SimpleTransactionManager delegate = new SimpleTransactionManager();
+    final TransactionMetrics metrics = new TransactionMetrics();
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(delegate, metrics) {};
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    final CompletionStage<TransactionOutcome> outcome = transactionManager.rollbackAsync(this.executor());
+    assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+    assertSame(TransactionOutcome.ROLLED_BACK, outcome.toCompletableFuture().get());
+    assertEquals(Status.STATUS_ROLLEDBACK, transaction.getStatus());
+    assertEquals(1L, metrics.getRollbackCount());
+    assertEquals(1L, metrics.getCompletionLatency().getCount());
+  }
+
+  @Test
+  public void testCommitAsyncCompletesExceptionallyIfCommitFails() throws Exception {
+    final SimpleTransactionManager delegate = new SimpleTransactionManager();
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(delegate) {};
+    transactionManager.begin();
+    transactionManager.setRollbackOnly();
+    final CompletionStage<TransactionOutcome> outcome = transactionManager.commitAsync(this.executor());
+    try {
+      outcome.toCompletableFuture().get();
+      fail();
+    } catch (final ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof RollbackException);
+    }
+    assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+  }
+
+  @Test
+  public void testRejectedCompletionLeavesTransactionIntact() throws Exception {
+    final SimpleTransactionManager delegate = new SimpleTransactionManager();
+    final TransactionMetrics metrics = new TransactionMetrics();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final TransactionTimeoutService timeoutService = (transaction, timeout, unit) -> () -> cancelled.set(true);
+    final DelegatingTransactionManager transactionManager =
+      new DelegatingTransactionManager(delegate, metrics, timeoutService, 30) {};
+    transactionManager.begin();
+    final Executor rejecting = command -> {
+      throw new RejectedExecutionException();
+    };
+    try {
+      transactionManager.commitAsync(rejecting);
+      fail();
+    } catch (final RejectedExecutionException expected) {
+
+    }
+    assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+    assertCompletesWithTimeoutAndMetrics(transactionManager, metrics, cancelled);
+  }
+
+  @Test
+  public void testFailedSuspensionLeavesTransactionIntact() throws Exception {
+    final AtomicBoolean suspensionFails = new AtomicBoolean();
+    final TransactionManager delegate = failingToSuspend(new SimpleTransactionManager(), suspensionFails);
+    final TransactionMetrics metrics = new TransactionMetrics();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final TransactionTimeoutService timeoutService = (transaction, timeout, unit) -> () -> cancelled.set(true);
+    final DelegatingTransactionManager transactionManager =
+      new DelegatingTransactionManager(delegate, metrics, timeoutService, 30) {};
+    transactionManager.begin();
+    suspensionFails.set(true);
+    try {
+      transactionManager.commitAsync(this.executor());
+      fail();
+    } catch (final SystemException expected) {
+
+    }
+    suspensionFails.set(false);
+    assertCompletesWithTimeoutAndMetrics(transactionManager, metrics, cancelled);
+  }
+
+  @Test
+  public void testRunSuspended() throws Exception {
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(new SimpleTransactionManager()) {};
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    final String result = transactionManager.runSuspended(() -> {
+        assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+        return "result";
+      });
+    assertEquals("result", result);
+    assertSame(transaction, transactionManager.getTransaction());
+    transactionManager.commit();
+  }
+
+  @Test
+  public void testRunSuspendedRollsBackLeakedTransaction() throws Exception {
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(new SimpleTransactionManager()) {};
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    final List<Transaction> leaked = new ArrayList<>();
+    try {
+      transactionManager.runSuspended(() -> {
+          transactionManager.begin();
+          leaked.add(transactionManager.getTransaction());
+          return null;
+        });
+      fail();
+    } catch (final IllegalStateException expected) {
+
+    }
+    assertEquals(Status.STATUS_ROLLEDBACK, leaked.get(0).getStatus());
+    assertSame(transaction, transactionManager.getTransaction());
+    transactionManager.commit();
+  }
+
+  @Test
+  public void testFailedSuspensionBeforeRunSuspendedLeavesTransactionIntact() throws Exception {
+    final AtomicBoolean suspensionFails = new AtomicBoolean();
+    final TransactionManager delegate = failingToSuspend(new SimpleTransactionManager(), suspensionFails);
+    final TransactionMetrics metrics = new TransactionMetrics();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final TransactionTimeoutService timeoutService = (transaction, timeout, unit) -> () -> cancelled.set(true);
+    final DelegatingTransactionManager transactionManager =
+      new DelegatingTransactionManager(delegate, metrics, timeoutService, 30) {};
+    transactionManager.begin();
+    suspensionFails.set(true);
+    try {
+      transactionManager.runSuspended(() -> {
+          fail();
+          return null;
+        });
+      fail();
+    } catch (final SystemException expected) {
+
+    }
+    suspensionFails.set(false);
+    assertCompletesWithTimeoutAndMetrics(transactionManager, metrics, cancelled);
+  }
+
+  @Test
+  public void testRunSuspendedDoesNotCreateDeferredTransaction() throws Exception {
+    final SimpleTransactionManager delegate = new SimpleTransactionManager();
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(delegate, null, null, 0, true) {};
+    transactionManager.begin();
+    transactionManager.runSuspended(() -> {
+        assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+        return null;
+      });
+    assertTrue(transactionManager.isTransactionDeferred());
+    assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+    transactionManager.commit();
+    assertEquals(0, delegate.begun());
+  }
+
+  @Test
+  public void testRunInNewTransaction() throws Exception {
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(new SimpleTransactionManager()) {};
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    final List<Transaction> inner = new ArrayList<>();
+    final String result = transactionManager.runInNewTransaction(() -> {
+        inner.add(transactionManager.getTransaction());
+        return "result";
+      });
+    assertEquals("result", result);
+    assertEquals(Status.STATUS_COMMITTED, inner.get(0).getStatus());
+    assertSame(transaction, transactionManager.getTransaction());
+    transactionManager.commit();
+  }
+
+  @Test
+  public void testRunInNewTransactionThrowsIfMarkedForRollback() throws Exception {
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(new SimpleTransactionManager()) {};
+    transactionManager.begin();
+    final Transaction transaction = transactionManager.getTransaction();
+    final List<Transaction> inner = new ArrayList<>();
+    try {
+      transactionManager.runInNewTransaction(() -> {
+          inner.add(transactionManager.getTransaction());
+          transactionManager.setRollbackOnly();
+          return "result";
+        });
+      fail();
+    } catch (final RollbackException expected) {
+
+    }
+    assertEquals(Status.STATUS_ROLLEDBACK, inner.get(0).getStatus());
+    assertSame(transaction, transactionManager.getTransaction());
+    transactionManager.commit();
+  }
+
+  @Test
+  public void testRunInNewTransactionDoesNotCreateDeferredTransaction() throws Exception {
+    final SimpleTransactionManager delegate = new SimpleTransactionManager();
+    final DelegatingTransactionManager transactionManager = new DelegatingTransactionManager(delegate, null, null, 0, true) {};
+    transactionManager.begin();
+    final List<Transaction> inner = new ArrayList<>();
+    transactionManager.runInNewTransaction(() -> {
+        // Creates the new transaction, but not the deferred one.
+        inner.add(transactionManager.getTransaction());
+        return null;
+      });
+    assertEquals(1, delegate.begun());
+    assertEquals(Status.STATUS_COMMITTED, inner.get(0).getStatus());
+    assertTrue(transactionManager.isTransactionDeferred());
+    transactionManager.commit();
+    assertEquals(1, delegate.begun());
+  }
+
+  private final Executor executor() {
+    if (this.executor == null) {
+      this.executor = Executors.newSingleThreadExecutor();
+    }
+    return this.executor;
+  }
+
+  // Returns a TransactionManager that delegates to the supplied one,
+  // except that its suspend() method throws while suspensionFails is
+  // true.
+  private static final TransactionManager failingToSuspend(final TransactionManager delegate,
+                                                           final AtomicBoolean suspensionFails) {
+    return (TransactionManager)Proxy.newProxyInstance(TransactionManager.class.getClassLoader(),
+                                                      new Class<?>[] { TransactionManager.class },
+                                                      (proxy, method, arguments) -> {
+        if (method.getName().equals("suspend") && suspensionFails.get()) {
+          throw new SystemException("suspend");
+        }
+        try {
+          return method.invoke(delegate, arguments);
+        } catch (final InvocationTargetException invocationTargetException) {
+          throw invocationTargetException.getCause();
+        }
+      });
+  }
+
+  // Commits the current transaction, checking that its timeout and
+  // metrics are still attached to the current thread.
+  private static final void assertCompletesWithTimeoutAndMetrics(final DelegatingTransactionManager transactionManager,
+                                                                 final TransactionMetrics metrics,
+                                                                 final AtomicBoolean cancelled)
+    throws Exception {
+    assertFalse(cancelled.get());
+    transactionManager.commit();
+    assertTrue(cancelled.get());
+    assertEquals(1L, metrics.getCommitCount());
+    assertEquals(1L, metrics.getCompletionLatency().getCount());
+  }
+
+}
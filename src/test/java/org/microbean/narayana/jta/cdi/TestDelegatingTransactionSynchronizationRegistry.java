@@ -0,0 +1,95 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.Collections;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestDelegatingTransactionSynchronizationRegistry {
+
+  private SimpleTransactionManager delegate;
+
+  private DelegatingTransactionManager transactionManager;
+
+  private TransactionSynchronizationRegistry registry;
+
+  public TestDelegatingTransactionSynchronizationRegistry() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.delegate = new SimpleTransactionManager();
+    this.transactionManager = new DelegatingTransactionManager(this.delegate, null, null, 0, true) {};
+    this.registry =
+      new DelegatingTransactionSynchronizationRegistry(this.delegate.getTransactionSynchronizationRegistry(),
+                                                       false,
+                                                       this.transactionManager) {};
+  }
+
+  @Test
+  public void testTransactionKeyDoesNotCreateLazilyBegunTransaction() throws Exception {
+    final TransactionScopedContext context = new TransactionScopedContext(() -> this.registry, Collections.emptyList());
+    this.transactionManager.begin();
+    final Object key = this.registry.getTransactionKey();
+    assertNotNull(key);
+    assertSame(key, this.registry.getTransactionKey());
+    assertEquals(Status.STATUS_ACTIVE, this.registry.getTransactionStatus());
+    assertTrue(context.isActive());
+    this.transactionManager.commit();
+    assertNull(this.registry.getTransactionKey());
+
+    this.transactionManager.begin();
+    assertNotEquals(key, this.registry.getTransactionKey());
+    this.transactionManager.rollback();
+
+    assertEquals(0, this.delegate.begun());
+  }
+
+  @Test
+  public void testFirstResourceAccessCreatesLazilyBegunTransaction() throws Exception {
+    final TransactionLocal<String> transactionLocal = new TransactionLocal<>(this.registry);
+    try {
+      this.transactionManager.begin();
+      final Object deferredKey = this.registry.getTransactionKey();
+      assertEquals(0, this.delegate.begun());
+      transactionLocal.set("value");
+      assertEquals(1, this.delegate.begun());
+      final Object key = this.registry.getTransactionKey();
+      assertNotEquals(deferredKey, key);
+      assertEquals(this.delegate.getTransactionSynchronizationRegistry().getTransactionKey(), key);
+      assertEquals("value", transactionLocal.get());
+      this.transactionManager.commit();
+      assertEquals(1, this.delegate.begun());
+    } finally {
+      transactionLocal.close();
+    }
+  }
+
+}
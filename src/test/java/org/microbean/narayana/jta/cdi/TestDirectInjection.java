@@ -0,0 +1,79 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TestDirectInjection {
+
+  private SeContainer container;
+
+  public TestDirectInjection() {
+    super();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.container != null) {
+      this.container.close();
+    }
+    System.clearProperty("org.microbean.narayana.jta.cdi.directInjection.enabled");
+  }
+
+  @Test
+  public void testDirectInjectionSkipsClientProxies() throws Exception {
+    this.start(true);
+    final TransactionManager transactionManager = this.container.select(TransactionManager.class).get();
+    final TransactionSynchronizationRegistry transactionSynchronizationRegistry =
+      this.container.select(TransactionSynchronizationRegistry.class).get();
+    assertEquals(NarayanaTransactionManager.class, transactionManager.getClass());
+    assertEquals(NarayanaTransactionSynchronizationRegistry.class, transactionSynchronizationRegistry.getClass());
+
+    transactionManager.begin();
+    try {
+      assertEquals(Status.STATUS_ACTIVE, transactionSynchronizationRegistry.getTransactionStatus());
+    } finally {
+      transactionManager.commit();
+    }
+  }
+
+  @Test
+  public void testDefaultInjectionUsesClientProxies() {
+    this.start(false);
+    assertNotEquals(NarayanaTransactionManager.class,
+                    this.container.select(TransactionManager.class).get().getClass());
+    assertNotEquals(NarayanaTransactionSynchronizationRegistry.class,
+                    this.container.select(TransactionSynchronizationRegistry.class).get().getClass());
+  }
+
+  private final void start(final boolean directInjection) {
+    System.setProperty("org.microbean.narayana.jta.cdi.directInjection.enabled", String.valueOf(directInjection));
+    this.container = SeContainerInitializer.newInstance().initialize();
+  }
+
+}
@@ -0,0 +1,291 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMappedObjectStore {
+
+  private static final String SEGMENT_SIZE = "org.microbean.narayana.jta.cdi.mappedObjectStore.segmentSize";
+
+  private static final String TYPE_NAME = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+  private File objectStoreDirectory;
+
+  private ObjectStoreEnvironmentBean objectStoreEnvironmentBean;
+
+  private List<MappedObjectStore> stores;
+
+  public TestMappedObjectStore() {
+    super();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    System.setProperty(SEGMENT_SIZE, "65536");
+    this.objectStoreDirectory = Files.createTempDirectory("TestMappedObjectStore").toFile();
+    this.objectStoreEnvironmentBean = new ObjectStoreEnvironmentBean();
+    this.objectStoreEnvironmentBean.setObjectStoreDir(this.objectStoreDirectory.getPath());
+    this.objectStoreEnvironmentBean.setTransactionSync(true);
+    this.stores = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() {
+    for (final MappedObjectStore store : this.stores) {
+      store.stop();
+    }
+    System.clearProperty(SEGMENT_SIZE);
+    delete(this.objectStoreDirectory);
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    MappedObjectStore store = this.open("default");
+    final Uid committed = new Uid();
+    final Uid uncommitted = new Uid();
+    final Uid promoted = new Uid();
+    final Uid removed = new Uid();
+    final Uid hidden = new Uid();
+    assertTrue(store.write_committed(committed, TYPE_NAME, state("committed")));
+    assertTrue(store.write_uncommitted(uncommitted, TYPE_NAME, state("uncommitted")));
+    assertTrue(store.write_uncommitted(promoted, TYPE_NAME, state("promoted")));
+    assertTrue(store.commit_state(promoted, TYPE_NAME));
+    assertTrue(store.write_committed(removed, TYPE_NAME, state("removed")));
+    assertTrue(store.remove_committed(removed, TYPE_NAME));
+    assertTrue(store.write_committed(hidden, TYPE_NAME, state("hidden")));
+    assertTrue(store.hide_state(hidden, TYPE_NAME));
+    store = this.reopen(store, "default");
+    assertArrayEquals(state("committed").buffer(), store.read_committed(committed, TYPE_NAME).buffer());
+    assertArrayEquals(state("uncommitted").buffer(), store.read_uncommitted(uncommitted, TYPE_NAME).buffer());
+    assertNull(store.read_committed(uncommitted, TYPE_NAME));
+    assertArrayEquals(state("promoted").buffer(), store.read_committed(promoted, TYPE_NAME).buffer());
+    assertNull(store.read_uncommitted(promoted, TYPE_NAME));
+    assertEquals(StateStatus.OS_UNKNOWN, store.currentState(removed, TYPE_NAME));
+    assertEquals(StateStatus.OS_COMMITTED_HIDDEN, store.currentState(hidden, TYPE_NAME));
+    assertEquals(1, this.segments("default").length);
+    // The checkpoint written by the first replay must itself replay.
+    store = this.reopen(store, "default");
+    assertArrayEquals(state("committed").buffer(), store.read_committed(committed, TYPE_NAME).buffer());
+    assertEquals(StateStatus.OS_COMMITTED_HIDDEN, store.currentState(hidden, TYPE_NAME));
+  }
+
+  @Test
+  public void testCorruptTrailingRecordIsIgnored() throws Exception {
+    this.testTrailingRecordIsIgnored(false);
+  }
+
+  @Test
+  public void testPartialTrailingRecordIsIgnored() throws Exception {
+    this.testTrailingRecordIsIgnored(true);
+  }
+
+  private void testTrailingRecordIsIgnored(final boolean partial) throws Exception {
+    MappedObjectStore store = this.open("default");
+    final Uid first = new Uid();
+    final Uid second = new Uid();
+    assertTrue(store.write_committed(first, TYPE_NAME, state("first")));
+    final long start = store.appendedSequence();
+    assertTrue(store.write_committed(second, TYPE_NAME, state("second")));
+    final long end = store.appendedSequence();
+    store.stop();
+    this.stores.remove(store);
+
+    // A new store's segment holds no checkpoint, so sequences are
+    // offsets into it.
+    final File[] segments = this.segments("default");
+    assertEquals(1, segments.length);
+    try (final RandomAccessFile segment = new RandomAccessFile(segments[0], "rw")) {
+      if (partial) {
+        // Only the first half of the record reached the disk.
+        final long middle = start + (end - start) / 2L;
+        segment.seek(middle);
+        segment.write(new byte[(int)(end - middle)]);
+      } else {
+        segment.seek(end - 1L);
+        final int b = segment.read();
+        segment.seek(end - 1L);
+        segment.write(b ^ 0xFF);
+      }
+    }
+
+    store = this.open("default");
+    assertArrayEquals(state("first").buffer(), store.read_committed(first, TYPE_NAME).buffer());
+    assertNull(store.read_committed(second, TYPE_NAME));
+    assertEquals(StateStatus.OS_UNKNOWN, store.currentState(second, TYPE_NAME));
+  }
+
+  @Test
+  public void testSegmentRoll() throws Exception {
+    System.setProperty(SEGMENT_SIZE, "1024");
+    MappedObjectStore store = this.open("default");
+    final List<Uid> live = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      final Uid uid = new Uid();
+      assertTrue(store.write_committed(uid, TYPE_NAME, state("state " + i)));
+      if (i % 50 == 0) {
+        live.add(uid);
+      } else {
+        assertTrue(store.remove_committed(uid, TYPE_NAME));
+      }
+    }
+    // Far more than one segment's worth has been appended, but only
+    // the current segment remains.
+    assertTrue(store.appendedSequence() > 4096L);
+    assertEquals(1, this.segments("default").length);
+    // Removals are not forced on their own.
+    store.sync();
+    assertEquals(store.appendedSequence(), store.forcedSequence());
+    store = this.reopen(store, "default");
+    for (int i = 0; i < live.size(); i++) {
+      assertArrayEquals(state("state " + (i * 50)).buffer(), store.read_committed(live.get(i), TYPE_NAME).buffer());
+    }
+    final InputObjectState uids = new InputObjectState();
+    assertTrue(store.allObjUids(TYPE_NAME, uids));
+    assertNotNull(uids.buffer());
+  }
+
+  @Test
+  public void testGroupForceCoversEveryAcknowledgedRecord() throws Exception {
+    final MappedObjectStore store = this.open("default");
+    final ExecutorService executorService = Executors.newFixedThreadPool(8);
+    try {
+      final List<Future<List<Uid>>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        futures.add(executorService.submit(new Callable<List<Uid>>() {
+            @Override
+            public List<Uid> call() throws ObjectStoreException, IOException {
+              final List<Uid> uids = new ArrayList<>();
+              for (int i = 0; i < 50; i++) {
+                final Uid uid = new Uid();
+                final long before = store.appendedSequence();
+                assertTrue(store.write_committed(uid, TYPE_NAME, state(uid.stringForm())));
+                // The record was appended after "before" was read, so
+                // a force covering it must extend past "before".
+                assertTrue(store.forcedSequence() > before);
+                uids.add(uid);
+              }
+              return uids;
+            }
+          }));
+      }
+      final List<Uid> uids = new ArrayList<>();
+      for (final Future<List<Uid>> future : futures) {
+        uids.addAll(future.get());
+      }
+      final MappedObjectStore reopened = this.reopen(store, "default");
+      for (final Uid uid : uids) {
+        assertArrayEquals(state(uid.stringForm()).buffer(), reopened.read_committed(uid, TYPE_NAME).buffer());
+      }
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void testStoresAreIsolatedAndLocked() throws Exception {
+    final MappedObjectStore defaultStore = this.open("default");
+    final MappedObjectStore stateStore = this.open("stateStore");
+    final Uid uid = new Uid();
+    assertTrue(defaultStore.write_committed(uid, TYPE_NAME, state("default")));
+    try {
+      this.open("default");
+      fail();
+    } catch (final ObjectStoreException expected) {
+
+    }
+    // The failed attempt must not have disturbed the locked store.
+    assertTrue(defaultStore.write_committed(new Uid(), TYPE_NAME, state("more")));
+    final MappedObjectStore reopenedStateStore = this.reopen(stateStore, "stateStore");
+    assertNull(reopenedStateStore.read_committed(uid, TYPE_NAME));
+    final MappedObjectStore reopenedDefaultStore = this.reopen(defaultStore, "default");
+    assertArrayEquals(state("default").buffer(), reopenedDefaultStore.read_committed(uid, TYPE_NAME).buffer());
+  }
+
+  private MappedObjectStore open(final String storeName) throws ObjectStoreException {
+    final MappedObjectStore store = new MappedObjectStore(this.objectStoreEnvironmentBean, storeName);
+    this.stores.add(store);
+    return store;
+  }
+
+  private MappedObjectStore reopen(final MappedObjectStore store, final String storeName) throws ObjectStoreException {
+    store.stop();
+    this.stores.remove(store);
+    return this.open(storeName);
+  }
+
+  private File[] segments(final String storeName) {
+    final File directory =
+      new File(new File(new File(this.objectStoreDirectory, "MappedObjectStore"),
+                        this.objectStoreEnvironmentBean.getLocalOSRoot()),
+               storeName);
+    final File[] segments = directory.listFiles((dir, name) -> name.startsWith("segment-"));
+    assertNotNull(segments);
+    return segments;
+  }
+
+  private static OutputObjectState state(final String contents) throws IOException {
+    final OutputObjectState state = new OutputObjectState();
+    state.packString(contents);
+    return state;
+  }
+
+  private static void delete(final File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    assertFalse(file.exists() && !file.delete());
+  }
+
+}
@@ -0,0 +1,164 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.event.Event;
+
+import javax.enterprise.inject.spi.BeanManager;
+
+
+import com.arjuna.ats.jta.common.JTAEnvironmentBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestNarayanaTransactionManager {
+
+  private SimpleTransactionManager delegate;
+
+  private JTAEnvironmentBean jtaEnvironmentBean;
+
+  private List<TransactionCompletion> completions;
+
+  public TestNarayanaTransactionManager() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.delegate = new SimpleTransactionManager();
+    this.jtaEnvironmentBean = new JTAEnvironmentBean();
+    this.jtaEnvironmentBean.setTransactionManager(this.delegate);
+    this.jtaEnvironmentBean.setTransactionSynchronizationRegistry(this.delegate.getTransactionSynchronizationRegistry());
+    this.completions = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty("org.microbean.narayana.jta.cdi.lazyBegin.enabled");
+  }
+
+  @Test
+  public void testElapsedTimeIsReportedWithoutMetrics() throws Exception {
+    final NarayanaTransactionManager transactionManager = this.newTransactionManager(null);
+    transactionManager.begin();
+    Thread.sleep(2L);
+    transactionManager.commit();
+    transactionManager.begin();
+    Thread.sleep(2L);
+    transactionManager.rollback();
+    assertEquals(2, this.completions.size());
+    assertEquals(TransactionOutcome.COMMITTED, this.completions.get(0).getOutcome());
+    assertEquals(TransactionOutcome.ROLLED_BACK, this.completions.get(1).getOutcome());
+    for (final TransactionCompletion completion : this.completions) {
+      assertTrue(completion.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(2L));
+    }
+  }
+
+  @Test
+  public void testElapsedTimeIsReportedForTransactionsBegunLazily() throws Exception {
+    System.setProperty("org.microbean.narayana.jta.cdi.lazyBegin.enabled", "true");
+    final NarayanaTransactionManager transactionManager = this.newTransactionManager(null);
+    // Never created.
+    transactionManager.begin();
+    Thread.sleep(2L);
+    transactionManager.commit();
+    // Created after some time has passed.
+    transactionManager.begin();
+    Thread.sleep(2L);
+    transactionManager.getTransaction();
+    transactionManager.commit();
+    assertEquals(1, this.delegate.begun());
+    assertEquals(2, this.completions.size());
+    for (final TransactionCompletion completion : this.completions) {
+      assertTrue(completion.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(2L));
+    }
+  }
+
+  @Test
+  public void testElapsedTimeIsUnknownForTransactionsBegunElsewhere() throws Exception {
+    final NarayanaTransactionManager transactionManager = this.newTransactionManager(null);
+    this.delegate.begin();
+    transactionManager.commit();
+    assertEquals(1, this.completions.size());
+    assertEquals(-1L, this.completions.get(0).getElapsedNanos());
+  }
+
+  @Test
+  public void testRollbackAfterCompletionIsTimed() throws Exception {
+    final SlowTransactionRecorder recorder = new SlowTransactionRecorder(4, 0L, TimeUnit.MILLISECONDS);
+    final NarayanaTransactionManager transactionManager = this.newTransactionManager(recorder);
+    transactionManager.begin();
+    transactionManager.rollback();
+    final List<SlowTransaction> slowTransactions = recorder.getSlowTransactions();
+    assertEquals(1, slowTransactions.size());
+    final SlowTransaction slowTransaction = slowTransactions.get(0);
+    assertEquals(TransactionOutcome.ROLLED_BACK, slowTransaction.getOutcome());
+    // A rollback has no beforeCompletion() phase.
+    assertEquals(-1L, slowTransaction.getBeforeCompletionNanos());
+    assertTrue(slowTransaction.getAfterCompletionNanos() >= 0L);
+  }
+
+  private final NarayanaTransactionManager newTransactionManager(final SlowTransactionRecorder recorder)
+    throws ReflectiveOperationException {
+    final Constructor<NarayanaTransactionManager> constructor =
+      NarayanaTransactionManager.class.getDeclaredConstructor(JTAEnvironmentBean.class,
+                                                              TransactionMetrics.class,
+                                                              SlowTransactionRecorder.class,
+                                                              TransactionTimeoutService.class,
+                                                              BeanManager.class,
+                                                              Event.class,
+                                                              Event.class,
+                                                              Event.class);
+    constructor.setAccessible(true);
+    return constructor.newInstance(this.jtaEnvironmentBean,
+                                   null,
+                                   recorder,
+                                   null,
+                                   null,
+                                   null,
+                                   null,
+                                   this.completionBroadcaster());
+  }
+
+  @SuppressWarnings("unchecked")
+  private final Event<TransactionCompletion> completionBroadcaster() {
+    return
+      (Event<TransactionCompletion>)Proxy.newProxyInstance(Event.class.getClassLoader(),
+                                                           new Class<?>[] { Event.class },
+                                                           (proxy, method, arguments) -> {
+                                                             if (method.getName().equals("fire")) {
+                                                               this.completions.add((TransactionCompletion)arguments[0]);
+                                                               return null;
+                                                             }
+                                                             throw new UnsupportedOperationException(method.getName());
+                                                           });
+  }
+
+}
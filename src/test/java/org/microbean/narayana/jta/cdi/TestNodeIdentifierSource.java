@@ -0,0 +1,63 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestNodeIdentifierSource {
+
+  public TestNodeIdentifierSource() {
+    super();
+  }
+
+  @Test
+  public void testStatefulSetPodNamesKeepTheSetName() throws IOException {
+    // Pods with the same ordinal in different sets must not collide.
+    assertEquals("web-0", NodeIdentifierSource.statefulSetPodName("web-0"));
+    assertEquals("worker-0", NodeIdentifierSource.statefulSetPodName("worker-0"));
+    assertEquals("my-app-12", NodeIdentifierSource.statefulSetPodName("my-app-12"));
+  }
+
+  @Test
+  public void testOtherHostNamesAreRejected() {
+    for (final String hostname : new String[] { "web", "web-", "-0", "web-0a", "web0", "web-7d4b9c6f5-x2x8q" }) {
+      try {
+        NodeIdentifierSource.statefulSetPodName(hostname);
+        fail(hostname);
+      } catch (final IOException expected) {
+
+      }
+    }
+  }
+
+  @Test
+  public void testConfiguredRecoveryNodesAreKept() {
+    assertEquals(Collections.singletonList("web-0"), NarayanaExtension.xaRecoveryNodes("web-0", null));
+    // A former identifier whose branches are still in doubt.
+    assertEquals(Arrays.asList("web-0", "1"), NarayanaExtension.xaRecoveryNodes("web-0", Arrays.asList("1", "web-0")));
+    assertEquals(Arrays.asList("web-0", "*"), NarayanaExtension.xaRecoveryNodes("web-0", Collections.singletonList("*")));
+  }
+
+}
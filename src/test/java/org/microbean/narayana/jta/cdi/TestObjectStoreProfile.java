@@ -0,0 +1,61 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestObjectStoreProfile {
+
+  public TestObjectStoreProfile() {
+    super();
+  }
+
+  @Test
+  public void testEachProfileConfiguresObjectStore() {
+    for (final ObjectStoreProfile profile : ObjectStoreProfile.values()) {
+      profile.checkAvailable(ObjectStoreEnvironmentBean.class.getClassLoader());
+      final ObjectStoreEnvironmentBean objectStoreEnvironmentBean = new ObjectStoreEnvironmentBean();
+      objectStoreEnvironmentBean.setTransactionSync(!profile.isDurable());
+      profile.applyTo(objectStoreEnvironmentBean);
+      assertEquals(profile.getObjectStoreType(), objectStoreEnvironmentBean.getObjectStoreType());
+      assertEquals(profile.isDurable(), objectStoreEnvironmentBean.isTransactionSync());
+    }
+  }
+
+  @Test
+  public void testJournalProfileFailsFastWithoutArtemis() {
+    // The bootstrap class loader cannot see the Artemis journal.
+    for (final ObjectStoreProfile profile : ObjectStoreProfile.values()) {
+      if (profile != ObjectStoreProfile.JOURNAL) {
+        profile.checkAvailable(null);
+      }
+    }
+    try {
+      ObjectStoreProfile.JOURNAL.checkAvailable(null);
+      fail();
+    } catch (final IllegalStateException expected) {
+      assertTrue(expected.getMessage().contains("artemis-journal"));
+    }
+  }
+
+}
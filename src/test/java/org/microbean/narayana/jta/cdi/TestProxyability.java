@@ -0,0 +1,64 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Ensures that the beans in normal scopes declared by this library
+ * can be proxied, as required by section 3.15 of the CDI
+ * specification.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+public class TestProxyability {
+
+  public TestProxyability() {
+    super();
+  }
+
+  @Test
+  public void testNarayanaTransactionManagerIsProxyable() throws ReflectiveOperationException {
+    assertProxyable(NarayanaTransactionManager.class);
+  }
+
+  @Test
+  public void testNarayanaTransactionSynchronizationRegistryIsProxyable() throws ReflectiveOperationException {
+    assertProxyable(NarayanaTransactionSynchronizationRegistry.class);
+  }
+
+  private static final void assertProxyable(final Class<?> beanClass) throws ReflectiveOperationException {
+    assertFalse(Modifier.isFinal(beanClass.getModifiers()));
+    final Constructor<?> constructor = beanClass.getDeclaredConstructor();
+    assertFalse(Modifier.isPrivate(constructor.getModifiers()));
+    for (Class<?> c = beanClass; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (final Method method : c.getDeclaredMethods()) {
+        final int modifiers = method.getModifiers();
+        assertFalse(method.toString(),
+                    Modifier.isFinal(modifiers) && !Modifier.isPrivate(modifiers) && !Modifier.isStatic(modifiers));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.inject.Singleton;
+
+import javax.transaction.xa.XAResource;
+
+import com.arjuna.ats.jta.recovery.XAResourceRecoveryHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class TestRecovery {
+
+  private SeContainer container;
+
+  public TestRecovery() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    RecordingRecoveryHelper.scanned = new CountDownLatch(1);
+    System.setProperty("org.microbean.narayana.jta.cdi.recovery.enabled", "true");
+    // Long enough that only the first scan can happen during the
+    // test.
+    System.setProperty("org.microbean.narayana.jta.cdi.recovery.periodSeconds", "3600");
+  }
+
+  @After
+  public void tearDown() {
+    if (this.container != null) {
+      this.container.close();
+    }
+    System.clearProperty("org.microbean.narayana.jta.cdi.recovery.enabled");
+    System.clearProperty("org.microbean.narayana.jta.cdi.recovery.periodSeconds");
+  }
+
+  @Test
+  public void testRecoveryHelperTakesPartInFirstScan() throws InterruptedException {
+    this.container = SeContainerInitializer.newInstance().addBeanClasses(RecordingRecoveryHelper.class).initialize();
+    assertTrue(RecordingRecoveryHelper.scanned.await(30L, TimeUnit.SECONDS));
+  }
+
+  @Singleton
+  public static class RecordingRecoveryHelper implements XAResourceRecoveryHelper {
+
+    private static volatile CountDownLatch scanned;
+
+    public RecordingRecoveryHelper() {
+      super();
+    }
+
+    @Override
+    public boolean initialise(final String properties) {
+      return true;
+    }
+
+    @Override
+    public XAResource[] getXAResources() {
+      scanned.countDown();
+      return new XAResource[0];
+    }
+
+  }
+
+}
@@ -0,0 +1,102 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSlowTransactionRecorder {
+
+  private SimpleTransactionSynchronizationRegistry registry;
+
+  private SlowTransactionRecorder recorder;
+
+  public TestSlowTransactionRecorder() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.registry = new SimpleTransactionSynchronizationRegistry();
+    this.recorder = new SlowTransactionRecorder(4, 0L, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testPhasesAreRecorded() {
+    this.registry.begin();
+    SlowTransactionRecorder.PhaseTimer phaseTimer = this.recorder.begun(System.nanoTime());
+    phaseTimer = this.recorder.completing(phaseTimer, this.registry);
+    this.registry.complete(Status.STATUS_COMMITTED);
+    this.recorder.completed(phaseTimer, TransactionOutcome.COMMITTED);
+
+    final List<SlowTransaction> slowTransactions = this.recorder.getSlowTransactions();
+    assertEquals(1, slowTransactions.size());
+    final SlowTransaction slowTransaction = slowTransactions.get(0);
+    assertEquals(TransactionOutcome.COMMITTED, slowTransaction.getOutcome());
+    assertTrue(slowTransaction.getBeforeCompletionNanos() >= 0L);
+    assertTrue(slowTransaction.getPrepareAndCommitNanos() >= 0L);
+    assertTrue(slowTransaction.getAfterCompletionNanos() >= 0L);
+  }
+
+  @Test
+  public void testTimersAreNotSharedBetweenTransactionsOnOneThread() {
+    // The first transaction's completion is observed late, as it
+    // would be if another thread were completing it.
+    this.registry.begin();
+    final SlowTransactionRecorder.PhaseTimer first =
+      this.recorder.completing(this.recorder.begun(System.nanoTime()), this.registry);
+    final SimpleTransactionSynchronizationRegistry firstRegistry = this.registry;
+
+    this.registry = new SimpleTransactionSynchronizationRegistry();
+    this.registry.begin();
+    final SlowTransactionRecorder.PhaseTimer second = this.recorder.begun(System.nanoTime());
+    assertNotSame(first, second);
+
+    firstRegistry.complete(Status.STATUS_COMMITTED);
+    this.recorder.completed(first, TransactionOutcome.COMMITTED);
+
+    // The second transaction is rolled back, so no completion phases
+    // are observed for it, and none may be inherited from the first.
+    this.recorder.completed(this.recorder.completing(second, null), TransactionOutcome.ROLLED_BACK);
+    this.registry.complete(Status.STATUS_ROLLEDBACK);
+
+    final List<SlowTransaction> slowTransactions = this.recorder.getSlowTransactions();
+    assertEquals(2, slowTransactions.size());
+    final SlowTransaction rolledBack = slowTransactions.get(1);
+    assertEquals(TransactionOutcome.ROLLED_BACK, rolledBack.getOutcome());
+    assertEquals(-1L, rolledBack.getBeforeCompletionNanos());
+    assertEquals(-1L, rolledBack.getPrepareAndCommitNanos());
+    assertEquals(-1L, rolledBack.getAfterCompletionNanos());
+  }
+
+  @Test
+  public void testTransactionsNotBegunHereAreIgnored() {
+    assertNull(this.recorder.completing(null, this.registry));
+  }
+
+}
@@ -0,0 +1,203 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import javax.transaction.xa.XAResource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTimingWheelTimeoutService {
+
+  private static final long TICK_MICROS = 50L;
+
+  private TimingWheelTimeoutService timeoutService;
+
+  public TestTimingWheelTimeoutService() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.timeoutService = new TimingWheelTimeoutService(TICK_MICROS, TimeUnit.MICROSECONDS);
+  }
+
+  @After
+  public void tearDown() {
+    this.timeoutService.close();
+  }
+
+  @Test
+  public void testTimeoutsCascadeDownAndNeverFireEarly() throws InterruptedException {
+    final List<TimedTransaction> transactions = new ArrayList<>();
+    // Deadlines in the lowest level, near the boundary between the
+    // lowest two levels, in the second level and in the third level.
+    final long[] timeoutMicros = new long[] {
+      TICK_MICROS,
+      TICK_MICROS * (TimingWheelTimeoutService.SLOTS - 2),
+      TICK_MICROS * TimingWheelTimeoutService.SLOTS * 3,
+      TICK_MICROS * TimingWheelTimeoutService.SLOTS * TimingWheelTimeoutService.SLOTS + TICK_MICROS * 7
+    };
+    for (final long timeout : timeoutMicros) {
+      final TimedTransaction transaction = new TimedTransaction(Status.STATUS_ACTIVE);
+      transaction.timeoutNanos = TimeUnit.MICROSECONDS.toNanos(timeout);
+      transaction.scheduledNanos = System.nanoTime();
+      this.timeoutService.schedule(transaction, timeout, TimeUnit.MICROSECONDS);
+      transactions.add(transaction);
+    }
+    for (final TimedTransaction transaction : transactions) {
+      transaction.awaitRollback();
+      assertTrue(transaction.rollbackNanos - transaction.scheduledNanos >= transaction.timeoutNanos);
+      assertTrue(transaction.markedRollbackOnly);
+      assertEquals(Status.STATUS_ROLLEDBACK, transaction.status);
+    }
+  }
+
+  @Test
+  public void testCancelledAndCompletedTransactionsAreNotRolledBack() throws InterruptedException {
+    final TimedTransaction cancelled = new TimedTransaction(Status.STATUS_ACTIVE);
+    final TimedTransaction committed = new TimedTransaction(Status.STATUS_COMMITTED);
+    final TimedTransaction markedRollbackOnly = new TimedTransaction(Status.STATUS_MARKED_ROLLBACK);
+    final TimedTransaction later = new TimedTransaction(Status.STATUS_ACTIVE);
+    this.timeoutService.schedule(cancelled, 1L, TimeUnit.MILLISECONDS).cancel();
+    this.timeoutService.schedule(committed, 1L, TimeUnit.MILLISECONDS);
+    this.timeoutService.schedule(markedRollbackOnly, 1L, TimeUnit.MILLISECONDS);
+    this.timeoutService.schedule(later, 20L, TimeUnit.MILLISECONDS);
+    later.awaitRollback();
+    markedRollbackOnly.awaitRollback();
+    assertFalse(cancelled.rolledBack());
+    assertFalse(committed.rolledBack());
+    assertEquals(Status.STATUS_COMMITTED, committed.status);
+  }
+
+  @Test
+  public void testFailedRollbackDoesNotStopTheWheels() throws InterruptedException {
+    final TimedTransaction failing = new TimedTransaction(Status.STATUS_ACTIVE);
+    failing.failRollback = true;
+    final TimedTransaction after = new TimedTransaction(Status.STATUS_ACTIVE);
+    this.timeoutService.schedule(failing, 1L, TimeUnit.MILLISECONDS);
+    this.timeoutService.schedule(after, 30L, TimeUnit.MILLISECONDS);
+    after.awaitRollback();
+    // It could not be rolled back, but it cannot commit either.
+    assertTrue(failing.markedRollbackOnly);
+  }
+
+  @Test
+  public void testScheduleAfterCloseIsRejected() {
+    this.timeoutService.close();
+    try {
+      this.timeoutService.schedule(new TimedTransaction(Status.STATUS_ACTIVE), 1L, TimeUnit.SECONDS);
+      fail();
+    } catch (final IllegalStateException expected) {
+
+    }
+  }
+
+  private static final class TimedTransaction implements Transaction {
+
+    private volatile int status;
+
+    private volatile boolean markedRollbackOnly;
+
+    private volatile boolean failRollback;
+
+    private volatile long rollbackNanos;
+
+    private long scheduledNanos;
+
+    private long timeoutNanos;
+
+    private TimedTransaction(final int status) {
+      super();
+      this.status = status;
+    }
+
+    private boolean rolledBack() {
+      return this.rollbackNanos != 0L;
+    }
+
+    private synchronized void awaitRollback() throws InterruptedException {
+      final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+      while (!this.rolledBack()) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0L) {
+          fail("not rolled back");
+        }
+        this.wait(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(remaining)));
+      }
+    }
+
+    @Override
+    public int getStatus() {
+      return this.status;
+    }
+
+    @Override
+    public void setRollbackOnly() {
+      this.markedRollbackOnly = true;
+      this.status = Status.STATUS_MARKED_ROLLBACK;
+    }
+
+    @Override
+    public synchronized void rollback() throws SystemException {
+      if (this.failRollback) {
+        throw new SystemException("rollback");
+      }
+      this.rollbackNanos = System.nanoTime();
+      this.status = Status.STATUS_ROLLEDBACK;
+      this.notifyAll();
+    }
+
+    @Override
+    public void commit() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean delistResource(final XAResource xaResource, final int flag) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean enlistResource(final XAResource xaResource) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void registerSynchronization(final Synchronization synchronization) {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
@@ -0,0 +1,205 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTransactionLocal {
+
+  private SimpleTransactionSynchronizationRegistry registry;
+
+  public TestTransactionLocal() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.registry = new SimpleTransactionSynchronizationRegistry();
+  }
+
+  @Test
+  public void testValuesAreScopedToTheirTransaction() {
+    final TransactionLocal<String> local = TransactionLocal.withInitial(this.registry, () -> "initial");
+    try {
+      this.registry.begin();
+      assertEquals("initial", local.get());
+      local.set("first");
+      assertEquals("first", local.get());
+      this.registry.complete(Status.STATUS_COMMITTED);
+
+      this.registry.begin();
+      assertEquals("initial", local.get());
+      local.set(null);
+      assertNull(local.get());
+      local.remove();
+      assertEquals("initial", local.get());
+      this.registry.complete(Status.STATUS_ROLLEDBACK);
+    } finally {
+      local.close();
+    }
+  }
+
+  @Test
+  public void testClosedIndexIsReusedWithoutExposingStaleValues() {
+    final TransactionLocal<String> first = new TransactionLocal<>(this.registry);
+    this.registry.begin();
+    first.set("first");
+    first.close();
+    try {
+      first.get();
+      fail();
+    } catch (final IllegalStateException expected) {
+
+    }
+
+    // The new instance takes over the released slot while the
+    // transaction in which the old one stored a value is still in
+    // progress.
+    final TransactionLocal<String> second = new TransactionLocal<>(this.registry);
+    try {
+      assertNull(second.get());
+      second.set("second");
+      assertEquals("second", second.get());
+      this.registry.complete(Status.STATUS_COMMITTED);
+    } finally {
+      second.close();
+    }
+  }
+
+  @Test
+  public void testClosingBoundsTheNumberOfSlots() {
+    final TransactionLocal<Object> anchor = new TransactionLocal<>(this.registry);
+    try {
+      this.registry.begin();
+      anchor.set("anchor");
+      for (int i = 0; i < 10000; i++) {
+        final TransactionLocal<Object> local = new TransactionLocal<>(this.registry);
+        local.set(Integer.valueOf(i));
+        local.close();
+      }
+      assertSame("anchor", anchor.get());
+      final TransactionLocalValues values =
+        (TransactionLocalValues)this.registry.getResource(TransactionLocalValues.class);
+      // Every short-lived instance reused the same slot.
+      assertTrue(values.capacity() < 100);
+      this.registry.complete(Status.STATUS_COMMITTED);
+    } finally {
+      anchor.close();
+    }
+  }
+
+  @Test
+  public void testThreadsSharingATransactionShareItsValues() throws Exception {
+    final int threads = 8;
+    final SimpleTransactionManager transactionManager = new SimpleTransactionManager();
+    // Widens the window between finding no values attached to the
+    // transaction and attaching new ones.
+    final TransactionSynchronizationRegistry registry =
+      slowToFindResources(transactionManager.getTransactionSynchronizationRegistry());
+    final TransactionLocal<Object> shared = TransactionLocal.withInitial(registry, Object::new);
+    final List<TransactionLocal<Integer>> locals = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      locals.add(new TransactionLocal<>(registry));
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round = 0; round < 50; round++) {
+        transactionManager.begin();
+        final Transaction transaction = transactionManager.suspend();
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final Set<Object> sharedValues = ConcurrentHashMap.newKeySet();
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+          final int id = i;
+          final Callable<Void> task = () -> {
+            transactionManager.resume(transaction);
+            try {
+              // Every thread attaches its values to the transaction at
+              // the same moment.
+              barrier.await();
+              locals.get(id).set(Integer.valueOf(id));
+              sharedValues.add(shared.get());
+            } finally {
+              transactionManager.suspend();
+            }
+            return null;
+          };
+          futures.add(executor.submit(task));
+        }
+        for (final Future<Void> future : futures) {
+          future.get();
+        }
+        assertEquals(1, sharedValues.size());
+        transactionManager.resume(transaction);
+        for (int i = 0; i < threads; i++) {
+          assertEquals(Integer.valueOf(i), locals.get(i).get());
+        }
+        assertSame(sharedValues.iterator().next(), shared.get());
+        transactionManager.commit();
+      }
+    } finally {
+      executor.shutdown();
+      shared.close();
+      for (final TransactionLocal<Integer> local : locals) {
+        local.close();
+      }
+    }
+  }
+
+  private static final TransactionSynchronizationRegistry slowToFindResources(final TransactionSynchronizationRegistry delegate) {
+    return (TransactionSynchronizationRegistry)Proxy.newProxyInstance(TransactionSynchronizationRegistry.class.getClassLoader(),
+                                                                      new Class<?>[] { TransactionSynchronizationRegistry.class },
+                                                                      (proxy, method, arguments) -> {
+        final Object returnValue;
+        try {
+          returnValue = method.invoke(delegate, arguments);
+        } catch (final InvocationTargetException invocationTargetException) {
+          throw invocationTargetException.getCause();
+        }
+        if (returnValue == null && method.getName().equals("getResource")) {
+          Thread.sleep(1L);
+        }
+        return returnValue;
+      });
+  }
+
+}
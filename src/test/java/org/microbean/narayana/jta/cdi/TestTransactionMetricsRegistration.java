@@ -0,0 +1,68 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.management.ManagementFactory;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransactionMetricsRegistration {
+
+  private SeContainer container;
+
+  public TestTransactionMetricsRegistration() {
+    super();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.container != null && this.container.isRunning()) {
+      this.container.close();
+    }
+  }
+
+  @Test
+  public void testMetricsAreRegisteredWhileTheContainerRuns() throws Exception {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName objectName = new ObjectName(NarayanaExtension.TRANSACTION_METRICS_OBJECT_NAME);
+    this.container = SeContainerInitializer.newInstance().initialize();
+    assertTrue(mBeanServer.isRegistered(objectName));
+
+    final TransactionManager transactionManager = this.container.select(TransactionManager.class).get();
+    transactionManager.begin();
+    transactionManager.commit();
+    assertEquals(Long.valueOf(1L), mBeanServer.getAttribute(objectName, "BeginCount"));
+    assertEquals(Long.valueOf(1L), mBeanServer.getAttribute(objectName, "CommitCount"));
+
+    this.container.close();
+    assertFalse(mBeanServer.isRegistered(objectName));
+  }
+
+}
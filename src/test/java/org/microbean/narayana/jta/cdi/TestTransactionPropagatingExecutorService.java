@@ -0,0 +1,79 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.concurrent.ExecutorService;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TestTransactionPropagatingExecutorService {
+
+  private SeContainer container;
+
+  public TestTransactionPropagatingExecutorService() {
+    super();
+  }
+
+  @Before
+  public void startContainer() {
+    // One thread, so that every task below runs on the same worker.
+    System.setProperty("org.microbean.narayana.jta.cdi.propagatingExecutor.threads", "1");
+    this.container = SeContainerInitializer.newInstance().initialize();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.container != null) {
+      this.container.close();
+    }
+    System.clearProperty("org.microbean.narayana.jta.cdi.propagatingExecutor.threads");
+  }
+
+  @Test
+  public void testTransactionIsPropagatedAndThenRemoved() throws Exception {
+    final TransactionManager transactionManager = this.container.select(TransactionManager.class).get();
+    final ExecutorService executorService =
+      this.container.select(TransactionPropagatingExecutorService.class, TransactionPropagating.Literal.INSTANCE).get();
+
+    transactionManager.begin();
+    try {
+      final Transaction transaction = transactionManager.getTransaction();
+      assertNotNull(transaction);
+      assertEquals(transaction, executorService.submit(() -> transactionManager.getTransaction()).get());
+      assertEquals(transaction, transactionManager.getTransaction());
+    } finally {
+      transactionManager.commit();
+    }
+
+    // The worker must not have kept the transaction around.
+    assertEquals(Integer.valueOf(Status.STATUS_NO_TRANSACTION),
+                 executorService.submit(() -> transactionManager.getStatus()).get());
+  }
+
+}
@@ -0,0 +1,210 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.enterprise.context.ContextNotActiveException;
+
+import javax.enterprise.context.spi.Contextual;
+import javax.enterprise.context.spi.CreationalContext;
+
+import javax.transaction.Status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTransactionScopedContext {
+
+  private SimpleTransactionSynchronizationRegistry registry;
+
+  private List<Bean> beans;
+
+  private TransactionScopedContext context;
+
+  public TestTransactionScopedContext() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.registry = new SimpleTransactionSynchronizationRegistry();
+    this.beans = new ArrayList<>();
+    // Enough beans to grow the slot table more than once.
+    for (int i = 0; i < 40; i++) {
+      this.beans.add(new Bean());
+    }
+    this.context = new TransactionScopedContext(() -> this.registry, this.beans);
+  }
+
+  @After
+  public void tearDown() {
+    this.context.close();
+  }
+
+  @Test
+  public void testDiscoveredBeansHaveDistinctSlots() {
+    for (int i = 0; i < this.beans.size(); i++) {
+      assertEquals(i, this.context.register(this.beans.get(i)));
+    }
+    final Bean undiscovered = new Bean();
+    assertEquals(this.beans.size(), this.context.register(undiscovered));
+    assertEquals(this.beans.size(), this.context.register(undiscovered));
+  }
+
+  @Test
+  public void testInstancesAreScopedToTheirTransaction() {
+    final Bean undiscovered = new Bean();
+    this.registry.begin();
+    assertTrue(this.context.isActive());
+    final List<Object> instances = new ArrayList<>();
+    for (final Bean bean : this.beans) {
+      assertNull(this.context.get(bean));
+      final Object instance = this.context.get(bean, new Creation());
+      assertSame(instance, this.context.get(bean));
+      instances.add(instance);
+    }
+    final Object undiscoveredInstance = this.context.get(undiscovered, new Creation());
+    assertSame(undiscoveredInstance, this.context.get(undiscovered, new Creation()));
+    for (int i = 0; i < this.beans.size(); i++) {
+      assertSame(instances.get(i), this.context.get(this.beans.get(i)));
+    }
+    this.registry.complete(Status.STATUS_COMMITTED);
+    for (final Bean bean : this.beans) {
+      assertEquals(Collections.singletonList(bean.created.get(0)), bean.destroyed);
+    }
+    assertEquals(1, undiscovered.destroyed.size());
+    assertFalse(this.context.isActive());
+
+    this.registry.begin();
+    assertNotSame(instances.get(0), this.context.get(this.beans.get(0), new Creation()));
+    this.registry.complete(Status.STATUS_ROLLEDBACK);
+  }
+
+  @Test
+  public void testDestroy() {
+    final Bean bean = this.beans.get(3);
+    this.registry.begin();
+    final Object instance = this.context.get(bean, new Creation());
+    this.context.destroy(bean);
+    assertEquals(Collections.singletonList(instance), bean.destroyed);
+    assertNull(this.context.get(bean));
+    this.registry.complete(Status.STATUS_COMMITTED);
+    assertEquals(1, bean.destroyed.size());
+  }
+
+  @Test
+  public void testLookupCreatesNothing() {
+    final Bean bean = this.beans.get(5);
+    for (int i = 0; i < 2; i++) {
+      this.registry.begin();
+      assertNull(this.context.get(bean));
+      this.context.destroy(bean);
+      assertTrue(this.registry.getSynchronizations().isEmpty());
+      assertNull(this.registry.getResource(TransactionLocalValues.class));
+      this.registry.complete(Status.STATUS_COMMITTED);
+      // The second time around, instances have been created in an
+      // earlier transaction.
+      this.registry.begin();
+      this.context.get(bean, new Creation());
+      this.registry.complete(Status.STATUS_COMMITTED);
+    }
+    assertEquals(2, bean.destroyed.size());
+  }
+
+  @Test
+  public void testCreationAfterRollbackOnlyIsPermitted() {
+    final Bean bean = this.beans.get(0);
+    this.registry.begin();
+    this.registry.setRollbackOnly();
+    assertTrue(this.context.isActive());
+    final Object instance = this.context.get(bean, new Creation());
+    assertSame(instance, this.context.get(bean, new Creation()));
+    this.registry.complete(Status.STATUS_ROLLEDBACK);
+  }
+
+  @Test
+  public void testNoTransaction() {
+    assertFalse(this.context.isActive());
+    try {
+      this.context.get(this.beans.get(0), new Creation());
+      fail();
+    } catch (final ContextNotActiveException expected) {
+
+    }
+    try {
+      this.context.get(this.beans.get(0));
+      fail();
+    } catch (final ContextNotActiveException expected) {
+
+    }
+  }
+
+  private static final class Bean implements Contextual<Object> {
+
+    private final List<Object> created = new ArrayList<>();
+
+    private final List<Object> destroyed = new ArrayList<>();
+
+    private Bean() {
+      super();
+    }
+
+    @Override
+    public Object create(final CreationalContext<Object> creationalContext) {
+      final Object instance = new Object();
+      this.created.add(instance);
+      return instance;
+    }
+
+    @Override
+    public void destroy(final Object instance, final CreationalContext<Object> creationalContext) {
+      this.destroyed.add(instance);
+    }
+
+  }
+
+  private static final class Creation implements CreationalContext<Object> {
+
+    private Creation() {
+      super();
+    }
+
+    @Override
+    public void push(final Object instance) {
+
+    }
+
+    @Override
+    public void release() {
+
+    }
+
+  }
+
+}
@@ -0,0 +1,183 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Transaction;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTransactionalDataSource {
+
+  private static final AtomicInteger databases = new AtomicInteger();
+
+  private SimpleTransactionManager transactionManager;
+
+  private TransactionalDataSource dataSource;
+
+  public TestTransactionalDataSource() {
+    super();
+  }
+
+  @Before
+  public void setUp() throws SQLException {
+    final JdbcDataSource xaDataSource = new JdbcDataSource();
+    xaDataSource.setURL("jdbc:h2:mem:test" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+    this.transactionManager = new SimpleTransactionManager();
+    this.dataSource =
+      new TransactionalDataSource(xaDataSource,
+                                  this.transactionManager,
+                                  this.transactionManager.getTransactionSynchronizationRegistry(),
+                                  1);
+    try (final Connection connection = this.dataSource.getConnection();
+         final Statement statement = connection.createStatement()) {
+      statement.executeUpdate("CREATE TABLE T (ID INT PRIMARY KEY)");
+    }
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    try (final Connection connection = this.dataSource.getConnection();
+         final Statement statement = connection.createStatement()) {
+      statement.executeUpdate("DROP ALL OBJECTS");
+    } finally {
+      this.dataSource.close();
+    }
+  }
+
+  @Test
+  public void testSameConnectionWithinATransaction() throws Exception {
+    this.transactionManager.begin();
+    final Connection first = this.dataSource.getConnection();
+    final Connection second = this.dataSource.getConnection();
+    assertEquals(sessionId(first), sessionId(second));
+    insert(first, 1);
+    // Closing a handle inside a transaction leaves the connection
+    // associated with it.
+    first.close();
+    assertEquals(1, count(second));
+    assertEquals(1, ((SimpleTransactionManager.SimpleTransaction)this.transactionManager.getTransaction()).getXAResources().size());
+    this.transactionManager.commit();
+  }
+
+  @Test
+  public void testSeparateConnectionPerTransaction() throws Exception {
+    this.transactionManager.begin();
+    final int firstSessionId = sessionId(this.dataSource.getConnection());
+    final Transaction first = this.transactionManager.suspend();
+
+    this.transactionManager.begin();
+    assertNotEquals(firstSessionId, sessionId(this.dataSource.getConnection()));
+    this.transactionManager.commit();
+
+    this.transactionManager.resume(first);
+    assertEquals(firstSessionId, sessionId(this.dataSource.getConnection()));
+    this.transactionManager.commit();
+  }
+
+  @Test
+  public void testConnectionReleasedOnCommit() throws Exception {
+    this.transactionManager.begin();
+    final Connection connection = this.dataSource.getConnection();
+    final int sessionId = sessionId(connection);
+    this.transactionManager.commit();
+    assertReleased(connection);
+
+    // The released connection went back to the pool.
+    this.transactionManager.begin();
+    assertEquals(sessionId, sessionId(this.dataSource.getConnection()));
+    this.transactionManager.commit();
+  }
+
+  @Test
+  public void testConnectionReleasedOnRollback() throws Exception {
+    this.transactionManager.begin();
+    final Connection connection = this.dataSource.getConnection();
+    final int sessionId = sessionId(connection);
+    this.transactionManager.rollback();
+    assertReleased(connection);
+
+    this.transactionManager.begin();
+    assertEquals(sessionId, sessionId(this.dataSource.getConnection()));
+    this.transactionManager.rollback();
+  }
+
+  @Test
+  public void testWorkIsEnlisted() throws Exception {
+    this.transactionManager.begin();
+    insert(this.dataSource.getConnection(), 1);
+    this.transactionManager.rollback();
+    try (final Connection connection = this.dataSource.getConnection()) {
+      assertEquals(0, count(connection));
+    }
+
+    this.transactionManager.begin();
+    insert(this.dataSource.getConnection(), 2);
+    this.transactionManager.commit();
+    try (final Connection connection = this.dataSource.getConnection()) {
+      assertEquals(1, count(connection));
+    }
+  }
+
+  private static final void assertReleased(final Connection connection) {
+    try {
+      assertTrue(connection.isClosed());
+      connection.createStatement();
+      fail();
+    } catch (final SQLException expected) {
+
+    }
+  }
+
+  private static final void insert(final Connection connection, final int id) throws SQLException {
+    try (final Statement statement = connection.createStatement()) {
+      statement.executeUpdate("INSERT INTO T (ID) VALUES (" + id + ")");
+    }
+  }
+
+  private static final int count(final Connection connection) throws SQLException {
+    return queryInt(connection, "SELECT COUNT(*) FROM T");
+  }
+
+  private static final int sessionId(final Connection connection) throws SQLException {
+    return queryInt(connection, "SELECT SESSION_ID()");
+  }
+
+  private static final int queryInt(final Connection connection, final String sql) throws SQLException {
+    try (final Statement statement = connection.createStatement();
+         final ResultSet resultSet = statement.executeQuery(sql)) {
+      assertTrue(resultSet.next());
+      return resultSet.getInt(1);
+    }
+  }
+
+}
@@ -0,0 +1,197 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.interceptor.InvocationContext;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+import javax.transaction.TransactionalException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTransactionalInterceptor {
+
+  private ResumeFailingTransactionManager transactionManager;
+
+  private TransactionalInterceptor interceptor;
+
+  private Method intercept;
+
+  public TestTransactionalInterceptor() {
+    super();
+  }
+
+  @Before
+  public void setUp() throws ReflectiveOperationException {
+    this.transactionManager = new ResumeFailingTransactionManager();
+    final Constructor<TransactionalInterceptor> constructor =
+      TransactionalInterceptor.class.getDeclaredConstructor(NarayanaExtension.class, NarayanaTransactionManager.class);
+    constructor.setAccessible(true);
+    this.interceptor = constructor.newInstance(new NarayanaExtension(), this.transactionManager);
+    this.intercept = TransactionalInterceptor.class.getDeclaredMethod("intercept", InvocationContext.class);
+    this.intercept.setAccessible(true);
+  }
+
+  @Test
+  public void testResumeFailureIsSuppressedByBusinessException() throws Exception {
+    final IllegalStateException business = new IllegalStateException();
+    try {
+      this.intercept(new Context("notSupported", business));
+      fail();
+    } catch (final IllegalStateException expected) {
+      assertSame(business, expected);
+      assertEquals(1, expected.getSuppressed().length);
+      assertTrue(expected.getSuppressed()[0] instanceof SystemException);
+    }
+    assertEquals(1, this.transactionManager.resumptions);
+  }
+
+  @Test
+  public void testResumeFailureIsReportedWhenBusinessMethodSucceeds() throws Exception {
+    try {
+      this.intercept(new Context("notSupported", null));
+      fail();
+    } catch (final TransactionalException expected) {
+      assertTrue(expected.getCause() instanceof SystemException);
+    }
+    assertEquals(1, this.transactionManager.resumptions);
+  }
+
+  private Object intercept(final InvocationContext invocationContext) throws Exception {
+    try {
+      return this.intercept.invoke(this.interceptor, invocationContext);
+    } catch (final InvocationTargetException invocationTargetException) {
+      throw (Exception)invocationTargetException.getCause();
+    }
+  }
+
+  public static final class Target {
+
+    public Target() {
+      super();
+    }
+
+    @Transactional(TxType.NOT_SUPPORTED)
+    public void notSupported() {
+
+    }
+
+  }
+
+  private static final class Context implements InvocationContext {
+
+    private final Target target;
+
+    private final Method method;
+
+    private final Exception exception;
+
+    private final Map<String, Object> contextData;
+
+    private Context(final String methodName, final Exception exception) throws ReflectiveOperationException {
+      super();
+      this.target = new Target();
+      this.method = Target.class.getMethod(methodName);
+      this.exception = exception;
+      this.contextData = new HashMap<>();
+    }
+
+    @Override
+    public Object getTarget() {
+      return this.target;
+    }
+
+    @Override
+    public Method getMethod() {
+      return this.method;
+    }
+
+    @Override
+    public Constructor<?> getConstructor() {
+      return null;
+    }
+
+    @Override
+    public Object[] getParameters() {
+      return new Object[0];
+    }
+
+    @Override
+    public Map<String, Object> getContextData() {
+      return this.contextData;
+    }
+
+    @Override
+    public Object proceed() throws Exception {
+      if (this.exception != null) {
+        throw this.exception;
+      }
+      return null;
+    }
+
+  }
+
+  @SuppressWarnings("deprecation")
+  private static final class ResumeFailingTransactionManager extends NarayanaTransactionManager {
+
+    private final Transaction suspendedTransaction;
+
+    private int resumptions;
+
+    private ResumeFailingTransactionManager() {
+      super();
+      this.suspendedTransaction =
+        (Transaction)Proxy.newProxyInstance(Transaction.class.getClassLoader(),
+                                            new Class<?>[] { Transaction.class },
+                                            (proxy, method, arguments) -> {
+                                              throw new UnsupportedOperationException(method.getName());
+                                            });
+    }
+
+    @Override
+    public Transaction suspend() {
+      return this.suspendedTransaction;
+    }
+
+    @Override
+    public void resume(final Transaction transaction) throws InvalidTransactionException, SystemException {
+      assertSame(this.suspendedTransaction, transaction);
+      this.resumptions++;
+      throw new SystemException("resume");
+    }
+
+  }
+
+}
@@ -0,0 +1,85 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.narayana.jta.cdi;
+
+import java.lang.reflect.Method;
+
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransactionalMetadata {
+
+  public TestTransactionalMetadata() {
+    super();
+  }
+
+  @Test
+  public void testMethodAnnotationWins() throws ReflectiveOperationException {
+    final Method method = Base.class.getDeclaredMethod("never");
+    assertEquals(TxType.NEVER, TransactionalMetadata.of(method, Derived.class).getTxType());
+  }
+
+  @Test
+  public void testTargetClassAnnotationWinsOverDeclaringClass() throws ReflectiveOperationException {
+    final Method method = Base.class.getDeclaredMethod("inherited");
+    assertEquals(TxType.MANDATORY, TransactionalMetadata.of(method, Base.class).getTxType());
+    assertEquals(TxType.REQUIRES_NEW, TransactionalMetadata.of(method, Derived.class).getTxType());
+    assertEquals(TxType.MANDATORY, TransactionalMetadata.of(method, null).getTxType());
+  }
+
+  @Test
+  public void testResolvedOncePerClassAndMethod() throws ReflectiveOperationException {
+    final Method method = Base.class.getDeclaredMethod("rollsBack");
+    final TransactionalMetadata metadata = TransactionalMetadata.of(method, Derived.class);
+    assertSame(metadata, TransactionalMetadata.of(method, Derived.class));
+    assertTrue(metadata.rollsBackOn(new IllegalStateException()));
+    assertFalse(metadata.rollsBackOn(new Exception()));
+    assertSame(TransactionalMetadata.of(method, Base.class), TransactionalMetadata.of(method, Base.class));
+  }
+
+  @Transactional(TxType.MANDATORY)
+  private static class Base {
+
+    @Transactional(TxType.NEVER)
+    void never() {
+
+    }
+
+    void inherited() {
+
+    }
+
+    @Transactional(dontRollbackOn = IllegalArgumentException.class)
+    void rollsBack() {
+
+    }
+
+  }
+
+  @Transactional(TxType.REQUIRES_NEW)
+  private static final class Derived extends Base {
+
+  }
+
+}